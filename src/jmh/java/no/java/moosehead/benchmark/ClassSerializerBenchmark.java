@@ -0,0 +1,48 @@
+package no.java.moosehead.benchmark;
+
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.utils.ClassSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClassSerializer on its own, without the conversion to bytes that the text codec adds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassSerializerBenchmark {
+
+    @Param({"WorkshopAddedByAdmin", "ReservationAddedByUser", "EmailConfirmedByUser", "ReservationCancelledByUser"})
+    public String eventType;
+
+    private ClassSerializer classSerializer;
+    private AbstractEvent event;
+    private String serialized;
+
+    @Setup
+    public void setup() {
+        classSerializer = new ClassSerializer();
+        List<AbstractEvent> events = SyntheticEventLog.generate(2000, SyntheticEventLog.DEFAULT_SEED);
+        event = events.stream()
+                .filter(ev -> ev.getClass().getSimpleName().equals(eventType))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No " + eventType + " in the synthetic log"));
+        serialized = classSerializer.asString(event);
+    }
+
+    @Benchmark
+    public String asString() {
+        return classSerializer.asString(event);
+    }
+
+    @Benchmark
+    public AbstractEvent asObject() {
+        return classSerializer.asObject(serialized);
+    }
+}
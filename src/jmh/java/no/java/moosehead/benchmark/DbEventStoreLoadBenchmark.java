@@ -0,0 +1,168 @@
+package no.java.moosehead.benchmark;
+
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.ReservationAddedByUser;
+import no.java.moosehead.eventstore.WorkshopAddedBySystem;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.DbEventStore;
+import no.java.moosehead.eventstore.utils.EventCodec;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.TextEventCodec;
+import org.flywaydb.core.Flyway;
+import org.h2.jdbcx.JdbcDataSource;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures time to ready and peak heap when loading the event table at startup.
+ * Run each mode in its own JVM so the peak heap numbers do not affect each other:
+ *
+ *   DbEventStoreLoadBenchmark populate 1000000 [text|binary]
+ *   DbEventStoreLoadBenchmark materialised 1000000
+ *   DbEventStoreLoadBenchmark streaming 1000000
+ *
+ * materialised is the old way: one query with the whole result set in memory, decoded one row at a time
+ * into a list before playback. Uses an H2 file database in the temp dir unless
+ * -Djdbc.url, -Djdbc.user and -Djdbc.password point at a Postgres database.
+ */
+public class DbEventStoreLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args[0];
+        int events = Integer.parseInt(args[1]);
+        DataSource dataSource = dataSource(events);
+
+        if ("populate".equals(mode)) {
+            populate(dataSource, events, EventLogFormat.fromConfig(args.length > 2 ? args[2] : "text"));
+            return;
+        }
+
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        AtomicLong received = new AtomicLong();
+        long start = System.nanoTime();
+        if ("streaming".equals(mode)) {
+            DbEventStore eventstore = new DbEventStore(() -> connection(dataSource), EventLogFormat.TEXT, 1000);
+            eventstore.addEventSubscriber(event -> received.incrementAndGet());
+            eventstore.playbackEventsToSubscribers();
+        } else {
+            List<AbstractEvent> storage = loadMaterialised(dataSource);
+            for (AbstractEvent event : storage) {
+                received.incrementAndGet();
+            }
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println(String.format("%s: %d events to subscribers in %d ms, peak heap %d MB",
+                mode, received.get(), millis, peakHeap / (1024 * 1024)));
+    }
+
+    private static List<AbstractEvent> loadMaterialised(DataSource dataSource) throws SQLException {
+        EventCodec codec = new TextEventCodec();
+        EventCodec binaryCodec = EventLogFormat.BINARY.createCodec();
+        List<AbstractEvent> storage = new ArrayList<>();
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement ps = connection.prepareStatement("select payload, binpayload from event order by id");
+                ResultSet resultSet = ps.executeQuery()
+        ) {
+            while (resultSet.next()) {
+                byte[] binpayload = resultSet.getBytes(2);
+                storage.add(binpayload != null ? binaryCodec.decode(binpayload) : codec.decode(resultSet.getString(1).getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        return storage;
+    }
+
+    private static void populate(DataSource dataSource, int events, EventLogFormat format) throws SQLException {
+        EventCodec codec = format.createCodec();
+        int workshops = 50;
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("delete from event");
+            }
+            try (PreparedStatement ps = connection.prepareStatement("insert into event(id,payload,binpayload) values (?,?,?)")) {
+                for (int revision = 1; revision <= events; revision++) {
+                    AbstractEvent event;
+                    if (revision <= workshops) {
+                        event = new WorkshopAddedBySystem(System.currentTimeMillis(), revision, "workshop" + revision, 30);
+                    } else {
+                        event = new ReservationAddedByUser(WorkshopReservation.builder()
+                                .setSystemTimeInMillis(System.currentTimeMillis())
+                                .setRevisionId(revision)
+                                .setEmail("user" + revision + "@example.com")
+                                .setFullname("User " + revision)
+                                .setWorkshopId("workshop" + (revision % workshops + 1))
+                                .setGoogleUserEmail(Optional.empty())
+                                .create());
+                    }
+                    ps.setLong(1, revision);
+                    if (format == EventLogFormat.BINARY) {
+                        ps.setNull(2, Types.VARCHAR);
+                        ps.setBytes(3, codec.encode(event));
+                    } else {
+                        ps.setString(2, new String(codec.encode(event), StandardCharsets.UTF_8));
+                        ps.setNull(3, Types.BINARY);
+                    }
+                    ps.addBatch();
+                    if (revision % 1000 == 0) {
+                        ps.executeBatch();
+                    }
+                }
+                ps.executeBatch();
+            }
+            connection.commit();
+        }
+        System.out.println("Inserted " + events + " " + format + " events");
+    }
+
+    private static DataSource dataSource(int events) {
+        String url = System.getProperty("jdbc.url");
+        if (url != null) {
+            org.postgresql.ds.PGSimpleDataSource postgres = new org.postgresql.ds.PGSimpleDataSource();
+            postgres.setUrl(url);
+            postgres.setUser(System.getProperty("jdbc.user"));
+            postgres.setPassword(System.getProperty("jdbc.password"));
+            migrate(postgres);
+            return postgres;
+        }
+        JdbcDataSource h2 = new JdbcDataSource();
+        File file = new File(System.getProperty("java.io.tmpdir"), "moosehead-load-benchmark-" + events);
+        h2.setURL("jdbc:h2:" + file.getAbsolutePath() + ";MODE=PostgreSQL");
+        migrate(h2);
+        return h2;
+    }
+
+    private static void migrate(DataSource dataSource) {
+        Flyway flyway = new Flyway();
+        flyway.setDataSource(dataSource);
+        flyway.migrate();
+    }
+
+    private static Connection connection(DataSource dataSource) {
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package no.java.moosehead.benchmark;
+
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.ReservationAddedByUser;
+import no.java.moosehead.eventstore.WorkshopAddedBySystem;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.utils.BinaryEventCodec;
+import no.java.moosehead.eventstore.utils.EventCodec;
+import no.java.moosehead.eventstore.utils.TextEventCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the text (ClassSerializer) and binary event formats on encode and decode of typical events.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventCodecBenchmark {
+
+    @Param({"text", "binary"})
+    public String format;
+
+    @Param({"workshop", "reservation"})
+    public String eventType;
+
+    private EventCodec codec;
+    private AbstractEvent event;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        codec = "binary".equals(format) ? new BinaryEventCodec() : new TextEventCodec();
+        if ("workshop".equals(eventType)) {
+            event = new WorkshopAddedBySystem(System.currentTimeMillis(), 1L, "workshop_one", 30);
+        } else {
+            event = new ReservationAddedByUser(WorkshopReservation.builder()
+                    .setSystemTimeInMillis(System.currentTimeMillis())
+                    .setRevisionId(2L)
+                    .setEmail("darth@a.com")
+                    .setFullname("Darth Vader")
+                    .setWorkshopId("workshop_one")
+                    .setGoogleUserEmail(Optional.of("darth@gmail.com"))
+                    .setNumberOfSeatsReserved(1)
+                    .create());
+        }
+        encoded = codec.encode(event);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(event);
+    }
+
+    @Benchmark
+    public AbstractEvent decode() {
+        return codec.decode(encoded);
+    }
+}
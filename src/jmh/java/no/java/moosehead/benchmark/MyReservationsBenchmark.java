@@ -0,0 +1,54 @@
+package no.java.moosehead.benchmark;
+
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.projections.Participant;
+import no.java.moosehead.projections.Workshop;
+import no.java.moosehead.projections.WorkshopListProjection;
+import no.java.moosehead.repository.WorkshopRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What /data/myReservations asks the workshop list projection for: the reservations of one email, with the
+ * waiting list number of each
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MyReservationsBenchmark {
+    @Param({"100000"})
+    public int storedEvents;
+
+    private WorkshopListProjection projection;
+    private String[] emails;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SystemSetup.setupForReplay(new WorkshopRepository());
+        projection = new WorkshopListProjection();
+        projection.batchStarted();
+        SyntheticEventLog.generate(storedEvents, SyntheticEventLog.DEFAULT_SEED).forEach(projection::eventAdded);
+        projection.batchEnded();
+        List<String> found = new ArrayList<>();
+        for (Workshop workshop : projection.getWorkshops()) {
+            workshop.getParticipants().forEach(participant -> found.add(participant.getWorkshopReservation().getEmail()));
+        }
+        emails = found.toArray(new String[0]);
+    }
+
+    @Benchmark
+    public int myReservations() {
+        int waiting = 0;
+        for (Participant participant : projection.findAllReservations(emails[next++ % emails.length])) {
+            waiting += participant.waitingListNumber();
+        }
+        return waiting;
+    }
+}
@@ -0,0 +1,70 @@
+package no.java.moosehead.benchmark;
+
+import no.java.moosehead.aggregate.WorkshopAggregate;
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.FileHandler;
+import no.java.moosehead.projections.WorkshopListProjection;
+import no.java.moosehead.repository.WorkshopRepository;
+import no.java.moosehead.saga.EmailSaga;
+import no.java.moosehead.web.Configuration;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup from a file log: read and decode every event and play it back to the same subscribers as the server has.
+ * replayThreads 1 plays events back one by one, 0 uses ParallelReplay with a thread per core.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PlaybackBenchmark {
+
+    @Param({"10000", "100000"})
+    public int storedEvents;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    @Param({"1", "0"})
+    public String replayThreads;
+
+    private File logFile;
+
+    @Setup(Level.Trial)
+    public void writeLog() throws IOException {
+        Configuration.initData(Collections.singletonMap("replayThreads", replayThreads));
+        logFile = File.createTempFile("playback", ".log");
+        logFile.deleteOnExit();
+        SyntheticEventLog.write(logFile.getPath(), SyntheticEventLog.generate(storedEvents, SyntheticEventLog.DEFAULT_SEED),
+                EventLogFormat.fromConfig(format));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteLog() {
+        logFile.delete();
+    }
+
+    @Benchmark
+    public FilehandlerEventstore playback() {
+        WorkshopRepository workshopRepository = new WorkshopRepository();
+        SystemSetup.setupForReplay(workshopRepository);
+        FileHandler fileHandler = new FileHandler(logFile.getPath());
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(fileHandler);
+        eventstore.addEventSubscriber(new WorkshopAggregate());
+        eventstore.addEventSubscriber(new WorkshopListProjection());
+        eventstore.addEventSubscriber(new EmailSaga());
+        eventstore.addEventSubscriber(workshopRepository);
+        eventstore.playbackEventsToSubscribers();
+        fileHandler.closeOutputFile();
+        return eventstore;
+    }
+}
@@ -0,0 +1,134 @@
+package no.java.moosehead.benchmark;
+
+import no.java.moosehead.api.ParticipantActionResult;
+import no.java.moosehead.commands.AuthorEnum;
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.controller.WorkshopController;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.GroupCommitter;
+import no.java.moosehead.repository.WorkshopData;
+import no.java.moosehead.web.Configuration;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends reservations at a fixed rate to a WorkshopController with a group committed file eventstore, the way
+ * registration opening looks, and reports the reservation latency. Requests are sent on schedule whether or not
+ * earlier ones have returned, and latency is counted from when a request was due, so a stall is not hidden.
+ * Run it like the other harnesses, in its own JVM:
+ *
+ *   ReservationLoadHarness [batching|single] [seconds per rate] [rates...]
+ *
+ * Defaults to batching, 10 seconds and 1000 5000 10000 requests per second.
+ */
+public class ReservationLoadHarness {
+    private static final int WORKSHOPS = 40;
+    private static final int CLIENT_THREADS = 200;
+
+    public static void main(String[] args) throws Exception {
+        boolean batching = args.length < 1 || "batching".equals(args[0]);
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int[] rates = args.length > 2
+                ? Arrays.stream(args).skip(2).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1000, 5000, 10000};
+
+        File eventLog = new File(Files.createTempDirectory("reservation-load").toFile(), "events.log");
+        SyntheticEventLog.write(eventLog.getPath(), Collections.emptyList(), EventLogFormat.BINARY);
+        Map<String, String> confdata = new HashMap<>();
+        confdata.put("openTime", OffsetDateTime.now(ZoneOffset.UTC).minusDays(2).format(DateTimeFormatter.ofPattern("yyyyMMddHHmm")));
+        confdata.put("eventstoreFilename", eventLog.getPath());
+        confdata.put("eventstoreGroupCommit", "true");
+        confdata.put("snapshotInterval", "0");
+        confdata.put("asyncSubscribers", "true");
+        confdata.put("reservationBatching", Boolean.toString(batching));
+        Configuration.initData(confdata);
+
+        PrintStream out = System.out;
+        // The dummy email sender prints every email
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        WorkshopController workshopController = SystemSetup.instance().workshopController();
+        Instant start = Instant.now().plus(30, ChronoUnit.DAYS);
+        for (int i = 0; i < WORKSHOPS; i++) {
+            workshopController.createWorkshop(new WorkshopData("W" + i, "Workshop " + i, "Description"),
+                    start, start.plus(3, ChronoUnit.HOURS), null, 100000);
+        }
+
+        out.println(String.format("%-8s %8s %10s %10s %10s %10s %10s", batching ? "batching" : "single",
+                "rate", "achieved", "p50 ms", "p99 ms", "max ms", "errors"));
+        for (int rate : rates) {
+            run(workshopController, rate, seconds, out);
+        }
+        Optional<GroupCommitter<?>> pipeline = workshopController.reservationPipeline();
+        if (pipeline.isPresent()) {
+            out.println(String.format("%d batches, max batch size %d", pipeline.get().getBatchCount(), pipeline.get().getMaxBatchSize()));
+        }
+        System.setOut(out);
+        System.exit(0);
+    }
+
+    private static void run(WorkshopController workshopController, int rate, int seconds, PrintStream out) throws Exception {
+        int requests = rate * seconds;
+        long[] latencies = new long[requests];
+        AtomicInteger errors = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long firstDue = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            long due = firstDue + i * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int request = i;
+            WorkshopReservation reservation = WorkshopReservation.builder()
+                    .setEmail("user" + rate + "_" + i + "@example.com")
+                    .setFullname("Load " + i)
+                    .setWorkshopId("W" + (i % WORKSHOPS))
+                    .setGoogleUserEmail(Optional.empty())
+                    .setNumberOfSeatsReserved(1)
+                    .create();
+            clients.execute(() -> {
+                ParticipantActionResult result = workshopController.reservation(reservation, AuthorEnum.USER);
+                if (result.getStatus() == ParticipantActionResult.Status.ERROR) {
+                    errors.incrementAndGet();
+                }
+                latencies[request] = System.nanoTime() - due;
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(10, TimeUnit.MINUTES);
+        double elapsedSeconds = (System.nanoTime() - firstDue) / 1e9;
+
+        Arrays.sort(latencies);
+        out.println(String.format("%-8s %8d %10.0f %10.2f %10.2f %10.2f %10d", "", rate, requests / elapsedSeconds,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e6, errors.get()));
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
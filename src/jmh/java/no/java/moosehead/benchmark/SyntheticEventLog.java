@@ -0,0 +1,160 @@
+package no.java.moosehead.benchmark;
+
+import no.java.moosehead.commands.WorkshopTypeEnum;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.*;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.utils.EventCodec;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.FileHandler;
+import no.java.moosehead.repository.WorkshopData;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+/**
+ * Generates a reproducible event log that looks like a registration opening: admin added workshops,
+ * a burst of reservations, email confirmations, cancellations, show ups and some size changes.
+ * The same seed always gives the same events, apart from the workshop times, which are relative to now
+ * so that registration is open and the workshops have not started.
+ *
+ * Usage: SyntheticEventLog &lt;file&gt; &lt;events&gt; [text|binary] [seed]
+ */
+public class SyntheticEventLog {
+    public static final int WORKSHOPS = 40;
+    public static final long DEFAULT_SEED = 42;
+
+    private static class Reservation {
+        private final String email;
+        private final String workshopId;
+        private final String token;
+        private int seats;
+        private boolean confirmed;
+
+        private Reservation(AbstractReservationAdded added, boolean confirmed) {
+            this.email = added.getEmail();
+            this.workshopId = added.getWorkshopId();
+            this.token = added.getReservationToken();
+            this.seats = added.getNumberOfSeatsReserved();
+            this.confirmed = confirmed;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: SyntheticEventLog <file> <events> [text|binary] [seed]");
+            return;
+        }
+        EventLogFormat format = EventLogFormat.fromConfig(args.length > 2 ? args[2] : "binary");
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_SEED;
+        write(args[0], generate(Integer.parseInt(args[1]), seed), format);
+        System.out.println("Wrote " + args[1] + " events to " + args[0]);
+    }
+
+    public static void write(String filename, List<AbstractEvent> events, EventLogFormat format) {
+        EventCodec codec = format.createCodec();
+        FileHandler fileHandler = new FileHandler(filename, false, format);
+        fileHandler.openFileForOutput();
+        try {
+            for (AbstractEvent event : events) {
+                fileHandler.writeRecord(codec.encode(event));
+            }
+        } finally {
+            fileHandler.closeOutputFile();
+        }
+    }
+
+    public static String workshopId(int number) {
+        return "workshop_" + number;
+    }
+
+    public static List<AbstractEvent> generate(int numberOfEvents, long seed) {
+        Random random = new Random(seed);
+        List<AbstractEvent> events = new ArrayList<>(numberOfEvents);
+        Instant now = Instant.now().truncatedTo(ChronoUnit.DAYS);
+        long time = now.minus(1, ChronoUnit.DAYS).toEpochMilli();
+        Map<String, Integer> workshopSizes = new HashMap<>();
+
+        for (int i = 0; i < WORKSHOPS && events.size() < numberOfEvents; i++) {
+            String id = workshopId(i);
+            WorkshopTypeEnum type = i % 8 == 0 ? WorkshopTypeEnum.KIDSAKODER_WORKSHOP : WorkshopTypeEnum.NORMAL_WORKSHOP;
+            Instant start = now.plus(30 + i % 3, ChronoUnit.DAYS);
+            Instant end = start.plus(3, ChronoUnit.HOURS);
+            WorkshopData data = new WorkshopData(id, "Workshop " + i, "Description of workshop " + i, start, end,
+                    Optional.of(now.minus(2, ChronoUnit.DAYS)), type);
+            int size = 20 + random.nextInt(20);
+            long revision = events.size() + 1;
+            events.add(type == WorkshopTypeEnum.KIDSAKODER_WORKSHOP
+                    ? new KidsaKoderWorkshopAddedByAdmin(time, revision, id, size, start, end, data)
+                    : new WorkshopAddedByAdmin(time, revision, id, size, start, end, data));
+            workshopSizes.put(id, size);
+        }
+
+        List<Reservation> active = new ArrayList<>();
+        List<Reservation> unconfirmed = new ArrayList<>();
+        int emailNumber = 0;
+        while (events.size() < numberOfEvents) {
+            long revision = events.size() + 1;
+            time += random.nextInt(200);
+            int action = random.nextInt(100);
+            if (action < 60 || active.isEmpty()) {
+                int workshop = random.nextInt(WORKSHOPS);
+                String email = "user" + (emailNumber++) + "@example.com";
+                boolean google = random.nextInt(4) == 0;
+                int seats = workshop % 8 == 0 ? 1 + random.nextInt(3) : 1;
+                ReservationAddedByUser added = new ReservationAddedByUser(WorkshopReservation.builder()
+                        .setSystemTimeInMillis(time)
+                        .setRevisionId(revision)
+                        .setEmail(email)
+                        .setFullname("User " + emailNumber)
+                        .setWorkshopId(workshopId(workshop))
+                        .setGoogleUserEmail(google ? Optional.of(email) : Optional.empty())
+                        .setNumberOfSeatsReserved(seats)
+                        .create());
+                events.add(added);
+                Reservation reservation = new Reservation(added, google);
+                active.add(reservation);
+                if (!google) {
+                    unconfirmed.add(reservation);
+                }
+            } else if (action < 80 && !unconfirmed.isEmpty()) {
+                Reservation reservation = unconfirmed.remove(random.nextInt(unconfirmed.size()));
+                reservation.confirmed = true;
+                events.add(new EmailConfirmedByUser(reservation.email, time, revision));
+            } else if (action < 88) {
+                Reservation reservation = active.get(random.nextInt(active.size()));
+                if (reservation.seats > 1 && random.nextBoolean()) {
+                    reservation.seats--;
+                    events.add(new ReservationPartallyCancelled(time, revision, reservation.email, reservation.workshopId, 1));
+                } else {
+                    active.remove(reservation);
+                    unconfirmed.remove(reservation);
+                    events.add(new ReservationCancelledByUser(time, revision, reservation.email, reservation.workshopId, reservation.seats));
+                }
+            } else if (action < 96) {
+                Reservation reservation = active.get(random.nextInt(active.size()));
+                events.add(new ShowUpRegisteredByAdmin(time, revision, random.nextInt(5) > 0, reservation.token));
+            } else if (action < 98) {
+                int workshop = random.nextInt(WORKSHOPS);
+                String email = "admin" + (emailNumber++) + "@example.com";
+                // Never cancelled, as the email saga does not know reservations added by admin
+                events.add(new ReservationAddedByAdmin(WorkshopReservation.builder()
+                        .setSystemTimeInMillis(time)
+                        .setRevisionId(revision)
+                        .setEmail(email)
+                        .setFullname("Guest " + emailNumber)
+                        .setWorkshopId(workshopId(workshop))
+                        .setGoogleUserEmail(Optional.empty())
+                        .setNumberOfSeatsReserved(1)
+                        .create()));
+            } else {
+                String id = workshopId(random.nextInt(WORKSHOPS));
+                int size = workshopSizes.get(id) + 1 + random.nextInt(5);
+                workshopSizes.put(id, size);
+                events.add(new WorkshopSizeChangedByAdmin(time, revision, id, size));
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,108 @@
+package no.java.moosehead.benchmark;
+
+import no.java.moosehead.aggregate.WorkshopAggregate;
+import no.java.moosehead.commands.AddReservationCommand;
+import no.java.moosehead.commands.AuthorEnum;
+import no.java.moosehead.commands.CancelReservationCommand;
+import no.java.moosehead.commands.ConfirmEmailCommand;
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.*;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.repository.WorkshopRepository;
+import no.java.moosehead.saga.DummyEmailSender;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Cost of validating commands against the stored events, which is done while holding the aggregate lock.
+ * The created events are not added, so the aggregate stays at the given size and the score should not
+ * depend on storedEvents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkshopAggregateBenchmark {
+    private static final int COMMANDS = 1024;
+
+    @Param({"1000", "10000", "100000"})
+    public int storedEvents;
+
+    private WorkshopAggregate workshopAggregate;
+    private AddReservationCommand[] commands;
+    private CancelReservationCommand[] cancellations;
+    private ConfirmEmailCommand[] confirmations;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        SystemSetup.setupForReplay(new WorkshopRepository());
+        workshopAggregate = new WorkshopAggregate();
+        workshopAggregate.setEmailSender(new DummyEmailSender());
+        List<AbstractEvent> events = SyntheticEventLog.generate(storedEvents, SyntheticEventLog.DEFAULT_SEED);
+        events.forEach(workshopAggregate::eventAdded);
+        SystemSetup.instance().revisionGenerator().resetRevision(storedEvents + 1);
+
+        commands = new AddReservationCommand[COMMANDS];
+        for (int i = 0; i < COMMANDS; i++) {
+            WorkshopReservation reservation = WorkshopReservation.builder()
+                    .setEmail("benchmark" + i + "@example.com")
+                    .setFullname("Benchmark " + i)
+                    .setWorkshopId(SyntheticEventLog.workshopId(1 + i % (SyntheticEventLog.WORKSHOPS - 1)))
+                    .setGoogleUserEmail(Optional.empty())
+                    .setNumberOfSeatsReserved(1)
+                    .create();
+            commands[i] = new AddReservationCommand(reservation, AuthorEnum.USER);
+        }
+
+        // The generator uses a new email for every reservation, so an email identifies one reservation
+        Set<String> cancelled = new HashSet<>();
+        Set<String> confirmed = new HashSet<>();
+        for (AbstractEvent event : events) {
+            if (event instanceof ReservationCancelledByUser) {
+                cancelled.add(((ReservationCancelledByUser) event).getEmail());
+            } else if (event instanceof EmailConfirmedByUser) {
+                confirmed.add(((EmailConfirmedByUser) event).getEmail());
+            }
+        }
+        List<ReservationAddedByUser> active = events.stream()
+                .filter(event -> event instanceof ReservationAddedByUser)
+                .map(event -> (ReservationAddedByUser) event)
+                .filter(reservation -> !cancelled.contains(reservation.getEmail()))
+                .collect(Collectors.toList());
+        List<ReservationAddedByUser> unconfirmed = active.stream()
+                .filter(reservation -> !confirmed.contains(reservation.getEmail()))
+                .collect(Collectors.toList());
+        cancellations = new CancelReservationCommand[COMMANDS];
+        confirmations = new ConfirmEmailCommand[COMMANDS];
+        for (int i = 0; i < COMMANDS; i++) {
+            ReservationAddedByUser reservation = active.get(i % active.size());
+            cancellations[i] = new CancelReservationCommand(reservation.getEmail(), reservation.getWorkshopId(), AuthorEnum.USER);
+            confirmations[i] = new ConfirmEmailCommand(unconfirmed.get(i % unconfirmed.size()).getReservationToken());
+        }
+    }
+
+    @Benchmark
+    public AbstractReservationAdded createReservation() {
+        return workshopAggregate.createEvent(commands[next++ & (COMMANDS - 1)]);
+    }
+
+    @Benchmark
+    public AbstractReservationCancelled cancelReservation() {
+        return workshopAggregate.createEvent(cancellations[next++ & (COMMANDS - 1)]);
+    }
+
+    @Benchmark
+    public EmailConfirmedByUser confirmEmail() {
+        return workshopAggregate.createEvent(confirmations[next++ & (COMMANDS - 1)]);
+    }
+}
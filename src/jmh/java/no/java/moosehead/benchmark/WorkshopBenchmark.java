@@ -0,0 +1,94 @@
+package no.java.moosehead.benchmark;
+
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.EmailConfirmedByUser;
+import no.java.moosehead.eventstore.ReservationAddedByUser;
+import no.java.moosehead.projections.Participant;
+import no.java.moosehead.projections.Workshop;
+import no.java.moosehead.repository.WorkshopData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Seat accounting on one large workshop: a quarter of the participants have not confirmed their email,
+ * and the confirmed ones reserve 1 to 3 seats, so about half of them are on the waiting list.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WorkshopBenchmark {
+    @Param({"2000"})
+    public int participants;
+
+    private Workshop workshop;
+    private Participant last;
+    private long revision;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        workshop = new Workshop(new WorkshopData("big", "Big workshop", "description"), participants);
+        for (int i = 0; i < participants; i++) {
+            ReservationAddedByUser added = new ReservationAddedByUser(reservation(i, "participant" + i + "@example.com", 1 + random.nextInt(3)));
+            Participant participant = i % 4 == 3
+                    ? Participant.unconfirmedParticipant(added, workshop)
+                    : Participant.confirmedParticipant(added, workshop);
+            workshop.addParticipant(participant);
+            last = participant;
+        }
+        revision = participants;
+    }
+
+    /**
+     * What myReservations, the admin workshop list and duplreservations do: the waiting list status of every participant
+     */
+    @Benchmark
+    public int waitingListOfAll() {
+        int waiting = 0;
+        for (Participant participant : workshop.getParticipants()) {
+            if (participant.isWaiting()) {
+                waiting++;
+            }
+        }
+        return waiting;
+    }
+
+    @Benchmark
+    public List<Participant> participants() {
+        return workshop.getParticipants();
+    }
+
+    /**
+     * A reservation that is confirmed and cancelled again, followed by a waiting list lookup
+     */
+    @Benchmark
+    public int reserveConfirmCancel() {
+        revision++;
+        String email = "benchmark" + revision + "@example.com";
+        Participant participant = Participant.unconfirmedParticipant(new ReservationAddedByUser(reservation(revision, email, 1)), workshop);
+        workshop.addParticipant(participant);
+        participant.confirmEmail(new EmailConfirmedByUser(email, System.currentTimeMillis(), revision));
+        int waitingListNumber = last.waitingListNumber();
+        workshop.removeParticipant(email);
+        return waitingListNumber;
+    }
+
+    private static WorkshopReservation reservation(long revision, String email, int seats) {
+        return WorkshopReservation.builder()
+                .setSystemTimeInMillis(System.currentTimeMillis())
+                .setRevisionId(revision)
+                .setEmail(email)
+                .setFullname(email)
+                .setWorkshopId("big")
+                .setGoogleUserEmail(Optional.empty())
+                .setNumberOfSeatsReserved(seats)
+                .create();
+    }
+}
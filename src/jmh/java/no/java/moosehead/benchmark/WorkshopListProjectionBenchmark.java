@@ -0,0 +1,141 @@
+package no.java.moosehead.benchmark;
+
+import no.java.moosehead.commands.WorkshopTypeEnum;
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.*;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.snapshot.SnapshotInput;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
+import no.java.moosehead.eventstore.utils.BinaryEventCodec;
+import no.java.moosehead.projections.Participant;
+import no.java.moosehead.projections.Workshop;
+import no.java.moosehead.projections.WorkshopListProjection;
+import no.java.moosehead.repository.WorkshopData;
+import no.java.moosehead.repository.WorkshopRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WorkshopListProjection.eventAdded for each event type, on a projection that has seen storedEvents events.
+ * Handling an event changes the projection, so every iteration starts from the same restored state and
+ * handles one batch of BATCH different events. The score is the time for the whole batch. The events are handed
+ * over one by one, as to a synchronous subscriber, so each of them also publishes the workshop it changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, batchSize = WorkshopListProjectionBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = WorkshopListProjectionBenchmark.BATCH)
+@Fork(1)
+public class WorkshopListProjectionBenchmark {
+    public static final int BATCH = 1000;
+
+    @Param({"WorkshopAddedByAdmin", "ReservationAddedByUser", "ReservationAddedByAdmin", "EmailConfirmedByUser",
+            "ReservationCancelledByUser", "ReservationPartallyCancelled", "ShowUpRegisteredByAdmin", "WorkshopSizeChangedByAdmin"})
+    public String eventType;
+
+    @Param({"10000"})
+    public int storedEvents;
+
+    private byte[] baseState;
+    private AbstractEvent[] events;
+    private WorkshopListProjection projection;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        SystemSetup.setupForReplay(new WorkshopRepository());
+        WorkshopListProjection base = new WorkshopListProjection();
+        base.batchStarted();
+        SyntheticEventLog.generate(storedEvents, SyntheticEventLog.DEFAULT_SEED).forEach(base::eventAdded);
+        base.batchEnded();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SnapshotOutput out = new SnapshotOutput(bytes, new BinaryEventCodec())) {
+            base.writeSnapshot(out);
+        }
+        baseState = bytes.toByteArray();
+        events = eventsFor(base);
+    }
+
+    @Setup(Level.Iteration)
+    public void restore() throws IOException {
+        projection = new WorkshopListProjection();
+        try (SnapshotInput in = new SnapshotInput(new ByteArrayInputStream(baseState), new BinaryEventCodec())) {
+            projection.readSnapshot(in);
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public void eventAdded() {
+        projection.eventAdded(events[next++ % BATCH]);
+    }
+
+    private AbstractEvent[] eventsFor(WorkshopListProjection base) {
+        List<Workshop> workshops = base.getWorkshops();
+        List<Participant> participants = new ArrayList<>();
+        workshops.forEach(ws -> participants.addAll(ws.getParticipants()));
+        AbstractEvent[] result = new AbstractEvent[BATCH];
+        long revision = storedEvents + 1;
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < BATCH; i++, revision++) {
+            String workshopId = workshops.get(i % workshops.size()).getWorkshopData().getId();
+            Participant participant = participants.get(i % participants.size());
+            String email = participant.getWorkshopReservation().getEmail();
+            String participantWorkshop = participant.getWorkshopId();
+            switch (eventType) {
+                case "WorkshopAddedByAdmin":
+                    String id = "benchmark_workshop_" + i;
+                    Instant start = Instant.now().plusSeconds(86400 * 30);
+                    WorkshopData data = new WorkshopData(id, id, id, start, start.plusSeconds(3600), Optional.empty(), WorkshopTypeEnum.NORMAL_WORKSHOP);
+                    result[i] = new WorkshopAddedByAdmin(time, revision, id, 30, start, start.plusSeconds(3600), data);
+                    break;
+                case "ReservationAddedByUser":
+                    result[i] = new ReservationAddedByUser(reservation(revision, "benchmark" + i + "@example.com", workshopId));
+                    break;
+                case "ReservationAddedByAdmin":
+                    result[i] = new ReservationAddedByAdmin(reservation(revision, "benchmark" + i + "@example.com", workshopId));
+                    break;
+                case "EmailConfirmedByUser":
+                    result[i] = new EmailConfirmedByUser(email, time, revision);
+                    break;
+                case "ReservationCancelledByUser":
+                    result[i] = new ReservationCancelledByUser(time, revision, email, participantWorkshop, participant.getNumberOfSeatsReserved());
+                    break;
+                case "ReservationPartallyCancelled":
+                    result[i] = new ReservationPartallyCancelled(time, revision, email, participantWorkshop, 1);
+                    break;
+                case "ShowUpRegisteredByAdmin":
+                    result[i] = new ShowUpRegisteredByAdmin(time, revision, i % 2 == 0, participant.getWorkshopReservation().getReservationToken());
+                    break;
+                case "WorkshopSizeChangedByAdmin":
+                    result[i] = new WorkshopSizeChangedByAdmin(time, revision, workshopId, 50 + i);
+                    break;
+                default:
+                    throw new IllegalArgumentException(eventType);
+            }
+        }
+        return result;
+    }
+
+    private static WorkshopReservation reservation(long revision, String email, String workshopId) {
+        return WorkshopReservation.builder()
+                .setSystemTimeInMillis(System.currentTimeMillis())
+                .setRevisionId(revision)
+                .setEmail(email)
+                .setFullname(email)
+                .setWorkshopId(workshopId)
+                .setGoogleUserEmail(Optional.empty())
+                .setNumberOfSeatsReserved(1)
+                .create();
+    }
+}
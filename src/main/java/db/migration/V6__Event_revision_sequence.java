@@ -0,0 +1,30 @@
+package db.migration;
+
+import no.java.moosehead.eventstore.utils.DbRevisionBlocks;
+import org.flywaydb.core.api.migration.jdbc.JdbcMigration;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Creates the sequence revision ids are reserved from. It starts above every event that is already
+ * stored, archived ones included. Written in Java as the start value has to be read from the tables.
+ */
+public class V6__Event_revision_sequence implements JdbcMigration {
+    @Override
+    public void migrate(Connection connection) throws Exception {
+        long start = 1;
+        try (Statement statement = connection.createStatement()) {
+            for (String table : new String[]{"EVENT", "EVENT_ARCHIVE"}) {
+                try (ResultSet resultSet = statement.executeQuery("select max(id) from " + table)) {
+                    if (resultSet.next()) {
+                        start = Math.max(start, resultSet.getLong(1) + 1);
+                    }
+                }
+            }
+            statement.execute("CREATE SEQUENCE " + DbRevisionBlocks.SEQUENCE + " START WITH " + start +
+                    " INCREMENT BY " + DbRevisionBlocks.BLOCK_SIZE);
+        }
+    }
+}
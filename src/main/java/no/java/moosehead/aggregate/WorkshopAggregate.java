@@ -4,26 +4,153 @@ import no.java.moosehead.commands.*;
 import no.java.moosehead.controller.SystemSetup;
 import no.java.moosehead.eventstore.*;
 import no.java.moosehead.eventstore.core.AbstractEvent;
-import no.java.moosehead.eventstore.core.EventSubscription;
+import no.java.moosehead.eventstore.core.PartitionedSubscription;
+import no.java.moosehead.eventstore.snapshot.SnapshotInput;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
+import no.java.moosehead.eventstore.snapshot.Snapshottable;
 import no.java.moosehead.repository.WorkshopData;
 import no.java.moosehead.saga.EmailSender;
 import no.java.moosehead.web.Configuration;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
-import java.util.ArrayList;
-import java.util.Optional;
-import java.util.stream.Stream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
-public class WorkshopAggregate implements EventSubscription {
+/**
+ * Validates commands against indexes that are kept up to date as events are added, so a command
+ * costs the same no matter how long the event log is.
+ */
+public class WorkshopAggregate implements PartitionedSubscription, Snapshottable {
 
-    private ArrayList<AbstractEvent> eventArrayList = new ArrayList<>();
+    private static class UserReservation {
+        private int seats;
+        // Set while the last event for this email and workshop is a reservation waiting for email confirmation
+        private ReservationAddedByUser pending;
+    }
+
+    private Map<String, WorkshopAddedEvent> workshops = new LinkedHashMap<>();
+    // Concurrent, as workshops are played back in parallel. The maps per workshop are only used by one thread at a time
+    private Map<String, Map<String, UserReservation>> reservations = new ConcurrentHashMap<>();
+    // Read without the command lock, see emailForReservationToken
+    private Map<String, ReservationAddedByUser> reservationsByToken = new ConcurrentHashMap<>();
+    private Set<String> confirmedEmails = ConcurrentHashMap.newKeySet();
     private EmailSender emailSender;
 
     @Override
     public void eventAdded(AbstractEvent event) {
-        eventArrayList.add(event);
+        if (event instanceof WorkshopAddedEvent) {
+            WorkshopAddedEvent workshop = (WorkshopAddedEvent) event;
+            workshops.putIfAbsent(workshop.getWorkshopId(), workshop);
+        }
+        if (event instanceof UserWorkshopEvent) {
+            UserWorkshopEvent userWorkshopEvent = (UserWorkshopEvent) event;
+            UserReservation reservation = reservations
+                    .computeIfAbsent(userWorkshopEvent.getWorkshopId(), id -> new HashMap<>())
+                    .computeIfAbsent(userWorkshopEvent.getEmail(), email -> new UserReservation());
+            if (event instanceof AbstractReservationAdded) {
+                reservation.seats += ((AbstractReservationAdded) event).getNumberOfSeatsReserved();
+            } else if (event instanceof AbstractReservationCancelled) {
+                reservation.seats -= ((AbstractReservationCancelled) event).getNumSpotsCancelled();
+            }
+            reservation.pending = event instanceof ReservationAddedByUser ? (ReservationAddedByUser) event : null;
+        }
+        if (event instanceof ReservationAddedByUser) {
+            ReservationAddedByUser reservationAdded = (ReservationAddedByUser) event;
+            if (reservationAdded.getReservationToken() != null) {
+                reservationsByToken.putIfAbsent(reservationAdded.getReservationToken(), reservationAdded);
+            }
+        }
+        if (event instanceof EmailConfirmedByUser) {
+            confirmedEmails.add(((EmailConfirmedByUser) event).getEmail());
+        }
+    }
+
+    /**
+     * Only added workshops are handled alone, to keep them in order. Everything else only changes the state of its
+     * workshop, or adds to the sets of tokens and confirmed emails.
+     */
+    @Override
+    public Optional<String> replayPartition(AbstractEvent event) {
+        if (event instanceof WorkshopAddedEvent) {
+            return Optional.empty();
+        }
+        return Optional.of(EventStreams.streamId(event).orElse(""));
+    }
+
+    @Override
+    public int snapshotVersion() {
+        return 2;
+    }
+
+    @Override
+    public void writeSnapshot(SnapshotOutput out) throws IOException {
+        out.writeInt(workshops.size());
+        for (WorkshopAddedEvent workshop : workshops.values()) {
+            out.writeValue(workshop);
+        }
+        List<String> workshopIds = reservations.keySet().stream().sorted().collect(Collectors.toList());
+        out.writeInt(workshopIds.size());
+        for (String workshopId : workshopIds) {
+            Map<String, UserReservation> byEmail = reservations.get(workshopId);
+            List<String> emails = byEmail.keySet().stream().sorted().collect(Collectors.toList());
+            out.writeUTF(workshopId);
+            out.writeInt(emails.size());
+            for (String email : emails) {
+                UserReservation reservation = byEmail.get(email);
+                out.writeUTF(email);
+                out.writeInt(reservation.seats);
+                out.writeBoolean(reservation.pending != null);
+                if (reservation.pending != null) {
+                    out.writeValue(reservation.pending);
+                }
+            }
+        }
+        List<ReservationAddedByUser> byToken = reservationsByToken.values().stream()
+                .sorted(Comparator.comparingLong(ReservationAddedByUser::getRevisionId))
+                .collect(Collectors.toList());
+        out.writeInt(byToken.size());
+        for (ReservationAddedByUser reservation : byToken) {
+            out.writeValue(reservation);
+        }
+        out.writeStrings(confirmedEmails);
+    }
+
+    @Override
+    public void readSnapshot(SnapshotInput in) throws IOException {
+        workshops = new LinkedHashMap<>();
+        int numberOfWorkshops = in.readInt();
+        for (int i = 0; i < numberOfWorkshops; i++) {
+            WorkshopAddedEvent workshop = in.readValue();
+            workshops.put(workshop.getWorkshopId(), workshop);
+        }
+        reservations = new ConcurrentHashMap<>();
+        int workshopIds = in.readInt();
+        for (int i = 0; i < workshopIds; i++) {
+            Map<String, UserReservation> byEmail = new HashMap<>();
+            reservations.put(in.readUTF(), byEmail);
+            int emails = in.readInt();
+            for (int j = 0; j < emails; j++) {
+                String email = in.readUTF();
+                UserReservation reservation = new UserReservation();
+                reservation.seats = in.readInt();
+                if (in.readBoolean()) {
+                    reservation.pending = in.readValue();
+                }
+                byEmail.put(email, reservation);
+            }
+        }
+        reservationsByToken = new ConcurrentHashMap<>();
+        int tokens = in.readInt();
+        for (int i = 0; i < tokens; i++) {
+            ReservationAddedByUser reservation = in.readValue();
+            reservationsByToken.put(reservation.getReservationToken(), reservation);
+        }
+        confirmedEmails = ConcurrentHashMap.newKeySet();
+        in.readStrings(confirmedEmails);
     }
 
     public WorkshopAddedEvent createEvent(AddWorkshopCommand addWorkshopCommand){
@@ -135,7 +262,7 @@ public class WorkshopAggregate implements EventSubscription {
     }
 
     public AbstractReservationCancelled createEvent(CancelReservationCommand cancelReservationCommand) {
-        int count = spotsReserved(userWorkshopEvents(cancelReservationCommand.getWorkshopId(), cancelReservationCommand.getEmail()));
+        int count = spotsReserved(cancelReservationCommand.getWorkshopId(), cancelReservationCommand.getEmail());
         if (count == 0) {
             throw new NoReservationFoundException(String.format("The reservation for %s in %s not found",cancelReservationCommand.getEmail(),cancelReservationCommand.getWorkshopId()));
         }
@@ -150,93 +277,50 @@ public class WorkshopAggregate implements EventSubscription {
     }
 
     public AbstractReservationCancelled createEvent(ParitalCancellationCommand paritalCancellationCommand) {
-        int count = spotsReserved(userWorkshopEvents(paritalCancellationCommand.getWorkshopId(), paritalCancellationCommand.getEmail()));
+        int count = spotsReserved(paritalCancellationCommand.getWorkshopId(), paritalCancellationCommand.getEmail());
         if (count == 0) {
             throw new NoReservationFoundException(String.format("The reservation for %s in %s not found",paritalCancellationCommand.getEmail(),paritalCancellationCommand.getWorkshopId()));
         }
         return new ReservationPartallyCancelled(System.currentTimeMillis(), nextRevision(), paritalCancellationCommand.getEmail(), paritalCancellationCommand.getWorkshopId(),paritalCancellationCommand.getNumberOfSpotsCancelled());
     }
 
-    private int spotsReserved(Stream<? extends UserWorkshopEvent> userWorkshops) {
-        return userWorkshops
-                .map(uw -> {
-                    if (uw instanceof AbstractReservationAdded) {
-                        return ((AbstractReservationAdded) uw).getNumberOfSeatsReserved();
-                    }
-                    if (uw instanceof AbstractReservationCancelled) {
-                        return -((AbstractReservationCancelled) uw).getNumSpotsCancelled();
-                    }
-                    return 0;
-                })
-                .reduce(Integer::sum)
-                .orElse(0);
-    }
-
-
-
-    private Stream<? extends UserWorkshopEvent> userWorkshopEvents(String workshopid,String email) {
-        return eventArrayList
-                .stream()
-                .filter(event -> event instanceof UserWorkshopEvent)
-                .map(event -> (UserWorkshopEvent) event)
-                .filter(uwe -> uwe.getEmail().equals(email) && uwe.getWorkshopId().equals(workshopid));
+    private int spotsReserved(String workshopId, String email) {
+        return userReservation(workshopId, email).map(reservation -> reservation.seats).orElse(0);
     }
 
-    private Stream<WorkshopAddedEvent> getAllWorkshops() {
-       return eventArrayList
-               .parallelStream()
-               .filter(event -> event instanceof WorkshopAddedEvent)
-               .map(event ->(WorkshopAddedEvent) event);
+    private Optional<UserReservation> userReservation(String workshopId, String email) {
+        Map<String, UserReservation> byEmail = workshopId != null ? reservations.get(workshopId) : null;
+        return Optional.ofNullable(byEmail != null ? byEmail.get(email) : null);
     }
 
     private Optional<WorkshopAddedEvent> getWorkshop(String workshopId) {
-        return getAllWorkshops()
-                .filter(workshop -> workshop.getWorkshopId().equals(workshopId))
-                .findFirst();
+        return Optional.ofNullable(workshops.get(workshopId));
     }
 
     private Optional<ReservationAddedByUser> getActiveReservationIfPresent(AddReservationCommand reservationAdded) {
-
-        Optional<UserWorkshopEvent> lastEvent =
-                userWorkshopEvents(reservationAdded.getWorkshopReservation().getWorkshopId(),
+        return userReservation(reservationAdded.getWorkshopReservation().getWorkshopId(),
                 reservationAdded.getWorkshopReservation().getEmail())
-                        .map(uw -> (UserWorkshopEvent)uw)
-                        .reduce((a, b) -> b);
-
-        if (lastEvent.isPresent() && lastEvent.get() instanceof ReservationAddedByUser){
-            return Optional.of((ReservationAddedByUser)lastEvent.get());
-        }else{
-            return Optional.empty();
-        }
-
+                .map(reservation -> reservation.pending);
     }
 
     public EmailConfirmedByUser createEvent(ConfirmEmailCommand confirmEmailCommand) {
-        Optional<ReservationAddedByUser> event = eventArrayList
-                .stream()
-                .filter(ae -> ae instanceof ReservationAddedByUser)
-                .map(ae -> (ReservationAddedByUser) ae)
-                .filter(ae -> ae.getReservationToken().equals(confirmEmailCommand.getReservationToken()))
-                .findFirst();
-        if (!(event.isPresent())) {
+        ReservationAddedByUser reservation = reservationsByToken.get(confirmEmailCommand.getReservationToken());
+        if (reservation == null) {
             throw new NoReservationFoundException("Could not find reservation with token [" + confirmEmailCommand.getReservationToken()+ "]");
         }
-        ReservationAddedByUser reservation = event.get();
-        Optional<AbstractEvent> any = eventArrayList.stream()
-                .filter(ae -> {
-                    if (!(ae instanceof EmailConfirmedByUser)) {
-                        return false;
-                    }
-                    EmailConfirmedByUser confirmedByUser = (EmailConfirmedByUser) ae;
-                    return confirmedByUser.getEmail().equals(reservation.getEmail());
-                })
-                .findAny();
-        if (any.isPresent()) {
+        if (confirmedEmails.contains(reservation.getEmail())) {
             throw new NoReservationFoundException("This email is already confirmed");
         }
         return new EmailConfirmedByUser(reservation.getEmail(),System.currentTimeMillis(),nextRevision());
     }
 
+    /**
+     * The email of the user reservation with the given token. Safe to call without holding any lock.
+     */
+    public Optional<String> emailForReservationToken(String reservationToken) {
+        return Optional.ofNullable(reservationsByToken.get(reservationToken)).map(ReservationAddedByUser::getEmail);
+    }
+
     public void setEmailSender(EmailSender emailSender) {
         this.emailSender = emailSender;
     }
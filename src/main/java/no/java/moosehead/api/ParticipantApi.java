@@ -15,9 +15,24 @@ import java.util.stream.Collectors;
 public interface ParticipantApi {
     public WorkshopInfo getWorkshop(String workshopid);
     public List<WorkshopInfo> workshops();
+
+    /**
+     * Changes whenever an event may have changed what workshops() returns. The status of a workshop also
+     * changes with time, when its registration opens and when it starts.
+     */
+    public long workshopsRevision();
     public ParticipantActionResult reservation(WorkshopReservation workshopReservation,AuthorEnum authorEnum);
     public ParticipantActionResult confirmEmail(String token);
     public ParticipantActionResult cancellation(String reservationId, AuthorEnum authorEnum);
+
+    /**
+     * As the methods without requestId, but a retry with the same requestId gets the first result back
+     * without running the command again, so no second event is added and no second email is sent.
+     */
+    public ParticipantActionResult reservation(WorkshopReservation workshopReservation,AuthorEnum authorEnum, String requestId);
+    public ParticipantActionResult confirmEmail(String token, String requestId);
+    public ParticipantActionResult cancellation(String reservationId, AuthorEnum authorEnum, String requestId);
+
     public List<ParticipantReservation> myReservations(String email);
 
     public static JsonObject asAdminJson(WorkshopInfo workshop) {
@@ -4,8 +4,10 @@ import no.java.moosehead.commands.WorkshopTypeEnum;
 import no.java.moosehead.projections.Participant;
 import no.java.moosehead.repository.WorkshopData;
 import no.java.moosehead.saga.EmailSender;
+import no.java.moosehead.web.Configuration;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
@@ -75,6 +77,18 @@ public class WorkshopInfo {
                 .sum();
     }
 
+    /**
+     * When the status of the workshop may change without any event: when registration opens and when the workshop starts
+     */
+    public List<Instant> statusChangeTimes() {
+        List<Instant> times = new ArrayList<>();
+        times.add(registrationOpensAt().orElse(Configuration.openTime().toInstant()));
+        if (workshopData.hasStartAndEndTime()) {
+            times.add(workshopData.getStartTime());
+        }
+        return times;
+    }
+
     public Optional<Instant> registrationOpensAt() {
         Optional<Instant> registrationOpens = workshopData.getRegistrationOpens();
         if (registrationOpens == null) {
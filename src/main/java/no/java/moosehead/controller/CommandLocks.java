@@ -0,0 +1,34 @@
+package no.java.moosehead.controller;
+
+import java.util.Objects;
+
+/**
+ * Monitors that serialize commands touching the same workshop, or the same email for commands that
+ * span workshops. Keys are spread over a fixed number of stripes, so two keys may share a monitor,
+ * but one key always gets the same one. Never hold more than one stripe at a time.
+ */
+public class CommandLocks {
+    private final Object[] stripes;
+
+    public CommandLocks(int numberOfStripes) {
+        stripes = new Object[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    public Object forWorkshop(String workshopId) {
+        return stripe("workshop:" + workshopId);
+    }
+
+    public Object forEmail(String email) {
+        return stripe("email:" + email);
+    }
+
+    private Object stripe(String key) {
+        int hash = Objects.hashCode(key);
+        // Spread the high bits, as String hashes of similar ids differ mostly in the low ones
+        hash ^= (hash >>> 16);
+        return stripes[Math.floorMod(hash, stripes.length)];
+    }
+}
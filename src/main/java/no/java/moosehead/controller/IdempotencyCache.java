@@ -0,0 +1,110 @@
+package no.java.moosehead.controller;
+
+import no.java.moosehead.api.ParticipantActionResult;
+import no.java.moosehead.metrics.Counter;
+import no.java.moosehead.metrics.Metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the result of the last commands sent with a client request id, so a retry or a double click gets the
+ * first result back instead of running the command again. A retry that arrives while the first request is still
+ * running waits for it. Only the newest maxEntries request ids are kept, and a command that throws is forgotten
+ * so it can be tried again.
+ * Request ids are kept per caller, so one caller never gets the result of another. A request id used again for
+ * a different request by the same caller is rejected.
+ */
+public class IdempotencyCache {
+    /**
+     * The result of a command, and the revision id of the event it added, or 0 when it added none
+     */
+    public static class Handled {
+        private final ParticipantActionResult result;
+        private final long revisionId;
+
+        public Handled(ParticipantActionResult result, long revisionId) {
+            this.result = result;
+            this.revisionId = revisionId;
+        }
+
+        public ParticipantActionResult getResult() {
+            return result;
+        }
+
+        public long getRevisionId() {
+            return revisionId;
+        }
+    }
+
+    private static class Request {
+        private final Object fingerprint;
+        private final CompletableFuture<Handled> result = new CompletableFuture<>();
+
+        private Request(Object fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static final Counter duplicates = Metrics.counter("commands.duplicates");
+    private static final Counter conflicts = Metrics.counter("commands.requestIdConflicts");
+
+    private final Map<String, Request> handled;
+
+    public IdempotencyCache(int maxEntries) {
+        handled = new LinkedHashMap<String, Request>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Request> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Runs the command, unless the caller has sent a command of the same kind with the same request id before
+     * @param kind keeps request ids for different commands apart, like "reservation"
+     * @param caller who sends the command, like the email or the reservation token
+     * @param fingerprint what the command asks for, compared with equals to the first one sent with the request id
+     */
+    public ParticipantActionResult handle(String kind, String caller, String requestId, Object fingerprint, Supplier<Handled> command) {
+        String key = kind + ":" + caller + ":" + requestId;
+        Request first;
+        Request mine = new Request(fingerprint);
+        synchronized (handled) {
+            first = handled.putIfAbsent(key, mine);
+        }
+        if (first != null) {
+            if (!Objects.equals(first.fingerprint, fingerprint)) {
+                conflicts.increment();
+                return ParticipantActionResult.error("Request id " + requestId + " was already used for a different request");
+            }
+            duplicates.increment();
+            try {
+                return first.result.join().getResult();
+            } catch (CompletionException e) {
+                throw new RuntimeException("The first request with id " + requestId + " failed", e.getCause());
+            }
+        }
+        try {
+            Handled result = command.get();
+            mine.result.complete(result);
+            return result.getResult();
+        } catch (RuntimeException e) {
+            synchronized (handled) {
+                handled.remove(key, mine);
+            }
+            mine.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    public int size() {
+        synchronized (handled) {
+            return handled.size();
+        }
+    }
+}
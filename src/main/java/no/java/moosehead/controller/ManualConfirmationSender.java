@@ -1,13 +1,11 @@
 package no.java.moosehead.controller;
 
 import no.java.moosehead.eventstore.ReservationAddedByUser;
-import no.java.moosehead.eventstore.core.AbstractEvent;
 import no.java.moosehead.eventstore.core.Eventstore;
 import no.java.moosehead.eventstore.core.FilehandlerEventstore;
 import no.java.moosehead.saga.EmailSender;
 
 import java.io.*;
-import java.util.List;
 
 public class ManualConfirmationSender {
     private EmailSender emailSender;
@@ -28,9 +26,8 @@ public class ManualConfirmationSender {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        List<AbstractEvent> eventstorageCopy = eventstore.getEventstorageCopy();
         for (String reservationId : manualContent.split("\n")) {
-            ReservationAddedByUser reservationAddedByUser = eventstorageCopy.stream()
+            ReservationAddedByUser reservationAddedByUser = eventstore.eventsFrom(0)
                     .filter(ae -> {
                         String id = "" + ae.getRevisionId();
                         return (ae instanceof ReservationAddedByUser) && id.equals(reservationId);
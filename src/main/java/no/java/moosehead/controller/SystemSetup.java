@@ -3,11 +3,17 @@ package no.java.moosehead.controller;
 import no.java.moosehead.aggregate.WorkshopAggregate;
 import no.java.moosehead.commands.AddWorkshopCommand;
 import no.java.moosehead.commands.AuthorEnum;
+import no.java.moosehead.database.PostgresEventNotifications;
 import no.java.moosehead.eventstore.WorkshopAddedEvent;
+import no.java.moosehead.eventstore.core.DbEventStore;
 import no.java.moosehead.eventstore.core.Eventstore;
 import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.core.StreamVersionConflictException;
+import no.java.moosehead.eventstore.snapshot.SnapshotStore;
+import no.java.moosehead.eventstore.snapshot.Snapshotter;
 import no.java.moosehead.eventstore.utils.FileHandler;
 import no.java.moosehead.eventstore.utils.TokenGenerator;
+import no.java.moosehead.metrics.Metrics;
 import no.java.moosehead.projections.Workshop;
 import no.java.moosehead.projections.WorkshopListProjection;
 import no.java.moosehead.repository.WorkshopData;
@@ -18,6 +24,7 @@ import no.java.moosehead.web.Configuration;
 import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Optional;
 
 public class SystemSetup {
     private static SystemSetup setup = new SystemSetup();
@@ -41,28 +48,58 @@ public class SystemSetup {
             return;
         }
         initLoaded = true;
-        tokenGenerator = new TokenGenerator();
         eventstore = Eventstore.create();
+        tokenGenerator = eventstore.revisionBlockSource().map(TokenGenerator::new).orElseGet(TokenGenerator::new);
 
         workshopRepository = new WorkshopRepository();
         workshopAggregate = new WorkshopAggregate();
         workshopListProjection = new WorkshopListProjection();
+        EmailSaga emailSaga = new EmailSaga();
+        eventstore.setApplyLock(workshopAggregate);
         eventstore.addEventSubscriber(workshopAggregate);
-        eventstore.addEventSubscriber(workshopListProjection);
-        eventstore.addEventSubscriber(new EmailSaga());
+        if (Configuration.asyncSubscribers()) {
+            eventstore.addAsyncEventSubscriber(workshopListProjection, Configuration.subscriberQueueSize());
+            eventstore.addAsyncEventSubscriber(emailSaga, Configuration.subscriberQueueSize());
+        } else {
+            eventstore.addEventSubscriber(workshopListProjection);
+            eventstore.addEventSubscriber(emailSaga);
+        }
         eventstore.addEventSubscriber(workshopRepository);
         workshopController = new WorkshopController();
         emailSender = Configuration.sendGridKey() != null ? new SendGridEmailSender(Configuration.sendGridKey()) : Configuration.smtpServer() != null ? new SmtpEmailSender() : new DummyEmailSender();
         workshopAggregate.setEmailSender(emailSender);
 
+        int playbackFrom = 0;
+        Optional<SnapshotStore> snapshotStore = SnapshotStore.create();
+        if (snapshotStore.isPresent()) {
+            Snapshotter snapshotter = new Snapshotter(snapshotStore.get(), Configuration.snapshotInterval(), eventstore::awaitSubscribers);
+            snapshotter.register(workshopAggregate);
+            snapshotter.register(workshopListProjection);
+            snapshotter.register(emailSaga);
+            snapshotter.register(workshopRepository);
+            playbackFrom = snapshotter.restore(eventstore);
+            eventstore.addEventSubscriber(snapshotter);
+        }
+        long replayStart = System.currentTimeMillis();
+        eventstore.playbackEventsToSubscribers(playbackFrom);
+        eventstore.awaitSubscribers(eventstore.lastRevisionId());
+        long replayMillis = System.currentTimeMillis() - replayStart;
+        long replayedEvents = Math.max(0, eventstore.numberOfEvents() - playbackFrom);
+        Metrics.gauge("eventstore.replay.millis").set(replayMillis);
+        Metrics.gauge("eventstore.replay.events").set(replayedEvents);
+        Metrics.gauge("eventstore.replay.eventsPerSecond").set(replayedEvents * 1000 / Math.max(1, replayMillis));
+        System.out.println("Played back " + replayedEvents + " events in " + replayMillis + " ms");
+        // Before tailing, so nothing else hands events to the aggregate while the workshops are created
         if (eventstore.numberOfWorkshops() == 0L) {
             createAllWorkshops();
         }
 
         new ManualConfirmationSender(emailSender).doManual(eventstore);
 
-        eventstore.playbackEventsToSubscribers();
-
+        if (Configuration.dbTailing() && eventstore instanceof DbEventStore) {
+            ((DbEventStore) eventstore).startTailing(workshopAggregate, new PostgresEventNotifications(),
+                    Configuration.dbTailPollMillis(), Configuration.dbTailSettleMillis());
+        }
     }
 
     public boolean needToLoadSetup() {
@@ -71,6 +108,10 @@ public class SystemSetup {
 
 
 
+    /**
+     * Instances started at the same time on a new database both get here. A workshop the other instance
+     * has created already conflicts on its stream and is left to that instance.
+     */
     private void createAllWorkshops() {
         List<WorkshopData> workshopDatas = workshopRepository.allWorkshops();
         workshopDatas.forEach(wd -> {
@@ -83,8 +124,14 @@ public class SystemSetup {
                 builder = builder.withStartTime(wd.getStartTime()).withEndTime(wd.getEndTime());
             }
             AddWorkshopCommand addWorkshopCommand = builder.create();
-            WorkshopAddedEvent event = workshopAggregate.createEvent(addWorkshopCommand);
-            eventstore.addEvent(event);
+            synchronized (workshopAggregate) {
+                WorkshopAddedEvent event = workshopAggregate.createEvent(addWorkshopCommand);
+                try {
+                    eventstore.addEvent(event, 0L);
+                } catch (StreamVersionConflictException e) {
+                    System.out.println("Workshop " + wd.getId() + " was created by another instance");
+                }
+            }
         });
     }
 
@@ -98,6 +145,17 @@ public class SystemSetup {
         return setup;
     }
 
+    /**
+     * For offline tools that replay events into their own subscribers. Nothing is loaded and no emails are sent.
+     */
+    public static void setupForReplay(WorkshopRepository workshopRepository) {
+        SystemSetup replaySetup = new SystemSetup();
+        replaySetup.workshopRepository = workshopRepository;
+        replaySetup.emailSender = new DummyEmailSender();
+        replaySetup.tokenGenerator = new TokenGenerator();
+        setSetup(replaySetup);
+    }
+
     public static void setSetup(SystemSetup setup) {
         SystemSetup.setup = setup;
         if (setup != null) {
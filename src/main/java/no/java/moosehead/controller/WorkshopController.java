@@ -7,24 +7,57 @@ import no.java.moosehead.api.*;
 import no.java.moosehead.commands.*;
 import no.java.moosehead.domain.WorkshopReservation;
 import no.java.moosehead.eventstore.*;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.Eventstore;
+import no.java.moosehead.eventstore.core.StreamVersionConflictException;
+import no.java.moosehead.eventstore.utils.GroupCommitter;
+import no.java.moosehead.metrics.Histogram;
+import no.java.moosehead.metrics.Metrics;
 import no.java.moosehead.projections.Participant;
 import no.java.moosehead.projections.Workshop;
+import no.java.moosehead.projections.WorkshopListProjection;
 import no.java.moosehead.repository.WorkshopData;
-import no.java.moosehead.repository.WorkshopRepository;
 import no.java.moosehead.web.Configuration;
 
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+/**
+ * Commands lock the workshop they change, or the email for email confirmation, while they check and act.
+ * Only creating the event and adding it to the eventstore is done under the aggregate monitor, which
+ * keeps revision ids in the same order as the events are stored. Events are added with the version of
+ * their stream, so an instance sharing the database can not add a conflicting event in between.
+ */
 public class WorkshopController implements ParticipantApi,AdminApi {
+    private static final Histogram lockWaitTimer = Metrics.histogram("aggregate.lockWait");
+    private static final Histogram createEventTimer = Metrics.histogram("aggregate.createEvent");
+    private final CommandLocks commandLocks = new CommandLocks(Configuration.commandLockStripes());
+    private final IdempotencyCache idempotencyCache = new IdempotencyCache(Configuration.idempotencyCacheSize());
+    private final GroupCommitter<PendingReservation> reservationPipeline = Configuration.reservationBatching()
+            ? new GroupCommitter<>("reservation-pipeline", this::reserveBatch, Configuration.reservationBatchSize(), Configuration.reservationBatchLingerMillis())
+            : null;
+
+    /**
+     * A reservation waiting in the pipeline. The pipeline thread sets either the event or the error.
+     */
+    private static class PendingReservation {
+        private final AddReservationCommand command;
+        private AbstractReservationAdded event;
+        private String error;
+
+        private PendingReservation(AddReservationCommand command) {
+            this.command = command;
+        }
+    }
+
     @Override
     public WorkshopInfo getWorkshop(String workshopid) {
-        List<Workshop> workshops = SystemSetup.instance().workshopListProjection().getWorkshops();
-        Optional<Workshop> workshopOptional = workshops.stream()
-                .filter(ws -> ws.getWorkshopData().getId().equals(workshopid))
-                .findFirst();
+        Optional<Workshop> workshopOptional = SystemSetup.instance().workshopListProjection().workshopById(workshopid);
 
         if (workshopOptional.isPresent()) {
             Workshop ws = workshopOptional.get();
@@ -48,6 +81,14 @@ public class WorkshopController implements ParticipantApi,AdminApi {
         ;
     }
 
+    @Override
+    public long workshopsRevision() {
+        return SystemSetup.instance().workshopListProjection().getLastRevisionId();
+    }
+
+    /**
+     * Changes with time when registration opens and when the workshop starts, see WorkshopInfo.statusChangeTimes
+     */
     protected WorkshopStatus computeWorkshopStatus(Workshop ws) {
         if (Configuration.closedWorkshops().contains(ws.getWorkshopData().getId()) ||
                 (ws.getWorkshopData().hasStartAndEndTime() && ws.getWorkshopData().getStartTime().isBefore(Instant.now()))) {
@@ -61,10 +102,7 @@ public class WorkshopController implements ParticipantApi,AdminApi {
         if (openTime.isAfter(Instant.now())) {
             return WorkshopStatus.NOT_OPENED;
         }
-        int confirmedParticipants = ws.getParticipants().stream()
-                .filter(Participant::isEmailConfirmed)
-                .mapToInt(Participant::getNumberOfSeatsReserved)
-                .sum();
+        int confirmedParticipants = ws.getConfirmedSeats();
         int seatsLeft = ws.getNumberOfSeats() - confirmedParticipants;
         if (seatsLeft <= -Configuration.veryFullNumber()) {
             return WorkshopStatus.VERY_FULL;
@@ -80,75 +118,122 @@ public class WorkshopController implements ParticipantApi,AdminApi {
 
     @Override
     public ParticipantActionResult reservation(WorkshopReservation workshopReservation, AuthorEnum authorEnum) {
+        return reserve(workshopReservation, authorEnum).getResult();
+    }
+
+    @Override
+    public ParticipantActionResult reservation(WorkshopReservation workshopReservation, AuthorEnum authorEnum, String requestId) {
+        List<Object> fingerprint = Arrays.asList(workshopReservation.getWorkshopId(), workshopReservation.getNumberOfSeatsReserved(),
+                workshopReservation.getFullname(), workshopReservation.getGoogleUserEmail(), authorEnum);
+        return idempotencyCache.handle("reservation", workshopReservation.getEmail(), requestId, fingerprint, () -> reserve(workshopReservation, authorEnum));
+    }
+
+    private IdempotencyCache.Handled reserve(WorkshopReservation workshopReservation, AuthorEnum authorEnum) {
         AddReservationCommand arc = new AddReservationCommand(workshopReservation,authorEnum);
         AbstractReservationAdded event;
 
-        WorkshopAggregate workshopAggregate = SystemSetup.instance().workshopAggregate();
-        synchronized (workshopAggregate) {
+        if (reservationPipeline != null) {
+            PendingReservation pending = new PendingReservation(arc);
             try {
-                event = workshopAggregate.createEvent(arc);
-            } catch (MoosheadException e) {
-                return ParticipantActionResult.error(e.getMessage());
+                reservationPipeline.submit(pending).join();
+            } catch (CompletionException e) {
+                throw new RuntimeException("Reservation failed", e.getCause());
+            }
+            if (pending.error != null) {
+                return new IdempotencyCache.Handled(ParticipantActionResult.error(pending.error), 0);
+            }
+            event = pending.event;
+        } else {
+            WorkshopAggregate workshopAggregate = SystemSetup.instance().workshopAggregate();
+            synchronized (commandLocks.forWorkshop(workshopReservation.getWorkshopId())) {
+                try {
+                    event = createAndAdd(EventStreams.forWorkshop(workshopReservation.getWorkshopId()), () -> workshopAggregate.createEvent(arc));
+                } catch (MoosheadException e) {
+                    return new IdempotencyCache.Handled(ParticipantActionResult.error(e.getMessage()), 0);
+                }
             }
-            SystemSetup.instance().eventstore().addEvent(event);
         }
+        SystemSetup.instance().eventstore().awaitPersisted(event);
+        awaitWorkshopListProjection(event.getRevisionId());
         if (SystemSetup.instance().workshopListProjection().isEmailConfirmed(event.getEmail())) {
-            return readStatus(event.getReservationToken());
+            return new IdempotencyCache.Handled(readStatus(event.getReservationToken()), event.getRevisionId());
         }
-        return ParticipantActionResult.confirmEmail();
+        return new IdempotencyCache.Handled(ParticipantActionResult.confirmEmail(), event.getRevisionId());
     }
 
     @Override
     public ParticipantActionResult cancellation(String reservationId, AuthorEnum authorEnum) {
+        return cancel(reservationId, authorEnum).getResult();
+    }
 
+    @Override
+    public ParticipantActionResult cancellation(String reservationId, AuthorEnum authorEnum, String requestId) {
+        return idempotencyCache.handle("cancellation", reservationId, requestId, authorEnum, () -> cancel(reservationId, authorEnum));
+    }
+
+    private IdempotencyCache.Handled cancel(String reservationId, AuthorEnum authorEnum) {
         Optional<Participant> optByReservationId = SystemSetup.instance().workshopListProjection().findByReservationToken(reservationId);
 
         if (!optByReservationId.isPresent()) {
-            return ParticipantActionResult.error("Unknown token, reservation not found");
+            return new IdempotencyCache.Handled(ParticipantActionResult.error("Unknown token, reservation not found"), 0);
         }
 
         Participant participant = optByReservationId.get();
         CancelReservationCommand cancelReservationCommand = new CancelReservationCommand(participant.getWorkshopReservation().getEmail(), participant.getWorkshopId(), authorEnum);
         AbstractReservationCancelled event;
         WorkshopAggregate workshopAggregate = SystemSetup.instance().workshopAggregate();
-        synchronized (workshopAggregate) {
+        synchronized (commandLocks.forWorkshop(participant.getWorkshopId())) {
             try {
-                event = workshopAggregate.createEvent(cancelReservationCommand);
+                event = createAndAdd(EventStreams.forWorkshop(participant.getWorkshopId()), () -> workshopAggregate.createEvent(cancelReservationCommand));
             } catch (MoosheadException e) {
-                return ParticipantActionResult.error(e.getMessage());
+                return new IdempotencyCache.Handled(ParticipantActionResult.error(e.getMessage()), 0);
             }
-            SystemSetup.instance().eventstore().addEvent(event);
         }
-        return ParticipantActionResult.ok();
+        SystemSetup.instance().eventstore().awaitPersisted(event);
+        awaitWorkshopListProjection(event.getRevisionId());
+        return new IdempotencyCache.Handled(ParticipantActionResult.ok(), event.getRevisionId());
     }
 
     @Override
     public ParticipantActionResult confirmEmail(String token) {
+        return confirm(token).getResult();
+    }
+
+    @Override
+    public ParticipantActionResult confirmEmail(String token, String requestId) {
+        // The token is all there is to the request
+        return idempotencyCache.handle("confirmEmail", token, requestId, "", () -> confirm(token));
+    }
+
+    private IdempotencyCache.Handled confirm(String token) {
 
         ConfirmEmailCommand confirmEmailCommand = new ConfirmEmailCommand(token);
         EmailConfirmedByUser emailConfirmedByUser;
         WorkshopAggregate workshopAggregate = SystemSetup.instance().workshopAggregate();
-        synchronized (workshopAggregate) {
+        // An unknown token is rejected by the aggregate, so any lock will do
+        String email = workshopAggregate.emailForReservationToken(token).orElse(token);
+        synchronized (commandLocks.forEmail(email)) {
             try {
-                emailConfirmedByUser = workshopAggregate.createEvent(confirmEmailCommand);
+                emailConfirmedByUser = createAndAdd(EventStreams.forEmail(email), () -> workshopAggregate.createEvent(confirmEmailCommand));
             } catch (MoosheadException e) {
-                return ParticipantActionResult.error(e.getMessage());
+                return new IdempotencyCache.Handled(ParticipantActionResult.error(e.getMessage()), 0);
             }
-            SystemSetup.instance().eventstore().addEvent(emailConfirmedByUser);
         }
-        return readStatus(token);
+        SystemSetup.instance().eventstore().awaitPersisted(emailConfirmedByUser);
+        awaitWorkshopListProjection(emailConfirmedByUser.getRevisionId());
+        return new IdempotencyCache.Handled(readStatus(token), emailConfirmedByUser.getRevisionId());
     }
 
 
 
     @Override
     public List<ParticipantReservation> myReservations(String email) {
-        List<Participant> allReservations = SystemSetup.instance().workshopListProjection().findAllReservations(email);
-        WorkshopRepository workshopRepository = SystemSetup.instance().workshopRepository();
+        WorkshopListProjection workshopListProjection = SystemSetup.instance().workshopListProjection();
+        List<Participant> allReservations = workshopListProjection.findAllReservations(email);
         return allReservations.stream()
                 .map(pa -> {
-                    Optional<WorkshopData> workshopDataOptional = workshopRepository.workshopById(pa.getWorkshopId());
-                    String name = workshopDataOptional.map(wd -> wd.getTitle()).orElse("xxx");
+                    // The workshop data the projection has, instead of searching the repository for every reservation
+                    String name = workshopListProjection.workshopById(pa.getWorkshopId()).map(ws -> ws.getWorkshopData().getTitle()).orElse("xxx");
                     int waitingListNumber = pa.waitingListNumber();
                     Optional<Integer> opwl = Optional.of(waitingListNumber).filter(wl -> wl > 0);
                     ParticipantReservationStatus status = !pa.isEmailConfirmed() ?
@@ -171,15 +256,16 @@ public class WorkshopController implements ParticipantApi,AdminApi {
                 .withWorkshopType(workshopData.getWorkshopTypeEnum())
                 .create();
         WorkshopAggregate workshopAggregate = SystemSetup.instance().workshopAggregate();
-        synchronized (workshopAggregate) {
-            WorkshopAddedEvent event;
+        WorkshopAddedEvent event;
+        synchronized (commandLocks.forWorkshop(workshopData.getId())) {
             try {
-                event = workshopAggregate.createEvent(addWorkshopCommand);
+                event = createAndAdd(EventStreams.forWorkshop(workshopData.getId()), () -> workshopAggregate.createEvent(addWorkshopCommand));
             } catch (MoosheadException e) {
                 return ParticipantActionResult.error(e.getMessage());
             }
-            SystemSetup.instance().eventstore().addEvent(event);
         }
+        SystemSetup.instance().eventstore().awaitPersisted(event);
+        awaitWorkshopListProjection(event.getRevisionId());
         return ParticipantActionResult.ok();
     }
 
@@ -187,26 +273,32 @@ public class WorkshopController implements ParticipantApi,AdminApi {
     public ParticipantActionResult partialCancel(String email, String workshopid, int numSpotCanceled) {
         ParitalCancellationCommand cancellationCommand = new ParitalCancellationCommand(email, workshopid, numSpotCanceled);
         WorkshopAggregate workshopAggregate = SystemSetup.instance().workshopAggregate();
-        synchronized (workshopAggregate) {
-            AbstractReservationCancelled event;
+        AbstractReservationCancelled event;
+        synchronized (commandLocks.forWorkshop(workshopid)) {
             try {
-                event = workshopAggregate.createEvent(cancellationCommand);
+                event = createAndAdd(EventStreams.forWorkshop(workshopid), () -> workshopAggregate.createEvent(cancellationCommand));
             } catch (MoosheadException e) {
                 return ParticipantActionResult.error(e.getMessage());
             }
-            SystemSetup.instance().eventstore().addEvent(event);
         }
+        SystemSetup.instance().eventstore().awaitPersisted(event);
+        awaitWorkshopListProjection(event.getRevisionId());
         return ParticipantActionResult.ok();
     }
 
     @Override
     public ParticipantActionResult registerShowUp(String reservationToken, boolean shownUp) {
         WorkshopAggregate workshopAggregate = SystemSetup.instance().workshopAggregate();
-        synchronized (workshopAggregate) {
-            Optional<Participant> participantOptional = SystemSetup.instance().workshopListProjection().getWorkshops().stream()
-                    .flatMap(ws -> ws.getParticipants().stream())
-                    .filter(pa -> reservationToken.equals(Optional.ofNullable(pa.getWorkshopReservation()).map(WorkshopReservation::getReservationToken).orElse(null)))
-                    .findAny();
+        awaitWorkshopListProjection(SystemSetup.instance().eventstore().lastRevisionId());
+        Optional<Participant> participantOptional = SystemSetup.instance().workshopListProjection().findByReservationToken(reservationToken);
+        if (!participantOptional.isPresent()) {
+            return ParticipantActionResult.error("Did not find participant with reservationToken" + reservationToken);
+        }
+        ShowUpRegisteredByAdmin event;
+        synchronized (commandLocks.forWorkshop(participantOptional.get().getWorkshopId())) {
+            // Commands for this workshop may have changed the participant since it was read
+            awaitWorkshopListProjection(SystemSetup.instance().eventstore().lastRevisionId());
+            participantOptional = SystemSetup.instance().workshopListProjection().findByReservationToken(reservationToken);
             if (!participantOptional.isPresent()) {
                 return ParticipantActionResult.error("Did not find participant with reservationToken" + reservationToken);
             }
@@ -214,21 +306,21 @@ public class WorkshopController implements ParticipantApi,AdminApi {
                 return ParticipantActionResult.error("Shown up status already set");
             }
             ShownUpRegisteredCommand shownUpRegisteredCommand = new ShownUpRegisteredCommand(reservationToken, shownUp);
-            ShowUpRegisteredByAdmin event = workshopAggregate.createEvent(shownUpRegisteredCommand);
-            SystemSetup.instance().eventstore().addEvent(event);
-
+            event = createAndAdd(EventStreams.forReservation(reservationToken), () -> workshopAggregate.createEvent(shownUpRegisteredCommand));
         }
+        SystemSetup.instance().eventstore().awaitPersisted(event);
+        awaitWorkshopListProjection(event.getRevisionId());
         return ParticipantActionResult.ok();
     }
 
     @Override
     public ParticipantActionResult changeWorkshopSize(String workshopid, int updatedNumberOfSpaces) {
         WorkshopAggregate workshopAggregate = SystemSetup.instance().workshopAggregate();
-        synchronized (workshopAggregate) {
-
-            Optional<WorkshopInfo> optionalWorkshopInfo = workshops().stream()
-                    .filter(ws -> ws.getId().equals(workshopid))
-                    .findAny();
+        WorkshopSizeChangedByAdmin workshopSizeChangedByAdminEvent;
+        synchronized (commandLocks.forWorkshop(workshopid)) {
+            awaitWorkshopListProjection(SystemSetup.instance().eventstore().lastRevisionId());
+            Optional<WorkshopInfo> optionalWorkshopInfo = SystemSetup.instance().workshopListProjection().workshopById(workshopid)
+                    .map(this::createWorkshopInfo);
             if (!optionalWorkshopInfo.isPresent()) {
                 return ParticipantActionResult.error("Internal error : Did not find workshop " + workshopid);
             }
@@ -239,26 +331,91 @@ public class WorkshopController implements ParticipantApi,AdminApi {
             if (workshopInfo.getNumberOfSeats() > updatedNumberOfSpaces && workshopInfo.numberOfParticipants() > updatedNumberOfSpaces) {
                 return ParticipantActionResult.error("Can not reduce size while spots are already canceled");
             }
-            WorkshopSizeChangedByAdmin workshopSizeChangedByAdminEvent = workshopAggregate.createWorkshopSizeChangedByAdminEvent(workshopid, updatedNumberOfSpaces);
-            SystemSetup.instance().eventstore().addEvent(workshopSizeChangedByAdminEvent);
-
+            workshopSizeChangedByAdminEvent = createAndAdd(EventStreams.forWorkshop(workshopid), () -> workshopAggregate.createWorkshopSizeChangedByAdminEvent(workshopid, updatedNumberOfSpaces));
         }
+        SystemSetup.instance().eventstore().awaitPersisted(workshopSizeChangedByAdminEvent);
+        awaitWorkshopListProjection(workshopSizeChangedByAdminEvent.getRevisionId());
         return ParticipantActionResult.ok();
     }
 
+    /**
+     * Decides the reservations in the order they were queued. Each one sees the events of the ones before it,
+     * so two reservations for the same email in one batch are caught like any other. With write behind or
+     * group commit the events of the batch are written together, and the batch is acknowledged when they are.
+     */
+    private void reserveBatch(List<PendingReservation> batch) {
+        WorkshopAggregate workshopAggregate = SystemSetup.instance().workshopAggregate();
+        for (PendingReservation pending : batch) {
+            String workshopId = pending.command.getWorkshopReservation().getWorkshopId();
+            synchronized (commandLocks.forWorkshop(workshopId)) {
+                try {
+                    pending.event = createAndAdd(EventStreams.forWorkshop(workshopId), () -> workshopAggregate.createEvent(pending.command));
+                } catch (MoosheadException e) {
+                    pending.error = e.getMessage();
+                }
+            }
+        }
+        Eventstore eventstore = SystemSetup.instance().eventstore();
+        for (PendingReservation pending : batch) {
+            if (pending.event != null) {
+                eventstore.awaitPersisted(pending.event);
+            }
+        }
+    }
+
+    public Optional<GroupCommitter<?>> reservationPipeline() {
+        return Optional.ofNullable(reservationPipeline);
+    }
+
+    /**
+     * Creates the event from the version of its stream and adds it only if the stream has not moved since.
+     * Creating the event takes the next revision id, so it is added under the same monitor to store events in revision order.
+     * When another instance got there first, its events are read and the command is decided again.
+     */
+    private <T extends AbstractEvent> T createAndAdd(String streamId, Supplier<T> createEvent) {
+        WorkshopAggregate workshopAggregate = SystemSetup.instance().workshopAggregate();
+        Eventstore eventstore = SystemSetup.instance().eventstore();
+        for (int attempt = 1; ; attempt++) {
+            // The aggregate only sees events once they are written, so wait for those already added to the stream
+            eventstore.awaitStream(streamId);
+            long waitStart = System.nanoTime();
+            synchronized (workshopAggregate) {
+                lockWaitTimer.recordSince(waitStart);
+                long streamVersion = eventstore.streamVersion(streamId);
+                long createStart = System.nanoTime();
+                T event = createEvent.get();
+                createEventTimer.recordSince(createStart);
+                try {
+                    eventstore.addEvent(event, streamVersion);
+                    return event;
+                } catch (StreamVersionConflictException e) {
+                    if (attempt >= Configuration.appendAttempts()) {
+                        throw new StreamVersionConflictException("Someone else made a change at the same time. Please try again", e);
+                    }
+                }
+            }
+            // Outside the monitor, as catching up takes it to add the events
+            eventstore.catchUp();
+        }
+    }
+
+    /**
+     * The projection may be updated on its own thread, so wait for it before reading what was just written
+     */
+    private void awaitWorkshopListProjection(long revisionId) {
+        SystemSetup.instance().eventstore().awaitSubscriber(SystemSetup.instance().workshopListProjection(), revisionId);
+    }
+
     private ParticipantActionResult readStatus(String token) {
-        List<Workshop> workshops = SystemSetup.instance().workshopListProjection().getWorkshops();
-        Optional<Workshop> workshopOptional = workshops.stream()
-                .filter(ws -> ws.getParticipants().stream().filter(pa -> token.equals(pa.getWorkshopReservation().getReservationToken())).findAny().isPresent())
-                .findAny();
+        WorkshopListProjection workshopListProjection = SystemSetup.instance().workshopListProjection();
+        Optional<Participant> participantOptional = workshopListProjection.findByReservationToken(token);
+        Optional<Workshop> workshopOptional = participantOptional.flatMap(pa -> workshopListProjection.workshopById(pa.getWorkshopId()));
         if (!workshopOptional.isPresent()) {
             return ParticipantActionResult.error("Internal error : Did not find reservation " + token);
         }
         Workshop workshop = workshopOptional.get();
         String workshopInfo = workshop.getWorkshopData().infoText();
-        Participant participant = workshop.getParticipants().stream()
-                .filter(pa -> token.equals(pa.getWorkshopReservation().getReservationToken()))
-                .findAny().get();
+        Participant participant = participantOptional.get();
 
         int waitingListNumber = workshop.waitingListNumber(participant);
         if (waitingListNumber < 0) {
@@ -0,0 +1,75 @@
+package no.java.moosehead.database;
+
+import no.java.moosehead.eventstore.core.EventNotifications;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Postgres LISTEN/NOTIFY on the moosehead_events channel. Inserting instances send a NOTIFY, which
+ * Postgres delivers when the insert commits. The listening connection is kept open until close.
+ */
+public class PostgresEventNotifications implements EventNotifications {
+    private static final String CHANNEL = "moosehead_events";
+    private static final long CHECK_MILLIS = 50;
+
+    private final Connection listenConnection;
+    private final PGConnection pgConnection;
+
+    public PostgresEventNotifications() {
+        try {
+            listenConnection = Postgres.openConnection();
+            pgConnection = listenConnection.unwrap(PGConnection.class);
+            try (Statement statement = listenConnection.createStatement()) {
+                statement.execute("LISTEN " + CHANNEL);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void eventsInserted(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("NOTIFY " + CHANNEL);
+        }
+    }
+
+    /**
+     * The driver only reads notifications when the connection is used, so this runs a dummy query every CHECK_MILLIS
+     */
+    @Override
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (true) {
+                try (Statement statement = listenConnection.createStatement()) {
+                    statement.execute("SELECT 1");
+                }
+                PGNotification[] received = pgConnection.getNotifications();
+                if (received != null && received.length > 0) {
+                    return true;
+                }
+                long waitMillis = waitUntil - System.currentTimeMillis();
+                if (waitMillis <= 0) {
+                    return false;
+                }
+                Thread.sleep(Math.min(waitMillis, CHECK_MILLIS));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            listenConnection.close();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
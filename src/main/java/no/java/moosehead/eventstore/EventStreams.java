@@ -0,0 +1,44 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.eventstore.core.AbstractEvent;
+
+import java.util.Optional;
+
+/**
+ * Groups events into streams that commands are checked against: everything about one workshop,
+ * email confirmations for one email, and show ups for one reservation. The version of a stream is
+ * the revision id of its last event, or 0 when it has none.
+ */
+public class EventStreams {
+
+    public static String forWorkshop(String workshopId) {
+        return "workshop:" + workshopId;
+    }
+
+    public static String forEmail(String email) {
+        return "email:" + email;
+    }
+
+    public static String forReservation(String reservationToken) {
+        return "reservation:" + reservationToken;
+    }
+
+    public static Optional<String> streamId(AbstractEvent event) {
+        if (event instanceof WorkshopAddedEvent) {
+            return Optional.of(forWorkshop(((WorkshopAddedEvent) event).getWorkshopId()));
+        }
+        if (event instanceof UserWorkshopEvent) {
+            return Optional.of(forWorkshop(((UserWorkshopEvent) event).getWorkshopId()));
+        }
+        if (event instanceof WorkshopSizeChangedByAdmin) {
+            return Optional.of(forWorkshop(((WorkshopSizeChangedByAdmin) event).getWorkshopid()));
+        }
+        if (event instanceof EmailConfirmedByUser) {
+            return Optional.of(forEmail(((EmailConfirmedByUser) event).getEmail()));
+        }
+        if (event instanceof ShowUpRegisteredByAdmin) {
+            return Optional.of(forReservation(((ShowUpRegisteredByAdmin) event).getReservationToken()));
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,214 @@
+package no.java.moosehead.eventstore.core;
+
+import no.java.moosehead.metrics.Histogram;
+import no.java.moosehead.metrics.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands events to a subscriber on its own thread, through a bounded queue. The thread adding events
+ * only waits when the queue is full, so a slow subscriber can not hold up the writer by more than
+ * the queue size. The subscriber sees the events in the same order as they were added.
+ */
+public class AsyncSubscription implements EventSubscription {
+    private static final long AWAIT_TIMEOUT_MILLIS = 30000;
+    // Bounds how long a waiter for a revision waits behind a queue that keeps filling up
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private static class Delivery {
+        private final AbstractEvent event;
+        private final boolean byOtherInstance;
+
+        private Delivery(AbstractEvent event, boolean byOtherInstance) {
+            this.event = event;
+            this.byOtherInstance = byOtherInstance;
+        }
+    }
+
+    private final EventSubscription subscriber;
+    private final BlockingQueue<Delivery> queue;
+    private final Thread dispatcherThread;
+    private final Object progress = new Object();
+    private volatile boolean running = true;
+    private volatile long lastQueuedRevision = 0;
+    private volatile long lastHandledRevision = 0;
+    private final AtomicLong maxLag = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final Histogram dispatchTimer;
+
+    public AsyncSubscription(String name, EventSubscription subscriber, int queueSize) {
+        this.subscriber = subscriber;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        String metricName = "subscriber." + subscriber.getClass().getSimpleName();
+        dispatchTimer = Metrics.histogram(metricName + ".eventAdded");
+        Metrics.gauge(metricName + ".lag", this::getLag);
+        Metrics.gauge(metricName + ".failed", this::getFailedCount);
+        dispatcherThread = new Thread(this::dispatchLoop, "subscriber-" + name);
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+    }
+
+    public EventSubscription getSubscriber() {
+        return subscriber;
+    }
+
+    @Override
+    public void eventAdded(AbstractEvent event) {
+        enqueue(new Delivery(event, false));
+    }
+
+    @Override
+    public void eventAddedByOtherInstance(AbstractEvent event) {
+        enqueue(new Delivery(event, true));
+    }
+
+    private void enqueue(Delivery delivery) {
+        AbstractEvent event = delivery.event;
+        if (!running) {
+            throw new IllegalStateException("AsyncSubscription is closed");
+        }
+        try {
+            queue.put(delivery);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for room in the subscriber queue", e);
+        }
+        // Transient events have revision id 0
+        lastQueuedRevision = Math.max(lastQueuedRevision, event.getRevisionId());
+        updateMax(maxLag, queue.size());
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while ((current = max.get()) < value) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private void dispatchLoop() {
+        while (running || !queue.isEmpty()) {
+            Delivery delivery;
+            try {
+                delivery = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (delivery == null) {
+                continue;
+            }
+            // What is already queued is handed over as one batch, so the subscriber can publish its state once for all of it
+            long batchRevision = 0;
+            int handled = 0;
+            subscriber.batchStarted();
+            try {
+                while (delivery != null) {
+                    dispatch(delivery);
+                    batchRevision = Math.max(batchRevision, delivery.event.getRevisionId());
+                    handled++;
+                    delivery = handled < MAX_BATCH_SIZE ? queue.poll() : null;
+                }
+            } finally {
+                subscriber.batchEnded();
+            }
+            // After the batch has ended, so whoever waits for a revision sees what the subscriber published
+            synchronized (progress) {
+                lastHandledRevision = Math.max(lastHandledRevision, batchRevision);
+                progress.notifyAll();
+            }
+        }
+    }
+
+    private void dispatch(Delivery delivery) {
+        AbstractEvent event = delivery.event;
+        long start = System.nanoTime();
+        try {
+            if (delivery.byOtherInstance) {
+                subscriber.eventAddedByOtherInstance(event);
+            } else {
+                subscriber.eventAdded(event);
+            }
+        } catch (RuntimeException e) {
+            // The event is already stored, so the writer can not be told. Keep going with the next one
+            failedCount.incrementAndGet();
+            System.out.println("Error: " + subscriber.getClass().getSimpleName() + " failed on revision " + event.getRevisionId());
+            e.printStackTrace();
+        }
+        dispatchTimer.recordSince(start);
+    }
+
+    /**
+     * Blocks until the subscriber has handled the event with the given revision id, or any later one.
+     */
+    public void awaitRevision(long revisionId) {
+        if (lastHandledRevision >= revisionId) {
+            return;
+        }
+        long waitUntil = System.currentTimeMillis() + AWAIT_TIMEOUT_MILLIS;
+        synchronized (progress) {
+            while (lastHandledRevision < revisionId) {
+                long waitMillis = waitUntil - System.currentTimeMillis();
+                if (waitMillis <= 0) {
+                    throw new RuntimeException("Timed out waiting for " + subscriber.getClass().getSimpleName() + " to reach revision " + revisionId);
+                }
+                try {
+                    progress.wait(waitMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the subscriber has been handed the events up to this revision id without the queue, as
+     * ParallelReplay does at startup before anything is queued.
+     */
+    public void playedBackTo(long revisionId) {
+        synchronized (progress) {
+            lastQueuedRevision = Math.max(lastQueuedRevision, revisionId);
+            lastHandledRevision = Math.max(lastHandledRevision, revisionId);
+            progress.notifyAll();
+        }
+    }
+
+    /**
+     * Handles whatever is queued and stops the dispatcher thread.
+     */
+    public void close() {
+        running = false;
+        try {
+            dispatcherThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Number of events added but not yet handled by the subscriber
+     */
+    public int getLag() {
+        return queue.size();
+    }
+
+    public long getMaxLag() {
+        return maxLag.get();
+    }
+
+    public long getLastQueuedRevision() {
+        return lastQueuedRevision;
+    }
+
+    public long getLastHandledRevision() {
+        return lastHandledRevision;
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+}
@@ -1,65 +1,689 @@
 package no.java.moosehead.eventstore.core;
 
+import no.java.moosehead.controller.SystemSetup;
 import no.java.moosehead.database.Postgres;
-import no.java.moosehead.eventstore.utils.ClassSerializer;
+import no.java.moosehead.eventstore.EventStreams;
+import no.java.moosehead.eventstore.system.SystemBootstrapDone;
+import no.java.moosehead.eventstore.utils.DbRevisionBlocks;
+import no.java.moosehead.eventstore.utils.EventCodec;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.GroupCommitter;
+import no.java.moosehead.eventstore.utils.ParallelDecoder;
+import no.java.moosehead.eventstore.utils.TextEventCodec;
+import no.java.moosehead.eventstore.utils.TokenGenerator;
+import no.java.moosehead.metrics.Counter;
+import no.java.moosehead.metrics.Histogram;
+import no.java.moosehead.metrics.Metrics;
 import no.java.moosehead.web.Configuration;
-import org.flywaydb.core.Flyway;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DbEventStore implements Eventstore {
+    private static final Histogram appendTimer = Metrics.histogram("eventstore.append");
+    private static final Histogram serializeTimer = Metrics.histogram("eventstore.serialize");
+    private static final Histogram persistTimer = Metrics.histogram("eventstore.persist");
+    private static final Counter appendedEvents = Metrics.counter("eventstore.events");
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final CompletableFuture<Void> NOT_WRITTEN = CompletableFuture.completedFuture(null);
+
+    /**
+     * An event with the stream version it was appended to, which goes into the stream_version column
+     */
+    private static class PendingInsert {
+        private final AbstractEvent event;
+        private final Optional<String> streamId;
+        private final long streamVersion;
+
+        private PendingInsert(AbstractEvent event, Optional<String> streamId, long streamVersion) {
+            this.event = event;
+            this.streamId = streamId;
+            this.streamVersion = streamVersion;
+        }
+    }
+
     private List<EventSubscription> subscribers = new ArrayList<>();
-    private List<AbstractEvent> storage = new ArrayList<>();
-    private final ClassSerializer classSerializer = new ClassSerializer();
+    private final EventIndex index = new EventIndex();
+    // Only while the events are played back with ParallelReplay
+    private volatile EventStorage replayEvents;
+    private final Supplier<Connection> connections;
+    private final EventLogFormat format;
+    private final int fetchSize;
+    private final EventCodec textCodec = new TextEventCodec();
+    private final EventCodec binaryCodec = EventLogFormat.BINARY.createCodec();
+    private boolean loaded = false;
+    private GroupCommitter<PendingInsert> writeBehind;
+    private final InFlightEvents inFlight = new InFlightEvents("eventstore", this::publish);
+    private final Object tailLock = new Object();
+    private volatile boolean tailing = false;
+    private volatile Thread tailer;
+    private EventNotifications notifications = EventNotifications.polling();
+    private Object applyLock = this;
+    private long tailSettleMillis;
+    private volatile long safeRevision = 0;
+    private final NavigableSet<Long> recentRevisions = new ConcurrentSkipListSet<>();
+    private final Set<String> conflictedStreams = ConcurrentHashMap.newKeySet();
+    private final Deque<long[]> tailMarks = new ArrayDeque<>();
+    private final SubscriberTimers subscriberTimers = new SubscriberTimers();
 
+    /**
+     * Events are read from either the text payload or the binpayload column, whichever is set.
+     * New events are written in the format given by the eventstoreFormat config.
+     * Nothing is read before playbackEventsToSubscribers.
+     */
     public DbEventStore() {
+        this(Postgres::openConnection, Configuration.eventstoreFormat(), Configuration.dbFetchSize());
+        if (Configuration.dbWriteBehind() && Configuration.dbTailing()) {
+            throw new RuntimeException("dbWriteBehind can not be combined with dbTailing");
+        }
+        if (Configuration.dbWriteBehind()) {
+            startWriteBehind(Configuration.dbWriteBatchSize(), Configuration.dbWriteLingerMillis());
+        }
+    }
+
+    public DbEventStore(Supplier<Connection> connections, EventLogFormat format, int fetchSize) {
+        this.connections = connections;
+        this.format = format;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * From now on addEvent only queues the event. A writer thread inserts the queued events with one
+     * JDBC batch and one commit, and awaitPersisted returns when the commit is done.
+     * @param maxBatchSize max number of events in one insert batch
+     * @param maxLingerMillis how long the writer waits for more events before it writes a batch that is not full
+     * @throws IllegalStateException when tailing. Another instance can take the stream version of a queued event,
+     *                               and the unique index then fails the whole batch instead of the one event
+     */
+    public void startWriteBehind(int maxBatchSize, long maxLingerMillis) {
+        if (tailing) {
+            throw new IllegalStateException("Write behind can not be used with tailing");
+        }
+        writeBehind = new GroupCommitter<>("eventstore-write-behind", this::insertBatch, maxBatchSize, maxLingerMillis);
+    }
+
+    /**
+     * Writes whatever is queued and stops the writer thread. Events added after this are inserted one by one.
+     */
+    public void stopWriteBehind() {
+        if (writeBehind != null) {
+            writeBehind.close();
+            writeBehind = null;
+        }
+    }
+
+    public Optional<GroupCommitter<?>> writeBehind() {
+        return Optional.ofNullable(writeBehind);
+    }
+
+    /**
+     * Starts a thread that reads the events other instances insert and hands them to the subscribers.
+     * It reads when notified, and at least every pollMillis.
+     *
+     * Revision ids are not committed in order across instances, so the thread does not only read above the newest
+     * revision it has seen. It reads above a safe revision, which is the newest revision seen settleMillis ago,
+     * and skips the events it already has.
+     * @param applyLock held while events are added, the same monitor commands hold while they create and add events
+     * @throws IllegalStateException with write behind, see startWriteBehind
+     */
+    public void startTailing(Object applyLock, EventNotifications notifications, long pollMillis, long settleMillis) {
+        if (writeBehind != null) {
+            throw new IllegalStateException("Tailing can not be used with write behind");
+        }
+        synchronized (tailLock) {
+            setApplyLock(applyLock);
+            this.notifications = notifications;
+            this.tailSettleMillis = settleMillis;
+            // Events created within the settle time may have been committed around the events that were loaded
+            long settledBefore = System.currentTimeMillis() - settleMillis;
+            long safe = index.maxRevisionId();
+            for (int position = index.size() - 1; position >= 0; position--) {
+                if (index.transientEvent(position).isPresent()) {
+                    continue;
+                }
+                if (index.systemTime(position) < settledBefore) {
+                    break;
+                }
+                recentRevisions.add(index.revisionId(position));
+                safe = Math.min(safe, index.revisionId(position) - 1);
+            }
+            safeRevision = safe;
+            tailing = true;
+        }
+        Thread thread = new Thread(() -> tailLoop(pollMillis), "eventstore-tailer");
+        thread.setDaemon(true);
+        tailer = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the tailing thread. Events from other instances are then only read by catchUp.
+     */
+    public void stopTailing() {
+        Thread thread = tailer;
+        if (thread == null) {
+            return;
+        }
+        tailer = null;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        notifications.close();
+    }
+
+    private void tailLoop(long pollMillis) {
+        while (tailer == Thread.currentThread()) {
+            try {
+                notifications.await(pollMillis);
+                catchUp();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Error: Could not read events from other instances");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public long getSafeRevision() {
+        return safeRevision;
+    }
+
+    /**
+     * Streams the events from the database with a cursor and hands them to the subscribers as they arrive.
+     * Rows are decoded in parallel in chunks, but subscribers get the events in revision order.
+     * With more than one replayThreads the events are loaded first and then played back with ParallelReplay,
+     * which is the only time the events are all in memory.
+     */
+    @Override
+    public void playbackEventsToSubscribers(int fromIndex) {
+        if (loaded) {
+            Eventstore.super.playbackEventsToSubscribers(fromIndex);
+            return;
+        }
+        int replayThreads = Configuration.replayThreads();
+        if (replayThreads == 1) {
+            subscribers.forEach(EventSubscription::batchStarted);
+        } else {
+            replayEvents = new EventStorage();
+        }
+        try {
+            load(fromIndex, replayThreads == 1);
+            loaded = true;
+            if (replayThreads > 1) {
+                new ParallelReplay(replayThreads).replay(this, fromIndex);
+            }
+        } finally {
+            if (replayThreads == 1) {
+                subscribers.forEach(EventSubscription::batchEnded);
+            }
+            replayEvents = null;
+        }
+        SystemSetup.instance().revisionGenerator().ensureAbove(lastRevisionId());
+        addEvent(new SystemBootstrapDone(lastRevisionId()));
+    }
+
+    private void load(int fromIndex, boolean playback) {
+        Supplier<Function<Object[], AbstractEvent>> decoders = () -> {
+            EventCodec rowTextCodec = new TextEventCodec();
+            return row -> decode((String) row[0], (byte[]) row[1], rowTextCodec);
+        };
+        try (
+                ParallelDecoder<Object[]> decoder = new ParallelDecoder<>(decoders, event -> deliver(event, fromIndex, playback));
+                Connection connection = connections.get()
+        ) {
+            // Postgres only uses a cursor for fetchSize when autocommit is off
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement("select payload, binpayload from event order by id")) {
+                ps.setFetchSize(fetchSize);
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    while (resultSet.next()) {
+                        decoder.add(new Object[]{resultSet.getString(1), resultSet.getBytes(2)});
+                    }
+                }
+            } finally {
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+            decoder.finish();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private AbstractEvent decode(String payload, byte[] binpayload, EventCodec textCodec) {
+        return binpayload != null ? binaryCodec.decode(binpayload) : textCodec.decode(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds the events other instances have inserted since the last time, and moves the revision generator past them.
+     * Without tailing that is every event above the newest one here. After a stream version conflict the events
+     * appended to that stream are read as well. Must not be called holding the apply lock.
+     */
+    @Override
+    public void catchUp() {
+        synchronized (tailLock) {
+            long started = System.currentTimeMillis();
+            List<AbstractEvent> events = new ArrayList<>();
+            Set<Long> fromStreams = new HashSet<>();
+            try (Connection connection = connections.get()) {
+                try (PreparedStatement ps = connection.prepareStatement("select id, payload, binpayload from event where id > ? order by id")) {
+                    ps.setLong(1, tailing ? safeRevision : lastRevisionId());
+                    try (ResultSet resultSet = ps.executeQuery()) {
+                        while (resultSet.next()) {
+                            if (tailing && recentRevisions.contains(resultSet.getLong(1))) {
+                                continue;
+                            }
+                            events.add(decode(resultSet.getString(2), resultSet.getBytes(3), textCodec));
+                        }
+                    }
+                }
+                Set<Long> read = events.stream().map(AbstractEvent::getRevisionId).collect(Collectors.toSet());
+                for (String streamId : new ArrayList<>(conflictedStreams)) {
+                    conflictedStreams.remove(streamId);
+                    for (AbstractEvent event : readStream(connection, streamId)) {
+                        if (read.add(event.getRevisionId())) {
+                            fromStreams.add(event.getRevisionId());
+                            events.add(event);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            if (!events.isEmpty()) {
+                synchronized (applyLock) {
+                    subscribers.forEach(EventSubscription::batchStarted);
+                    try {
+                        for (AbstractEvent event : events) {
+                            if (tailing ? !recentRevisions.add(event.getRevisionId()) : isOwn(event, fromStreams.contains(event.getRevisionId()))) {
+                                continue;
+                            }
+                            index.add(event);
+                            for (EventSubscription eventSubscription : subscribers) {
+                                eventSubscription.eventAddedByOtherInstance(event);
+                            }
+                        }
+                    } finally {
+                        subscribers.forEach(EventSubscription::batchEnded);
+                    }
+                    SystemSetup.instance().revisionGenerator().ensureAbove(lastRevisionId());
+                }
+                System.out.println("Caught up with " + events.size() + " events from other instances");
+            }
+            if (tailing) {
+                advanceSafeRevision(started);
+            }
+        }
+    }
+
+    /**
+     * The events appended to the stream after the newest one here, following the stream_version column. The revision ids
+     * of another instance can be lower than the ones here, and its insert may be committed after the settle time, so
+     * they are not always found above the safe revision or the newest revision.
+     */
+    private List<AbstractEvent> readStream(Connection connection, String streamId) throws SQLException {
+        List<AbstractEvent> events = new ArrayList<>();
+        long version = pendingStreamVersion(streamId);
+        try (PreparedStatement ps = connection.prepareStatement("select id, payload, binpayload from event where stream_id = ? and stream_version = ?")) {
+            while (true) {
+                ps.setString(1, streamId);
+                ps.setLong(2, version);
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    if (!resultSet.next()) {
+                        return events;
+                    }
+                    AbstractEvent event = decode(resultSet.getString(2), resultSet.getBytes(3), textCodec);
+                    events.add(event);
+                    version = event.getRevisionId();
+                }
+            }
+        }
+    }
+
+    /**
+     * Without tailing, events of this instance that are committed but still in flight are found above the newest
+     * one here, and so are events that were published after they were read
+     * @param readFromStream read by following a stream, so it can be below the newest revision here
+     */
+    private boolean isOwn(AbstractEvent event, boolean readFromStream) {
+        return inFlight.contains(event.getRevisionId()) || (!readFromStream && event.getRevisionId() <= index.maxRevisionId());
+    }
+
+    /**
+     * Every read leaves a mark with the newest revision seen. Once a mark is older than the settle time, everything
+     * at or below its revision has been committed and read, so later reads start above it.
+     */
+    private void advanceSafeRevision(long readStarted) {
+        long now = System.currentTimeMillis();
+        while (!tailMarks.isEmpty() && tailMarks.peekFirst()[0] + tailSettleMillis <= readStarted) {
+            safeRevision = Math.max(safeRevision, tailMarks.pollFirst()[1]);
+        }
+        recentRevisions.headSet(safeRevision, true).clear();
+        if (tailMarks.isEmpty() || tailMarks.peekLast()[1] != lastRevisionId()) {
+            tailMarks.addLast(new long[]{now, lastRevisionId()});
+        }
+    }
+
+    private void deliver(AbstractEvent event, int fromIndex, boolean playback) {
+        boolean coveredBySnapshot = index.size() < fromIndex;
+        index.add(event);
+        if (replayEvents != null) {
+            replayEvents.add(event);
+        }
+        if (playback && !coveredBySnapshot) {
+            for (EventSubscription eventSubscription : subscribers) {
+                eventSubscription.eventAdded(event);
+            }
+        }
+    }
+
+    /**
+     * Before the events are loaded the database is asked directly
+     */
+    @Override
+    public Optional<Long> revisionIdOfEvent(int position) {
+        if (loaded) {
+            return position >= 0 && position < index.size() ? Optional.of(index.revisionId(position)) : Optional.empty();
+        }
         try (
-                Connection connection = Postgres.openConnection();
-                PreparedStatement ps = connection.prepareStatement("select payload from event order by id");
-                ResultSet resultSet = ps.executeQuery();
+                Connection connection = connections.get();
+                PreparedStatement ps = connection.prepareStatement("select id from event order by id limit 1 offset ?")
         ) {
-            while (resultSet.next()) {
-                AbstractEvent ev = classSerializer.asObject(resultSet.getString(1));
-                storage.add(ev);
+            ps.setInt(1, position);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                return resultSet.next() ? Optional.of(resultSet.getLong(1)) : Optional.empty();
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public Optional<TokenGenerator.RevisionBlockSource> revisionBlockSource() {
+        return Optional.of(new DbRevisionBlocks(connections));
+    }
+
     @Override
     public void addEventSubscriber(EventSubscription eventSubscription) {
         subscribers.add(eventSubscription);
+        subscriberTimers.add(eventSubscription);
     }
 
+    /**
+     * Reads every event from the database
+     */
     @Override
     public List<AbstractEvent> getEventstorageCopy() {
-        return new ArrayList<>(storage);
+        return eventsFrom(0).collect(Collectors.toList());
     }
 
+    /**
+     * The events are read from the database as the stream is consumed, dbFetchSize events at a time,
+     * in the order they were added here
+     */
     @Override
-    public void addEvent(AbstractEvent event) {
-        if (!(event instanceof TransientEvent)) {
+    public Stream<AbstractEvent> eventsFrom(int fromIndex) {
+        EventStorage replaying = replayEvents;
+        if (replaying != null) {
+            return replaying.stream(fromIndex);
+        }
+        int end = index.size();
+        int start = Math.min(Math.max(fromIndex, 0), end);
+        EventCodec pageTextCodec = new TextEventCodec();
+        Iterator<AbstractEvent> iterator = new Iterator<AbstractEvent>() {
+            private int next = start;
+            private Iterator<AbstractEvent> page = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && next < end) {
+                    int to = Math.min(end, next + fetchSize);
+                    page = readEvents(next, to, pageTextCodec).iterator();
+                    next = to;
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public AbstractEvent next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliterator(iterator, end - start, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * The events at the given positions, transient events from the index and the rest from the database
+     */
+    private List<AbstractEvent> readEvents(int from, int to, EventCodec pageTextCodec) {
+        List<Long> revisionIds = new ArrayList<>();
+        for (int position = from; position < to; position++) {
+            if (!index.transientEvent(position).isPresent()) {
+                revisionIds.add(index.revisionId(position));
+            }
+        }
+        Map<Long, AbstractEvent> byRevision = new HashMap<>();
+        if (!revisionIds.isEmpty()) {
+            String placeholders = revisionIds.stream().map(id -> "?").collect(Collectors.joining(","));
             try (
-                Connection connection = Postgres.openConnection();
-                PreparedStatement ps = connection.prepareStatement("insert into event(id,payload) VALUES (?,?)");
+                    Connection connection = connections.get();
+                    PreparedStatement ps = connection.prepareStatement("select id, payload, binpayload from event where id in (" + placeholders + ")")
             ) {
-               ps.setLong(1,event.getRevisionId());
-               String payload = classSerializer.asString(event);
-               ps.setString(2,payload);
-               ps.executeUpdate();
+                for (int i = 0; i < revisionIds.size(); i++) {
+                    ps.setLong(i + 1, revisionIds.get(i));
+                }
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    while (resultSet.next()) {
+                        byRevision.put(resultSet.getLong(1), decode(resultSet.getString(2), resultSet.getBytes(3), pageTextCodec));
+                    }
+                }
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
         }
-        storage.add(event);
+        List<AbstractEvent> events = new ArrayList<>();
+        for (int position = from; position < to; position++) {
+            Optional<AbstractEvent> event = index.transientEvent(position);
+            if (!event.isPresent()) {
+                event = Optional.ofNullable(byRevision.get(index.revisionId(position)));
+            }
+            event.ifPresent(events::add);
+        }
+        return events;
+    }
+
+    @Override
+    public int numberOfEvents() {
+        return index.size();
+    }
+
+    /**
+     * Events from other instances are not added in revision order, so this is the highest revision and not the last one added
+     */
+    @Override
+    public long lastRevisionId() {
+        return index.maxRevisionId();
+    }
+
+    @Override
+    public long streamVersion(String streamId) {
+        return index.streamVersion(streamId);
+    }
+
+    @Override
+    public long numberOfWorkshops() {
+        return index.numberOfWorkshops();
+    }
+
+    /**
+     * With write behind the event is handed to the subscribers once it is committed, from the thread that
+     * publishes written events. Otherwise it is inserted and handed to them before this returns.
+     */
+    @Override
+    public void addEvent(AbstractEvent event) {
+        long start = System.nanoTime();
+        boolean tracked = tailing && !(event instanceof TransientEvent) && event.getRevisionId() > safeRevision
+                && recentRevisions.add(event.getRevisionId());
+        CompletableFuture<Void> written = NOT_WRITTEN;
+        if (!(event instanceof TransientEvent)) {
+            Optional<String> streamId = EventStreams.streamId(event);
+            PendingInsert insert = new PendingInsert(event, streamId, streamId.map(this::pendingStreamVersion).orElse(0L));
+            if (writeBehind != null) {
+                written = writeBehind.submit(insert);
+                written.whenComplete((res, error) -> {
+                    if (error != null) {
+                        if (tracked) {
+                            recentRevisions.remove(event.getRevisionId());
+                        }
+                    } else {
+                        persistTimer.recordSince(start);
+                    }
+                });
+            } else {
+                try {
+                    insertBatch(Collections.singletonList(insert));
+                    persistTimer.recordSince(start);
+                } catch (SQLException e) {
+                    if (tracked) {
+                        recentRevisions.remove(event.getRevisionId());
+                    }
+                    if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                        // Nothing is added, so the caller can catch up and try again
+                        streamId.ifPresent(conflictedStreams::add);
+                        throw new StreamVersionConflictException("Event " + event.getRevisionId() + " conflicts with an event in the database", e);
+                    }
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        inFlight.add(event, written);
+        appendTimer.recordSince(start);
+    }
+
+    /**
+     * Checks the version against the events in flight as well, as they are not in the stream version until they are committed
+     */
+    @Override
+    public void addEvent(AbstractEvent event, long expectedStreamVersion) {
+        Optional<String> streamId = EventStreams.streamId(event);
+        if (streamId.isPresent() && pendingStreamVersion(streamId.get()) != expectedStreamVersion) {
+            throw new StreamVersionConflictException("Stream " + streamId.get() + " is at version " + pendingStreamVersion(streamId.get()) +
+                    ", expected " + expectedStreamVersion);
+        }
+        addEvent(event);
+    }
+
+    private long pendingStreamVersion(String streamId) {
+        return inFlight.streamVersion(streamId).orElseGet(() -> index.streamVersion(streamId));
+    }
+
+    private void publish(AbstractEvent event) {
+        index.add(event);
         for (EventSubscription eventSubscribers : this.subscribers) {
-            eventSubscribers.eventAdded(event);
+            subscriberTimers.eventAdded(eventSubscribers, event);
+        }
+        if (!(event instanceof TransientEvent)) {
+            appendedEvents.increment();
+        }
+    }
+
+    @Override
+    public void awaitPersisted(AbstractEvent event) {
+        inFlight.awaitPublished(event);
+    }
+
+    @Override
+    public void awaitStream(String streamId) {
+        inFlight.awaitStream(streamId);
+    }
+
+    @Override
+    public void setApplyLock(Object applyLock) {
+        this.applyLock = applyLock;
+        inFlight.setApplyLock(applyLock);
+    }
+
+    private void insertBatch(List<PendingInsert> inserts) throws SQLException {
+        try (Connection connection = connections.get()) {
+            boolean single = inserts.size() == 1;
+            if (!single) {
+                connection.setAutoCommit(false);
+            }
+            try (PreparedStatement ps = connection.prepareStatement("insert into event(id,payload,binpayload,stream_id,stream_version) VALUES (?,?,?,?,?)")) {
+                for (PendingInsert insert : inserts) {
+                    AbstractEvent event = insert.event;
+                    ps.setLong(1, event.getRevisionId());
+                    long serializeStart = System.nanoTime();
+                    if (format == EventLogFormat.BINARY) {
+                        ps.setNull(2, Types.VARCHAR);
+                        ps.setBytes(3, binaryCodec.encode(event));
+                    } else {
+                        ps.setString(2, new String(textCodec.encode(event), StandardCharsets.UTF_8));
+                        ps.setNull(3, Types.BINARY);
+                    }
+                    serializeTimer.recordSince(serializeStart);
+                    if (insert.streamId.isPresent()) {
+                        ps.setString(4, insert.streamId.get());
+                        ps.setLong(5, insert.streamVersion);
+                    } else {
+                        ps.setNull(4, Types.VARCHAR);
+                        ps.setNull(5, Types.BIGINT);
+                    }
+                    if (single) {
+                        ps.executeUpdate();
+                    } else {
+                        ps.addBatch();
+                    }
+                }
+                if (!single) {
+                    ps.executeBatch();
+                }
+                notifications.eventsInserted(connection);
+                if (!single) {
+                    connection.commit();
+                }
+            } catch (SQLException e) {
+                if (!single) {
+                    connection.rollback();
+                }
+                throw e;
+            } finally {
+                if (!single) {
+                    connection.setAutoCommit(true);
+                }
+            }
         }
     }
 
@@ -0,0 +1,84 @@
+package no.java.moosehead.eventstore.core;
+
+import no.java.moosehead.eventstore.EventStreams;
+import no.java.moosehead.eventstore.WorkshopAddedBySystem;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What DbEventStore keeps of its events instead of the events themselves: the revision id and time of each event in the
+ * order they were added, the stream versions and the counts, so the events can be read back from the database when
+ * asked for. Transient events are not in the database and are kept as they are.
+ */
+class EventIndex {
+    private long[] revisionIds = new long[1024];
+    private long[] systemTimes = new long[1024];
+    private final Map<Integer, AbstractEvent> transientEvents = new HashMap<>();
+    private int size = 0;
+    private volatile long numberOfWorkshops = 0;
+    private volatile long maxRevisionId = 0;
+    private final Map<String, Long> streamVersions = new ConcurrentHashMap<>();
+
+    synchronized void add(AbstractEvent event) {
+        if (size == revisionIds.length) {
+            revisionIds = Arrays.copyOf(revisionIds, size * 2);
+            systemTimes = Arrays.copyOf(systemTimes, size * 2);
+        }
+        revisionIds[size] = event.getRevisionId();
+        systemTimes[size] = event.getSystemTimeInMillis();
+        if (event instanceof TransientEvent) {
+            transientEvents.put(size, event);
+        } else {
+            maxRevisionId = Math.max(maxRevisionId, event.getRevisionId());
+        }
+        if (event instanceof WorkshopAddedBySystem) {
+            numberOfWorkshops++;
+        }
+        EventStreams.streamId(event).ifPresent(streamId -> streamVersions.put(streamId, event.getRevisionId()));
+        size++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized long revisionId(int index) {
+        checkIndex(index);
+        return revisionIds[index];
+    }
+
+    synchronized long systemTime(int index) {
+        checkIndex(index);
+        return systemTimes[index];
+    }
+
+    synchronized Optional<AbstractEvent> transientEvent(int index) {
+        checkIndex(index);
+        return Optional.ofNullable(transientEvents.get(index));
+    }
+
+    long numberOfWorkshops() {
+        return numberOfWorkshops;
+    }
+
+    /**
+     * The highest revision id added. Events from other instances may be added after events with a higher revision id.
+     */
+    long maxRevisionId() {
+        return maxRevisionId;
+    }
+
+    long streamVersion(String streamId) {
+        return streamVersions.getOrDefault(streamId, 0L);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+    }
+}
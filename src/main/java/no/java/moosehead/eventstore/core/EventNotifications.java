@@ -0,0 +1,44 @@
+package no.java.moosehead.eventstore.core;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Lets instances sharing the event table wake each other up when they have inserted events
+ */
+public interface EventNotifications {
+
+    /**
+     * Called on the connection that inserted the events, before they are committed
+     */
+    void eventsInserted(Connection connection) throws SQLException;
+
+    /**
+     * Blocks until another instance has inserted events, or the timeout has passed
+     * @return false on timeout
+     */
+    boolean await(long timeoutMillis) throws InterruptedException;
+
+    void close();
+
+    /**
+     * No notifications, so the table is read every time the timeout passes
+     */
+    static EventNotifications polling() {
+        return new EventNotifications() {
+            @Override
+            public void eventsInserted(Connection connection) {
+            }
+
+            @Override
+            public boolean await(long timeoutMillis) throws InterruptedException {
+                Thread.sleep(timeoutMillis);
+                return false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+package no.java.moosehead.eventstore.core;
+
+import no.java.moosehead.eventstore.EventStreams;
+import no.java.moosehead.eventstore.WorkshopAddedBySystem;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Append only list of events kept in fixed size chunks, so nothing is copied when it grows.
+ * Appends are serialized. Readers never lock: they see every event up to the size published
+ * when they started, and chunks are never moved or changed once an event is written to them.
+ */
+public class EventStorage {
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile AbstractEvent[][] chunks = new AbstractEvent[16][];
+    private volatile int size = 0;
+    private volatile long numberOfWorkshops = 0;
+    private volatile long maxRevisionId = 0;
+    private final Map<String, Long> streamVersions = new ConcurrentHashMap<>();
+
+    public synchronized void add(AbstractEvent event) {
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        AbstractEvent[][] current = chunks;
+        if (chunk == current.length) {
+            // Only the small array of chunk references is copied
+            AbstractEvent[][] grown = new AbstractEvent[current.length * 2][];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+        }
+        if (current[chunk] == null) {
+            current[chunk] = new AbstractEvent[CHUNK_SIZE];
+        }
+        current[chunk][index & CHUNK_MASK] = event;
+        chunks = current;
+        if (event instanceof WorkshopAddedBySystem) {
+            numberOfWorkshops++;
+        }
+        if (!(event instanceof TransientEvent)) {
+            maxRevisionId = Math.max(maxRevisionId, event.getRevisionId());
+        }
+        EventStreams.streamId(event).ifPresent(streamId -> streamVersions.put(streamId, event.getRevisionId()));
+        // Publishes the event to readers
+        size = index + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public AbstractEvent get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    public long numberOfWorkshops() {
+        return numberOfWorkshops;
+    }
+
+    /**
+     * The highest revision id stored. Events from other instances may be added after events with a higher revision id.
+     */
+    public long maxRevisionId() {
+        return maxRevisionId;
+    }
+
+    /**
+     * The revision id of the last event in the stream, 0 if there is none
+     */
+    public long streamVersion(String streamId) {
+        return streamVersions.getOrDefault(streamId, 0L);
+    }
+
+    /**
+     * The events from the given index up to the size when this was called
+     */
+    public Stream<AbstractEvent> stream(int fromIndex) {
+        int end = size;
+        AbstractEvent[][] snapshot = chunks;
+        Iterator<AbstractEvent> iterator = new Iterator<AbstractEvent>() {
+            private int next = Math.min(fromIndex, end);
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public AbstractEvent next() {
+                if (next >= end) {
+                    throw new NoSuchElementException();
+                }
+                AbstractEvent event = snapshot[next >>> CHUNK_SHIFT][next & CHUNK_MASK];
+                next++;
+                return event;
+            }
+        };
+        Spliterator<AbstractEvent> spliterator = Spliterators.spliterator(iterator, end - Math.min(fromIndex, end),
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        return StreamSupport.stream(spliterator, false);
+    }
+}
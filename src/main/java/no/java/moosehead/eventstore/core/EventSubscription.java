@@ -2,4 +2,22 @@ package no.java.moosehead.eventstore.core;
 
 public interface EventSubscription {
     public void eventAdded(AbstractEvent event);
+
+    /**
+     * An event another instance has added to a shared eventstore. That instance has already done the side effects,
+     * like sending emails, so subscribers with side effects should only update their state.
+     */
+    default void eventAddedByOtherInstance(AbstractEvent event) {
+        eventAdded(event);
+    }
+
+    /**
+     * Called before events that are handed over together, like the playback at startup, and batchEnded after them.
+     * A subscriber that publishes its state to readers can wait until the end of the batch. Batches are not nested.
+     */
+    default void batchStarted() {
+    }
+
+    default void batchEnded() {
+    }
 }
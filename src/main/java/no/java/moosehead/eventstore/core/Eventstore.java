@@ -2,14 +2,19 @@ package no.java.moosehead.eventstore.core;
 
 import no.java.moosehead.aggregate.WorkshopAggregate;
 import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.eventstore.EventStreams;
 import no.java.moosehead.eventstore.WorkshopAddedBySystem;
 import no.java.moosehead.eventstore.WorkshopAddedEvent;
 import no.java.moosehead.eventstore.system.SystemBootstrapDone;
 import no.java.moosehead.eventstore.utils.FileHandler;
+import no.java.moosehead.eventstore.utils.SegmentedEventLog;
 import no.java.moosehead.eventstore.utils.TokenGenerator;
 import no.java.moosehead.web.Configuration;
 
+import java.io.File;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 public interface Eventstore {
 
@@ -17,34 +22,177 @@ public interface Eventstore {
 
     List<AbstractEvent> getEventstorageCopy();
 
+    /**
+     * The events from the given position, as they were when this was called. Implementations should not copy the events.
+     */
+    default Stream<AbstractEvent> eventsFrom(int fromIndex) {
+        List<AbstractEvent> events = getEventstorageCopy();
+        return events.subList(Math.min(fromIndex, events.size()), events.size()).stream();
+    }
+
+    default int numberOfEvents() {
+        return getEventstorageCopy().size();
+    }
+
     void addEvent(AbstractEvent event);
 
+    /**
+     * Adds the event only if its stream is still at the version the command was decided on.
+     * Callers must add events one at a time, as with addEvent.
+     * @param expectedStreamVersion the version read with streamVersion before the event was created
+     * @throws StreamVersionConflictException if another event was added to the stream in the meantime
+     */
+    default void addEvent(AbstractEvent event, long expectedStreamVersion) {
+        Optional<String> streamId = EventStreams.streamId(event);
+        if (streamId.isPresent() && streamVersion(streamId.get()) != expectedStreamVersion) {
+            throw new StreamVersionConflictException("Stream " + streamId.get() + " is at version " + streamVersion(streamId.get()) +
+                    ", expected " + expectedStreamVersion);
+        }
+        addEvent(event);
+    }
+
+    /**
+     * The revision id of the last event in the stream, or 0 for a stream without events. See EventStreams.
+     */
+    default long streamVersion(String streamId) {
+        return eventsFrom(0)
+                .filter(event -> EventStreams.streamId(event).map(streamId::equals).orElse(false))
+                .mapToLong(AbstractEvent::getRevisionId)
+                .reduce((first, second) -> second)
+                .orElse(0L);
+    }
+
+    /**
+     * Where revision ids are reserved, for eventstores shared by several instances. Empty when ids are counted locally.
+     */
+    default Optional<TokenGenerator.RevisionBlockSource> revisionBlockSource() {
+        return Optional.empty();
+    }
+
+    /**
+     * Reads events that other instances have added to a shared eventstore. Does nothing for stores with a single writer.
+     */
+    default void catchUp() {
+    }
+
+    /**
+     * Blocks until the given event is durable and handed to the subscribers. Eventstores that write in the background
+     * (like group commit) return from addEvent before the event is written, and only hand it to the subscribers
+     * once it is, so callers that hold a lock while adding events can release it and wait here afterwards.
+     * @throws RuntimeException if this event could not be written. It is then not in the eventstore
+     */
+    default void awaitPersisted(AbstractEvent event) {
+    }
+
+    /**
+     * Blocks until the events added to the stream are written and handed to the subscribers, so a command on the
+     * stream is decided on everything that was added to it. Must not be called holding the apply lock.
+     */
+    default void awaitStream(String streamId) {
+    }
+
+    /**
+     * The monitor commands hold while they create and add events. Events written in the background are
+     * handed to the subscribers holding it.
+     */
+    default void setApplyLock(Object applyLock) {
+    }
+
+    /**
+     * The subscriber gets its events on its own thread, through a queue of the given size
+     */
+    default void addAsyncEventSubscriber(EventSubscription eventSubscription, int queueSize) {
+        addEventSubscriber(new AsyncSubscription(eventSubscription.getClass().getSimpleName(), eventSubscription, queueSize));
+    }
+
+    /**
+     * Blocks until the given subscriber has handled the event with this revision id. Returns at once for synchronous subscribers.
+     */
+    default void awaitSubscriber(EventSubscription eventSubscription, long revisionId) {
+        for (EventSubscription subscriber : getEventSubscribers()) {
+            if (subscriber instanceof AsyncSubscription && ((AsyncSubscription) subscriber).getSubscriber() == eventSubscription) {
+                ((AsyncSubscription) subscriber).awaitRevision(revisionId);
+            }
+        }
+    }
+
+    /**
+     * Blocks until every asynchronous subscriber has handled the event with this revision id
+     */
+    default void awaitSubscribers(long revisionId) {
+        for (EventSubscription subscriber : getEventSubscribers()) {
+            if (subscriber instanceof AsyncSubscription) {
+                ((AsyncSubscription) subscriber).awaitRevision(revisionId);
+            }
+        }
+    }
+
+    /**
+     * The revision id of the last stored event. Transient events like SystemBootstrapDone have no revision id of their own.
+     */
+    default long lastRevisionId() {
+        for (int index = numberOfEvents() - 1; index >= 0; index--) {
+            Optional<AbstractEvent> event = eventsFrom(index).findFirst();
+            if (event.isPresent() && !(event.get() instanceof TransientEvent)) {
+                return event.get().getRevisionId();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The revision id of the event at the given position in the eventstore
+     */
+    default Optional<Long> revisionIdOfEvent(int index) {
+        return eventsFrom(index).findFirst().map(AbstractEvent::getRevisionId);
+    }
+
     default long numberOfWorkshops() {
-        return getEventstorageCopy().stream().filter(ae -> ae instanceof WorkshopAddedBySystem).count();
+        return eventsFrom(0).filter(ae -> ae instanceof WorkshopAddedBySystem).count();
     }
 
     static Eventstore create() {
         if (Configuration.dbName() != null) {
             return new DbEventStore();
         }
+        if (Configuration.eventstoreFilename() != null && Configuration.eventstoreSegmented()) {
+            return new FilehandlerEventstore(new SegmentedEventLog(new File(Configuration.eventstoreFilename()), Configuration.eventstoreSegmentSize(),
+                    Configuration.eventstoreGroupCommit(), Configuration.eventstoreFormat()));
+        }
         if (Configuration.eventstoreFilename() != null) {
-            return new FilehandlerEventstore(new FileHandler(Configuration.eventstoreFilename()));
+            return new FilehandlerEventstore(new FileHandler(Configuration.eventstoreFilename(), Configuration.eventstoreGroupCommit(), Configuration.eventstoreFormat()));
         }
         return new FilehandlerEventstore();
     }
 
     default void playbackEventsToSubscribers() {
-        List<AbstractEvent> eventstorage = getEventstorageCopy();
-        for (AbstractEvent event: eventstorage) {
-            for (EventSubscription eventSubscribers : getEventSubscribers()) {
-                eventSubscribers.eventAdded(event);
+        playbackEventsToSubscribers(0);
+    }
+
+    /**
+     * With more than one replayThreads the subscribers are played back in parallel, see ParallelReplay.
+     * @param fromIndex events before this index are not played back, because the subscribers already have them from a snapshot
+     */
+    default void playbackEventsToSubscribers(int fromIndex) {
+        int replayThreads = Configuration.replayThreads();
+        if (replayThreads > 1) {
+            new ParallelReplay(replayThreads).replay(this, fromIndex);
+        } else {
+            List<EventSubscription> subscribers = getEventSubscribers();
+            subscribers.forEach(EventSubscription::batchStarted);
+            try {
+                eventsFrom(fromIndex).forEach(event -> {
+                    for (EventSubscription eventSubscribers : subscribers) {
+                        eventSubscribers.eventAdded(event);
+                    }
+                });
+            } finally {
+                subscribers.forEach(EventSubscription::batchEnded);
             }
         }
-        TokenGenerator tokenGenerator = SystemSetup.instance().revisionGenerator();
-        if (eventstorage.size() > 0) {
-            tokenGenerator.resetRevision(eventstorage.size());
-        }
-        addEvent(new SystemBootstrapDone(tokenGenerator.nextRevisionId()));
+        // Not the number of events, as a compacted log has gaps in the revision ids
+        SystemSetup.instance().revisionGenerator().ensureAbove(lastRevisionId());
+        addEvent(new SystemBootstrapDone(lastRevisionId()));
     }
 
     List<EventSubscription> getEventSubscribers();
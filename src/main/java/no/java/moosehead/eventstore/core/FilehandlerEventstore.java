@@ -1,31 +1,42 @@
 package no.java.moosehead.eventstore.core;
 
-import no.java.moosehead.controller.SystemSetup;
-import no.java.moosehead.eventstore.WorkshopAddedBySystem;
-import no.java.moosehead.eventstore.system.SystemBootstrapDone;
-import no.java.moosehead.eventstore.utils.ClassSerializer;
-import no.java.moosehead.eventstore.utils.FileHandler;
-import no.java.moosehead.eventstore.utils.TokenGenerator;
-
-import java.io.BufferedReader;
-import java.io.IOException;
+import no.java.moosehead.eventstore.EventStreams;
+import no.java.moosehead.eventstore.utils.EventCodec;
+import no.java.moosehead.eventstore.utils.EventLog;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.ParallelDecoder;
+import no.java.moosehead.metrics.Counter;
+import no.java.moosehead.metrics.Histogram;
+import no.java.moosehead.metrics.Metrics;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class FilehandlerEventstore implements Eventstore {
-
-    private FileHandler fileHandler;
-    private ClassSerializer classSerializer = new ClassSerializer();
-    private ArrayList<AbstractEvent> eventstorage = new ArrayList<>();
+    private static final Histogram appendTimer = Metrics.histogram("eventstore.append");
+    private static final Histogram serializeTimer = Metrics.histogram("eventstore.serialize");
+    private static final Histogram persistTimer = Metrics.histogram("eventstore.persist");
+    private static final Counter appendedEvents = Metrics.counter("eventstore.events");
+    private static final CompletableFuture<Void> NOT_WRITTEN = CompletableFuture.completedFuture(null);
+
+    private EventLog eventLog;
+    private EventCodec eventCodec;
+    private final EventStorage eventstorage = new EventStorage();
     private ArrayList<EventSubscription> eventSubscribers = new ArrayList<>();
+    private final InFlightEvents inFlight = new InFlightEvents("eventstore", this::publish);
+    private final SubscriberTimers subscriberTimers = new SubscriberTimers();
 
     /**
      * Will persist all events. Boostraps the eventstore with events from the file.
      * Events will be passed to listeners when they subscribe to the EventStore.
-     * @param fileHandler
+     * @param eventLog a FileHandler or a SegmentedEventLog
      */
-    public FilehandlerEventstore(FileHandler fileHandler) {
-        this.fileHandler = fileHandler;
+    public FilehandlerEventstore(EventLog eventLog) {
+        this.eventLog = eventLog;
         initEventStoreWithFileHandler();
     }
 
@@ -36,60 +47,117 @@ public class FilehandlerEventstore implements Eventstore {
 
 
 
+    /**
+     * With group commit the event is handed to the subscribers once it is written, from the thread that
+     * publishes written events. Otherwise it is written and handed to them before this returns.
+     */
     public void addEvent(AbstractEvent event) {
         //System.out.println("Added event " + event.getClass() + "->" + event.getRevisionId());
-        if ((!(event instanceof TransientEvent)) && fileHandler != null) {
-            fileHandler.writeToFile(classSerializer.asString(event) + "\n");
+        long start = System.nanoTime();
+        CompletableFuture<Void> written = NOT_WRITTEN;
+        if ((!(event instanceof TransientEvent)) && eventLog != null) {
+            byte[] record = eventCodec.encode(event);
+            long persistStart = System.nanoTime();
+            serializeTimer.record(persistStart - start);
+            written = eventLog.appendRecord(event.getRevisionId(), record);
+            written.thenRun(() -> persistTimer.recordSince(persistStart));
         }
+        inFlight.add(event, written);
+        appendTimer.recordSince(start);
+    }
 
+    /**
+     * Checks the version against the events in flight as well, as they are not in the stream version until they are written
+     */
+    @Override
+    public void addEvent(AbstractEvent event, long expectedStreamVersion) {
+        Optional<String> streamId = EventStreams.streamId(event);
+        if (streamId.isPresent()) {
+            long version = inFlight.streamVersion(streamId.get()).orElseGet(() -> streamVersion(streamId.get()));
+            if (version != expectedStreamVersion) {
+                throw new StreamVersionConflictException("Stream " + streamId.get() + " is at version " + version +
+                        ", expected " + expectedStreamVersion);
+            }
+        }
+        addEvent(event);
+    }
+
+    private void publish(AbstractEvent event) {
         eventstorage.add(event);
         for (EventSubscription eventSubscribers : this.eventSubscribers) {
-            eventSubscribers.eventAdded(event);
+            subscriberTimers.eventAdded(eventSubscribers, event);
+        }
+        if (!(event instanceof TransientEvent)) {
+            appendedEvents.increment();
         }
     }
 
+    @Override
+    public void awaitPersisted(AbstractEvent event) {
+        inFlight.awaitPublished(event);
+    }
+
+    @Override
+    public void awaitStream(String streamId) {
+        inFlight.awaitStream(streamId);
+    }
+
+    @Override
+    public void setApplyLock(Object applyLock) {
+        inFlight.setApplyLock(applyLock);
+    }
+
     @Override
     public List<EventSubscription> getEventSubscribers() {
         return new ArrayList<>(eventSubscribers);
     }
 
+    @Override
     public int numberOfEvents() {
         return eventstorage.size();
     }
 
+    @Override
+    public Stream<AbstractEvent> eventsFrom(int fromIndex) {
+        return eventstorage.stream(fromIndex);
+    }
+
+    @Override
+    public long numberOfWorkshops() {
+        return eventstorage.numberOfWorkshops();
+    }
+
     public int numberOfListeners() {
         return eventSubscribers.size();
     }
 
     public void addEventSubscriber(EventSubscription eventSubscriber) {
         eventSubscribers.add(eventSubscriber);
+        subscriberTimers.add(eventSubscriber);
     }
 
     /**
-     * Reads the file and creates Events
+     * Reads the file and creates Events. The file decides if events are read and written as text or binary.
+     * Records are decoded on several threads while the file is read.
      */
     private void initEventStoreWithFileHandler() {
-        try {
-            String line;
-
-            fileHandler.openFileForInput();
-            BufferedReader buffStream = new BufferedReader(fileHandler.getInputStreamReader());
-            while((line = buffStream.readLine()) != null) {
-                AbstractEvent ev = classSerializer.asObject(line);
-                eventstorage.add(ev);
-            }
-            buffStream.close();
-            fileHandler.closeInputFile();
-
-            fileHandler.openFileForOutput();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        EventLogFormat format = eventLog.detectFormat();
+        eventCodec = format.createCodec();
+        try (ParallelDecoder<byte[]> decoder = new ParallelDecoder<>(() -> format.createCodec()::decode, eventstorage::add)) {
+            eventLog.readRecords(decoder::add);
+            decoder.finish();
         }
+        eventLog.openFileForOutput();
     }
 
 
 
+    @Override
+    public long streamVersion(String streamId) {
+        return eventstorage.streamVersion(streamId);
+    }
+
     public List<AbstractEvent> getEventstorageCopy() {
-        return new ArrayList<>(eventstorage);
+        return eventstorage.stream(0).collect(Collectors.toList());
     }
 }
@@ -0,0 +1,183 @@
+package no.java.moosehead.eventstore.core;
+
+import no.java.moosehead.eventstore.EventStreams;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Events that are handed to a background writer, kept until they are written. An event is published, which means
+ * stored in memory and handed to the subscribers, only once it is durable, in the order the events were added,
+ * and holding the apply lock so commands never read the subscribers halfway through an event.
+ *
+ * An event that fails to be written is dropped and never published. Only the callers waiting for that event
+ * get the failure, and later events are published as usual.
+ */
+class InFlightEvents {
+    private static class Entry {
+        private final AbstractEvent event;
+        private final Optional<String> streamId;
+        private final CompletableFuture<Void> written;
+        private final CompletableFuture<Void> published = new CompletableFuture<>();
+
+        private Entry(AbstractEvent event, CompletableFuture<Void> written) {
+            this.event = event;
+            this.streamId = EventStreams.streamId(event);
+            this.written = written;
+        }
+    }
+
+    private final String name;
+    private final Consumer<AbstractEvent> publisher;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private final Map<AbstractEvent, Entry> byEvent = new HashMap<>();
+    private final Map<String, Entry> lastByStream = new HashMap<>();
+    // Kept while the caller still holds the event, so awaitPublished can tell it failed
+    private final Map<AbstractEvent, Throwable> failures = new WeakHashMap<>();
+    private volatile Object applyLock = this;
+    private ExecutorService publishThread;
+
+    /**
+     * @param publisher stores the event and hands it to the subscribers
+     */
+    InFlightEvents(String name, Consumer<AbstractEvent> publisher) {
+        this.name = name;
+        this.publisher = publisher;
+    }
+
+    void setApplyLock(Object applyLock) {
+        this.applyLock = applyLock;
+    }
+
+    /**
+     * Publishes the event on this thread if it is written and nothing is in flight before it. Otherwise it is published
+     * from a thread of its own once it and the events before it are written.
+     * @param written done already for events that are written synchronously and for events that are not written at all
+     */
+    void add(AbstractEvent event, CompletableFuture<Void> written) {
+        synchronized (applyLock) {
+            synchronized (entries) {
+                if (entries.isEmpty() && written.isDone()) {
+                    written.join();
+                    publisher.accept(event);
+                    return;
+                }
+                Entry entry = new Entry(event, written);
+                entries.addLast(entry);
+                byEvent.put(event, entry);
+                entry.streamId.ifPresent(streamId -> lastByStream.put(streamId, entry));
+                if (publishThread == null) {
+                    publishThread = Executors.newSingleThreadExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, name + "-publish");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        written.whenComplete((result, error) -> publishThread.execute(this::publishWritten));
+    }
+
+    private void publishWritten() {
+        synchronized (applyLock) {
+            synchronized (entries) {
+                Entry entry;
+                while ((entry = entries.peekFirst()) != null && entry.written.isDone()) {
+                    entries.removeFirst();
+                    byEvent.remove(entry.event);
+                    if (entry.streamId.isPresent()) {
+                        lastByStream.remove(entry.streamId.get(), entry);
+                    }
+                    try {
+                        entry.written.join();
+                    } catch (CompletionException e) {
+                        failures.put(entry.event, e.getCause());
+                        entry.published.completeExceptionally(e.getCause());
+                        continue;
+                    }
+                    try {
+                        publisher.accept(entry.event);
+                    } catch (RuntimeException e) {
+                        // The event is written, so it stays. The subscribers that failed miss it until the next restart
+                        System.out.println("Error: Could not hand revision " + entry.event.getRevisionId() + " to all subscribers");
+                        e.printStackTrace();
+                    }
+                    entry.published.complete(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks until the event is written and published. Must not be called holding the apply lock.
+     * @throws RuntimeException if the event could not be written
+     */
+    void awaitPublished(AbstractEvent event) {
+        Entry entry;
+        Throwable failure;
+        synchronized (entries) {
+            entry = byEvent.get(event);
+            failure = failures.get(event);
+        }
+        if (failure != null) {
+            throw new RuntimeException("Writing to eventstore failed", failure);
+        }
+        if (entry != null) {
+            try {
+                entry.published.join();
+            } catch (CompletionException e) {
+                throw new RuntimeException("Writing to eventstore failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Blocks until no event in the stream is in flight, whether they are written or not.
+     * Must not be called holding the apply lock.
+     */
+    void awaitStream(String streamId) {
+        while (true) {
+            Entry entry;
+            synchronized (entries) {
+                entry = lastByStream.get(streamId);
+            }
+            if (entry == null) {
+                return;
+            }
+            try {
+                entry.published.join();
+            } catch (CompletionException e) {
+                // The caller decides on what was written
+            }
+        }
+    }
+
+    /**
+     * The revision id of the last event in flight in the stream
+     */
+    Optional<Long> streamVersion(String streamId) {
+        synchronized (entries) {
+            return Optional.ofNullable(lastByStream.get(streamId)).map(entry -> entry.event.getRevisionId());
+        }
+    }
+
+    boolean contains(long revisionId) {
+        synchronized (entries) {
+            for (Entry entry : entries) {
+                if (entry.event.getRevisionId() == revisionId && !(entry.event instanceof TransientEvent)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package no.java.moosehead.eventstore.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Plays the events back to the subscribers on a fork join pool. Every subscriber is played back at the same time
+ * as the others, so subscribers must not read state the others build while they are played back.
+ * A PartitionedSubscription is split up further: the events between two events it must handle alone are grouped
+ * by partition, and the partitions are handled in parallel. Every subscriber ends up in the same state as when
+ * the events are handed to it one by one.
+ */
+public class ParallelReplay {
+    // Events grouped before the partitions are handed out, when no event that must be handled alone comes first
+    private static final int MAX_SEGMENT_SIZE = 16384;
+
+    private final int parallelism;
+
+    public ParallelReplay(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param fromIndex events before this index are not played back, because the subscribers already have them from a snapshot
+     */
+    public void replay(Eventstore eventstore, int fromIndex) {
+        List<EventSubscription> subscribers = eventstore.getEventSubscribers();
+        List<ForkJoinTask<?>> replays = new ArrayList<>();
+        for (EventSubscription subscriber : subscribers) {
+            // Asynchronous subscribers have nothing queued yet, so they can be played back directly
+            EventSubscription target = subscriber instanceof AsyncSubscription ? ((AsyncSubscription) subscriber).getSubscriber() : subscriber;
+            replays.add(ForkJoinTask.adapt(() -> replay(target, eventstore.eventsFrom(fromIndex).iterator())));
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(replays)));
+        } finally {
+            pool.shutdown();
+        }
+        long lastRevisionId = eventstore.lastRevisionId();
+        for (EventSubscription subscriber : subscribers) {
+            if (subscriber instanceof AsyncSubscription) {
+                ((AsyncSubscription) subscriber).playedBackTo(lastRevisionId);
+            }
+        }
+    }
+
+    private static void replay(EventSubscription subscriber, Iterator<AbstractEvent> events) {
+        subscriber.batchStarted();
+        try {
+            replayBatch(subscriber, events);
+        } finally {
+            subscriber.batchEnded();
+        }
+    }
+
+    private static void replayBatch(EventSubscription subscriber, Iterator<AbstractEvent> events) {
+        if (!(subscriber instanceof PartitionedSubscription)) {
+            events.forEachRemaining(subscriber::eventAdded);
+            return;
+        }
+        PartitionedSubscription partitioned = (PartitionedSubscription) subscriber;
+        Map<String, List<AbstractEvent>> segment = new LinkedHashMap<>();
+        int segmentSize = 0;
+        while (events.hasNext()) {
+            AbstractEvent event = events.next();
+            Optional<String> partition = partitioned.replayPartition(event);
+            if (partition.isPresent()) {
+                segment.computeIfAbsent(partition.get(), key -> new ArrayList<>()).add(event);
+                segmentSize++;
+            }
+            if (!partition.isPresent() || segmentSize == MAX_SEGMENT_SIZE) {
+                handleSegment(partitioned, segment);
+                segment = new LinkedHashMap<>();
+                segmentSize = 0;
+            }
+            if (!partition.isPresent()) {
+                partitioned.eventAdded(event);
+            }
+        }
+        handleSegment(partitioned, segment);
+    }
+
+    private static void handleSegment(EventSubscription subscriber, Map<String, List<AbstractEvent>> segment) {
+        if (segment.size() == 1) {
+            segment.values().iterator().next().forEach(subscriber::eventAdded);
+            return;
+        }
+        List<ForkJoinTask<?>> partitions = new ArrayList<>(segment.size());
+        for (List<AbstractEvent> events : segment.values()) {
+            partitions.add(ForkJoinTask.adapt(() -> events.forEach(subscriber::eventAdded)));
+        }
+        ForkJoinTask.invokeAll(partitions);
+    }
+}
@@ -0,0 +1,17 @@
+package no.java.moosehead.eventstore.core;
+
+import java.util.Optional;
+
+/**
+ * A subscriber that can be played back on several threads, see ParallelReplay. Events in the same partition are
+ * handed to it in order, one at a time. Events in different partitions may be handled at the same time, so what
+ * they change outside their partition must be thread safe and must not depend on the order.
+ */
+public interface PartitionedSubscription extends EventSubscription {
+
+    /**
+     * @return the partition of the event, or empty if the event must be handled alone, after every event before it
+     * and before any event after it. Events the subscriber ignores can go in any partition.
+     */
+    Optional<String> replayPartition(AbstractEvent event);
+}
@@ -0,0 +1,16 @@
+package no.java.moosehead.eventstore.core;
+
+import no.java.moosehead.MoosheadException;
+
+/**
+ * Another event was added to the stream after the command read its version
+ */
+public class StreamVersionConflictException extends MoosheadException {
+    public StreamVersionConflictException(String message) {
+        super(message);
+    }
+
+    public StreamVersionConflictException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,31 @@
+package no.java.moosehead.eventstore.core;
+
+import no.java.moosehead.metrics.Histogram;
+import no.java.moosehead.metrics.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands added events to subscribers and times each of them as subscriber.[class].eventAdded. For an asynchronous
+ * subscriber this is the time to queue the event, subscriber.[class].queue, as it times itself on its own thread.
+ */
+class SubscriberTimers {
+    private final Map<EventSubscription, Histogram> timers = new ConcurrentHashMap<>();
+
+    void add(EventSubscription subscriber) {
+        String name = subscriber instanceof AsyncSubscription
+                ? "subscriber." + ((AsyncSubscription) subscriber).getSubscriber().getClass().getSimpleName() + ".queue"
+                : "subscriber." + subscriber.getClass().getSimpleName() + ".eventAdded";
+        timers.put(subscriber, Metrics.histogram(name));
+    }
+
+    void eventAdded(EventSubscription subscriber, AbstractEvent event) {
+        long start = System.nanoTime();
+        subscriber.eventAdded(event);
+        Histogram timer = timers.get(subscriber);
+        if (timer != null) {
+            timer.recordSince(start);
+        }
+    }
+}
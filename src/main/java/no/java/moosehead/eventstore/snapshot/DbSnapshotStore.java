@@ -0,0 +1,56 @@
+package no.java.moosehead.eventstore.snapshot;
+
+import no.java.moosehead.database.Postgres;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Optional;
+
+public class DbSnapshotStore implements SnapshotStore {
+
+    /**
+     * Keeps the new snapshot and the one before it
+     */
+    @Override
+    public void save(Snapshot snapshot) {
+        try (Connection connection = Postgres.openConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement("delete from snapshot where event_count = ?")) {
+                ps.setInt(1, snapshot.getEventCount());
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = connection.prepareStatement("insert into snapshot(event_count,revision_id,payload) values (?,?,?)")) {
+                ps.setInt(1, snapshot.getEventCount());
+                ps.setLong(2, snapshot.getLastRevisionId());
+                ps.setBytes(3, snapshot.toBytes());
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = connection.prepareStatement(
+                    "delete from snapshot where event_count < (select max(event_count) from snapshot where event_count < ?)")) {
+                ps.setInt(1, snapshot.getEventCount());
+                ps.executeUpdate();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Optional<Snapshot> loadLatest() {
+        try (
+                Connection connection = Postgres.openConnection();
+                PreparedStatement ps = connection.prepareStatement("select payload from snapshot order by event_count desc limit 1");
+                ResultSet resultSet = ps.executeQuery()
+        ) {
+            if (!resultSet.next()) {
+                return Optional.empty();
+            }
+            return Optional.of(Snapshot.fromBytes(resultSet.getBytes(1)));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package no.java.moosehead.eventstore.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+public class FileSnapshotStore implements SnapshotStore {
+    private final File file;
+
+    public FileSnapshotStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Writes to a temporary file that replaces the old snapshot, so a crash never leaves half a snapshot
+     */
+    @Override
+    public void save(Snapshot snapshot) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), snapshot.toBytes());
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Optional<Snapshot> loadLatest() {
+        if (!file.exists()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(Snapshot.fromBytes(Files.readAllBytes(file.toPath())));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
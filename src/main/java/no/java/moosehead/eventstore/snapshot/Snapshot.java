@@ -0,0 +1,94 @@
+package no.java.moosehead.eventstore.snapshot;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The state of all snapshottable subscribers after the first eventCount events in the eventstore.
+ */
+public class Snapshot {
+    private static final int FORMAT_VERSION = 1;
+
+    public static class SubscriberState {
+        private final int version;
+        private final byte[] data;
+
+        public SubscriberState(int version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    private final int eventCount;
+    private final long lastRevisionId;
+    private final Map<String, SubscriberState> subscriberStates;
+
+    public Snapshot(int eventCount, long lastRevisionId, Map<String, SubscriberState> subscriberStates) {
+        this.eventCount = eventCount;
+        this.lastRevisionId = lastRevisionId;
+        this.subscriberStates = subscriberStates;
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    public long getLastRevisionId() {
+        return lastRevisionId;
+    }
+
+    public Map<String, SubscriberState> getSubscriberStates() {
+        return subscriberStates;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(eventCount);
+            out.writeLong(lastRevisionId);
+            out.writeInt(subscriberStates.size());
+            for (Map.Entry<String, SubscriberState> entry : subscriberStates.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().version);
+                out.writeInt(entry.getValue().data.length);
+                out.write(entry.getValue().data);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Snapshot fromBytes(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int formatVersion = in.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new RuntimeException("Unknown snapshot format " + formatVersion);
+            }
+            int eventCount = in.readInt();
+            long lastRevisionId = in.readLong();
+            int subscribers = in.readInt();
+            Map<String, SubscriberState> states = new LinkedHashMap<>();
+            for (int i = 0; i < subscribers; i++) {
+                String name = in.readUTF();
+                int version = in.readInt();
+                byte[] state = new byte[in.readInt()];
+                in.readFully(state);
+                states.put(name, new SubscriberState(version, state));
+            }
+            return new Snapshot(eventCount, lastRevisionId, states);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package no.java.moosehead.eventstore.snapshot;
+
+import no.java.moosehead.eventstore.utils.BinaryEventCodec;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Collection;
+
+public class SnapshotInput extends DataInputStream {
+    private final BinaryEventCodec codec;
+
+    public SnapshotInput(InputStream in, BinaryEventCodec codec) {
+        super(in);
+        this.codec = codec;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T readValue() throws IOException {
+        return (T) codec.readValue(this);
+    }
+
+    public void readStrings(Collection<String> into) throws IOException {
+        int size = readInt();
+        for (int i = 0; i < size; i++) {
+            into.add(readUTF());
+        }
+    }
+
+    public OffsetDateTime readOffsetDateTime() throws IOException {
+        if (!readBoolean()) {
+            return null;
+        }
+        Instant instant = Instant.ofEpochSecond(readLong(), readInt());
+        return OffsetDateTime.ofInstant(instant, ZoneOffset.ofTotalSeconds(readInt()));
+    }
+}
@@ -0,0 +1,47 @@
+package no.java.moosehead.eventstore.snapshot;
+
+import no.java.moosehead.eventstore.utils.BinaryEventCodec;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class SnapshotOutput extends DataOutputStream {
+    private final BinaryEventCodec codec;
+
+    public SnapshotOutput(OutputStream out, BinaryEventCodec codec) {
+        super(out);
+        this.codec = codec;
+    }
+
+    /**
+     * Writes events, WorkshopReservation, WorkshopData and anything else BinaryEventCodec can store
+     */
+    public void writeValue(Object value) throws IOException {
+        codec.writeValue(this, value);
+    }
+
+    /**
+     * Writes the strings sorted, so equal sets give equal snapshots
+     */
+    public void writeStrings(Collection<String> values) throws IOException {
+        List<String> sorted = values.stream().sorted().collect(Collectors.toList());
+        writeInt(sorted.size());
+        for (String value : sorted) {
+            writeUTF(value);
+        }
+    }
+
+    public void writeOffsetDateTime(OffsetDateTime value) throws IOException {
+        writeBoolean(value != null);
+        if (value != null) {
+            writeLong(value.toEpochSecond());
+            writeInt(value.getNano());
+            writeInt(value.getOffset().getTotalSeconds());
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package no.java.moosehead.eventstore.snapshot;
+
+import no.java.moosehead.web.Configuration;
+
+import java.io.File;
+import java.util.Optional;
+
+public interface SnapshotStore {
+
+    void save(Snapshot snapshot);
+
+    Optional<Snapshot> loadLatest();
+
+    /**
+     * Snapshots are kept where the events are: in Postgres when a database is configured,
+     * otherwise in a file next to the event log.
+     */
+    static Optional<SnapshotStore> create() {
+        if (Configuration.snapshotInterval() <= 0) {
+            return Optional.empty();
+        }
+        if (Configuration.dbName() != null) {
+            return Optional.of(new DbSnapshotStore());
+        }
+        if (Configuration.eventstoreFilename() != null) {
+            return Optional.of(new FileSnapshotStore(new File(Configuration.eventstoreFilename() + ".snapshot")));
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,23 @@
+package no.java.moosehead.eventstore.snapshot;
+
+import java.io.IOException;
+
+/**
+ * An event subscriber that can write its state to a snapshot and read it back,
+ * so it does not need every event replayed at startup.
+ */
+public interface Snapshottable {
+
+    /**
+     * Must be changed whenever what writeSnapshot writes changes. A snapshot written with another
+     * version is ignored and all events are replayed.
+     */
+    int snapshotVersion();
+
+    void writeSnapshot(SnapshotOutput out) throws IOException;
+
+    /**
+     * Replaces the state of the subscriber with the state in the snapshot
+     */
+    void readSnapshot(SnapshotInput in) throws IOException;
+}
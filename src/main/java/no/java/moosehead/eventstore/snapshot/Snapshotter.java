@@ -0,0 +1,150 @@
+package no.java.moosehead.eventstore.snapshot;
+
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.EventSubscription;
+import no.java.moosehead.eventstore.core.Eventstore;
+import no.java.moosehead.eventstore.core.TransientEvent;
+import no.java.moosehead.eventstore.system.SystemBootstrapDone;
+import no.java.moosehead.eventstore.utils.BinaryEventCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/**
+ * Restores the snapshottable subscribers from the latest snapshot at startup, and writes a new snapshot
+ * every snapshotInterval events. Must be subscribed after the subscribers it snapshots, so that it
+ * sees each event after they have handled it.
+ */
+public class Snapshotter implements EventSubscription {
+    private final SnapshotStore snapshotStore;
+    private final int snapshotInterval;
+    private final Map<String, Snapshottable> subscribers = new LinkedHashMap<>();
+    private final BinaryEventCodec codec = new BinaryEventCodec();
+    private int eventCount;
+    private long lastRevisionId;
+    private int lastSnapshotEventCount;
+    private boolean bootstrapDone = false;
+    private final LongConsumer awaitSubscribers;
+
+    public Snapshotter(SnapshotStore snapshotStore, int snapshotInterval) {
+        this(snapshotStore, snapshotInterval, revisionId -> {});
+    }
+
+    /**
+     * @param awaitSubscribers called with the last revision id before a snapshot is taken, to let asynchronous subscribers
+     *                         catch up. No new events are added while it waits, as the snapshot is taken on the writer thread
+     */
+    public Snapshotter(SnapshotStore snapshotStore, int snapshotInterval, LongConsumer awaitSubscribers) {
+        this.snapshotStore = snapshotStore;
+        this.snapshotInterval = snapshotInterval;
+        this.awaitSubscribers = awaitSubscribers;
+    }
+
+    public void register(Snapshottable subscriber) {
+        register(subscriber.getClass().getSimpleName(), subscriber);
+    }
+
+    public void register(String name, Snapshottable subscriber) {
+        subscribers.put(name, subscriber);
+    }
+
+    /**
+     * Loads the latest snapshot into the subscribers if it matches the stored events and the current
+     * version of every subscriber.
+     * @return the number of events covered by the snapshot. Playback should start at this index
+     */
+    public int restore(Eventstore eventstore) {
+        Optional<Snapshot> latest;
+        try {
+            latest = snapshotStore.loadLatest();
+        } catch (RuntimeException e) {
+            System.out.println("Warning: Could not read snapshot, replaying all events. " + e.getMessage());
+            return 0;
+        }
+        if (!latest.isPresent() || !isUsable(latest.get(), eventstore)) {
+            return 0;
+        }
+        Snapshot snapshot = latest.get();
+        try {
+            for (Map.Entry<String, Snapshottable> entry : subscribers.entrySet()) {
+                byte[] data = snapshot.getSubscriberStates().get(entry.getKey()).getData();
+                try (SnapshotInput in = new SnapshotInput(new ByteArrayInputStream(data), codec)) {
+                    entry.getValue().readSnapshot(in);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("Snapshot matched the eventstore but could not be read. Delete it to replay all events", e);
+        }
+        eventCount = snapshot.getEventCount();
+        lastRevisionId = snapshot.getLastRevisionId();
+        lastSnapshotEventCount = eventCount;
+        System.out.println("Restored snapshot of " + eventCount + " events");
+        return eventCount;
+    }
+
+    private boolean isUsable(Snapshot snapshot, Eventstore eventstore) {
+        int count = snapshot.getEventCount();
+        boolean matchesEvents = count == 0 || eventstore.revisionIdOfEvent(count - 1)
+                .filter(revisionId -> revisionId == snapshot.getLastRevisionId())
+                .isPresent();
+        if (!matchesEvents) {
+            System.out.println("Warning: Snapshot does not match the eventstore. Replaying all events");
+            return false;
+        }
+        for (Map.Entry<String, Snapshottable> entry : subscribers.entrySet()) {
+            Snapshot.SubscriberState state = snapshot.getSubscriberStates().get(entry.getKey());
+            if (state == null || state.getVersion() != entry.getValue().snapshotVersion()) {
+                System.out.println("Snapshot version of " + entry.getKey() + " has changed. Replaying all events");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void eventAdded(AbstractEvent event) {
+        if (event instanceof SystemBootstrapDone) {
+            bootstrapDone = true;
+        }
+        if (!(event instanceof TransientEvent)) {
+            eventCount++;
+            lastRevisionId = event.getRevisionId();
+        }
+        if (bootstrapDone && eventCount - lastSnapshotEventCount >= snapshotInterval) {
+            takeSnapshot();
+        }
+    }
+
+    public Snapshot createSnapshot() {
+        Map<String, Snapshot.SubscriberState> states = new LinkedHashMap<>();
+        for (Map.Entry<String, Snapshottable> entry : subscribers.entrySet()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (SnapshotOutput out = new SnapshotOutput(bytes, codec)) {
+                entry.getValue().writeSnapshot(out);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            states.put(entry.getKey(), new Snapshot.SubscriberState(entry.getValue().snapshotVersion(), bytes.toByteArray()));
+        }
+        return new Snapshot(eventCount, lastRevisionId, states);
+    }
+
+    /**
+     * A failed snapshot is only logged. The events are safe in the eventstore, and the next snapshot will be tried later.
+     */
+    public void takeSnapshot() {
+        long start = System.currentTimeMillis();
+        lastSnapshotEventCount = eventCount;
+        try {
+            awaitSubscribers.accept(lastRevisionId);
+            snapshotStore.save(createSnapshot());
+        } catch (RuntimeException e) {
+            System.out.println("Warning: Could not write snapshot. " + e.getMessage());
+            return;
+        }
+        System.out.println("Wrote snapshot of " + eventCount + " events in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,418 @@
+package no.java.moosehead.eventstore.utils;
+
+import no.java.moosehead.commands.WorkshopTypeEnum;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.*;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.repository.WorkshopData;
+import org.jsonbuddy.JsonNode;
+import org.jsonbuddy.parse.JsonParser;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact binary event format. Every class that is stored often has a fixed schema id, so the record
+ * only holds the id, a hash of the field layout and the field values sorted by field name.
+ * Records written with the fields in declaration order are still read as long as that order has not changed.
+ * Classes without a schema id are written with their class name.
+ *
+ * Schema ids must never be changed or reused, only added.
+ * If the fields of a class change, old records can no longer be read and the log must be converted with
+ * EventLogConverter before the change is deployed.
+ */
+public class BinaryEventCodec implements EventCodec {
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte CHAR = 6;
+    private static final byte INSTANT = 7;
+    private static final byte DATE = 8;
+    private static final byte ENUM = 9;
+    private static final byte OPTIONAL_EMPTY = 10;
+    private static final byte OPTIONAL = 11;
+    private static final byte LIST = 12;
+    private static final byte MAP = 13;
+    private static final byte JSON = 14;
+    private static final byte OBJECT = 15;
+    private static final byte OBJECT_BY_NAME = 16;
+    private static final byte BIGDECIMAL = 17;
+    private static final byte ARRAY = 18;
+    private static final byte SET = 19;
+
+    private static final Map<Class<?>, Short> schemaIds = new HashMap<>();
+    private static final Map<Short, Class<?>> classesBySchemaId = new HashMap<>();
+
+    static {
+        register(1, WorkshopAddedBySystem.class);
+        register(2, WorkshopAddedByAdmin.class);
+        register(3, KidsaKoderWorkshopAddedByAdmin.class);
+        register(4, BeerWorkshopAddedByAdmin.class);
+        register(5, ReservationAddedByUser.class);
+        register(6, ReservationAddedByAdmin.class);
+        register(7, ReservationCancelledByUser.class);
+        register(8, ReservationCancelledByAdmin.class);
+        register(9, ReservationPartallyCancelled.class);
+        register(10, EmailConfirmedByUser.class);
+        register(11, ShowUpRegisteredByAdmin.class);
+        register(12, WorkshopSizeChangedByAdmin.class);
+        register(13, EmailConfimationSentByEmailSaga.class);
+        register(100, WorkshopReservation.class);
+        register(101, WorkshopData.class);
+        register(102, WorkshopTypeEnum.class);
+    }
+
+    private static void register(int schemaId, Class<?> clazz) {
+        schemaIds.put(clazz, (short) schemaId);
+        classesBySchemaId.put((short) schemaId, clazz);
+    }
+
+    private static class Schema {
+        private final Class<?> clazz;
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final int layoutHash;
+        // Records written before the fields were sorted hold them in declaration order
+        private final Field[] declarationOrderFields;
+        private final int declarationOrderLayoutHash;
+
+        private Schema(Class<?> clazz) {
+            this.clazz = clazz;
+            List<Field> persistentFields = new ArrayList<>();
+            for (Field field : ClassSerializer.getAllFields(new LinkedList<>(), clazz)) {
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                persistentFields.add(field);
+            }
+            this.declarationOrderFields = persistentFields.toArray(new Field[persistentFields.size()]);
+            this.declarationOrderLayoutHash = layoutHash(persistentFields);
+            // getDeclaredFields does not promise any order, so the layout must not depend on it
+            persistentFields.sort(Comparator.comparing(Field::getName).thenComparing(field -> field.getDeclaringClass().getName()));
+            this.fields = persistentFields.toArray(new Field[persistentFields.size()]);
+            this.layoutHash = layoutHash(persistentFields);
+            Constructor<?> noArgs = null;
+            if (!clazz.isEnum()) {
+                try {
+                    noArgs = clazz.getDeclaredConstructor();
+                    noArgs.setAccessible(true);
+                } catch (NoSuchMethodException e) {
+                    throw new RuntimeException("Class " + clazz.getName() + " needs a no-args constructor to be stored", e);
+                }
+            }
+            this.constructor = noArgs;
+        }
+
+        private static int layoutHash(List<Field> fields) {
+            StringBuilder layout = new StringBuilder();
+            for (Field field : fields) {
+                layout.append(field.getName()).append(':').append(field.getType().getName()).append(';');
+            }
+            return layout.toString().hashCode();
+        }
+
+        private Field[] fieldsFor(int layoutHash) {
+            if (layoutHash == this.layoutHash) {
+                return fields;
+            }
+            if (layoutHash == declarationOrderLayoutHash) {
+                return declarationOrderFields;
+            }
+            throw new RuntimeException("The fields of " + clazz.getName() + " have changed since the event was written. Convert the event log before changing stored classes");
+        }
+    }
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(AbstractEvent event) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(FORMAT_VERSION);
+            writeValue(out, event);
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public AbstractEvent decode(byte[] data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            byte version = in.readByte();
+            if (version != FORMAT_VERSION) {
+                throw new RuntimeException("Unknown binary event format version " + version);
+            }
+            return (AbstractEvent) readValue(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Schema schema(Class<?> clazz) {
+        return schemas.computeIfAbsent(clazz, Schema::new);
+    }
+
+    /**
+     * Writes any value the codec can store, not only events. Used for snapshots
+     */
+    public void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (value instanceof Instant) {
+            Instant instant = (Instant) value;
+            out.writeByte(INSTANT);
+            out.writeLong(instant.getEpochSecond());
+            out.writeInt(instant.getNano());
+        } else if (value instanceof Date) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Enum) {
+            Enum<?> enumValue = (Enum<?>) value;
+            out.writeByte(ENUM);
+            writeClassRef(out, enumValue.getDeclaringClass());
+            writeString(out, enumValue.name());
+        } else if (value instanceof Optional) {
+            Optional<?> optional = (Optional<?>) value;
+            if (optional.isPresent()) {
+                out.writeByte(OPTIONAL);
+                writeValue(out, optional.get());
+            } else {
+                out.writeByte(OPTIONAL_EMPTY);
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Set) {
+            Set<?> set = (Set<?>) value;
+            out.writeByte(SET);
+            out.writeInt(set.size());
+            for (Object element : set) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof JsonNode) {
+            out.writeByte(JSON);
+            writeString(out, ((JsonNode) value).toJson());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(BIGDECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            out.writeByte(ARRAY);
+            writeString(out, array.getClass().getComponentType().getName());
+            out.writeInt(array.length);
+            for (Object element : array) {
+                writeValue(out, element);
+            }
+        } else {
+            writeObject(out, value);
+        }
+    }
+
+    private void writeObject(DataOutputStream out, Object value) throws IOException {
+        Schema schema = schema(value.getClass());
+        Short schemaId = schemaIds.get(value.getClass());
+        if (schemaId != null) {
+            out.writeByte(OBJECT);
+            out.writeShort(schemaId);
+        } else {
+            out.writeByte(OBJECT_BY_NAME);
+            writeString(out, value.getClass().getName());
+        }
+        out.writeInt(schema.layoutHash);
+        try {
+            for (Field field : schema.fields) {
+                writeValue(out, field.get(value));
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void writeClassRef(DataOutputStream out, Class<?> clazz) throws IOException {
+        Short schemaId = schemaIds.get(clazz);
+        if (schemaId != null) {
+            out.writeShort(schemaId);
+        } else {
+            out.writeShort(-1);
+            writeString(out, clazz.getName());
+        }
+    }
+
+    private Class<?> readClassRef(DataInputStream in) throws IOException {
+        short schemaId = in.readShort();
+        if (schemaId >= 0) {
+            return classBySchemaId(schemaId);
+        }
+        return classByName(readString(in));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case BOOLEAN:
+                return in.readBoolean();
+            case DOUBLE:
+                return in.readDouble();
+            case CHAR:
+                return in.readChar();
+            case INSTANT:
+                return Instant.ofEpochSecond(in.readLong(), in.readInt());
+            case DATE:
+                return new Date(in.readLong());
+            case ENUM:
+                Class<?> enumClass = readClassRef(in);
+                return Enum.valueOf((Class<Enum>) enumClass, readString(in));
+            case OPTIONAL_EMPTY:
+                return Optional.empty();
+            case OPTIONAL:
+                return Optional.ofNullable(readValue(in));
+            case LIST: {
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            case SET: {
+                int size = in.readInt();
+                Set<Object> set = new HashSet<>();
+                for (int i = 0; i < size; i++) {
+                    set.add(readValue(in));
+                }
+                return set;
+            }
+            case MAP: {
+                int size = in.readInt();
+                Map<Object, Object> map = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue(in);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            }
+            case JSON:
+                return JsonParser.parse(readString(in));
+            case BIGDECIMAL:
+                return new BigDecimal(readString(in));
+            case ARRAY: {
+                Class<?> componentType = classByName(readString(in));
+                int size = in.readInt();
+                Object array = Array.newInstance(componentType, size);
+                for (int i = 0; i < size; i++) {
+                    Array.set(array, i, readValue(in));
+                }
+                return array;
+            }
+            case OBJECT:
+                return readObject(in, classBySchemaId(in.readShort()));
+            case OBJECT_BY_NAME:
+                return readObject(in, classByName(readString(in)));
+            default:
+                throw new RuntimeException("Unknown value tag " + tag + " in binary event");
+        }
+    }
+
+    private Object readObject(DataInputStream in, Class<?> clazz) throws IOException {
+        Schema schema = schema(clazz);
+        Field[] fields = schema.fieldsFor(in.readInt());
+        try {
+            Object object = schema.constructor.newInstance();
+            for (Field field : fields) {
+                Object value = readValue(in);
+                if (value == null && field.getType().isPrimitive()) {
+                    continue;
+                }
+                field.set(object, value);
+            }
+            return object;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Class<?> classBySchemaId(short schemaId) {
+        Class<?> clazz = classesBySchemaId.get(schemaId);
+        if (clazz == null) {
+            throw new RuntimeException("Unknown schema id " + schemaId + " in binary event");
+        }
+        return clazz;
+    }
+
+    private static Class<?> classByName(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
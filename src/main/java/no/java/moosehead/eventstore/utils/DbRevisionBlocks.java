@@ -0,0 +1,44 @@
+package no.java.moosehead.eventstore.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Supplier;
+
+/**
+ * Reserves blocks of revision ids from a database sequence that counts in steps of the block size.
+ * Every instance using the database gets its own blocks, so there is one round trip per block and not per event.
+ */
+public class DbRevisionBlocks implements TokenGenerator.RevisionBlockSource {
+    public static final String SEQUENCE = "event_revision";
+    /**
+     * The INCREMENT BY of the sequence. Changing it needs a migration.
+     */
+    public static final int BLOCK_SIZE = 100;
+
+    private final Supplier<Connection> connections;
+
+    public DbRevisionBlocks(Supplier<Connection> connections) {
+        this.connections = connections;
+    }
+
+    @Override
+    public long reserveBlock() {
+        try (
+                Connection connection = connections.get();
+                PreparedStatement ps = connection.prepareStatement("select nextval('" + SEQUENCE + "')");
+                ResultSet resultSet = ps.executeQuery()
+        ) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public int blockSize() {
+        return BLOCK_SIZE;
+    }
+}
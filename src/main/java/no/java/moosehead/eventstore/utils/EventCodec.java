@@ -0,0 +1,12 @@
+package no.java.moosehead.eventstore.utils;
+
+import no.java.moosehead.eventstore.core.AbstractEvent;
+
+/**
+ * Turns events into the bytes stored in the event log and back.
+ */
+public interface EventCodec {
+    byte[] encode(AbstractEvent event);
+
+    AbstractEvent decode(byte[] data);
+}
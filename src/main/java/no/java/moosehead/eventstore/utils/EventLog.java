@@ -0,0 +1,29 @@
+package no.java.moosehead.eventstore.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Where FilehandlerEventstore keeps its encoded events.
+ */
+public interface EventLog {
+
+    /**
+     * The format of the records already in the log, or the configured format if the log is empty
+     */
+    EventLogFormat detectFormat();
+
+    /**
+     * Reads all records in the order they were appended
+     */
+    void readRecords(Consumer<byte[]> recordConsumer);
+
+    /**
+     * Appends a record. The returned future completes when the record is durable.
+     */
+    CompletableFuture<Void> appendRecord(long revisionId, byte[] record);
+
+    void openFileForOutput();
+
+    void closeOutputFile();
+}
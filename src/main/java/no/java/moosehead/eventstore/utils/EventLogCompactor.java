@@ -0,0 +1,418 @@
+package no.java.moosehead.eventstore.utils;
+
+import no.java.moosehead.aggregate.WorkshopAggregate;
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.database.Postgres;
+import no.java.moosehead.eventstore.*;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.EventSubscription;
+import no.java.moosehead.eventstore.snapshot.SnapshotInput;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
+import no.java.moosehead.eventstore.snapshot.Snapshottable;
+import no.java.moosehead.projections.Workshop;
+import no.java.moosehead.projections.WorkshopListProjection;
+import no.java.moosehead.repository.WorkshopData;
+import no.java.moosehead.repository.WorkshopRepository;
+import no.java.moosehead.saga.EmailSaga;
+import no.java.moosehead.web.Configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Offline compaction of the history of closed workshops. For a closed workshop, a reservation that was later
+ * cancelled in full by the user is removed together with its partial cancellations and show ups, and only the
+ * last show up of a remaining reservation is kept. The removed events are moved to an archive, not deleted.
+ *
+ * The compacted log is replayed and must give the same WorkshopListProjection and EmailSaga state as the
+ * original log. If it does not, workshops are compacted one at a time and only those that keep the state are used.
+ * Stop the server before running it.
+ *
+ * Usage:
+ *   file &lt;fromFile&gt; &lt;toFile&gt; [closedBefore]   writes the compacted log to toFile and the removed events to toFile.archive
+ *   db &lt;confFile&gt; [closedBefore]               moves the removed events to the event_archive table
+ *
+ * A workshop is closed if it is in the closedWorkshops config or ended before closedBefore (an ISO instant, default now).
+ */
+public class EventLogCompactor {
+
+    public static class Result {
+        private final List<AbstractEvent> kept;
+        private final List<AbstractEvent> archived;
+        private final Set<String> compactedWorkshops;
+
+        private Result(List<AbstractEvent> kept, List<AbstractEvent> archived, Set<String> compactedWorkshops) {
+            this.kept = kept;
+            this.archived = archived;
+            this.compactedWorkshops = compactedWorkshops;
+        }
+
+        public List<AbstractEvent> getKept() {
+            return kept;
+        }
+
+        public List<AbstractEvent> getArchived() {
+            return archived;
+        }
+
+        public Set<String> getCompactedWorkshops() {
+            return compactedWorkshops;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: file <fromFile> <toFile> [closedBefore] | db <confFile> [closedBefore]");
+            return;
+        }
+        if ("db".equals(args[0])) {
+            System.setProperty("mooseheadConfFile", args[1]);
+            Instant closedBefore = args.length > 2 ? Instant.parse(args[2]) : Instant.now();
+            try (Connection connection = Postgres.openConnection()) {
+                compactDb(connection, closedBefore);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            compactFile(args[1], args[2], args.length > 3 ? Instant.parse(args[3]) : Instant.now());
+        }
+    }
+
+    public static Result compactFile(String fromFile, String toFile, Instant closedBefore) {
+        if (new File(toFile).length() > 0) {
+            throw new RuntimeException(toFile + " already exists");
+        }
+        FileHandler from = new FileHandler(fromFile);
+        EventLogFormat format = from.detectFormat();
+        EventCodec codec = format.createCodec();
+        List<byte[]> records = new ArrayList<>();
+        from.readRecords(records::add);
+        List<AbstractEvent> events = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            events.add(codec.decode(record));
+        }
+
+        Result result = compact(events, closedBefore);
+        write(toFile, format, result.getKept());
+        write(toFile + ".archive", format, result.getArchived());
+
+        List<byte[]> compactedRecords = new ArrayList<>();
+        new FileHandler(toFile).readRecords(compactedRecords::add);
+        report(result, replayMillis(records, codec), replayMillis(compactedRecords, codec),
+                new File(fromFile).length() + " -> " + new File(toFile).length() + " bytes");
+        return result;
+    }
+
+    private static void write(String filename, EventLogFormat format, List<AbstractEvent> events) {
+        EventCodec codec = format.createCodec();
+        FileHandler to = new FileHandler(filename, false, format);
+        to.openFileForOutput();
+        try {
+            for (AbstractEvent event : events) {
+                to.writeRecord(codec.encode(event));
+            }
+        } finally {
+            to.closeOutputFile();
+        }
+    }
+
+    /**
+     * Moves the removed events to event_archive and deletes the snapshots, in one transaction
+     */
+    public static Result compactDb(Connection connection, Instant closedBefore) throws SQLException {
+        EventCodec textCodec = new TextEventCodec();
+        EventCodec binaryCodec = new BinaryEventCodec();
+        List<AbstractEvent> events = new ArrayList<>();
+        List<byte[]> records = new ArrayList<>();
+        List<Boolean> binary = new ArrayList<>();
+        try (
+                PreparedStatement ps = connection.prepareStatement("select payload, binpayload from event order by id");
+                ResultSet rs = ps.executeQuery()
+        ) {
+            while (rs.next()) {
+                byte[] binpayload = rs.getBytes(2);
+                byte[] record = binpayload != null ? binpayload : rs.getString(1).getBytes(StandardCharsets.UTF_8);
+                records.add(record);
+                binary.add(binpayload != null);
+                events.add(binpayload != null ? binaryCodec.decode(record) : textCodec.decode(record));
+            }
+        }
+
+        Result result = compact(events, closedBefore);
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            try (
+                    PreparedStatement archive = connection.prepareStatement("insert into event_archive(id,payload,binpayload) select id,payload,binpayload from event where id = ?");
+                    PreparedStatement delete = connection.prepareStatement("delete from event where id = ?")
+            ) {
+                for (AbstractEvent event : result.getArchived()) {
+                    archive.setLong(1, event.getRevisionId());
+                    archive.addBatch();
+                    delete.setLong(1, event.getRevisionId());
+                    delete.addBatch();
+                }
+                archive.executeBatch();
+                delete.executeBatch();
+            }
+            try (Statement statement = connection.createStatement()) {
+                // Snapshots count events, so they do not match the compacted table
+                statement.executeUpdate("delete from snapshot");
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        Set<AbstractEvent> archived = Collections.newSetFromMap(new IdentityHashMap<>());
+        archived.addAll(result.getArchived());
+        List<byte[]> keptText = new ArrayList<>();
+        List<byte[]> keptBinary = new ArrayList<>();
+        List<byte[]> allText = new ArrayList<>();
+        List<byte[]> allBinary = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            (binary.get(i) ? allBinary : allText).add(records.get(i));
+            if (!archived.contains(events.get(i))) {
+                (binary.get(i) ? keptBinary : keptText).add(records.get(i));
+            }
+        }
+        report(result,
+                replayMillis(allText, textCodec) + replayMillis(allBinary, binaryCodec),
+                replayMillis(keptText, textCodec) + replayMillis(keptBinary, binaryCodec),
+                events.size() + " -> " + result.getKept().size() + " rows");
+        return result;
+    }
+
+    private static void report(Result result, long replayBefore, long replayAfter, String size) {
+        int before = result.getKept().size() + result.getArchived().size();
+        System.out.println(String.format("Compacted %d closed workshops: %d -> %d events (%s). Replay took %d ms before and %d ms after",
+                result.getCompactedWorkshops().size(), before, result.getKept().size(), size, replayBefore, replayAfter));
+    }
+
+    /**
+     * Compacts the workshops that are closed at the given time
+     */
+    public static Result compact(List<AbstractEvent> events, Instant closedBefore) {
+        Replayer replayer = new Replayer();
+        replayer.replay(events);
+        Set<String> closed = new TreeSet<>();
+        for (Workshop workshop : replayer.workshopListProjection.getWorkshops()) {
+            WorkshopData workshopData = workshop.getWorkshopData();
+            boolean ended = workshopData.hasStartAndEndTime() && workshopData.getEndTime().isBefore(closedBefore);
+            if (ended || Configuration.closedWorkshops().contains(workshopData.getId())) {
+                closed.add(workshopData.getId());
+            }
+        }
+        return compact(events, closed, replayer);
+    }
+
+    public static Result compact(List<AbstractEvent> events, Set<String> closedWorkshops) {
+        return compact(events, closedWorkshops, new Replayer());
+    }
+
+    private static Result compact(List<AbstractEvent> events, Set<String> closedWorkshops, Replayer replayer) {
+        List<byte[]> expected = replayer.replay(events);
+
+        Set<AbstractEvent> removable = removableEvents(events, closedWorkshops);
+        if (sameState(expected, replayer.replay(without(events, removable)))) {
+            return result(events, removable, closedWorkshops);
+        }
+
+        System.out.println("Compacting all closed workshops at once changed the state. Trying one workshop at a time");
+        Set<String> accepted = new TreeSet<>();
+        for (String workshopId : closedWorkshops) {
+            Set<String> candidate = new TreeSet<>(accepted);
+            candidate.add(workshopId);
+            if (sameState(expected, replayer.replay(without(events, removableEvents(events, candidate))))) {
+                accepted = candidate;
+            } else {
+                System.out.println("Not compacting " + workshopId + ", it would change the state");
+            }
+        }
+        return result(events, removableEvents(events, accepted), accepted);
+    }
+
+    private static boolean sameState(List<byte[]> expected, List<byte[]> actual) {
+        for (int i = 0; i < expected.size(); i++) {
+            if (!Arrays.equals(expected.get(i), actual.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Result result(List<AbstractEvent> events, Set<AbstractEvent> removable, Set<String> workshops) {
+        List<AbstractEvent> archived = new ArrayList<>();
+        for (AbstractEvent event : events) {
+            if (removable.contains(event)) {
+                archived.add(event);
+            }
+        }
+        return new Result(without(events, removable), archived, workshops);
+    }
+
+    private static List<AbstractEvent> without(List<AbstractEvent> events, Set<AbstractEvent> removed) {
+        List<AbstractEvent> kept = new ArrayList<>(events.size() - removed.size());
+        for (AbstractEvent event : events) {
+            if (!removed.contains(event)) {
+                kept.add(event);
+            }
+        }
+        return kept;
+    }
+
+    private static class Chain {
+        private final List<AbstractEvent> events = new ArrayList<>();
+        private int seats;
+        private boolean removable;
+    }
+
+    static Set<AbstractEvent> removableEvents(List<AbstractEvent> events, Set<String> workshops) {
+        Set<AbstractEvent> removable = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<String, Chain> openChains = new HashMap<>();
+        Map<String, Chain> chainByToken = new HashMap<>();
+        Map<String, ShowUpRegisteredByAdmin> lastShowUp = new HashMap<>();
+        Map<AbstractEvent, Chain> chainOf = new IdentityHashMap<>();
+        for (AbstractEvent event : events) {
+            if (event instanceof AbstractReservationAdded) {
+                AbstractReservationAdded added = (AbstractReservationAdded) event;
+                if (!workshops.contains(added.getWorkshopId())) {
+                    continue;
+                }
+                Chain chain = new Chain();
+                chain.events.add(added);
+                chainOf.put(added, chain);
+                chain.seats = added.getNumberOfSeatsReserved();
+                // Reserving with Google confirms the email for every workshop, so that reservation has to stay
+                chain.removable = !(added instanceof ReservationAddedByUser)
+                        || !((ReservationAddedByUser) added).getGoogleUserEmail().filter(email -> email.equals(added.getEmail())).isPresent();
+                openChains.put(added.getWorkshopId() + "|" + added.getEmail(), chain);
+                chainByToken.put(added.getReservationToken(), chain);
+            } else if (event instanceof AbstractReservationCancelled) {
+                AbstractReservationCancelled cancelled = (AbstractReservationCancelled) event;
+                String key = cancelled.getWorkshopId() + "|" + cancelled.getEmail();
+                Chain chain = openChains.get(key);
+                if (chain == null) {
+                    continue;
+                }
+                chain.events.add(cancelled);
+                chainOf.put(cancelled, chain);
+                boolean cancelsAll = cancelled.getNumSpotsCancelled() == 0 || cancelled.getNumSpotsCancelled() == chain.seats;
+                if (cancelled instanceof ReservationPartallyCancelled || !cancelsAll) {
+                    chain.seats -= cancelled.getNumSpotsCancelled();
+                    // The email saga only knows partial cancellations by ReservationPartallyCancelled
+                    chain.removable &= cancelled instanceof ReservationPartallyCancelled;
+                    continue;
+                }
+                openChains.remove(key);
+                // The email saga does not handle cancellations by admin, so only a user cancellation undoes the reservation there
+                if (chain.removable && cancelled instanceof ReservationCancelledByUser) {
+                    removable.addAll(chain.events);
+                }
+            } else if (event instanceof ShowUpRegisteredByAdmin) {
+                ShowUpRegisteredByAdmin showUp = (ShowUpRegisteredByAdmin) event;
+                Chain chain = chainByToken.get(showUp.getReservationToken());
+                if (chain == null) {
+                    continue;
+                }
+                chain.events.add(showUp);
+                chainOf.put(showUp, chain);
+                ShowUpRegisteredByAdmin previous = lastShowUp.put(showUp.getReservationToken(), showUp);
+                if (previous != null) {
+                    removable.add(previous);
+                }
+            }
+        }
+        for (ShowUpRegisteredByAdmin showUp : lastShowUp.values()) {
+            if (!showUp.isShownUp()) {
+                removable.add(showUp);
+            }
+        }
+        // The last event is kept, so new events get revision ids after the archived ones
+        AbstractEvent last = events.isEmpty() ? null : events.get(events.size() - 1);
+        if (last != null && removable.contains(last)) {
+            removable.removeAll(chainOf.get(last).events);
+        }
+        return removable;
+    }
+
+    /**
+     * Replays events into new subscribers and returns the WorkshopListProjection and EmailSaga state
+     */
+    private static class Replayer {
+        private final WorkshopRepository workshopRepository;
+        private final byte[] initialRepository;
+        private WorkshopListProjection workshopListProjection;
+
+        private Replayer() {
+            workshopRepository = new WorkshopRepository();
+            initialRepository = stateOf(workshopRepository);
+        }
+
+        private List<byte[]> replay(List<AbstractEvent> events) {
+            SystemSetup.setupForReplay(workshopRepository);
+            restore(workshopRepository, initialRepository);
+            workshopListProjection = new WorkshopListProjection();
+            EmailSaga emailSaga = new EmailSaga();
+            List<EventSubscription> subscribers = Arrays.asList(workshopListProjection, emailSaga, workshopRepository);
+            subscribers.forEach(EventSubscription::batchStarted);
+            for (AbstractEvent event : events) {
+                for (EventSubscription subscriber : subscribers) {
+                    subscriber.eventAdded(event);
+                }
+            }
+            subscribers.forEach(EventSubscription::batchEnded);
+            return Arrays.asList(stateOf(workshopListProjection), stateOf(emailSaga));
+        }
+    }
+
+    /**
+     * Time to decode the records and play them back to the subscribers a server would have
+     */
+    private static long replayMillis(List<byte[]> records, EventCodec codec) {
+        WorkshopRepository workshopRepository = new WorkshopRepository();
+        SystemSetup.setupForReplay(workshopRepository);
+        List<EventSubscription> subscribers = Arrays.asList(new WorkshopAggregate(), new WorkshopListProjection(), new EmailSaga(), workshopRepository);
+        long start = System.currentTimeMillis();
+        subscribers.forEach(EventSubscription::batchStarted);
+        for (byte[] record : records) {
+            AbstractEvent event = codec.decode(record);
+            for (EventSubscription subscriber : subscribers) {
+                subscriber.eventAdded(event);
+            }
+        }
+        subscribers.forEach(EventSubscription::batchEnded);
+        return System.currentTimeMillis() - start;
+    }
+
+    private static byte[] stateOf(Snapshottable snapshottable) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SnapshotOutput out = new SnapshotOutput(bytes, new BinaryEventCodec())) {
+            snapshottable.writeSnapshot(out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void restore(Snapshottable snapshottable, byte[] state) {
+        try (SnapshotInput in = new SnapshotInput(new ByteArrayInputStream(state), new BinaryEventCodec())) {
+            snapshottable.readSnapshot(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
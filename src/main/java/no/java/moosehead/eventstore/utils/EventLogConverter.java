@@ -0,0 +1,110 @@
+package no.java.moosehead.eventstore.utils;
+
+import no.java.moosehead.database.Postgres;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One shot conversion of an existing event log between the text and the binary format.
+ *
+ * Usage:
+ *   file &lt;fromFile&gt; &lt;toFile&gt; [text|binary]   converts a file log (default to binary)
+ *   db &lt;confFile&gt; [text|binary]               rewrites every row in the event table (default to binary)
+ */
+public class EventLogConverter {
+    private static final int DB_BATCH_SIZE = 500;
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: file <fromFile> <toFile> [text|binary] | db <confFile> [text|binary]");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int converted;
+        if ("db".equals(args[0])) {
+            System.setProperty("mooseheadConfFile", args[1]);
+            converted = convertDb(EventLogFormat.fromConfig(args.length > 2 ? args[2] : "binary"));
+        } else {
+            converted = convertFile(args[1], args[2], EventLogFormat.fromConfig(args.length > 3 ? args[3] : "binary"));
+        }
+        System.out.println("Converted " + converted + " events in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    public static int convertFile(String fromFile, String toFile, EventLogFormat toFormat) {
+        FileHandler from = new FileHandler(fromFile);
+        EventCodec fromCodec = from.detectFormat().createCodec();
+        EventCodec toCodec = toFormat.createCodec();
+        FileHandler to = new FileHandler(toFile, false, toFormat);
+        if (to.detectFormat() != toFormat) {
+            throw new RuntimeException(toFile + " already exists in another format");
+        }
+        to.openFileForOutput();
+        int[] count = {0};
+        try {
+            from.readRecords(record -> {
+                AbstractEvent event = fromCodec.decode(record);
+                to.writeRecord(toCodec.encode(event));
+                count[0]++;
+            });
+        } finally {
+            to.closeOutputFile();
+        }
+        return count[0];
+    }
+
+    public static int convertDb(EventLogFormat toFormat) {
+        EventCodec textCodec = new TextEventCodec();
+        EventCodec binaryCodec = new BinaryEventCodec();
+        int count = 0;
+        try (Connection connection = Postgres.openConnection()) {
+            connection.setAutoCommit(false);
+            long lastId = Long.MIN_VALUE;
+            while (true) {
+                List<Long> ids = new ArrayList<>();
+                List<AbstractEvent> events = new ArrayList<>();
+                try (PreparedStatement ps = connection.prepareStatement("select id, payload, binpayload from event where id > ? order by id limit " + DB_BATCH_SIZE)) {
+                    ps.setLong(1, lastId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong(1));
+                            byte[] binpayload = rs.getBytes(3);
+                            events.add(binpayload != null ? binaryCodec.decode(binpayload) : textCodec.decode(rs.getString(2).getBytes(StandardCharsets.UTF_8)));
+                        }
+                    }
+                }
+                if (ids.isEmpty()) {
+                    break;
+                }
+                try (PreparedStatement ps = connection.prepareStatement("update event set payload = ?, binpayload = ? where id = ?")) {
+                    for (int i = 0; i < ids.size(); i++) {
+                        if (toFormat == EventLogFormat.BINARY) {
+                            ps.setNull(1, Types.VARCHAR);
+                            ps.setBytes(2, binaryCodec.encode(events.get(i)));
+                        } else {
+                            ps.setString(1, new String(textCodec.encode(events.get(i)), StandardCharsets.UTF_8));
+                            ps.setNull(2, Types.BINARY);
+                        }
+                        ps.setLong(3, ids.get(i));
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+                connection.commit();
+                count += ids.size();
+                lastId = ids.get(ids.size() - 1);
+                System.out.println("Converted " + count + " events");
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return count;
+    }
+}
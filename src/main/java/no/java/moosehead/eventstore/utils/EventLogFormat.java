@@ -0,0 +1,23 @@
+package no.java.moosehead.eventstore.utils;
+
+public enum EventLogFormat {
+    /**
+     * One ClassSerializer line per event
+     */
+    TEXT,
+    /**
+     * A header followed by length prefixed BinaryEventCodec records
+     */
+    BINARY;
+
+    public EventCodec createCodec() {
+        return this == BINARY ? new BinaryEventCodec() : new TextEventCodec();
+    }
+
+    public static EventLogFormat fromConfig(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return TEXT;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -1,14 +1,25 @@
 package no.java.moosehead.eventstore.utils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
-public class FileHandler {
+public class FileHandler implements EventLog {
 
-    private final String ENCODING = "UTF-8";
+    private static final byte[] BINARY_HEADER = {'M', 'H', 'E', 'B', 1};
+    private static final int MAX_GROUP_COMMIT_BATCH = 1000;
     private boolean isInMemory = false;
     private String filename;
-    private FileInputStream fileInputStream;
-    private PrintWriter printWriter;
+    private boolean groupCommit = false;
+    private EventLogFormat format = EventLogFormat.TEXT;
+    private FileOutputStream outputStream;
+    private GroupCommitter<byte[]> groupCommitter;
+    private IOException writeFailure;
 
     public FileHandler(){
         isInMemory = true;
@@ -18,52 +29,250 @@ public class FileHandler {
         this.filename = filename;
     }
 
-    public void writeToFile(String line) {
-        if (!isInMemory) {
-            printWriter.append(line);
-            printWriter.flush();
+    /**
+     * @param groupCommit when true records are written by a background thread that writes and fsyncs
+     *                    all records appended while the previous write was in progress in one go.
+     */
+    public FileHandler(String filename, boolean groupCommit) {
+        this.filename = filename;
+        this.groupCommit = groupCommit;
+    }
+
+    /**
+     * @param format the format used if the file is new. An existing file is always written in the format it already has
+     */
+    public FileHandler(String filename, boolean groupCommit, EventLogFormat format) {
+        this.filename = filename;
+        this.groupCommit = groupCommit;
+        this.format = format;
+    }
+
+    /**
+     * Decides the format of the file by looking at its start
+     */
+    @Override
+    public EventLogFormat detectFormat() {
+        if (isInMemory) {
+            return format;
+        }
+        File file = new File(filename);
+        if (!file.exists() || file.length() == 0) {
+            return format;
         }
+        byte[] start = new byte[BINARY_HEADER.length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (file.length() >= start.length) {
+                in.readFully(start);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        format = Arrays.equals(start, BINARY_HEADER) ? EventLogFormat.BINARY : EventLogFormat.TEXT;
+        return format;
     }
 
-    public InputStreamReader getInputStreamReader() {
-        if (!isInMemory) {
-            try {
-                return new InputStreamReader(fileInputStream,ENCODING);
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
+    public EventLogFormat format() {
+        return format;
+    }
+
+    /**
+     * Reads all records in the file. A record at the end of a binary file that was not completely written is
+     * removed from the file.
+     */
+    @Override
+    public void readRecords(Consumer<byte[]> recordConsumer) {
+        if (isInMemory) {
+            return;
+        }
+        File file = new File(filename);
+        if (!file.exists()) {
+            throw new RuntimeException(new FileNotFoundException(filename));
+        }
+        if (file.length() == 0) {
+            return;
+        }
+        detectFormat();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(filename), 1 << 16)) {
+            if (format == EventLogFormat.BINARY) {
+                readBinaryRecords(new DataInputStream(in), recordConsumer);
+            } else {
+                readTextRecords(in, recordConsumer);
             }
-        } else {
-            return  new InputStreamReader(new ByteArrayInputStream("".getBytes()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void readTextRecords(InputStream in, Consumer<byte[]> recordConsumer) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(512);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                recordConsumer.accept(line.toByteArray());
+                line.reset();
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (line.size() > 0) {
+            recordConsumer.accept(line.toByteArray());
         }
     }
 
-    public void openFileForInput() {
-        if (!isInMemory) {
+    private void readBinaryRecords(DataInputStream in, Consumer<byte[]> recordConsumer) throws IOException {
+        in.readFully(new byte[BINARY_HEADER.length]);
+        long fileLength = new File(filename).length();
+        long validLength = BINARY_HEADER.length;
+        while (true) {
+            int length;
             try {
-                fileInputStream = new FileInputStream(filename);
-            } catch (FileNotFoundException e) {
-                throw new RuntimeException(e);
+                length = in.readInt();
+            } catch (EOFException e) {
+                break;
             }
+            if (length < 0 || length > fileLength - validLength - 4) {
+                // A torn or corrupt length, which would otherwise be trusted with the size of the array
+                System.out.println("Warning: Invalid record length " + length + " at position " + validLength + " of " + filename +
+                        ". Removing the rest of the file");
+                truncate(validLength);
+                break;
+            }
+            byte[] record = new byte[length];
+            try {
+                in.readFully(record);
+            } catch (EOFException e) {
+                System.out.println("Warning: Incomplete record at end of " + filename + ". Removing it");
+                truncate(validLength);
+                break;
+            }
+            validLength += 4 + length;
+            recordConsumer.accept(record);
+        }
+        if (new File(filename).length() > validLength) {
+            truncate(validLength);
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+            file.setLength(length);
+        }
+    }
+
+    public void writeRecord(byte[] record) {
+        appendRecord(record).join();
+    }
+
+    @Override
+    public CompletableFuture<Void> appendRecord(long revisionId, byte[] record) {
+        return appendRecord(record);
+    }
+
+    /**
+     * Appends the record to the file. The returned future completes when the record is written.
+     * Without group commit the record is written before this method returns.
+     */
+    public CompletableFuture<Void> appendRecord(byte[] record) {
+        if (isInMemory) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (groupCommitter != null) {
+            return groupCommitter.submit(record);
+        }
+        try {
+            outputStream.write(frame(record));
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private byte[] frame(byte[] record) {
+        ByteBuffer framed;
+        if (format == EventLogFormat.BINARY) {
+            framed = ByteBuffer.allocate(4 + record.length);
+            framed.putInt(record.length);
+            framed.put(record);
+        } else {
+            framed = ByteBuffer.allocate(record.length + 1);
+            framed.put(record);
+            framed.put((byte) '\n');
         }
+        return framed.array();
     }
 
+    public Optional<GroupCommitter<byte[]>> groupCommitter() {
+        return Optional.ofNullable(groupCommitter);
+    }
+
+    @Override
     public void openFileForOutput() {
-        if (!isInMemory) {
-            try {
-                printWriter = new PrintWriter(new OutputStreamWriter(new FileOutputStream(filename,true), ENCODING));
-            } catch (FileNotFoundException | UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
+        if (isInMemory) {
+            return;
+        }
+        detectFormat();
+        try {
+            boolean newFile = !new File(filename).exists() || new File(filename).length() == 0;
+            outputStream = new FileOutputStream(filename, true);
+            if (newFile && format == EventLogFormat.BINARY) {
+                outputStream.write(BINARY_HEADER);
+                outputStream.flush();
             }
+            if (groupCommit) {
+                FileChannel channel = outputStream.getChannel();
+                groupCommitter = new GroupCommitter<>("eventstore-group-commit", batch -> writeAndSync(channel, batch), MAX_GROUP_COMMIT_BATCH, 0);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
-    public void closeInputFile() {
-        if (!isInMemory) {
+    /**
+     * A batch that fails is cut off the file again, so its records are not read back on the next start
+     * and later batches can still be written. If that fails too, nothing more is written.
+     */
+    private void writeAndSync(FileChannel channel, List<byte[]> records) throws IOException {
+        if (writeFailure != null) {
+            throw new IOException("The file was left with a failed write that could not be removed", writeFailure);
+        }
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (byte[] record : records) {
+            all.write(frame(record));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(all.toByteArray());
+        long sizeBefore = channel.size();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
             try {
-                fileInputStream.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                channel.truncate(sizeBefore);
+                channel.force(false);
+            } catch (IOException undo) {
+                writeFailure = undo;
+                e.addSuppressed(undo);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void closeOutputFile() {
+        if (isInMemory || outputStream == null) {
+            return;
+        }
+        try {
+            if (groupCommitter != null) {
+                groupCommitter.close();
+                groupCommitter = null;
             }
+            outputStream.close();
+            outputStream = null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
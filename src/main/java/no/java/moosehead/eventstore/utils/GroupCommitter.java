@@ -0,0 +1,236 @@
+package no.java.moosehead.eventstore.utils;
+
+import no.java.moosehead.metrics.Histogram;
+import no.java.moosehead.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects items submitted from many threads and hands them to a single writer thread in batches.
+ * Each submitter gets a future that completes when the batch containing its item has been written,
+ * so the cost of a write+fsync is shared by everyone who arrived while the previous batch was written.
+ *
+ * The numbers are published with Metrics as groupCommitter.[name].*: write and commitLatency histograms,
+ * and gauges for the batch sizes, counts and queue length.
+ */
+public class GroupCommitter<T> {
+
+    public interface BatchWriter<T> {
+        void write(List<T> batch) throws Exception;
+    }
+
+    private static class Pending<T> {
+        private final T item;
+        private final long enqueuedAt;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Pending(T item) {
+            this.item = item;
+            this.enqueuedAt = System.nanoTime();
+        }
+    }
+
+    private final BatchWriter<T> batchWriter;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final BlockingQueue<Pending<T>> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong committedCount = new AtomicLong();
+    private final AtomicLong maxBatchSizeSeen = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+    private final AtomicLong totalCommitLatencyNanos = new AtomicLong();
+    private final AtomicLong maxCommitLatencyNanos = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final Histogram writeTimer;
+    private final Histogram commitLatencyTimer;
+
+    /**
+     * @param name name of the writer thread
+     * @param batchWriter does the actual write. Must only return when the batch is durable
+     * @param maxBatchSize max number of items handed to the batchWriter at once
+     * @param maxLingerMillis how long the writer may wait for more items after the first one arrived. 0 means write whatever is queued right away
+     */
+    public GroupCommitter(String name, BatchWriter<T> batchWriter, int maxBatchSize, long maxLingerMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.batchWriter = batchWriter;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+        String metricName = "groupCommitter." + name;
+        writeTimer = Metrics.histogram(metricName + ".write");
+        commitLatencyTimer = Metrics.histogram(metricName + ".commitLatency");
+        Metrics.gauge(metricName + ".batches", this::getBatchCount);
+        Metrics.gauge(metricName + ".committed", this::getCommittedCount);
+        Metrics.gauge(metricName + ".failed", this::getFailedCount);
+        Metrics.gauge(metricName + ".averageBatchSize", () -> Math.round(getAverageBatchSize()));
+        Metrics.gauge(metricName + ".maxBatchSize", this::getMaxBatchSize);
+        Metrics.gauge(metricName + ".queue", this::getQueueLength);
+        writerThread = new Thread(this::writeLoop, name);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public CompletableFuture<Void> submit(T item) {
+        if (!running) {
+            throw new IllegalStateException("GroupCommitter is closed");
+        }
+        Pending<T> pending = new Pending<>(item);
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /**
+     * Writes everything that is queued and stops the writer thread.
+     */
+    public void close() {
+        running = false;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending<T>> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                fillBatch(batch);
+            } catch (InterruptedException e) {
+                // The writer thread is not interrupted by us, as that would close the FileChannel it is writing to
+                continue;
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void fillBatch(List<Pending<T>> batch) throws InterruptedException {
+        queue.drainTo(batch, maxBatchSize - batch.size());
+        long lingerUntil = System.nanoTime() + maxLingerNanos;
+        while (batch.size() < maxBatchSize) {
+            long waitNanos = lingerUntil - System.nanoTime();
+            if (waitNanos <= 0) {
+                return;
+            }
+            Pending<T> next = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+            queue.drainTo(batch, maxBatchSize - batch.size());
+        }
+    }
+
+    private void commit(List<Pending<T>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            items.add(pending.item);
+        }
+        long start = System.nanoTime();
+        try {
+            batchWriter.write(items);
+        } catch (Exception e) {
+            failedCount.addAndGet(batch.size());
+            for (Pending<T> pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        long writeNanos = now - start;
+        batchCount.incrementAndGet();
+        committedCount.addAndGet(batch.size());
+        updateMax(maxBatchSizeSeen, batch.size());
+        totalWriteNanos.addAndGet(writeNanos);
+        updateMax(maxWriteNanos, writeNanos);
+        writeTimer.record(writeNanos);
+        for (Pending<T> pending : batch) {
+            long latency = now - pending.enqueuedAt;
+            totalCommitLatencyNanos.addAndGet(latency);
+            updateMax(maxCommitLatencyNanos, latency);
+            commitLatencyTimer.record(latency);
+            pending.done.complete(null);
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while ((current = max.get()) < value) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getCommittedCount() {
+        return committedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatchSizeSeen.get();
+    }
+
+    public double getAverageBatchSize() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : (double) committedCount.get() / batches;
+    }
+
+    /**
+     * Time spent in the BatchWriter, ie the write+fsync itself.
+     */
+    public double getAverageWriteMillis() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : nanosToMillis(totalWriteNanos.get()) / batches;
+    }
+
+    public double getMaxWriteMillis() {
+        return nanosToMillis(maxWriteNanos.get());
+    }
+
+    /**
+     * Time from an item was submitted until it was durable, as seen by the submitter.
+     */
+    public double getAverageCommitLatencyMillis() {
+        long committed = committedCount.get();
+        return committed == 0 ? 0 : nanosToMillis(totalCommitLatencyNanos.get()) / committed;
+    }
+
+    public double getMaxCommitLatencyMillis() {
+        return nanosToMillis(maxCommitLatencyNanos.get());
+    }
+
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    private static double nanosToMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,94 @@
+package no.java.moosehead.eventstore.utils;
+
+import no.java.moosehead.eventstore.core.AbstractEvent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Decodes records on a pool of threads, a chunk at a time, and hands the events to the consumer in the order
+ * the records were added, on the thread that adds them. Only a few chunks per thread are decoded ahead of the
+ * consumer. Every decoder thread gets its own decoder from the factory, as the text codec is not thread safe.
+ */
+public class ParallelDecoder<R> implements AutoCloseable {
+    private static final int CHUNK_SIZE = 256;
+
+    private final ExecutorService decoders;
+    private final ThreadLocal<Function<R, AbstractEvent>> decoder;
+    private final Consumer<AbstractEvent> consumer;
+    private final int maxInFlight;
+    private final Deque<Future<List<AbstractEvent>>> inFlight = new ArrayDeque<>();
+    private List<R> chunk = new ArrayList<>(CHUNK_SIZE);
+
+    public ParallelDecoder(Supplier<Function<R, AbstractEvent>> decoderFactory, Consumer<AbstractEvent> consumer) {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.decoders = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "eventstore-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.decoder = ThreadLocal.withInitial(decoderFactory);
+        this.consumer = consumer;
+        this.maxInFlight = threads * 4;
+    }
+
+    public void add(R record) {
+        chunk.add(record);
+        if (chunk.size() == CHUNK_SIZE) {
+            submitChunk();
+            if (inFlight.size() >= maxInFlight) {
+                deliver(inFlight.poll());
+            }
+        }
+    }
+
+    /**
+     * Waits until every record added is decoded and handed to the consumer
+     */
+    public void finish() {
+        if (!chunk.isEmpty()) {
+            submitChunk();
+        }
+        while (!inFlight.isEmpty()) {
+            deliver(inFlight.poll());
+        }
+    }
+
+    private void submitChunk() {
+        List<R> records = chunk;
+        chunk = new ArrayList<>(CHUNK_SIZE);
+        inFlight.add(decoders.submit(() -> {
+            Function<R, AbstractEvent> decode = decoder.get();
+            List<AbstractEvent> events = new ArrayList<>(records.size());
+            for (R record : records) {
+                events.add(decode.apply(record));
+            }
+            return events;
+        }));
+    }
+
+    private void deliver(Future<List<AbstractEvent>> decoded) {
+        try {
+            decoded.get().forEach(consumer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not decode event", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        decoders.shutdownNow();
+    }
+}
@@ -0,0 +1,442 @@
+package no.java.moosehead.eventstore.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An event log split into fixed size memory mapped segment files in one directory.
+ *
+ * A segment starts with a header (magic, version, format) followed by records of
+ * [length][crc32][revisionId][payload]. The length is written last, so a record that was not completely
+ * written has length 0 or a crc that does not match, and is removed when the log is opened.
+ * Each segment has an index of revision id to position so reading can start at any revision.
+ * The index of the segment being written is rebuilt from the segment when the log is opened.
+ */
+public class SegmentedEventLog implements EventLog {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final byte[] MAGIC = {'M', 'H', 'S', 'G'};
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int MAX_GROUP_COMMIT_BATCH = 1000;
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String INDEX_SUFFIX = ".index";
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean groupCommit;
+    private final CRC32 crc = new CRC32();
+    private EventLogFormat format;
+    private List<Segment> segments;
+    private Segment active;
+    private GroupCommitter<Record> groupCommitter;
+    private RuntimeException writeFailure;
+
+    private static class Segment {
+        private final long number;
+        private final File file;
+        private long[] revisions = new long[256];
+        private int[] positions = new int[256];
+        private int count;
+        private int end = HEADER_SIZE;
+        private MappedByteBuffer buffer;
+
+        private Segment(long number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+
+        private void addToIndex(long revisionId, int position) {
+            if (count == revisions.length) {
+                revisions = Arrays.copyOf(revisions, count * 2);
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            revisions[count] = revisionId;
+            positions[count] = position;
+            count++;
+        }
+
+        private boolean startsAtOrBefore(long revisionId) {
+            return count > 0 && revisions[0] <= revisionId;
+        }
+
+        /**
+         * Position of the first record with revision at least revisionId, or end if there is none
+         */
+        private int positionOf(long revisionId) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (revisions[mid] < revisionId) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low < count ? positions[low] : end;
+        }
+    }
+
+    private static class Record {
+        private final long revisionId;
+        private final byte[] payload;
+
+        private Record(long revisionId, byte[] payload) {
+            this.revisionId = revisionId;
+            this.payload = payload;
+        }
+    }
+
+    public SegmentedEventLog(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, false, EventLogFormat.BINARY);
+    }
+
+    /**
+     * @param segmentSize size of each segment file. A record bigger than this gets a segment of its own
+     * @param groupCommit when true records are written by a background thread that forces all records appended
+     *                    while the previous force was in progress in one go
+     * @param format the format used if the log is new
+     */
+    public SegmentedEventLog(File directory, int segmentSize, boolean groupCommit, EventLogFormat format) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.groupCommit = groupCommit;
+        this.format = format;
+    }
+
+    @Override
+    public EventLogFormat detectFormat() {
+        load();
+        return format;
+    }
+
+    public synchronized int segmentCount() {
+        load();
+        return segments.size();
+    }
+
+    @Override
+    public void readRecords(Consumer<byte[]> recordConsumer) {
+        readRecordsFrom(Long.MIN_VALUE, recordConsumer);
+    }
+
+    /**
+     * Reads records starting with the first one that has a revision id of at least revisionId.
+     * Records are expected to be appended in revision order.
+     */
+    public void readRecordsFrom(long revisionId, Consumer<byte[]> recordConsumer) {
+        List<Segment> toRead;
+        int startSegment = 0;
+        synchronized (this) {
+            load();
+            toRead = new ArrayList<>(segments);
+        }
+        for (int i = 0; i < toRead.size(); i++) {
+            if (toRead.get(i).startsAtOrBefore(revisionId)) {
+                startSegment = i;
+            }
+        }
+        for (int i = startSegment; i < toRead.size(); i++) {
+            Segment segment = toRead.get(i);
+            int from;
+            int end;
+            synchronized (this) {
+                from = i == startSegment ? segment.positionOf(revisionId) : HEADER_SIZE;
+                end = segment.end;
+            }
+            ByteBuffer buffer = map(segment, FileChannel.MapMode.READ_ONLY);
+            buffer.limit(end);
+            scan(buffer, from, null, recordConsumer);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> appendRecord(long revisionId, byte[] record) {
+        if (groupCommitter != null) {
+            return groupCommitter.submit(new Record(revisionId, record));
+        }
+        synchronized (this) {
+            write(revisionId, record);
+            active.buffer.force();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * A batch that fails is undone by ending the segment where the batch started, so its records are not read back
+     * on the next start. If the batch had already rolled over to a new segment, nothing more is written.
+     */
+    private synchronized void writeAndForce(List<Record> records) {
+        if (writeFailure != null) {
+            throw new IllegalStateException("The log was left with a failed write that could not be undone", writeFailure);
+        }
+        Segment segment = active;
+        int end = segment.end;
+        int count = segment.count;
+        try {
+            for (Record record : records) {
+                write(record.revisionId, record.payload);
+            }
+            active.buffer.force();
+        } catch (RuntimeException e) {
+            if (active != segment) {
+                writeFailure = e;
+                throw e;
+            }
+            if (end + 4 <= segment.buffer.capacity()) {
+                segment.buffer.putInt(end, 0);
+            }
+            segment.end = end;
+            segment.count = count;
+            throw e;
+        }
+    }
+
+    private void write(long revisionId, byte[] record) {
+        if (active == null) {
+            throw new IllegalStateException("Log is not open for output");
+        }
+        int needed = RECORD_HEADER_SIZE + record.length;
+        if (active.end + needed > active.buffer.capacity()) {
+            roll(needed);
+        }
+        int position = active.end;
+        MappedByteBuffer buffer = active.buffer;
+        buffer.putLong(position + 8, revisionId);
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(position + RECORD_HEADER_SIZE);
+        payload.put(record);
+        buffer.putInt(position + 4, checksum(buffer, position, record.length));
+        buffer.putInt(position, record.length);
+        active.addToIndex(revisionId, position);
+        active.end = position + needed;
+    }
+
+    private void roll(int needed) {
+        active.buffer.force();
+        writeIndex(active);
+        active.buffer = null;
+        active = createSegment(active.number + 1, Math.max(segmentSize, HEADER_SIZE + needed));
+        segments.add(active);
+    }
+
+    @Override
+    public synchronized void openFileForOutput() {
+        load();
+        if (segments.isEmpty()) {
+            segments.add(createSegment(0, segmentSize));
+        }
+        active = segments.get(segments.size() - 1);
+        if (active.buffer == null) {
+            active.buffer = map(active, FileChannel.MapMode.READ_WRITE);
+        }
+        if (groupCommit && groupCommitter == null) {
+            groupCommitter = new GroupCommitter<>("eventstore-group-commit", this::writeAndForce, MAX_GROUP_COMMIT_BATCH, 0);
+        }
+    }
+
+    @Override
+    public void closeOutputFile() {
+        if (groupCommitter != null) {
+            groupCommitter.close();
+            groupCommitter = null;
+        }
+        synchronized (this) {
+            if (active == null) {
+                return;
+            }
+            active.buffer.force();
+            writeIndex(active);
+            active.buffer = null;
+            active = null;
+        }
+    }
+
+    private synchronized void load() {
+        if (segments != null) {
+            return;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new RuntimeException("Could not create " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        Arrays.sort(files);
+        List<Segment> loaded = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            boolean last = i == files.length - 1;
+            String name = files[i].getName();
+            Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), files[i]);
+            MappedByteBuffer buffer = map(segment, FileChannel.MapMode.READ_WRITE);
+            if (!readHeader(buffer, i == 0)) {
+                if (!last) {
+                    throw new RuntimeException("Invalid segment header in " + segment.file);
+                }
+                writeHeader(buffer);
+            }
+            if (last || !readIndex(segment)) {
+                segment.end = scan(buffer, HEADER_SIZE, segment, null);
+            }
+            if (last) {
+                truncateTornTail(segment, buffer);
+            } else {
+                writeIndex(segment);
+            }
+            loaded.add(segment);
+        }
+        segments = loaded;
+    }
+
+    private void truncateTornTail(Segment segment, MappedByteBuffer buffer) {
+        int position = segment.end;
+        while (position < buffer.capacity() && buffer.get(position) == 0) {
+            position++;
+        }
+        if (position == buffer.capacity()) {
+            return;
+        }
+        System.out.println("Warning: Incomplete record at end of " + segment.file + ". Removing it");
+        for (int i = segment.end; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.force();
+    }
+
+    /**
+     * Reads records from position until the end of the buffer or the first record that is not complete.
+     * @return the position after the last complete record
+     */
+    private int scan(ByteBuffer buffer, int position, Segment indexTo, Consumer<byte[]> recordConsumer) {
+        while (position + RECORD_HEADER_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.limit()) {
+                break;
+            }
+            if (buffer.getInt(position + 4) != checksum(buffer, position, length)) {
+                break;
+            }
+            if (indexTo != null) {
+                indexTo.addToIndex(buffer.getLong(position + 8), position);
+            }
+            if (recordConsumer != null) {
+                byte[] record = new byte[length];
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(position + RECORD_HEADER_SIZE);
+                payload.get(record);
+                recordConsumer.accept(record);
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private int checksum(ByteBuffer buffer, int position, int length) {
+        ByteBuffer covered = buffer.duplicate();
+        covered.limit(position + RECORD_HEADER_SIZE + length);
+        covered.position(position + 8);
+        synchronized (crc) {
+            crc.reset();
+            crc.update(covered);
+            return (int) crc.getValue();
+        }
+    }
+
+    private Segment createSegment(long number, int size) {
+        Segment segment = new Segment(number, new File(directory, String.format("%020d%s", number, SEGMENT_SUFFIX)));
+        try (RandomAccessFile file = new RandomAccessFile(segment.file, "rw")) {
+            file.setLength(size);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        segment.buffer = map(segment, FileChannel.MapMode.READ_WRITE);
+        writeHeader(segment.buffer);
+        segment.buffer.force();
+        return segment;
+    }
+
+    private boolean readHeader(ByteBuffer buffer, boolean decidesFormat) {
+        if (buffer.capacity() < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        if (buffer.get(4) != VERSION) {
+            throw new RuntimeException("Unsupported segment version " + buffer.get(4));
+        }
+        if (decidesFormat) {
+            format = EventLogFormat.values()[buffer.get(5)];
+        }
+        return true;
+    }
+
+    private void writeHeader(ByteBuffer buffer) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            buffer.put(i, MAGIC[i]);
+        }
+        buffer.put(4, VERSION);
+        buffer.put(5, (byte) format.ordinal());
+    }
+
+    private MappedByteBuffer map(Segment segment, FileChannel.MapMode mode) {
+        try (RandomAccessFile file = new RandomAccessFile(segment.file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            return file.getChannel().map(mode, 0, file.length());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File indexFile(Segment segment) {
+        return new File(directory, segment.file.getName().replace(SEGMENT_SUFFIX, INDEX_SUFFIX));
+    }
+
+    private void writeIndex(Segment segment) {
+        File tmp = new File(directory, indexFile(segment).getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(segment.end);
+            out.writeInt(segment.count);
+            for (int i = 0; i < segment.count; i++) {
+                out.writeLong(segment.revisions[i]);
+                out.writeInt(segment.positions[i]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        File index = indexFile(segment);
+        if (index.exists() && !index.delete() || !tmp.renameTo(index)) {
+            throw new RuntimeException("Could not write index " + index);
+        }
+    }
+
+    private boolean readIndex(Segment segment) {
+        File index = indexFile(segment);
+        if (!index.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            int end = in.readInt();
+            int count = in.readInt();
+            if (end > segment.file.length() || count < 0) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                segment.addToIndex(in.readLong(), in.readInt());
+            }
+            segment.end = end;
+            return true;
+        } catch (IOException e) {
+            segment.count = 0;
+            return false;
+        }
+    }
+}
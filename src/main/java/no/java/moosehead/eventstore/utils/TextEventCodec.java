@@ -0,0 +1,22 @@
+package no.java.moosehead.eventstore.utils;
+
+import no.java.moosehead.eventstore.core.AbstractEvent;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The original event format. One ClassSerializer string per event.
+ */
+public class TextEventCodec implements EventCodec {
+    private final ClassSerializer classSerializer = new ClassSerializer();
+
+    @Override
+    public byte[] encode(AbstractEvent event) {
+        return classSerializer.asString(event).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public AbstractEvent decode(byte[] data) {
+        return classSerializer.asObject(new String(data, StandardCharsets.UTF_8));
+    }
+}
@@ -3,18 +3,103 @@ package no.java.moosehead.eventstore.utils;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Hands out revision ids. Without a block source ids come from one counter that playback moves past the
+ * tail of the log. With a block source, ids are reserved from the database in blocks, so instances sharing
+ * the database never get the same id and a restart never reuses an id. Ids in a block that are not used
+ * before a restart are skipped, so there can be gaps in the revision ids.
+ * Threads only take the lock when a block is used up.
+ */
 public class TokenGenerator {
-    private AtomicLong revision = new AtomicLong(0L);
+
+    /**
+     * Reserves blocks of revision ids, each block starting above every block reserved before it
+     */
+    public interface RevisionBlockSource {
+        /**
+         * @return the first id of a newly reserved block of blockSize() ids
+         */
+        long reserveBlock();
+
+        int blockSize();
+    }
+
+    private static class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    private final RevisionBlockSource blockSource;
+    private volatile Block block;
+
+    public TokenGenerator() {
+        this.blockSource = null;
+        this.block = new Block(0L, Long.MAX_VALUE);
+    }
+
+    public TokenGenerator(RevisionBlockSource blockSource) {
+        this.blockSource = blockSource;
+        // Empty, so the first id reserves a block
+        this.block = new Block(0L, 0L);
+    }
 
     public static String randomUUIDString() {
         return UUID.randomUUID().toString();
     }
 
     public long nextRevisionId() {
-        return revision.getAndIncrement();
+        while (true) {
+            Block current = block;
+            long id = current.next.getAndIncrement();
+            if (id < current.end) {
+                return id;
+            }
+            refill(current, -1L);
+        }
     }
 
+    /**
+     * Makes sure ids handed out from now on are above the given one, for instance after reading events
+     * that another instance or an earlier run has stored.
+     */
+    public void ensureAbove(long revisionId) {
+        if (blockSource == null) {
+            block.next.accumulateAndGet(revisionId + 1, Math::max);
+            return;
+        }
+        Block current = block;
+        if (revisionId + 1 < current.end) {
+            current.next.accumulateAndGet(revisionId + 1, Math::max);
+        } else {
+            refill(current, revisionId);
+        }
+    }
+
+    /**
+     * Only for generators without a block source
+     */
     public void resetRevision(long target) {
-        revision.set(target);
+        if (blockSource != null) {
+            throw new IllegalStateException("Revision ids are reserved in blocks and can not be reset");
+        }
+        block.next.set(target);
+    }
+
+    private synchronized void refill(Block exhausted, long above) {
+        if (block != exhausted && block.next.get() > above) {
+            // Another thread got here first
+            return;
+        }
+        Block next;
+        do {
+            long start = blockSource.reserveBlock();
+            next = new Block(Math.max(start, above + 1), start + blockSource.blockSize());
+        } while (next.next.get() >= next.end);
+        block = next;
     }
 }
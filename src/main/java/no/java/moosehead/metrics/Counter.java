@@ -0,0 +1,51 @@
+package no.java.moosehead.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events, and keeps a count for each of the last 60 seconds to give the rate over the last minute.
+ */
+public class Counter implements CounterMXBean {
+    private static final int SECONDS = 60;
+
+    private final LongAdder count = new LongAdder();
+    private final AtomicLongArray perSecond = new AtomicLongArray(SECONDS);
+    // The second each slot in perSecond is counting
+    private final AtomicLongArray slotSecond = new AtomicLongArray(SECONDS);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long events) {
+        count.add(events);
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % SECONDS);
+        long counting = slotSecond.get(slot);
+        if (counting != second && slotSecond.compareAndSet(slot, counting, second)) {
+            // A few events from other threads may be lost here when a new second starts
+            perSecond.set(slot, 0);
+        }
+        perSecond.addAndGet(slot, events);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getPerSecond() {
+        long now = System.currentTimeMillis() / 1000;
+        long events = 0;
+        for (int slot = 0; slot < SECONDS; slot++) {
+            long second = slotSecond.get(slot);
+            // The second we are in is not over, so it is left out
+            if (second < now && second >= now - SECONDS) {
+                events += perSecond.get(slot);
+            }
+        }
+        return events / (double) SECONDS;
+    }
+}
@@ -0,0 +1,10 @@
+package no.java.moosehead.metrics;
+
+public interface CounterMXBean {
+    long getCount();
+
+    /**
+     * Average over the last minute
+     */
+    double getPerSecond();
+}
@@ -0,0 +1,31 @@
+package no.java.moosehead.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value that is either set, like the duration of the last playback, or read when asked for, like a queue length
+ */
+public class Gauge implements GaugeMXBean {
+    private final LongSupplier supplier;
+    private volatile long value;
+
+    Gauge() {
+        this.supplier = null;
+    }
+
+    Gauge(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    public void set(long value) {
+        if (supplier != null) {
+            throw new IllegalStateException("This gauge reads its value when asked");
+        }
+        this.value = value;
+    }
+
+    @Override
+    public long getValue() {
+        return supplier != null ? supplier.getAsLong() : value;
+    }
+}
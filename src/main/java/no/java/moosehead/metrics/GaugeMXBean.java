@@ -0,0 +1,5 @@
+package no.java.moosehead.metrics;
+
+public interface GaugeMXBean {
+    long getValue();
+}
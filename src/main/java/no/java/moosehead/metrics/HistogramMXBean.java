@@ -0,0 +1,13 @@
+package no.java.moosehead.metrics;
+
+public interface HistogramMXBean {
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getMaxMicros();
+}
@@ -0,0 +1,91 @@
+package no.java.moosehead.metrics;
+
+import org.jsonbuddy.JsonFactory;
+import org.jsonbuddy.JsonObject;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named histograms, counters and gauges. Each is registered with JMX as no.java.moosehead:type=[type],name=[name]
+ * when it is first used, and all of them are shown as JSON by the admin servlet under /admin/data/metrics.
+ * Durations are recorded in nanoseconds and shown in microseconds.
+ */
+public class Metrics {
+    private static final String JMX_DOMAIN = "no.java.moosehead";
+
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> register("Histogram", key, new Histogram()));
+    }
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> register("Counter", key, new Counter()));
+    }
+
+    /**
+     * A gauge that keeps the value it is set to
+     */
+    public static Gauge gauge(String name) {
+        return gauges.computeIfAbsent(name, key -> register("Gauge", key, new Gauge()));
+    }
+
+    /**
+     * A gauge that reads its value when asked. Replaces any gauge with the same name.
+     */
+    public static Gauge gauge(String name, LongSupplier value) {
+        Gauge gauge = new Gauge(value);
+        gauges.compute(name, (key, old) -> register("Gauge", key, gauge));
+        return gauge;
+    }
+
+    public static JsonObject toJson() {
+        JsonObject histogramsJson = JsonFactory.jsonObject();
+        new TreeMap<>(histograms).forEach((name, histogram) -> histogramsJson.put(name, JsonFactory.jsonObject()
+                .put("count", histogram.getCount())
+                .put("meanMicros", round(histogram.getMeanMicros()))
+                .put("p50Micros", round(histogram.getP50Micros()))
+                .put("p99Micros", round(histogram.getP99Micros()))
+                .put("maxMicros", round(histogram.getMaxMicros()))));
+        JsonObject countersJson = JsonFactory.jsonObject();
+        new TreeMap<>(counters).forEach((name, counter) -> countersJson.put(name, JsonFactory.jsonObject()
+                .put("count", counter.getCount())
+                .put("perSecond", round(counter.getPerSecond()))));
+        JsonObject gaugesJson = JsonFactory.jsonObject();
+        new TreeMap<>(gauges).forEach((name, gauge) -> gaugesJson.put(name, gauge.getValue()));
+        return JsonFactory.jsonObject()
+                .put("histograms", histogramsJson)
+                .put("counters", countersJson)
+                .put("gauges", gaugesJson);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    /**
+     * Metrics work without JMX, so failing to register is only logged
+     */
+    private static <T> T register(String type, String name, T metric) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(metric, objectName);
+        } catch (JMException e) {
+            System.out.println("Warning: could not register metric " + name + " with JMX: " + e);
+        }
+        return metric;
+    }
+}
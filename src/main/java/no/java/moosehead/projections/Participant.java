@@ -4,8 +4,12 @@ import no.java.moosehead.domain.WorkshopReservation;
 import no.java.moosehead.eventstore.AbstractReservationAdded;
 import no.java.moosehead.eventstore.EmailConfirmedByUser;
 import no.java.moosehead.eventstore.ReservationAddedByUser;
+import no.java.moosehead.eventstore.snapshot.SnapshotInput;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
 import org.jsonbuddy.JsonObject;
 
+import java.io.IOException;
+import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.util.Optional;
 
@@ -16,6 +20,10 @@ public class Participant {
     private WorkshopReservation workshopReservation;
     private int numberOfSeatsReserved;
     private boolean hasShownUp = false;
+    // Set on the copies readers get
+    private boolean frozen;
+    // Shared by the published copies of the workshop until this participant changes
+    private Participant frozenState;
 
 
     private Participant(WorkshopReservation workshopReservation,Workshop workshop, boolean emailConfirmed) {
@@ -59,7 +67,43 @@ public class Participant {
     }
 
 
+    /**
+     * A copy for a frozen copy of the workshop, that throws on any change
+     */
+    Participant copyFor(Workshop workshop) {
+        Participant copy = new Participant(workshopReservation, workshop, false);
+        copy.emailConfirmed = emailConfirmed;
+        copy.confirmedAt = confirmedAt;
+        copy.numberOfSeatsReserved = numberOfSeatsReserved;
+        copy.hasShownUp = hasShownUp;
+        copy.frozen = true;
+        return copy;
+    }
+
+    /**
+     * A frozen copy of this participant as it is now, only made again after it changes. It belongs to the workshop
+     * being changed, so readers get copyFor the published workshop instead.
+     */
+    Participant frozenState() {
+        if (frozenState == null) {
+            frozenState = copyFor(workshop);
+        }
+        return frozenState;
+    }
+
+    Workshop getWorkshop() {
+        return workshop;
+    }
+
+    private void checkChangeable() {
+        if (frozen) {
+            throw new IllegalStateException("Participant " + workshopReservation.getEmail() + " is a published copy and can not be changed");
+        }
+        frozenState = null;
+    }
+
     public void confirmEmail(EmailConfirmedByUser emailConfirmedByUser) {
+        checkChangeable();
         long confirmedAtMillis = emailConfirmedByUser.getSystemTimeInMillis();
         confirmedAt = systemMillisToOffsetTime(confirmedAtMillis);
         emailConfirmed = true;
@@ -67,9 +111,7 @@ public class Participant {
     }
 
     private OffsetDateTime systemMillisToOffsetTime(long systemMillis) {
-        OffsetDateTime reference = OffsetDateTime.now();
-        long difference = reference.toEpochSecond() - (systemMillis/1000);
-        return reference.minusSeconds(difference);
+        return OffsetDateTime.ofInstant(Instant.ofEpochSecond(systemMillis / 1000), OffsetDateTime.now().getOffset());
     }
 
     public boolean isEmailConfirmed() {
@@ -116,18 +158,41 @@ public class Participant {
 
 
     public void reduceReservedSeats(int numSpotsCancelled) {
+        checkChangeable();
         numberOfSeatsReserved-=numSpotsCancelled;
+        if (workshop != null) {
+            workshop.seatsChanged(this, -numSpotsCancelled);
+        }
     }
 
     public WorkshopReservation getWorkshopReservation() {
         return workshopReservation;
     }
 
+    void writeSnapshot(SnapshotOutput out) throws IOException {
+        out.writeValue(workshopReservation);
+        out.writeBoolean(emailConfirmed);
+        out.writeOffsetDateTime(confirmedAt);
+        out.writeInt(numberOfSeatsReserved);
+        out.writeBoolean(hasShownUp);
+    }
+
+    static Participant readSnapshot(SnapshotInput in, Workshop workshop) throws IOException {
+        WorkshopReservation workshopReservation = in.readValue();
+        Participant participant = new Participant(workshopReservation, workshop, false);
+        participant.emailConfirmed = in.readBoolean();
+        participant.confirmedAt = in.readOffsetDateTime();
+        participant.numberOfSeatsReserved = in.readInt();
+        participant.hasShownUp = in.readBoolean();
+        return participant;
+    }
+
     public boolean isHasShownUp() {
         return hasShownUp;
     }
 
     public Participant setHasShownUp(boolean hasShownUp) {
+        checkChangeable();
         this.hasShownUp = hasShownUp;
         return this;
     }
@@ -0,0 +1,247 @@
+package no.java.moosehead.projections;
+
+/**
+ * An immutable hash map. put and remove return a new map that shares everything but the path to the changed key
+ * with the old one, so the projection can publish its indexes after every event without copying them.
+ * Keys and values can not be null.
+ */
+final class PersistentMap<K, V> {
+    private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<>(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        return (V) root.get(0, key.hashCode(), key);
+    }
+
+    PersistentMap<K, V> put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Value can not be null");
+        }
+        boolean[] added = new boolean[1];
+        Node changed = root.put(0, key.hashCode(), key, value, added);
+        return changed == root ? this : new PersistentMap<>(changed, added[0] ? size + 1 : size);
+    }
+
+    PersistentMap<K, V> remove(Object key) {
+        Node changed = root.remove(0, key.hashCode(), key);
+        if (changed == root) {
+            return this;
+        }
+        return new PersistentMap<>(changed != null ? changed : BitmapNode.EMPTY, size - 1);
+    }
+
+    private interface Node {
+        Object get(int shift, int hash, Object key);
+
+        /**
+         * @return this if the key already had the value
+         */
+        Node put(int shift, int hash, Object key, Object value, boolean[] added);
+
+        /**
+         * @return this if the key was not there, or null if the node is left empty
+         */
+        Node remove(int shift, int hash, Object key);
+    }
+
+    /**
+     * Five bits of the hash on each level pick the slot. A slot holds a key followed by its value, or null followed
+     * by the node for the keys that share the slot.
+     */
+    private static final class BitmapNode implements Node {
+        private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        private BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        public Object get(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int index = index(bit);
+            Object existingKey = array[2 * index];
+            Object existing = array[2 * index + 1];
+            if (existingKey == null) {
+                return ((Node) existing).get(shift + 5, hash, key);
+            }
+            return key.equals(existingKey) ? existing : null;
+        }
+
+        @Override
+        public Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, 2 * index);
+                grown[2 * index] = key;
+                grown[2 * index + 1] = value;
+                System.arraycopy(array, 2 * index, grown, 2 * index + 2, array.length - 2 * index);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, grown);
+            }
+            Object existingKey = array[2 * index];
+            Object existing = array[2 * index + 1];
+            if (existingKey == null) {
+                Node node = ((Node) existing).put(shift + 5, hash, key, value, added);
+                return node == existing ? this : with(index, null, node);
+            }
+            if (key.equals(existingKey)) {
+                return value == existing ? this : with(index, existingKey, value);
+            }
+            added[0] = true;
+            return with(index, null, pair(shift + 5, existingKey.hashCode(), existingKey, existing, hash, key, value));
+        }
+
+        @Override
+        public Node remove(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object existingKey = array[2 * index];
+            Object existing = array[2 * index + 1];
+            if (existingKey == null) {
+                Node node = ((Node) existing).remove(shift + 5, hash, key);
+                if (node == existing) {
+                    return this;
+                }
+                if (node != null) {
+                    return with(index, null, node);
+                }
+            } else if (!key.equals(existingKey)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, 2 * index);
+            System.arraycopy(array, 2 * index + 2, shrunk, 2 * index, array.length - 2 * index - 2);
+            return new BitmapNode(bitmap ^ bit, shrunk);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private BitmapNode with(int index, Object key, Object value) {
+            Object[] changed = array.clone();
+            changed[2 * index] = key;
+            changed[2 * index + 1] = value;
+            return new BitmapNode(bitmap, changed);
+        }
+    }
+
+    /**
+     * The keys that have the same hash
+     */
+    private static final class CollisionNode implements Node {
+        private final int hash;
+        private final Object[] array;
+
+        private CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        public Object get(int shift, int hash, Object key) {
+            int index = hash == this.hash ? indexOf(key) : -1;
+            return index >= 0 ? array[index + 1] : null;
+        }
+
+        @Override
+        public Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                return new BitmapNode(bit(this.hash, shift), new Object[]{null, this}).put(shift, hash, key, value, added);
+            }
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (array[index + 1] == value) {
+                    return this;
+                }
+                Object[] changed = array.clone();
+                changed[index + 1] = value;
+                return new CollisionNode(hash, changed);
+            }
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            grown[array.length] = key;
+            grown[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, grown);
+        }
+
+        @Override
+        public Node remove(int shift, int hash, Object key) {
+            int index = hash == this.hash ? indexOf(key) : -1;
+            if (index < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, index);
+            System.arraycopy(array, index + 2, shrunk, index, array.length - index - 2);
+            return new CollisionNode(hash, shrunk);
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    /**
+     * A node holding two keys that end up in the same slot on the level above
+     */
+    private static Node pair(int shift, int hash1, Object key1, Object value1, int hash2, Object key2, Object value2) {
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+        }
+        int bit1 = bit(hash1, shift);
+        int bit2 = bit(hash2, shift);
+        if (bit1 == bit2) {
+            return new BitmapNode(bit1, new Object[]{null, pair(shift + 5, hash1, key1, value1, hash2, key2, value2)});
+        }
+        if (((hash1 >>> shift) & 31) < ((hash2 >>> shift) & 31)) {
+            return new BitmapNode(bit1 | bit2, new Object[]{key1, value1, key2, value2});
+        }
+        return new BitmapNode(bit1 | bit2, new Object[]{key2, value2, key1, value1});
+    }
+}
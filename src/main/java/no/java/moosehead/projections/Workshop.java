@@ -1,15 +1,40 @@
 package no.java.moosehead.projections;
 
+import no.java.moosehead.eventstore.snapshot.SnapshotInput;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
 import no.java.moosehead.repository.WorkshopData;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Confirmed participants get seats in the order they confirmed, the rest of them are on the waiting list.
+ * Seat totals, the position of each confirmed participant and where the seats run out are kept up to date on
+ * every change, so waitingListNumber does not have to walk the participants.
+ * The projection changes its workshops on one thread and hands frozen copies to readers, which can not be changed.
+ * A frozen copy holds the frozen state of each participant, which is shared with the copies before it until that
+ * participant changes.
+ */
 public class Workshop {
     private WorkshopData workshopData;
     private int numberOfSeats;
     private List<Participant> confirmed = new ArrayList<>();
     private List<Participant> notConfirmed = new ArrayList<>();
+    // The first position of each email in confirmed, as indexOf would find it
+    private Map<String, Integer> confirmedPositions = new HashMap<>();
+    private int confirmedSeats;
+    // The first fullIndex confirmed participants have a seat, and they have seatsWithinFullIndex seats together
+    private int fullIndex;
+    private int seatsWithinFullIndex;
+    // Built when asked for after a participant is added or removed
+    private volatile List<Participant> participantsView;
+    private boolean frozen;
+    // Built the first time a frozen copy is asked for a waiting list number
+    private volatile Map<String, Integer> frozenPositions;
 
     public Workshop(WorkshopData workshopData, int numberOfSeats) {
         this.workshopData = workshopData;
@@ -21,41 +46,65 @@ public class Workshop {
         return workshopData;
     }
 
+    /**
+     * The confirmed participants followed by the unconfirmed ones. The list can not be changed, and is shared
+     * between callers until a participant is added or removed.
+     */
     public List<Participant> getParticipants() {
-        List<Participant> all = new ArrayList<>(confirmed);
-        all.addAll(notConfirmed);
-        return all;
+        List<Participant> view = participantsView;
+        if (view == null) {
+            List<Participant> all = new ArrayList<>(confirmed.size() + notConfirmed.size());
+            all.addAll(confirmed);
+            all.addAll(notConfirmed);
+            if (frozen) {
+                all.replaceAll(participant -> participant.copyFor(this));
+            }
+            view = Collections.unmodifiableList(all);
+            participantsView = view;
+        }
+        return view;
     }
 
     public void addParticipant(Participant participant) {
+        checkNotFrozen();
         if (participant.isEmailConfirmed()) {
-            confirmed.add(participant);
+            addConfirmed(participant);
         } else {
             notConfirmed.add(participant);
         }
+        participantsView = null;
     }
 
     public int getNumberOfSeats() {
         return numberOfSeats;
     }
 
+    /**
+     * Seats reserved by participants that have confirmed their email, including those on the waiting list
+     */
+    public int getConfirmedSeats() {
+        return confirmedSeats;
+    }
+
 
     public void removeParticipant(String email) {
-        Participant dummy = Participant.dummyParticipant(email);
-        int pos = confirmed.indexOf(dummy);
-        if (pos == -1) {
-            pos = notConfirmed.indexOf(dummy);
-            if (pos == -1) {
+        checkNotFrozen();
+        Integer pos = confirmedPositions.get(email);
+        if (pos == null) {
+            int notConfirmedPos = notConfirmed.indexOf(Participant.dummyParticipant(email));
+            if (notConfirmedPos == -1) {
                 throw new IllegalArgumentException("Participant not found " + email);
             }
-            notConfirmed.remove(pos);
+            notConfirmed.remove(notConfirmedPos);
         } else {
-            confirmed.remove(pos);
+            removeConfirmed(pos);
         }
+        participantsView = null;
     }
 
     public void moveToConfirmed(Participant participant) {
-        if (confirmed.indexOf(participant) != -1) {
+        checkNotFrozen();
+        if (confirmedPositions.containsKey(participant.getWorkshopReservation().getEmail())) {
             return;
         }
         int pos = notConfirmed.indexOf(participant);
@@ -63,34 +112,155 @@ public class Workshop {
             throw new IllegalArgumentException("Participant not found when confirming " + participant.getWorkshopReservation().getEmail());
         }
         notConfirmed.remove(pos);
-        confirmed.add(participant);
+        addConfirmed(participant);
+        participantsView = null;
     }
 
+    /**
+     * @return 0 for a participant with a seat, the place on the waiting list, or -1 for one that has not confirmed
+     */
     public int waitingListNumber(Participant participant) {
-        int pos = confirmed.indexOf(participant);
-        if (pos < 0) {
+        Integer pos = positions().get(participant.getWorkshopReservation().getEmail());
+        if (pos == null) {
             return -1;
         }
+        // With a negative number of seats even the first participant is waiting
+        int full = numberOfSeats < 0 ? -1 : fullIndex;
+        if (pos < full) {
+            return 0;
+        } else {
+            return  pos + 1 - full;
+        }
+    }
 
-        // calculate the index where the workshop is full
-        int seatCounter=0;
-        int fullIndex=0;
-        for (;fullIndex<confirmed.size() && seatCounter <= numberOfSeats; fullIndex++) {
-            seatCounter+=confirmed.get(fullIndex).getNumberOfSeatsReserved();
+    public void updateSeats(int numberOfSeats) {
+        checkNotFrozen();
+        this.numberOfSeats = numberOfSeats;
+        moveFullIndex();
+    }
+
+    /**
+     * Called by the participant when the number of seats it has reserved changes
+     */
+    void seatsChanged(Participant participant, int difference) {
+        checkNotFrozen();
+        Integer pos = confirmedPositions.get(participant.getWorkshopReservation().getEmail());
+        if (pos == null || confirmed.get(pos) != participant) {
+            return;
+        }
+        confirmedSeats += difference;
+        if (pos < fullIndex) {
+            seatsWithinFullIndex += difference;
         }
+        moveFullIndex();
+    }
 
-        if (seatCounter > numberOfSeats) {
-            fullIndex--;
+    /**
+     * A copy that throws on any change. Only participants that changed since the last copy are copied, the rest
+     * share their frozen state with it. It is safe to read from other threads once it has been published through
+     * a volatile field.
+     */
+    Workshop frozenCopy() {
+        Workshop copy = new Workshop(workshopData, numberOfSeats);
+        copy.confirmed = new ArrayList<>(confirmed.size());
+        for (Participant participant : confirmed) {
+            copy.confirmed.add(participant.frozenState());
+        }
+        copy.notConfirmed = new ArrayList<>(notConfirmed.size());
+        for (Participant participant : notConfirmed) {
+            copy.notConfirmed.add(participant.frozenState());
+        }
+        copy.confirmedPositions = null;
+        copy.confirmedSeats = confirmedSeats;
+        copy.fullIndex = fullIndex;
+        copy.seatsWithinFullIndex = seatsWithinFullIndex;
+        copy.frozen = true;
+        return copy;
+    }
+
+    private Map<String, Integer> positions() {
+        if (!frozen) {
+            return confirmedPositions;
+        }
+        Map<String, Integer> positions = frozenPositions;
+        if (positions == null) {
+            positions = new HashMap<>(confirmed.size() * 2);
+            for (int i = 0; i < confirmed.size(); i++) {
+                positions.putIfAbsent(confirmed.get(i).getWorkshopReservation().getEmail(), i);
+            }
+            frozenPositions = positions;
         }
+        return positions;
+    }
+
+    void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Workshop " + workshopData.getId() + " is a published copy and can not be changed");
+        }
+    }
+
+    private void addConfirmed(Participant participant) {
+        confirmed.add(participant);
+        confirmedPositions.putIfAbsent(participant.getWorkshopReservation().getEmail(), confirmed.size() - 1);
+        confirmedSeats += participant.getNumberOfSeatsReserved();
+        moveFullIndex();
+    }
 
+    private void removeConfirmed(int pos) {
+        Participant removed = confirmed.get(pos);
+        // Everyone after the removed participant moves one position up
+        for (int i = pos; i < confirmed.size(); i++) {
+            confirmedPositions.remove(confirmed.get(i).getWorkshopReservation().getEmail(), i);
+        }
+        confirmed.remove(pos);
+        for (int i = pos; i < confirmed.size(); i++) {
+            confirmedPositions.putIfAbsent(confirmed.get(i).getWorkshopReservation().getEmail(), i);
+        }
+        confirmedSeats -= removed.getNumberOfSeatsReserved();
         if (pos < fullIndex) {
-            return 0;
-        } else {
-            return  pos + 1 - fullIndex;
+            fullIndex--;
+            seatsWithinFullIndex -= removed.getNumberOfSeatsReserved();
         }
+        moveFullIndex();
     }
 
-    public void updateSeats(int numberOfSeats) {
-        this.numberOfSeats = numberOfSeats;
+    /**
+     * Moves fullIndex to after the last confirmed participant that fits within the seats, counting from the first
+     */
+    private void moveFullIndex() {
+        while (fullIndex > 0 && seatsWithinFullIndex > numberOfSeats) {
+            fullIndex--;
+            seatsWithinFullIndex -= confirmed.get(fullIndex).getNumberOfSeatsReserved();
+        }
+        while (fullIndex < confirmed.size() && seatsWithinFullIndex + confirmed.get(fullIndex).getNumberOfSeatsReserved() <= numberOfSeats) {
+            seatsWithinFullIndex += confirmed.get(fullIndex).getNumberOfSeatsReserved();
+            fullIndex++;
+        }
+    }
+
+    void writeSnapshot(SnapshotOutput out) throws IOException {
+        out.writeValue(workshopData);
+        out.writeInt(numberOfSeats);
+        out.writeInt(confirmed.size());
+        for (Participant participant : confirmed) {
+            participant.writeSnapshot(out);
+        }
+        out.writeInt(notConfirmed.size());
+        for (Participant participant : notConfirmed) {
+            participant.writeSnapshot(out);
+        }
+    }
+
+    static Workshop readSnapshot(SnapshotInput in) throws IOException {
+        Workshop workshop = new Workshop(in.readValue(), in.readInt());
+        int confirmedSize = in.readInt();
+        for (int i = 0; i < confirmedSize; i++) {
+            workshop.addConfirmed(Participant.readSnapshot(in, workshop));
+        }
+        int notConfirmedSize = in.readInt();
+        for (int i = 0; i < notConfirmedSize; i++) {
+            workshop.notConfirmed.add(Participant.readSnapshot(in, workshop));
+        }
+        return workshop;
     }
 }
@@ -4,16 +4,183 @@ import no.java.moosehead.controller.SystemSetup;
 import no.java.moosehead.domain.WorkshopReservation;
 import no.java.moosehead.eventstore.*;
 import no.java.moosehead.eventstore.core.AbstractEvent;
-import no.java.moosehead.eventstore.core.EventSubscription;
+import no.java.moosehead.eventstore.core.PartitionedSubscription;
+import no.java.moosehead.eventstore.snapshot.SnapshotInput;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
+import no.java.moosehead.eventstore.snapshot.Snapshottable;
 import no.java.moosehead.repository.WorkshopData;
 
+import java.io.IOException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class WorkshopListProjection implements EventSubscription {
-    public List<Workshop> workshops = new ArrayList<Workshop>();
-    public Set<String> confirmedEmails = new HashSet<>();
+/**
+ * The workshops are changed by the thread handing over the events, and readers get frozen copies of them. After each
+ * event, or at the end of a batch, the workshops that changed are copied and published together with the rest as
+ * one immutable Published, so readers never lock and always see every workshop as of the same revision. Only the
+ * participants that changed are copied, and Published keeps the copies and its indexes in persistent maps, so
+ * publishing costs as much as what changed, not the size of the projection.
+ */
+public class WorkshopListProjection implements PartitionedSubscription, Snapshottable {
+    private static class Published {
+        private static final Published EMPTY = new Published(Collections.emptyList(), PersistentMap.empty(), PersistentMap.empty(),
+                PersistentMap.empty(), PersistentMap.empty(), 0);
 
+        // The workshops the projection changes, in order, which is only copied when a workshop is added
+        private final List<Workshop> order;
+        // The frozen copy of each of them, which the next Published shares unless the workshop changes
+        private final PersistentMap<Workshop, Workshop> copies;
+        private final PersistentMap<String, Workshop> workshopsById;
+        // The frozen state of the participants, as found by token and by emailKey
+        private final PersistentMap<String, Participant> participantsByToken;
+        private final PersistentMap<String, List<Participant>> participantsByEmailKey;
+        private final long revisionId;
+        // Built when first asked for
+        private volatile List<Workshop> workshops;
+
+        private Published(List<Workshop> order, PersistentMap<Workshop, Workshop> copies, PersistentMap<String, Workshop> workshopsById,
+                          PersistentMap<String, Participant> participantsByToken, PersistentMap<String, List<Participant>> participantsByEmailKey,
+                          long revisionId) {
+            this.order = order;
+            this.copies = copies;
+            this.workshopsById = workshopsById;
+            this.participantsByToken = participantsByToken;
+            this.participantsByEmailKey = participantsByEmailKey;
+            this.revisionId = revisionId;
+        }
+
+        private List<Workshop> workshops() {
+            List<Workshop> result = workshops;
+            if (result == null) {
+                List<Workshop> frozen = new ArrayList<>(order.size());
+                order.forEach(workshop -> frozen.add(copies.get(workshop)));
+                result = Collections.unmodifiableList(frozen);
+                workshops = result;
+            }
+            return result;
+        }
+
+        /**
+         * The frozen state of a participant as part of the published copy of its workshop
+         */
+        private Participant view(Participant frozenState) {
+            return frozenState.copyFor(copies.get(frozenState.getWorkshop()));
+        }
+    }
+
+    private List<Workshop> workshops = new ArrayList<Workshop>();
+    private Set<String> confirmedEmails = ConcurrentHashMap.newKeySet();
+    // Indexes over workshops and their participants. The lists are replaced, never changed, as workshops are played back in parallel
+    private Map<String, Workshop> workshopsById = new ConcurrentHashMap<>();
+    private Map<String, List<Participant>> participantsByEmail = new ConcurrentHashMap<>();
+    private Map<String, Participant> participantsByToken = new ConcurrentHashMap<>();
+    // Emails are also keyed by emailKey, so myReservations finds them however they are typed
+    private Map<String, List<Participant>> participantsByEmailKey = new ConcurrentHashMap<>();
+    // What changed since the last publish. The sets are replaced rather than cleared, as a
+    // ConcurrentHashMap does not shrink and is walked in full, and a snapshot or long batch changes every participant
+    private Set<Workshop> changed = ConcurrentHashMap.newKeySet();
+    private Set<String> changedTokens = ConcurrentHashMap.newKeySet();
+    private Set<String> changedEmailKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicLong lastRevisionId = new AtomicLong();
+    private boolean inBatch;
+    private volatile Published published = Published.EMPTY;
+
+    @Override
+    public int snapshotVersion() {
+        return 1;
+    }
+
+    @Override
+    public void writeSnapshot(SnapshotOutput out) throws IOException {
+        out.writeInt(workshops.size());
+        for (Workshop workshop : workshops) {
+            workshop.writeSnapshot(out);
+        }
+        out.writeStrings(confirmedEmails);
+    }
+
+    @Override
+    public void readSnapshot(SnapshotInput in) throws IOException {
+        int size = in.readInt();
+        workshops = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            workshops.add(Workshop.readSnapshot(in));
+        }
+        confirmedEmails = ConcurrentHashMap.newKeySet();
+        in.readStrings(confirmedEmails);
+        workshopsById = new ConcurrentHashMap<>();
+        participantsByEmail = new ConcurrentHashMap<>();
+        participantsByToken = new ConcurrentHashMap<>();
+        participantsByEmailKey = new ConcurrentHashMap<>();
+        published = Published.EMPTY;
+        for (Workshop workshop : workshops) {
+            workshopsById.putIfAbsent(workshop.getWorkshopData().getId(), workshop);
+            for (Participant participant : workshop.getParticipants()) {
+                index(participant);
+                participantChanged(participant);
+            }
+        }
+        changed.addAll(workshops);
+        publish();
+    }
+
+    private void index(Participant participant) {
+        WorkshopReservation reservation = participant.getWorkshopReservation();
+        participantsByEmail.compute(reservation.getEmail(), (email, indexed) -> added(indexed, participant));
+        participantsByEmailKey.compute(emailKey(reservation.getEmail()), (key, indexed) -> added(indexed, participant));
+        if (reservation.getReservationToken() != null) {
+            participantsByToken.putIfAbsent(reservation.getReservationToken(), participant);
+        }
+    }
+
+    private void unindex(Participant participant) {
+        WorkshopReservation reservation = participant.getWorkshopReservation();
+        participantsByEmail.computeIfPresent(reservation.getEmail(), (email, indexed) -> removed(indexed, participant));
+        participantsByEmailKey.computeIfPresent(emailKey(reservation.getEmail()), (key, indexed) -> removed(indexed, participant));
+        if (reservation.getReservationToken() != null) {
+            participantsByToken.remove(reservation.getReservationToken(), participant);
+        }
+    }
+
+    private static List<Participant> added(List<Participant> indexed, Participant participant) {
+        List<Participant> participants = indexed != null ? new ArrayList<>(indexed) : new ArrayList<>();
+        participants.add(participant);
+        return participants;
+    }
+
+    private static List<Participant> removed(List<Participant> indexed, Participant participant) {
+        List<Participant> participants = new ArrayList<>(indexed);
+        participants.removeIf(other -> other == participant);
+        return participants.isEmpty() ? null : participants;
+    }
+
+    /**
+     * Marks the participant, its workshop and what finds it for the next publish
+     */
+    private void participantChanged(Participant participant) {
+        changed.add(participant.getWorkshop());
+        WorkshopReservation reservation = participant.getWorkshopReservation();
+        if (reservation.getReservationToken() != null) {
+            changedTokens.add(reservation.getReservationToken());
+        }
+        changedEmailKeys.add(emailKey(reservation.getEmail()));
+    }
+
+    /**
+     * Events that change confirmed emails, the list of workshops or a participant found by token are handled alone.
+     * The others only change their own workshop and the indexes.
+     */
+    @Override
+    public Optional<String> replayPartition(AbstractEvent event) {
+        if (event instanceof WorkshopAddedEvent || event instanceof EmailConfirmedByUser || event instanceof ShowUpRegisteredByAdmin) {
+            return Optional.empty();
+        }
+        if (event instanceof ReservationAddedByUser && reservingWithGoogle((ReservationAddedByUser) event)) {
+            return Optional.empty();
+        }
+        return Optional.of(EventStreams.streamId(event).orElse(""));
+    }
 
     @Override
     public void eventAdded(AbstractEvent event) {
@@ -30,24 +197,87 @@ public class WorkshopListProjection implements EventSubscription {
         } else if (event instanceof WorkshopSizeChangedByAdmin) {
             handleWorkshopSizeChanged((WorkshopSizeChangedByAdmin) event);
         }
+        lastRevisionId.accumulateAndGet(event.getRevisionId(), Math::max);
+        if (!inBatch) {
+            publish();
+        }
+    }
+
+    @Override
+    public void batchStarted() {
+        inBatch = true;
+    }
+
+    @Override
+    public void batchEnded() {
+        inBatch = false;
+        publish();
+    }
+
+    /**
+     * Copies the workshops changed since the last time and publishes them with the unchanged copies, and updates
+     * the indexes for the participants that changed. The copies are made first, so the indexes get the same frozen
+     * state of each participant as the copy of its workshop.
+     */
+    private void publish() {
+        Published current = published;
+        List<Workshop> order = current.order.size() == workshops.size() ? current.order : Collections.unmodifiableList(new ArrayList<>(workshops));
+        PersistentMap<Workshop, Workshop> copies = current.copies;
+        PersistentMap<String, Workshop> publishedById = current.workshopsById;
+        for (Workshop workshop : changed) {
+            Workshop copy = workshop.frozenCopy();
+            copies = copies.put(workshop, copy);
+            String workshopId = workshop.getWorkshopData().getId();
+            if (workshopId != null && workshopsById.get(workshopId) == workshop) {
+                publishedById = publishedById.put(workshopId, copy);
+            }
+        }
+        changed = ConcurrentHashMap.newKeySet();
+
+        PersistentMap<String, Participant> publishedByToken = current.participantsByToken;
+        for (String token : changedTokens) {
+            Participant participant = participantsByToken.get(token);
+            publishedByToken = participant != null ? publishedByToken.put(token, participant.frozenState()) : publishedByToken.remove(token);
+        }
+        changedTokens = ConcurrentHashMap.newKeySet();
+        PersistentMap<String, List<Participant>> publishedByEmailKey = current.participantsByEmailKey;
+        for (String key : changedEmailKeys) {
+            List<Participant> participants = participantsByEmailKey.get(key);
+            if (participants == null) {
+                publishedByEmailKey = publishedByEmailKey.remove(key);
+            } else {
+                List<Participant> frozenStates = new ArrayList<>(participants.size());
+                participants.forEach(participant -> frozenStates.add(participant.frozenState()));
+                publishedByEmailKey = publishedByEmailKey.put(key, frozenStates);
+            }
+        }
+        changedEmailKeys = ConcurrentHashMap.newKeySet();
+
+        published = new Published(order, copies, publishedById, publishedByToken, publishedByEmailKey, lastRevisionId.get());
+    }
+
+    /**
+     * The highest revision id in what readers see, which changes whenever an event may have changed the workshops
+     */
+    public long getLastRevisionId() {
+        return published.revisionId;
     }
 
     private void handleWorkshopSizeChanged(WorkshopSizeChangedByAdmin workshopSizeChangedByAdmin) {
         Workshop workshop = findWorkshop(workshopSizeChangedByAdmin.getWorkshopid());
         workshop.updateSeats(workshopSizeChangedByAdmin.getNumspaces());
+        changed.add(workshop);
     }
 
     private void handleShowUp(ShowUpRegisteredByAdmin showUpRegisteredByAdmin) {
-        Optional<Participant> participantOptional = workshops.stream()
-                .flatMap(ws -> ws.getParticipants().stream())
-                .filter(part -> showUpRegisteredByAdmin.getReservationToken()
-                        .equals(Optional.ofNullable(part.getWorkshopReservation()).map(WorkshopReservation::getReservationToken).orElse(null)))
-                .findAny();
+        Optional<Participant> participantOptional = Optional.ofNullable(showUpRegisteredByAdmin.getReservationToken())
+                .map(participantsByToken::get);
         if (!participantOptional.isPresent()) {
             System.out.println("Warning did not find reservation with token " + showUpRegisteredByAdmin.getReservationToken() + ". Ignoring");
             return;
         }
         participantOptional.get().setHasShownUp(showUpRegisteredByAdmin.isShownUp());
+        participantChanged(participantOptional.get());
     }
 
     private void handleWorkshopAdded(WorkshopAddedEvent workshopAdded) {
@@ -63,32 +293,37 @@ public class WorkshopListProjection implements EventSubscription {
             }
             workshopData = workshopDataOptional.get();
         }
-        workshops.add(new Workshop(workshopData, workshopAdded.getNumberOfSeats()));
+        Workshop workshop = new Workshop(workshopData, workshopAdded.getNumberOfSeats());
+        workshops.add(workshop);
+        workshopsById.putIfAbsent(workshopData.getId(), workshop);
+        changed.add(workshop);
     }
 
     private void handleEmailConfirmedByUser(EmailConfirmedByUser emailConfirmedByUser) {
-        List<Participant> toConfirm = workshops.stream()
-                .flatMap(ws -> ws.getParticipants().stream())
-                .filter(participant -> participant.getWorkshopReservation().getEmail().equals(emailConfirmedByUser.getEmail()))
-                .collect(Collectors.toList());
+        List<Participant> toConfirm = participantsByEmail.getOrDefault(emailConfirmedByUser.getEmail(), Collections.emptyList());
 
         for (Participant part : toConfirm) {
             part.confirmEmail(emailConfirmedByUser);
+            participantChanged(part);
         }
         confirmedEmails.add(emailConfirmedByUser.getEmail());
     }
 
     private void handleReservationCancelled(AbstractReservationCancelled reservationCancelled) {
         Workshop workshop = findWorkshop(reservationCancelled.getWorkshopId());
-        Optional<Participant> participantOptional = workshop.getParticipants().stream()
-                .filter(participant -> participant.getWorkshopReservation().getEmail().equals(reservationCancelled.getEmail()))
-                .findAny();
+        // A confirmed participant first, as that is the one removeParticipant removes
+        Optional<Participant> participantOptional = participantsByEmail.getOrDefault(reservationCancelled.getEmail(), Collections.emptyList()).stream()
+                .filter(participant -> reservationCancelled.getWorkshopId().equals(participant.getWorkshopId()))
+                .sorted(Comparator.comparing(participant -> !participant.isEmailConfirmed()))
+                .findFirst();
         if (!participantOptional.isPresent()) {
             return;
         }
         Participant participant = participantOptional.get();
+        participantChanged(participant);
         if (participant.getNumberOfSeatsReserved() == reservationCancelled.getNumSpotsCancelled() || reservationCancelled.getNumSpotsCancelled() == 0) {
             workshop.removeParticipant(reservationCancelled.getEmail());
+            unindex(participant);
         } else {
             participant.reduceReservedSeats(reservationCancelled.getNumSpotsCancelled());
         }
@@ -115,6 +350,8 @@ public class WorkshopListProjection implements EventSubscription {
             participant = Participant.confirmedParticipant(reservationAdded, workshop);
         }
         workshop.addParticipant(participant);
+        index(participant);
+        participantChanged(participant);
     }
 
     private boolean reservingWithGoogle(ReservationAddedByUser reservationAddedByUser) {
@@ -123,41 +360,57 @@ public class WorkshopListProjection implements EventSubscription {
     }
 
     private boolean hasConfirmedBefore(AbstractReservationAdded reservationAdded) {
-        Optional<String> confirmedPart = confirmedEmails.stream()
-                .filter(email -> email.equals(reservationAdded.getEmail()))
-                .findAny();
-
-        return confirmedPart.isPresent();
+        return confirmedEmails.contains(reservationAdded.getEmail());
     }
 
     private Workshop findWorkshop(String workshopId) {
-        Optional<Workshop> optWs = workshops.stream().filter(ws -> ws.getWorkshopData().getId().equals(workshopId)).findFirst();
-        if (!optWs.isPresent()) {
+        Workshop workshop = workshopId != null ? workshopsById.get(workshopId) : null;
+        if (workshop == null) {
             throw new IllegalArgumentException("No workshop with id " + workshopId);
         }
-        return optWs.get();
+        return workshop;
+    }
+
+    public Optional<Workshop> workshopById(String workshopId) {
+        PersistentMap<String, Workshop> publishedById = published.workshopsById;
+        return Optional.ofNullable(workshopId).map(publishedById::get);
     }
 
     public boolean isEmailConfirmed(String email) {
         return confirmedEmails.contains(email);
     }
 
+    /**
+     * The published workshops, which can not be changed
+     */
     public List<Workshop> getWorkshops() {
-        return new ArrayList<>(workshops);
+        return published.workshops();
     }
 
     public Optional<Participant> findByReservationToken(String reservationToken) {
-        Optional<Participant>  op = workshops.stream()
-                .flatMap(ws -> ws.getParticipants().stream())
-                .filter(pa -> pa.getWorkshopReservation().getReservationToken().equals(reservationToken))
-                .findFirst();
-        return op;
+        if (reservationToken == null) {
+            return Optional.empty();
+        }
+        Published current = published;
+        return Optional.ofNullable(current.participantsByToken.get(reservationToken)).map(current::view);
     }
+
+    /**
+     * The reservations of an email in the published workshops, in the order they were made. Case and surrounding
+     * whitespace in the email do not matter.
+     */
     public List<Participant> findAllReservations(String email) {
-        return workshops.stream()
-                .flatMap(ws -> ws.getParticipants().stream())
-                .filter(pa -> pa.getWorkshopReservation().getEmail().equals(email))
-                .collect(Collectors.toList());
+        Published current = published;
+        List<Participant> frozenStates = current.participantsByEmailKey.get(emailKey(email));
+        List<Participant> reservations = new ArrayList<>();
+        if (frozenStates != null) {
+            frozenStates.forEach(frozenState -> reservations.add(current.view(frozenState)));
+            reservations.sort(Comparator.comparingLong(participant -> participant.getWorkshopReservation().getRevisionId()));
+        }
+        return reservations;
     }
-}
 
+    static String emailKey(String email) {
+        return email != null ? email.trim().toLowerCase(Locale.ROOT) : "";
+    }
+}
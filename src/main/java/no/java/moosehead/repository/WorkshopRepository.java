@@ -8,6 +8,9 @@ import no.java.moosehead.commands.WorkshopTypeEnum;
 import no.java.moosehead.eventstore.WorkshopAddedEvent;
 import no.java.moosehead.eventstore.core.AbstractEvent;
 import no.java.moosehead.eventstore.core.EventSubscription;
+import no.java.moosehead.eventstore.snapshot.SnapshotInput;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
+import no.java.moosehead.eventstore.snapshot.Snapshottable;
 import no.java.moosehead.web.Configuration;
 
 import java.io.*;
@@ -16,10 +19,13 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
-public class WorkshopRepository implements EventSubscription {
+public class WorkshopRepository implements EventSubscription, Snapshottable {
+    // Read by the workshop list projection, which may be played back on another thread
     private List<WorkshopData> workshops;
+    private int workshopsFromEms;
 
     public WorkshopRepository() {
         List<Item> items = readItems();
@@ -65,7 +71,8 @@ public class WorkshopRepository implements EventSubscription {
                     }
                 })
                 .collect(Collectors.toList());
-        workshops = new ArrayList<>(emsWorkshops);
+        workshops = new CopyOnWriteArrayList<>(emsWorkshops);
+        workshopsFromEms = workshops.size();
     }
 
     private List<Item> readItems() {
@@ -124,6 +131,32 @@ public class WorkshopRepository implements EventSubscription {
         return allWorkshops().stream().filter(wi -> wi.getId().equals(id)).findFirst();
     }
 
+    @Override
+    public int snapshotVersion() {
+        return 1;
+    }
+
+    /**
+     * Only workshops added by events are in the snapshot. The ones from EMS are read again at startup
+     */
+    @Override
+    public void writeSnapshot(SnapshotOutput out) throws IOException {
+        List<WorkshopData> fromEvents = workshops.subList(workshopsFromEms, workshops.size());
+        out.writeInt(fromEvents.size());
+        for (WorkshopData workshopData : fromEvents) {
+            out.writeValue(workshopData);
+        }
+    }
+
+    @Override
+    public void readSnapshot(SnapshotInput in) throws IOException {
+        workshops.subList(workshopsFromEms, workshops.size()).clear();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            workshops.add(in.readValue());
+        }
+    }
+
     @Override
     public void eventAdded(AbstractEvent event) {
         if (event instanceof WorkshopAddedEvent) {
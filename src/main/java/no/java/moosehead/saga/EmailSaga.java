@@ -4,13 +4,17 @@ import no.java.moosehead.controller.SystemSetup;
 import no.java.moosehead.eventstore.*;
 import no.java.moosehead.eventstore.core.AbstractEvent;
 import no.java.moosehead.eventstore.core.EventSubscription;
+import no.java.moosehead.eventstore.snapshot.SnapshotInput;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
+import no.java.moosehead.eventstore.snapshot.Snapshottable;
 import no.java.moosehead.eventstore.system.SystemBootstrapDone;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.stream.Collectors;
 
 
-public class EmailSaga implements EventSubscription {
+public class EmailSaga implements EventSubscription, Snapshottable {
     private static class ReservationInfo {
         private final ReservationAddedByUser res;
         private int spacesReserved;
@@ -46,10 +50,76 @@ public class EmailSaga implements EventSubscription {
     }
 
     private boolean sagaIsInitialized = false;
-    private List<ReservationInfo> unconfirmedReservations = new ArrayList<>();
+    // Unconfirmed reservations by email, in the order the emails first reserved
+    private Map<String, List<ReservationInfo>> unconfirmedReservations = new LinkedHashMap<>();
     private Set<String> confirmedEmails = new HashSet<>();
     private Map<String,WorkshopReservationInfo> participants = new HashMap<>();
 
+    @Override
+    public int snapshotVersion() {
+        return 1;
+    }
+
+    /**
+     * Whether the saga is initialized is not part of the snapshot. It is always set by the SystemBootstrapDone
+     * event after playback.
+     */
+    @Override
+    public void writeSnapshot(SnapshotOutput out) throws IOException {
+        List<ReservationInfo> unconfirmed = new ArrayList<>();
+        unconfirmedReservations.values().forEach(unconfirmed::addAll);
+        writeReservations(out, unconfirmed);
+        out.writeStrings(confirmedEmails);
+        List<String> workshopIds = new ArrayList<>(participants.keySet());
+        Collections.sort(workshopIds);
+        out.writeInt(workshopIds.size());
+        for (String workshopId : workshopIds) {
+            WorkshopReservationInfo info = participants.get(workshopId);
+            out.writeUTF(workshopId);
+            out.writeInt(info.spacesLeft);
+            out.writeInt(info.totalSize);
+            writeReservations(out, info.spaces);
+            writeReservations(out, info.waitingList);
+        }
+    }
+
+    @Override
+    public void readSnapshot(SnapshotInput in) throws IOException {
+        List<ReservationInfo> unconfirmed = new ArrayList<>();
+        readReservations(in, unconfirmed);
+        unconfirmedReservations = new LinkedHashMap<>();
+        unconfirmed.forEach(this::addUnconfirmed);
+        confirmedEmails = new HashSet<>();
+        in.readStrings(confirmedEmails);
+        participants = new HashMap<>();
+        int workshops = in.readInt();
+        for (int i = 0; i < workshops; i++) {
+            String workshopId = in.readUTF();
+            WorkshopReservationInfo info = new WorkshopReservationInfo(in.readInt());
+            info.totalSize = in.readInt();
+            readReservations(in, info.spaces);
+            readReservations(in, info.waitingList);
+            participants.put(workshopId, info);
+        }
+    }
+
+    private void writeReservations(SnapshotOutput out, List<ReservationInfo> reservations) throws IOException {
+        out.writeInt(reservations.size());
+        for (ReservationInfo reservationInfo : reservations) {
+            out.writeValue(reservationInfo.res);
+            out.writeInt(reservationInfo.spacesReserved);
+        }
+    }
+
+    private void readReservations(SnapshotInput in, List<ReservationInfo> into) throws IOException {
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            ReservationInfo reservationInfo = new ReservationInfo(in.readValue());
+            reservationInfo.spacesReserved = in.readInt();
+            into.add(reservationInfo);
+        }
+    }
+
     private boolean addParticipant(ReservationInfo res) {
         WorkshopReservationInfo workshopReservationInfo = participants.get(res.res.getWorkshopId());
         boolean waitingList = (!workshopReservationInfo.waitingList.isEmpty()) ||
@@ -67,6 +137,20 @@ public class EmailSaga implements EventSubscription {
 
 
 
+    /**
+     * The instance that added the event has sent the emails for it
+     */
+    @Override
+    public void eventAddedByOtherInstance(AbstractEvent event) {
+        boolean wasInitialized = sagaIsInitialized;
+        sagaIsInitialized = false;
+        try {
+            eventAdded(event);
+        } finally {
+            sagaIsInitialized = wasInitialized;
+        }
+    }
+
     @Override
     public void eventAdded(AbstractEvent event) {
         if(event instanceof SystemBootstrapDone) {
@@ -85,7 +169,7 @@ public class EmailSaga implements EventSubscription {
             }
             boolean emailIsConfirmed = confirmedEmails.contains(res.getEmail());
             if (!emailIsConfirmed) {
-                unconfirmedReservations.add(new ReservationInfo(res));
+                addUnconfirmed(new ReservationInfo(res));
                 if (sagaIsInitialized) {
                     emailSender.sendEmailConfirmation(res.getEmail(), res.getReservationToken() ,res.getWorkshopId());
                 }
@@ -103,13 +187,11 @@ public class EmailSaga implements EventSubscription {
         }
         if (event instanceof EmailConfirmedByUser) {
             EmailConfirmedByUser emailConfirmedByUser = (EmailConfirmedByUser) event;
-            List<ReservationInfo> toConfirm = unconfirmedReservations.stream()
-                    .filter(res -> res.res.getEmail().equals(emailConfirmedByUser.getEmail()))
-                    .collect(Collectors.toList());
+            List<ReservationInfo> toConfirm = unconfirmedReservations.getOrDefault(emailConfirmedByUser.getEmail(), Collections.emptyList());
+            unconfirmedReservations.remove(emailConfirmedByUser.getEmail());
 
             EmailSender emailSender = SystemSetup.instance().emailSender();
             for (ReservationInfo reservationInfo : toConfirm) {
-                unconfirmedReservations.remove(reservationInfo);
                 boolean isWaiting = addParticipant(reservationInfo);
                 if (sagaIsInitialized) {
                     if (isWaiting) {
@@ -125,7 +207,7 @@ public class EmailSaga implements EventSubscription {
             ReservationCancelledByUser cancelledByUser = (ReservationCancelledByUser) event;
             Optional<ReservationInfo> reservation = findUnconfirmedReservation(cancelledByUser.getEmail(),cancelledByUser.getWorkshopId());
             if (reservation.isPresent()) {
-                unconfirmedReservations.remove(reservation.get());
+                removeUnconfirmed(reservation.get());
                 if (sagaIsInitialized) {
                     EmailSender emailSender = SystemSetup.instance().emailSender();
                     emailSender.sendCancellationConfirmation(cancelledByUser.getEmail(), cancelledByUser.getWorkshopId());
@@ -227,11 +309,23 @@ public class EmailSaga implements EventSubscription {
 
 
     private Optional<ReservationInfo> findUnconfirmedReservation(String enail,String workshopid) {
-        return unconfirmedReservations.stream()
-                        .filter(ur -> ur.res.getEmail().equals(enail) && ur.res.getWorkshopId().equals(workshopid))
+        return unconfirmedReservations.getOrDefault(enail, Collections.emptyList()).stream()
+                        .filter(ur -> ur.res.getWorkshopId().equals(workshopid))
                         .findAny();
     }
 
+    private void addUnconfirmed(ReservationInfo reservationInfo) {
+        unconfirmedReservations.computeIfAbsent(reservationInfo.res.getEmail(), email -> new ArrayList<>()).add(reservationInfo);
+    }
+
+    private void removeUnconfirmed(ReservationInfo reservationInfo) {
+        List<ReservationInfo> forEmail = unconfirmedReservations.get(reservationInfo.res.getEmail());
+        forEmail.remove(reservationInfo);
+        if (forEmail.isEmpty()) {
+            unconfirmedReservations.remove(reservationInfo.res.getEmail());
+        }
+    }
+
     private int indexOfReservation(List<ReservationInfo> reservationAddedByUsers, String email) {
         for (int i=0;i<reservationAddedByUsers.size();i++) {
             if (email.equals(reservationAddedByUsers.get(i).res.getEmail())) {
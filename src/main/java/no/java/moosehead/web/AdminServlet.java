@@ -8,6 +8,7 @@ import no.java.moosehead.commands.AuthorEnum;
 import no.java.moosehead.commands.WorkshopTypeEnum;
 import no.java.moosehead.controller.SystemSetup;
 import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.metrics.Metrics;
 import no.java.moosehead.projections.Participant;
 import no.java.moosehead.repository.WorkshopData;
 import no.java.moosehead.saga.EmailSender;
@@ -76,11 +77,15 @@ public class AdminServlet  extends HttpServlet {
             printAllInfo(resp);
         } else if ("/duplreservations".equals(req.getPathInfo())) {
             printDuplicate(resp);
+        } else if ("/metrics".equals(req.getPathInfo())) {
+            resp.setContentType("text/json");
+            Metrics.toJson().toJson(resp.getWriter());
         } else  {
             resp.getWriter().print("" +
                     "<html>Protected Admin API:<ul>" +
                     "   <li>/workshopList</li>" +
                     "   <li>/workshop?workshopid=[workshopid]</li>" +
+                    "   <li>/metrics</li>" +
                     "</html>");
         }
     }
@@ -402,19 +407,19 @@ public class AdminServlet  extends HttpServlet {
         resp.setContentType("text/json");
         List<JsonObject> report = new ArrayList<>();
         List<WorkshopInfo> workshops = participantApi.workshops();
+        List<Set<String>> withSeat = workshops.stream()
+                .map(ws -> ws.getParticipants().stream()
+                        .filter(pa -> (pa.isEmailConfirmed() && !pa.isWaiting()))
+                        .map(pa -> pa.getWorkshopReservation().getEmail())
+                        .collect(Collectors.toCollection(LinkedHashSet::new)))
+                .collect(Collectors.toList());
         for (int i=0;i<workshops.size()-1;i++) {
             WorkshopInfo a = workshops.get(i);
             for (int j=i+1;j<workshops.size();j++) {
                 WorkshopInfo b = workshops.get(j);
-                List<String> duplicates = a.getParticipants().stream()
-                        .filter(pa -> (pa.isEmailConfirmed() && !pa.isWaiting()))
-                        .filter(ap -> {
-                            return b.getParticipants().stream()
-                                    .filter(pa -> (pa.isEmailConfirmed() && !pa.isWaiting()))
-                                    .filter(bp -> ap.getWorkshopReservation().getEmail().equals(bp.getWorkshopReservation().getEmail()))
-                                    .findAny().isPresent();
-                        })
-                        .map(pa -> pa.getWorkshopReservation().getEmail())
+                Set<String> inB = withSeat.get(j);
+                List<String> duplicates = withSeat.get(i).stream()
+                        .filter(inB::contains)
                         .collect(Collectors.toList());
                 JsonObject duplReport = JsonFactory.jsonObject();
                 duplReport.put("wsa", a.getId());
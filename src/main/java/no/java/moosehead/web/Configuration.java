@@ -1,5 +1,7 @@
 package no.java.moosehead.web;
 
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.SegmentedEventLog;
 import no.java.moosehead.saga.EmailSender;
 
 import java.io.*;
@@ -169,6 +171,44 @@ public class Configuration {
         return readConf("eventstoreFilename", null);
     }
 
+    /**
+     * Write and sync the events of the file eventstore in batches on one thread. Events are handed to the subscribers
+     * once their batch is synced
+     */
+    public static boolean eventstoreGroupCommit() {
+        return "true".equals(readConf("eventstoreGroupCommit", "false"));
+    }
+
+    public static boolean eventstoreSegmented() {
+        return "true".equals(readConf("eventstoreSegmented", "false"));
+    }
+
+    public static int eventstoreSegmentSize() {
+        return Integer.parseInt(readConf("eventstoreSegmentSize", String.valueOf(SegmentedEventLog.DEFAULT_SEGMENT_SIZE)));
+    }
+
+    /**
+     * Number of events between each snapshot. Off (0) unless set, as a snapshot is taken on the thread adding the event
+     */
+    public static int snapshotInterval() {
+        return Integer.parseInt(readConf("snapshotInterval", "0"));
+    }
+
+    /**
+     * Let the workshop list projection and the email saga handle events on their own threads
+     */
+    public static boolean asyncSubscribers() {
+        return "true".equals(readConf("asyncSubscribers", "false"));
+    }
+
+    public static int subscriberQueueSize() {
+        return Integer.parseInt(readConf("subscriberQueueSize", "10000"));
+    }
+
+    public static EventLogFormat eventstoreFormat() {
+        return EventLogFormat.fromConfig(readConf("eventstoreFormat", "text"));
+    }
+
     public static String dbServer() {
         return readConf("dbServer", "localhost");
     }
@@ -194,6 +234,94 @@ public class Configuration {
         return Integer.parseInt(readConf("maxDbConnections","10"));
     }
 
+    /**
+     * Number of rows fetched at a time when the events are loaded at startup
+     */
+    public static int dbFetchSize() {
+        return Integer.parseInt(readConf("dbFetchSize", "1000"));
+    }
+
+    /**
+     * Queue events and insert them in batches on a writer thread instead of one insert per event
+     */
+    public static boolean dbWriteBehind() {
+        return "true".equals(readConf("dbWriteBehind", "false"));
+    }
+
+    public static int dbWriteBatchSize() {
+        return Integer.parseInt(readConf("dbWriteBatchSize", "500"));
+    }
+
+    public static long dbWriteLingerMillis() {
+        return Long.parseLong(readConf("dbWriteLingerMillis", "2"));
+    }
+
+    /**
+     * Read events that other instances add to the database, so several instances can run against the same database
+     */
+    public static boolean dbTailing() {
+        return "true".equals(readConf("dbTailing", "false"));
+    }
+
+    /**
+     * How often the event table is read when no notification arrives
+     */
+    public static long dbTailPollMillis() {
+        return Long.parseLong(readConf("dbTailPollMillis", "1000"));
+    }
+
+    /**
+     * How long an insert may take to commit after its revision id was handed out. Events committed later than this
+     * below the newest revision seen are not read by other instances.
+     */
+    public static long dbTailSettleMillis() {
+        return Long.parseLong(readConf("dbTailSettleMillis", "5000"));
+    }
+
+    /**
+     * Number of locks that commands for different workshops or emails are spread over
+     */
+    public static int commandLockStripes() {
+        return Integer.parseInt(readConf("commandLockStripes", "64"));
+    }
+
+    /**
+     * How many client request ids are remembered to answer retried reservations, cancellations and confirmations
+     */
+    public static int idempotencyCacheSize() {
+        return Integer.parseInt(readConf("idempotencyCacheSize", "10000"));
+    }
+
+    /**
+     * How many times a command is tried when another instance changes the same stream at the same time
+     */
+    public static int appendAttempts() {
+        return Integer.parseInt(readConf("appendAttempts", "3"));
+    }
+
+    /**
+     * Reservations are queued and decided in batches on one thread, and the batch waits for one write
+     */
+    public static boolean reservationBatching() {
+        return "true".equals(readConf("reservationBatching", "false"));
+    }
+
+    public static int reservationBatchSize() {
+        return Integer.parseInt(readConf("reservationBatchSize", "200"));
+    }
+
+    public static long reservationBatchLingerMillis() {
+        return Long.parseLong(readConf("reservationBatchLingerMillis", "0"));
+    }
+
+    /**
+     * Threads used to play back events at startup, 0 for one per core. With 1 the events are played back one by one
+     */
+    public static int replayThreads() {
+        int threads = Integer.parseInt(readConf("replayThreads", "1"));
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
     public static boolean cleanDb() {
         return "true".equals(readConf("cleanDb","false"));
     }
@@ -5,7 +5,6 @@ import no.java.moosehead.api.ParticipantApi;
 import no.java.moosehead.api.ParticipantReservation;
 import no.java.moosehead.api.WorkshopInfo;
 import no.java.moosehead.commands.AuthorEnum;
-import no.java.moosehead.commands.WorkshopTypeEnum;
 import no.java.moosehead.controller.SystemSetup;
 import no.java.moosehead.domain.WorkshopReservation;
 import no.java.moosehead.projections.Participant;
@@ -23,8 +22,6 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -34,7 +31,10 @@ import static no.java.moosehead.web.Utils.readJson;
 
 @WebServlet(urlPatterns = {"/data/*"})
 public class DataServlet extends HttpServlet {
+    private static final int MAX_REQUEST_ID_LENGTH = 100;
+
     private ParticipantApi participantApi;
+    private WorkshopListCache workshopListCache;
 
     @Override
     public void init(ServletConfig config) throws ServletException {
@@ -43,19 +43,19 @@ public class DataServlet extends HttpServlet {
 
     @Override
     public void init() throws ServletException {
-        participantApi = SystemSetup.instance().workshopController();
+        setParticipantApi(SystemSetup.instance().workshopController());
     }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if ("/workshopList".equals(req.getPathInfo())) {
+            printWorkshops(req, resp);
+            return;
+        }
         resp.addHeader("Cache-Control", "no-cache, no-store, must-revalidate"); // HTTP 1.1.
         resp.addHeader("Pragma", "no-cache"); // HTTP 1.0.
         resp.addDateHeader("Expires", 0); // Proxies.
-        if ("/workshopList".equals(req.getPathInfo())) {
-            resp.setContentType("text/json");
-            resp.addHeader("Access-Control-Allow-Origin", "*");
-            printWorkshops(resp);
-        } else if ("/myReservations".equals(req.getPathInfo())) {
+        if ("/myReservations".equals(req.getPathInfo())) {
             resp.setContentType("text/json");
             printMyReservations(req,resp);
         } else if ("/teacherList".equals(req.getPathInfo())) {
@@ -123,27 +123,36 @@ public class DataServlet extends HttpServlet {
         JsonArray.fromNodeList(reservations).toJson(resp.getWriter());
     }
 
-    private void printWorkshops(HttpServletResponse resp) throws IOException {
-        List<WorkshopInfo> workshops = participantApi.workshops();
-
-        List<JsonObject> jsons = workshops.stream().map(workshop -> {
-
-                    JsonObject jsonObject = JsonFactory.jsonObject();
-                    jsonObject.put("id", workshop.getId());
-                    jsonObject.put("title", workshop.getTitle());
-                    jsonObject.put("description", workshop.getDescription());
-                    jsonObject.put("status", workshop.getStatus().name());
-                    int maxReservationSpaces = workshop.getWorkshopTypeEnum() == WorkshopTypeEnum.KIDSAKODER_WORKSHOP ? Configuration.maxNumberOfSeatsToReserve() : 1;
-                    jsonObject.put("maxReservations", maxReservationSpaces);
-
-                    Optional<Instant> instant = workshop.registrationOpensAt();
-                    instant.ifPresent(opens -> jsonObject.put("opensAt",Utils.formatInstant(opens)));
+    /**
+     * Served from WorkshopListCache. Clients may keep the list, but must ask with If-None-Match whether it has changed.
+     */
+    private void printWorkshops(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        WorkshopListCache.Rendered workshops = workshopListCache.get();
+        resp.setContentType("text/json");
+        resp.addHeader("Access-Control-Allow-Origin", "*");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setHeader("ETag", workshops.getEtag());
+        if (matchesEtag(req.getHeader("If-None-Match"), workshops.getEtag())) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        resp.setCharacterEncoding("UTF-8");
+        resp.setContentLength(workshops.getJson().length);
+        resp.getOutputStream().write(workshops.getJson());
+    }
 
-                    return jsonObject;
+    private static boolean matchesEtag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            // A weak tag, W/"...", matches as well, as proxies may weaken tags when they compress
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
             }
-        ).collect(Collectors.toList());
-        PrintWriter writer = resp.getWriter();
-        JsonArray.fromNodeList(jsons).toJson(writer);
+        }
+        return false;
     }
 
     private Optional<ParticipantActionResult> doReservation(JsonObject jsonInput, HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -181,7 +190,10 @@ public class DataServlet extends HttpServlet {
                 .setNumberOfSeatsReserved(numReservations)
                 .setAdditionalInfo(additionalInfo.orElse(null))
                 .create();
-        ParticipantActionResult reservation = participantApi.reservation(workshopReservation,AuthorEnum.USER);
+        Optional<String> requestId = readRequestId(jsonInput, req);
+        ParticipantActionResult reservation = requestId.isPresent()
+                ? participantApi.reservation(workshopReservation, AuthorEnum.USER, requestId.get())
+                : participantApi.reservation(workshopReservation,AuthorEnum.USER);
 
         return Optional.of(reservation);
     }
@@ -194,22 +206,39 @@ public class DataServlet extends HttpServlet {
                 .map(Optional::get);
     }
 
-    private Optional<ParticipantActionResult> doCancelation(JsonObject jsonInput,HttpServletResponse resp) throws IOException {
+    /**
+     * The id the client sends with a command so retries of it are not handled twice, from the Idempotency-Key
+     * header or the requestId field
+     */
+    private Optional<String> readRequestId(JsonObject jsonInput, HttpServletRequest req) {
+        String requestId = Optional.ofNullable(req.getHeader("Idempotency-Key"))
+                .orElse(jsonInput.stringValue("requestId").orElse(null));
+        return Optional.ofNullable(Utils.sanitize(requestId))
+                .filter(id -> !id.isEmpty() && id.length() <= MAX_REQUEST_ID_LENGTH);
+    }
+
+    private Optional<ParticipantActionResult> doCancelation(JsonObject jsonInput, HttpServletRequest req, HttpServletResponse resp) throws IOException {
         String token = Utils.sanitize(jsonInput.requiredString("token"));
 
-        ParticipantActionResult cancel = participantApi.cancellation(token, AuthorEnum.USER);
+        Optional<String> requestId = readRequestId(jsonInput, req);
+        ParticipantActionResult cancel = requestId.isPresent()
+                ? participantApi.cancellation(token, AuthorEnum.USER, requestId.get())
+                : participantApi.cancellation(token, AuthorEnum.USER);
 
         return Optional.of(cancel);
     }
 
-    private Optional<ParticipantActionResult> doConfirmEmail(JsonObject jsonInput,HttpServletResponse resp) throws IOException {
+    private Optional<ParticipantActionResult> doConfirmEmail(JsonObject jsonInput, HttpServletRequest req, HttpServletResponse resp) throws IOException {
         String token = readField(jsonInput, "token");
 
         if (token == null) {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST,"Illegal json input");
             return Optional.empty();
         }
-        ParticipantActionResult cancel = participantApi.confirmEmail(token);
+        Optional<String> requestId = readRequestId(jsonInput, req);
+        ParticipantActionResult cancel = requestId.isPresent()
+                ? participantApi.confirmEmail(token, requestId.get())
+                : participantApi.confirmEmail(token);
 
         return Optional.of(cancel);
     }
@@ -233,11 +262,11 @@ public class DataServlet extends HttpServlet {
         }
         Optional<ParticipantActionResult> apiResult;
         if ("/cancel".equals(req.getPathInfo())) {
-            apiResult = doCancelation(jsonInput, resp);
+            apiResult = doCancelation(jsonInput, req, resp);
         } else if ("/reserve".equals(req.getPathInfo())) {
             apiResult = doReservation(jsonInput, req, resp);
         } else if ("/confirmEmail".equals(req.getPathInfo())) {
-            apiResult = doConfirmEmail(jsonInput, resp);
+            apiResult = doConfirmEmail(jsonInput, req, resp);
         } else {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST,"Illegal path");
             return;
@@ -257,6 +286,7 @@ public class DataServlet extends HttpServlet {
 
     public void setParticipantApi(ParticipantApi participantApi) {
         this.participantApi = participantApi;
+        this.workshopListCache = new WorkshopListCache(participantApi);
     }
 
 }
@@ -0,0 +1,119 @@
+package no.java.moosehead.web;
+
+import no.java.moosehead.api.ParticipantApi;
+import no.java.moosehead.api.WorkshopInfo;
+import no.java.moosehead.commands.WorkshopTypeEnum;
+import no.java.moosehead.metrics.Counter;
+import no.java.moosehead.metrics.Metrics;
+import org.jsonbuddy.JsonArray;
+import org.jsonbuddy.JsonFactory;
+import org.jsonbuddy.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * The workshop list of the front page, serialized once and served until an event changes the workshops or
+ * a workshop opens for registration or starts. The ETag is taken from the content, so a list rendered again
+ * without changes keeps its ETag.
+ */
+class WorkshopListCache {
+    private static final Counter renders = Metrics.counter("workshopList.renders");
+
+    static class Rendered {
+        private final long revision;
+        // Empty when nothing changes with time
+        private final Optional<Instant> validUntil;
+        private final byte[] json;
+        private final String etag;
+
+        private Rendered(long revision, Optional<Instant> validUntil, byte[] json) {
+            this.revision = revision;
+            this.validUntil = validUntil;
+            this.json = json;
+            this.etag = etagOf(json);
+        }
+
+        private boolean isValid(long currentRevision, Instant now) {
+            return revision == currentRevision && validUntil.map(now::isBefore).orElse(true);
+        }
+
+        byte[] getJson() {
+            return json;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+    }
+
+    private final ParticipantApi participantApi;
+    private volatile Rendered rendered;
+
+    WorkshopListCache(ParticipantApi participantApi) {
+        this.participantApi = participantApi;
+    }
+
+    Rendered get() {
+        Rendered current = rendered;
+        if (current != null && current.isValid(participantApi.workshopsRevision(), Instant.now())) {
+            return current;
+        }
+        synchronized (this) {
+            current = rendered;
+            // Read before the workshops, so an event that arrives while rendering is seen by the next request
+            long revision = participantApi.workshopsRevision();
+            Instant now = Instant.now();
+            if (current == null || !current.isValid(revision, now)) {
+                List<WorkshopInfo> workshops = participantApi.workshops();
+                // Times equal to now are included, as a status compared with isBefore or isAfter only changes after them
+                Optional<Instant> validUntil = workshops.stream()
+                        .flatMap(workshop -> workshop.statusChangeTimes().stream())
+                        .filter(time -> !time.isBefore(now))
+                        .min(Instant::compareTo);
+                current = new Rendered(revision, validUntil, toJson(workshops).toJson().getBytes(StandardCharsets.UTF_8));
+                rendered = current;
+                renders.increment();
+            }
+            return current;
+        }
+    }
+
+    static JsonArray toJson(List<WorkshopInfo> workshops) {
+        List<JsonObject> jsons = workshops.stream().map(workshop -> {
+
+                    JsonObject jsonObject = JsonFactory.jsonObject();
+                    jsonObject.put("id", workshop.getId());
+                    jsonObject.put("title", workshop.getTitle());
+                    jsonObject.put("description", workshop.getDescription());
+                    jsonObject.put("status", workshop.getStatus().name());
+                    int maxReservationSpaces = workshop.getWorkshopTypeEnum() == WorkshopTypeEnum.KIDSAKODER_WORKSHOP ? Configuration.maxNumberOfSeatsToReserve() : 1;
+                    jsonObject.put("maxReservations", maxReservationSpaces);
+
+                    Optional<Instant> instant = workshop.registrationOpensAt();
+                    instant.ifPresent(opens -> jsonObject.put("opensAt",Utils.formatInstant(opens)));
+
+                    return jsonObject;
+            }
+        ).collect(Collectors.toList());
+        return JsonArray.fromNodeList(jsons);
+    }
+
+    private static String etagOf(byte[] json) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(json);
+            StringBuilder etag = new StringBuilder("\"");
+            for (int i = 0; i < 12; i++) {
+                etag.append(String.format("%02x", digest[i]));
+            }
+            return etag.append("\"").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1 @@
+ALTER TABLE EVENT ADD COLUMN binpayload BYTEA;
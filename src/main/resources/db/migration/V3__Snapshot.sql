@@ -0,0 +1,6 @@
+CREATE TABLE SNAPSHOT(
+  event_count INTEGER PRIMARY KEY,
+  revision_id BIGINT NOT NULL,
+  created TIMESTAMP NOT NULL DEFAULT now(),
+  payload BYTEA NOT NULL
+);
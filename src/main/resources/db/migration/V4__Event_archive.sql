@@ -0,0 +1,6 @@
+CREATE TABLE EVENT_ARCHIVE(
+  id BIGINT PRIMARY KEY,
+  payload text,
+  binpayload BYTEA,
+  archived TIMESTAMP NOT NULL DEFAULT now()
+);
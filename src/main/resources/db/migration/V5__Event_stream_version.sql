@@ -0,0 +1,5 @@
+-- stream_version is the version of the stream the event was appended to, that is the revision id of
+-- the previous event in the same stream, or 0. Two events can not both follow the same one.
+ALTER TABLE EVENT ADD COLUMN stream_id VARCHAR(300);
+ALTER TABLE EVENT ADD COLUMN stream_version BIGINT;
+CREATE UNIQUE INDEX event_stream_version ON EVENT(stream_id, stream_version);
@@ -5,6 +5,9 @@ import no.java.moosehead.controller.SystemSetup;
 import no.java.moosehead.domain.WorkshopReservation;
 import no.java.moosehead.eventstore.*;
 import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.snapshot.SnapshotInput;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
+import no.java.moosehead.eventstore.utils.BinaryEventCodec;
 import no.java.moosehead.eventstore.utils.FileHandler;
 import no.java.moosehead.eventstore.utils.TokenGenerator;
 import no.java.moosehead.repository.WorkshopData;
@@ -15,6 +18,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
@@ -444,6 +449,60 @@ public class WorkshopAggregateTest {
     }
 
 
+    @Test
+    public void shouldKeepStateThroughSnapshot() throws Exception {
+        eventstore.addEvent(new WorkshopAddedBySystem(System.currentTimeMillis(), 1L, w1, 10));
+        ReservationAddedByUser confirmed = reservation(2L, "confirmed@email");
+        ReservationAddedByUser pending = reservation(3L, "pending@email");
+        eventstore.addEvent(confirmed);
+        eventstore.addEvent(pending);
+        eventstore.addEvent(new EmailConfirmedByUser("confirmed@email", System.currentTimeMillis(), 4L));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SnapshotOutput out = new SnapshotOutput(bytes, new BinaryEventCodec())) {
+            workshopAggregate.writeSnapshot(out);
+        }
+        WorkshopAggregate restored = new WorkshopAggregate();
+        restored.setEmailSender(mock(EmailSender.class));
+        try (SnapshotInput in = new SnapshotInput(new ByteArrayInputStream(bytes.toByteArray()), new BinaryEventCodec())) {
+            restored.readSnapshot(in);
+        }
+
+        assertThat(restored.createEvent(new CancelReservationCommand("confirmed@email", w1, AuthorEnum.USER)).getNumSpotsCancelled()).isEqualTo(1);
+        assertThat(restored.createEvent(new ConfirmEmailCommand(pending.getReservationToken())).getEmail()).isEqualTo("pending@email");
+        try {
+            restored.createEvent(new ConfirmEmailCommand(confirmed.getReservationToken()));
+            fail("Email is already confirmed");
+        } catch (NoReservationFoundException e) {
+            assertThat(e.getMessage()).isEqualTo("This email is already confirmed");
+        }
+        try {
+            restored.createEvent(new AddReservationCommand(pending.getWorkshopReservation(), AuthorEnum.USER));
+            fail("Reservation is waiting for confirmation");
+        } catch (ReservationCanNotBeAddedException e) {
+            assertThat(e.getMessage()).startsWith("You have already tried to register");
+        }
+        try {
+            restored.createEvent(AddWorkshopCommand.builder().withWorkshopId(w1).withAuthor(AuthorEnum.SYSTEM).withNumberOfSeats(10).create());
+            fail("Workshop exists");
+        } catch (WorkshopCanNotBeAddedException e) {
+            assertThat(e.getMessage()).contains("already exists");
+        }
+    }
+
+    private ReservationAddedByUser reservation(long revisionId, String email) {
+        return new ReservationAddedByUser(WorkshopReservation.builder()
+                .setSystemTimeInMillis(System.currentTimeMillis())
+                .setRevisionId(revisionId)
+                .setEmail(email)
+                .setFullname("Luke Skywalker")
+                .setWorkshopId(w1)
+                .setGoogleUserEmail(Optional.empty())
+                .setNumberOfSeatsReserved(1)
+                .create());
+    }
+
+
     @After
     public void tearDown() throws Exception {
         Configuration.initData(null);
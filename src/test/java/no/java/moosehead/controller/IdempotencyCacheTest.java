@@ -0,0 +1,105 @@
+package no.java.moosehead.controller;
+
+import no.java.moosehead.api.ParticipantActionResult;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class IdempotencyCacheTest {
+
+    @Test
+    public void shouldRunConcurrentRetriesOnce() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(100);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        List<Future<ParticipantActionResult>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(executor.submit(() -> cache.handle("reservation", "a@a.com", "req-1", "one", () -> {
+                runs.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return new IdempotencyCache.Handled(ParticipantActionResult.confirmEmail(), 7);
+            })));
+        }
+        started.await(10, TimeUnit.SECONDS);
+        release.countDown();
+        ParticipantActionResult first = results.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<ParticipantActionResult> result : results) {
+            assertThat(result.get(10, TimeUnit.SECONDS)).isSameAs(first);
+        }
+        executor.shutdown();
+
+        assertThat(runs.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldKeepRequestIdsOfDifferentCommandsApart() {
+        IdempotencyCache cache = new IdempotencyCache(100);
+        ParticipantActionResult reserved = cache.handle("reservation", "a@a.com", "req-1", "one", () -> new IdempotencyCache.Handled(ParticipantActionResult.confirmEmail(), 1));
+        ParticipantActionResult cancelled = cache.handle("cancellation", "a@a.com", "req-1", "one", () -> new IdempotencyCache.Handled(ParticipantActionResult.ok(), 2));
+
+        assertThat(reserved.getStatus()).isEqualTo(ParticipantActionResult.Status.CONFIRM_EMAIL);
+        assertThat(cancelled.getStatus()).isEqualTo(ParticipantActionResult.Status.OK);
+    }
+
+    @Test
+    public void shouldKeepRequestIdsOfDifferentCallersApart() {
+        IdempotencyCache cache = new IdempotencyCache(100);
+        cache.handle("reservation", "a@a.com", "req-1", "one", () -> new IdempotencyCache.Handled(ParticipantActionResult.confirmEmail(), 1));
+        ParticipantActionResult other = cache.handle("reservation", "b@b.com", "req-1", "one", () -> new IdempotencyCache.Handled(ParticipantActionResult.ok(), 2));
+
+        assertThat(other.getStatus()).isEqualTo(ParticipantActionResult.Status.OK);
+    }
+
+    @Test
+    public void shouldRejectRequestIdUsedForDifferentRequest() {
+        IdempotencyCache cache = new IdempotencyCache(100);
+        AtomicInteger runs = new AtomicInteger();
+        cache.handle("reservation", "a@a.com", "req-1", "one", () -> new IdempotencyCache.Handled(ParticipantActionResult.confirmEmail(), runs.incrementAndGet()));
+        ParticipantActionResult reused = cache.handle("reservation", "a@a.com", "req-1", "two", () -> new IdempotencyCache.Handled(ParticipantActionResult.ok(), runs.incrementAndGet()));
+
+        assertThat(reused.getStatus()).isEqualTo(ParticipantActionResult.Status.ERROR);
+        assertThat(runs.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldForgetOldestRequestIds() {
+        IdempotencyCache cache = new IdempotencyCache(2);
+        AtomicInteger runs = new AtomicInteger();
+        for (String requestId : new String[] {"a", "b", "c", "a"}) {
+            cache.handle("reservation", "a@a.com", requestId, "one", () -> new IdempotencyCache.Handled(ParticipantActionResult.ok(), runs.incrementAndGet()));
+        }
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(runs.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldRunAgainAfterFailure() {
+        IdempotencyCache cache = new IdempotencyCache(100);
+        try {
+            cache.handle("reservation", "a@a.com", "req-1", "one", () -> {
+                throw new RuntimeException("Database down");
+            });
+            fail("Expected exception");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage()).isEqualTo("Database down");
+        }
+
+        ParticipantActionResult retry = cache.handle("reservation", "a@a.com", "req-1", "one", () -> new IdempotencyCache.Handled(ParticipantActionResult.ok(), 3));
+        assertThat(retry.getStatus()).isEqualTo(ParticipantActionResult.Status.OK);
+    }
+}
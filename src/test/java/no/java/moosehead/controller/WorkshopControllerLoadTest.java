@@ -0,0 +1,261 @@
+package no.java.moosehead.controller;
+
+import no.java.moosehead.aggregate.WorkshopAggregate;
+import no.java.moosehead.api.ParticipantActionResult;
+import no.java.moosehead.commands.AuthorEnum;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.AbstractReservationAdded;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.utils.FileHandler;
+import no.java.moosehead.eventstore.utils.GroupCommitter;
+import no.java.moosehead.eventstore.utils.TokenGenerator;
+import no.java.moosehead.projections.Participant;
+import no.java.moosehead.projections.Workshop;
+import no.java.moosehead.projections.WorkshopListProjection;
+import no.java.moosehead.repository.WorkshopData;
+import no.java.moosehead.saga.EmailSender;
+import no.java.moosehead.web.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs commands from many threads against a real aggregate, projection and in memory eventstore.
+ */
+public class WorkshopControllerLoadTest {
+    private static final int THREADS = 8;
+    private static final int WORKSHOPS = 8;
+
+    private WorkshopController workshopController;
+    private FilehandlerEventstore eventstore;
+    private volatile Gate gate;
+
+    /**
+     * Stops every command at its second token lookup, which registerShowUp makes holding the workshop lock,
+     * until released
+     */
+    private static class Gate {
+        private final CountDownLatch entered;
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final ThreadLocal<Integer> reads = ThreadLocal.withInitial(() -> 0);
+
+        private Gate(int commands) {
+            entered = new CountDownLatch(commands);
+        }
+
+        private void read() {
+            int read = reads.get() + 1;
+            reads.set(read);
+            if (read == 2) {
+                entered.countDown();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Map<String, String> confdata = new HashMap<>();
+        confdata.put("openTime", OffsetDateTime.now(ZoneOffset.ofHours(2)).minusDays(2).format(DateTimeFormatter.ofPattern("yyyyMMddHHmm")));
+        Configuration.initData(confdata);
+
+        WorkshopListProjection workshopListProjection = new WorkshopListProjection() {
+            @Override
+            public Optional<Participant> findByReservationToken(String reservationToken) {
+                Gate current = gate;
+                if (current != null) {
+                    current.read();
+                }
+                return super.findByReservationToken(reservationToken);
+            }
+        };
+        WorkshopAggregate workshopAggregate = new WorkshopAggregate();
+        workshopAggregate.setEmailSender(mock(EmailSender.class));
+        eventstore = new FilehandlerEventstore(new FileHandler());
+        eventstore.addEventSubscriber(workshopAggregate);
+        eventstore.addEventSubscriber(workshopListProjection);
+
+        SystemSetup systemSetup = mock(SystemSetup.class);
+        TokenGenerator tokenGenerator = new TokenGenerator();
+        when(systemSetup.revisionGenerator()).thenReturn(tokenGenerator);
+        when(systemSetup.workshopAggregate()).thenReturn(workshopAggregate);
+        when(systemSetup.workshopListProjection()).thenReturn(workshopListProjection);
+        when(systemSetup.eventstore()).thenReturn(eventstore);
+        SystemSetup.setSetup(systemSetup);
+
+        workshopController = new WorkshopController();
+        Instant start = Instant.now().plus(30, ChronoUnit.DAYS);
+        for (int i = 0; i < WORKSHOPS; i++) {
+            WorkshopData workshopData = new WorkshopData("W" + i, "Workshop " + i, "Description");
+            ParticipantActionResult result = workshopController.createWorkshop(workshopData, start, start.plus(3, ChronoUnit.HOURS), null, 100);
+            assertThat(result.getStatus()).isEqualTo(ParticipantActionResult.Status.OK);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        SystemSetup.setSetup(null);
+        Configuration.initData(null);
+    }
+
+    @Test
+    public void concurrentReservationsAreStoredInRevisionOrder() throws Exception {
+        int reservationsPerThread = 200;
+        runInParallel(THREADS, thread -> {
+            for (int i = 0; i < reservationsPerThread; i++) {
+                ParticipantActionResult result = workshopController.reservation(reservation("W" + (i % WORKSHOPS), "user" + thread + "_" + i + "@example.com"), AuthorEnum.USER);
+                assertThat(result.getStatus()).isEqualTo(ParticipantActionResult.Status.CONFIRM_EMAIL);
+            }
+        });
+
+        List<AbstractEvent> events = eventstore.getEventstorageCopy();
+        for (int i = 1; i < events.size(); i++) {
+            assertThat(events.get(i).getRevisionId()).isEqualTo(events.get(i - 1).getRevisionId() + 1);
+        }
+        assertThat(events.stream().filter(ev -> ev instanceof AbstractReservationAdded).count()).isEqualTo(THREADS * reservationsPerThread);
+        Map<String, Integer> participants = SystemSetup.instance().workshopListProjection().getWorkshops().stream()
+                .collect(Collectors.toMap(ws -> ws.getWorkshopData().getId(), ws -> ws.getParticipants().size()));
+        for (int i = 0; i < WORKSHOPS; i++) {
+            assertThat(participants.get("W" + i)).isEqualTo(THREADS * reservationsPerThread / WORKSHOPS);
+        }
+    }
+
+    @Test
+    public void batchedReservationsAreDecidedInQueueOrder() throws Exception {
+        Map<String, String> confdata = new HashMap<>();
+        confdata.put("openTime", OffsetDateTime.now(ZoneOffset.ofHours(2)).minusDays(2).format(DateTimeFormatter.ofPattern("yyyyMMddHHmm")));
+        confdata.put("reservationBatching", "true");
+        confdata.put("reservationBatchLingerMillis", "2");
+        Configuration.initData(confdata);
+        workshopController = new WorkshopController();
+
+        int reservationsPerThread = 100;
+        Map<String, ParticipantActionResult.Status> sameEmail = new ConcurrentHashMap<>();
+        runInParallel(THREADS, thread -> {
+            sameEmail.put("thread" + thread, workshopController.reservation(reservation("W0", "same@example.com"), AuthorEnum.USER).getStatus());
+            for (int i = 0; i < reservationsPerThread; i++) {
+                ParticipantActionResult result = workshopController.reservation(reservation("W" + (i % WORKSHOPS), "user" + thread + "_" + i + "@example.com"), AuthorEnum.USER);
+                assertThat(result.getStatus()).isEqualTo(ParticipantActionResult.Status.CONFIRM_EMAIL);
+            }
+        });
+
+        // Only the first one queued is added, the others see it even when they are in the same batch
+        assertThat(sameEmail.values().stream().filter(status -> status == ParticipantActionResult.Status.CONFIRM_EMAIL).count()).isEqualTo(1);
+        assertThat(sameEmail.values().stream().filter(status -> status == ParticipantActionResult.Status.ERROR).count()).isEqualTo(THREADS - 1);
+        List<AbstractEvent> events = eventstore.getEventstorageCopy();
+        for (int i = 1; i < events.size(); i++) {
+            assertThat(events.get(i).getRevisionId()).isEqualTo(events.get(i - 1).getRevisionId() + 1);
+        }
+        assertThat(events.stream().filter(ev -> ev instanceof AbstractReservationAdded).count()).isEqualTo(THREADS * reservationsPerThread + 1);
+        GroupCommitter<?> pipeline = workshopController.reservationPipeline().get();
+        assertThat(pipeline.getCommittedCount()).isEqualTo(THREADS * (reservationsPerThread + 1));
+        assertThat(pipeline.getMaxBatchSize()).isGreaterThan(1);
+        pipeline.close();
+    }
+
+    @Test
+    public void commandsForDifferentWorkshopsRunAtTheSameTime() throws Exception {
+        // Workshops may share a lock stripe, so find one that does not share W0's
+        CommandLocks stripes = new CommandLocks(Configuration.commandLockStripes());
+        String other = null;
+        for (int i = 1; i < WORKSHOPS && other == null; i++) {
+            if (stripes.forWorkshop("W" + i) != stripes.forWorkshop("W0")) {
+                other = "W" + i;
+            }
+        }
+        assertThat(other).isNotNull();
+        for (String workshopId : Arrays.asList("W0", other)) {
+            for (int t = 0; t < 3; t++) {
+                workshopController.reservation(reservation(workshopId, "user" + t + "@" + workshopId + ".com"), AuthorEnum.ADMIN);
+            }
+        }
+
+        assertThat(holdLocksAtTheSameTime(participantToken("W0", 0), participantToken(other, 0), 10000)).isTrue();
+        // Waiting longer would not help: the second command can not take the lock until the first is let go
+        assertThat(holdLocksAtTheSameTime(participantToken("W0", 1), participantToken("W0", 2), 500)).isFalse();
+    }
+
+    private String participantToken(String workshopId, int index) {
+        return SystemSetup.instance().workshopListProjection().workshopById(workshopId).get()
+                .getParticipants().get(index).getWorkshopReservation().getReservationToken();
+    }
+
+    /**
+     * Registers a show up for both reservations from two threads, and tells if both commands got inside their workshop
+     * lock before either was let go
+     */
+    private boolean holdLocksAtTheSameTime(String firstToken, String secondToken, long waitMillis) throws Exception {
+        Gate current = new Gate(2);
+        gate = current;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<ParticipantActionResult>> results = new ArrayList<>();
+            for (String token : Arrays.asList(firstToken, secondToken)) {
+                results.add(executor.submit(() -> workshopController.registerShowUp(token, true)));
+            }
+            boolean together = current.entered.await(waitMillis, TimeUnit.MILLISECONDS);
+            current.release.countDown();
+            for (Future<ParticipantActionResult> result : results) {
+                assertThat(result.get(30, TimeUnit.SECONDS).getStatus()).isEqualTo(ParticipantActionResult.Status.OK);
+            }
+            return together;
+        } finally {
+            gate = null;
+            executor.shutdownNow();
+        }
+    }
+
+    private interface ThreadBody {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runInParallel(int threads, ThreadBody body) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch ready = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    ready.await();
+                    body.run(thread);
+                    return null;
+                }));
+            }
+            ready.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static WorkshopReservation reservation(String workshopId, String email) {
+        return WorkshopReservation.builder()
+                .setEmail(email)
+                .setFullname("Load Test")
+                .setWorkshopId(workshopId)
+                .setGoogleUserEmail(Optional.empty())
+                .setNumberOfSeatsReserved(1)
+                .create();
+    }
+}
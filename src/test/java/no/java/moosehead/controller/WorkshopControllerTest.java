@@ -3,6 +3,8 @@ package no.java.moosehead.controller;
 import no.java.moosehead.MoosheadException;
 import no.java.moosehead.aggregate.WorkshopAggregate;
 import no.java.moosehead.api.ParticipantActionResult;
+import no.java.moosehead.api.ParticipantReservation;
+import no.java.moosehead.api.ParticipantReservationStatus;
 import no.java.moosehead.api.WorkshopInfo;
 import no.java.moosehead.api.WorkshopStatus;
 import no.java.moosehead.commands.*;
@@ -10,7 +12,9 @@ import no.java.moosehead.domain.WorkshopReservation;
 import no.java.moosehead.eventstore.EmailConfirmedByUser;
 import no.java.moosehead.eventstore.ReservationAddedByUser;
 import no.java.moosehead.eventstore.ReservationCancelledByUser;
+import no.java.moosehead.eventstore.core.AbstractEvent;
 import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.core.StreamVersionConflictException;
 import no.java.moosehead.eventstore.utils.TokenGenerator;
 import no.java.moosehead.projections.Participant;
 import no.java.moosehead.projections.Workshop;
@@ -50,6 +54,7 @@ public class WorkshopControllerTest {
         when(systemSetup.workshopListProjection()).thenReturn(workshopListProjection);
         workshopAggregate = mock(WorkshopAggregate.class);
         when(systemSetup.workshopAggregate()).thenReturn(workshopAggregate);
+        when(workshopAggregate.emailForReservationToken(anyString())).thenReturn(Optional.empty());
         eventstore = mock(FilehandlerEventstore.class);
         when(systemSetup.eventstore()).thenReturn(eventstore);
         TokenGenerator tokenGenerator = new TokenGenerator();
@@ -188,7 +193,7 @@ public class WorkshopControllerTest {
 
         assertThat(result.getStatus()).isEqualTo(ParticipantActionResult.Status.CONFIRM_EMAIL);
 
-        verify(eventstore).addEvent(rad);
+        verify(eventstore).addEvent(rad, 0L);
         verify(workshopAggregate).createEvent(any(AddReservationCommand.class));
         AddReservationCommand value = resCmndCapture.getValue();
 
@@ -197,6 +202,103 @@ public class WorkshopControllerTest {
         assertThat(value.getWorkshopReservation().getWorkshopId()).isEqualTo("one");
     }
 
+    @Test
+    public void shouldAnswerRetriedReservationWithoutReservingAgain() throws Exception {
+        ReservationAddedByUser rad = new ReservationAddedByUser(WorkshopReservation.builder()
+                        .setSystemTimeInMillis(System.currentTimeMillis())
+                        .setRevisionId(5L)
+                        .setEmail("darth@deathstar.com")
+                        .setFullname("Darth Vader")
+                        .setWorkshopId("one")
+                        .setGoogleUserEmail(Optional.empty())
+                        .setNumberOfSeatsReserved(1)
+                        .create()
+                );
+        when(workshopAggregate.createEvent(any(AddReservationCommand.class))).thenReturn(rad);
+        when(workshopListProjection.isEmailConfirmed("darth@deathstar.com")).thenReturn(false);
+
+        WorkshopReservation workshopReservation = WorkshopReservation.builder()
+                .setWorkshopId("one")
+                .setEmail("darth@deathstar.com")
+                .setFullname("Darth Vader")
+                .create();
+        ParticipantActionResult first = workshopController.reservation(workshopReservation, AuthorEnum.USER, "req-1");
+        ParticipantActionResult retry = workshopController.reservation(workshopReservation, AuthorEnum.USER, "req-1");
+        workshopController.reservation(workshopReservation, AuthorEnum.USER, "req-2");
+
+        assertThat(retry).isSameAs(first);
+        assertThat(first.getStatus()).isEqualTo(ParticipantActionResult.Status.CONFIRM_EMAIL);
+        verify(workshopAggregate, times(2)).createEvent(any(AddReservationCommand.class));
+        verify(eventstore, times(2)).addEvent(rad, 0L);
+    }
+
+    @Test
+    public void shouldRejectRequestIdReusedForAnotherWorkshop() throws Exception {
+        ReservationAddedByUser rad = new ReservationAddedByUser(WorkshopReservation.builder()
+                        .setSystemTimeInMillis(System.currentTimeMillis())
+                        .setRevisionId(5L)
+                        .setEmail("darth@deathstar.com")
+                        .setFullname("Darth Vader")
+                        .setWorkshopId("one")
+                        .setGoogleUserEmail(Optional.empty())
+                        .setNumberOfSeatsReserved(1)
+                        .create()
+                );
+        when(workshopAggregate.createEvent(any(AddReservationCommand.class))).thenReturn(rad);
+        when(workshopListProjection.isEmailConfirmed(anyString())).thenReturn(false);
+
+        workshopController.reservation(WorkshopReservation.builder().setWorkshopId("one").setEmail("darth@deathstar.com").setFullname("Darth Vader").create(), AuthorEnum.USER, "req-1");
+        ParticipantActionResult otherWorkshop = workshopController.reservation(WorkshopReservation.builder().setWorkshopId("two").setEmail("darth@deathstar.com").setFullname("Darth Vader").create(), AuthorEnum.USER, "req-1");
+        ParticipantActionResult otherUser = workshopController.reservation(WorkshopReservation.builder().setWorkshopId("one").setEmail("luke@tatooine.com").setFullname("Luke").create(), AuthorEnum.USER, "req-1");
+
+        assertThat(otherWorkshop.getStatus()).isEqualTo(ParticipantActionResult.Status.ERROR);
+        assertThat(otherUser.getStatus()).isEqualTo(ParticipantActionResult.Status.CONFIRM_EMAIL);
+        verify(workshopAggregate, times(2)).createEvent(any(AddReservationCommand.class));
+    }
+
+    @Test
+    public void shouldCatchUpAndRetryWhenStreamWasChanged() throws Exception {
+        ReservationAddedByUser stale = new ReservationAddedByUser(WorkshopReservation.builder()
+                .setRevisionId(5L)
+                .setEmail("darth@deathstar.com")
+                .setWorkshopId("one")
+                .setGoogleUserEmail(Optional.empty())
+                .create());
+        ReservationAddedByUser retried = new ReservationAddedByUser(stale.getWorkshopReservation().copy().setRevisionId(7L).create());
+        when(workshopAggregate.createEvent(any(AddReservationCommand.class))).thenReturn(stale, retried);
+        when(eventstore.streamVersion("workshop:one")).thenReturn(0L, 6L);
+        doThrow(new StreamVersionConflictException("Conflict")).when(eventstore).addEvent(stale, 0L);
+
+        WorkshopReservation workshopReservation = WorkshopReservation.builder()
+                .setWorkshopId("one")
+                .setEmail("darth@deathstar.com")
+                .create();
+        ParticipantActionResult result = workshopController.reservation(workshopReservation, AuthorEnum.USER);
+
+        assertThat(result.getStatus()).isEqualTo(ParticipantActionResult.Status.CONFIRM_EMAIL);
+        verify(eventstore).catchUp();
+        verify(eventstore).addEvent(retried, 6L);
+    }
+
+    @Test
+    public void shouldGiveUpWhenStreamKeepsChanging() throws Exception {
+        when(workshopAggregate.createEvent(any(AddReservationCommand.class))).thenReturn(new ReservationAddedByUser(WorkshopReservation.builder()
+                .setEmail("darth@deathstar.com")
+                .setWorkshopId("one")
+                .create()));
+        doThrow(new StreamVersionConflictException("Conflict")).when(eventstore).addEvent(any(AbstractEvent.class), anyLong());
+
+        WorkshopReservation workshopReservation = WorkshopReservation.builder()
+                .setWorkshopId("one")
+                .setEmail("darth@deathstar.com")
+                .create();
+        ParticipantActionResult result = workshopController.reservation(workshopReservation, AuthorEnum.USER);
+
+        assertThat(result.getStatus()).isEqualTo(ParticipantActionResult.Status.ERROR);
+        assertThat(result.getErrormessage()).contains("Please try again");
+        verify(eventstore, times(Configuration.appendAttempts() - 1)).catchUp();
+    }
+
     @Test
     public void shouldReturnErrorIfAggregateThrowsError() throws Exception {
         doThrow(new MoosheadException("This is errormessage")).when(workshopAggregate).createEvent(any(AddReservationCommand.class));
@@ -283,12 +385,13 @@ public class WorkshopControllerTest {
         Workshop workshop = mock(Workshop.class);
         Participant participant = mock(Participant.class);
         when(participant.getWorkshopReservation()).thenReturn(WorkshopReservation.builder().setReservationToken("Dribbledrobbletoken").create());
-        when(workshop.getParticipants()).thenReturn(Collections.singletonList(participant));
+        when(participant.getWorkshopId()).thenReturn("one");
         when(workshop.waitingListNumber(participant)).thenReturn(0);
         WorkshopData wsdata = mock(WorkshopData.class);
         when(wsdata.infoText()).thenReturn("xrtyr");
         when(workshop.getWorkshopData()).thenReturn(wsdata);
-        when(workshopListProjection.getWorkshops()).thenReturn(Collections.singletonList(workshop));
+        when(workshopListProjection.findByReservationToken("Dribbledrobbletoken")).thenReturn(Optional.of(participant));
+        when(workshopListProjection.workshopById("one")).thenReturn(Optional.of(workshop));
 
         ParticipantActionResult result = workshopController.confirmEmail("Dribbledrobbletoken");
 
@@ -300,7 +403,48 @@ public class WorkshopControllerTest {
         ConfirmEmailCommand value = confirmEmailCommandArgumentCaptor.getValue();
         assertThat(value.getReservationToken()).isEqualTo("Dribbledrobbletoken");
 
-        verify(eventstore).addEvent(emailConfirmedByUser);
+        verify(eventstore).addEvent(emailConfirmedByUser, 0L);
+    }
+
+    @Test
+    public void shouldListMyReservationsWithWorkshopTitleAndWaitingList() throws Exception {
+        Workshop workshop = new Workshop(new WorkshopData("one", "Java for kids", "description"), 1);
+        Participant seated = Participant.confirmedParticipant(reservationFor("first@a.com"), workshop);
+        Participant waiting = Participant.confirmedParticipant(reservationFor("darth@deathstar.com"), workshop);
+        workshop.addParticipant(seated);
+        workshop.addParticipant(waiting);
+        when(workshopListProjection.findAllReservations("darth@deathstar.com")).thenReturn(Collections.singletonList(waiting));
+        when(workshopListProjection.workshopById("one")).thenReturn(Optional.of(workshop));
+
+        List<ParticipantReservation> reservations = workshopController.myReservations("darth@deathstar.com");
+
+        assertThat(reservations).hasSize(1);
+        assertThat(reservations.get(0).getWorkshopname()).isEqualTo("Java for kids");
+        assertThat(reservations.get(0).getStatus()).isEqualTo(ParticipantReservationStatus.WAITING_LIST);
+        assertThat(reservations.get(0).getWaitingListNumber()).contains(1);
+    }
+
+    private static ReservationAddedByUser reservationFor(String email) {
+        return new ReservationAddedByUser(WorkshopReservation.builder()
+                .setSystemTimeInMillis(System.currentTimeMillis())
+                .setEmail(email)
+                .setFullname(email)
+                .setWorkshopId("one")
+                .setGoogleUserEmail(Optional.empty())
+                .setNumberOfSeatsReserved(1)
+                .create());
+    }
+
+    @Test
+    public void shouldLookUpOnlyTheResizedWorkshop() throws Exception {
+        Workshop workshop = new Workshop(new WorkshopData("one", "title", "description"), 10);
+        workshop.addParticipant(Participant.confirmedParticipant(reservationFor("first@a.com"), workshop));
+        when(workshopListProjection.workshopById("one")).thenReturn(Optional.of(workshop));
+        when(workshopListProjection.workshopById("unknown")).thenReturn(Optional.empty());
+
+        assertThat(workshopController.changeWorkshopSize("unknown", 5).getStatus()).isEqualTo(ParticipantActionResult.Status.ERROR);
+        assertThat(workshopController.changeWorkshopSize("one", 0).getErrormessage()).isEqualTo("Size of workshop must be greater than zero");
+        verify(workshopListProjection, never()).getWorkshops();
     }
 
     @Test
@@ -0,0 +1,138 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.AsyncSubscription;
+import no.java.moosehead.eventstore.core.EventSubscription;
+import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.utils.FileHandler;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncSubscriptionTest {
+
+    private static AbstractEvent event(long revisionId) {
+        return new WorkshopAddedBySystem(revisionId, revisionId, "W" + revisionId, 10);
+    }
+
+    @Test
+    public void shouldDeliverInOrderOnOwnThread() throws Exception {
+        List<Long> received = new CopyOnWriteArrayList<>();
+        List<String> threads = new CopyOnWriteArrayList<>();
+        AsyncSubscription subscription = new AsyncSubscription("test", event -> {
+            received.add(event.getRevisionId());
+            threads.add(Thread.currentThread().getName());
+        }, 1000);
+
+        for (long revision = 1; revision <= 500; revision++) {
+            subscription.eventAdded(event(revision));
+        }
+        subscription.awaitRevision(500);
+
+        assertThat(received).hasSize(500);
+        for (int i = 0; i < received.size(); i++) {
+            assertThat(received.get(i)).isEqualTo(i + 1L);
+        }
+        assertThat(threads).containsOnly("subscriber-test");
+        assertThat(subscription.getLag()).isEqualTo(0);
+        subscription.close();
+    }
+
+    @Test
+    public void shouldBlockWriterWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncSubscription subscription = new AsyncSubscription("slow", event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }, 5);
+        CountDownLatch written = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            for (long revision = 1; revision <= 10; revision++) {
+                subscription.eventAdded(event(revision));
+            }
+            written.countDown();
+        });
+        writer.start();
+
+        assertThat(written.await(300, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(subscription.getLag()).isEqualTo(5);
+        assertThat(subscription.getLastHandledRevision()).isEqualTo(0L);
+
+        release.countDown();
+        assertThat(written.await(5, TimeUnit.SECONDS)).isTrue();
+        subscription.awaitRevision(10);
+        assertThat(subscription.getMaxLag()).isEqualTo(5);
+        subscription.close();
+    }
+
+    @Test
+    public void shouldKeepGoingWhenSubscriberFails() throws Exception {
+        List<Long> received = new CopyOnWriteArrayList<>();
+        AsyncSubscription subscription = new AsyncSubscription("failing", event -> {
+            if (event.getRevisionId() == 2) {
+                throw new RuntimeException("Expected failure");
+            }
+            received.add(event.getRevisionId());
+        }, 10);
+        for (long revision = 1; revision <= 3; revision++) {
+            subscription.eventAdded(event(revision));
+        }
+        subscription.awaitRevision(3);
+
+        assertThat(received).containsExactly(1L, 3L);
+        assertThat(subscription.getFailedCount()).isEqualTo(1);
+        subscription.close();
+    }
+
+    @Test
+    public void shouldTellSubscriberWhichEventsCameFromOtherInstances() throws Exception {
+        List<String> received = new CopyOnWriteArrayList<>();
+        AsyncSubscription subscription = new AsyncSubscription("tailed", new EventSubscription() {
+            @Override
+            public void eventAdded(AbstractEvent event) {
+                received.add("own " + event.getRevisionId());
+            }
+
+            @Override
+            public void eventAddedByOtherInstance(AbstractEvent event) {
+                received.add("other " + event.getRevisionId());
+            }
+        }, 10);
+        subscription.eventAdded(event(1));
+        subscription.eventAddedByOtherInstance(event(2));
+        subscription.awaitRevision(2);
+
+        assertThat(received).containsExactly("own 1", "other 2");
+        subscription.close();
+    }
+
+    @Test
+    public void eventstoreShouldWaitForAsyncSubscriber() throws Exception {
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(new FileHandler());
+        List<Long> received = new CopyOnWriteArrayList<>();
+        EventSubscription slow = event -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            received.add(event.getRevisionId());
+        };
+        eventstore.addAsyncEventSubscriber(slow, 100);
+        for (long revision = 1; revision <= 50; revision++) {
+            eventstore.addEvent(event(revision));
+        }
+        eventstore.awaitSubscriber(slow, eventstore.lastRevisionId());
+
+        assertThat(eventstore.lastRevisionId()).isEqualTo(50L);
+        assertThat(received).hasSize(50);
+    }
+}
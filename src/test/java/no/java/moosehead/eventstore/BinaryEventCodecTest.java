@@ -0,0 +1,144 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.commands.WorkshopTypeEnum;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.utils.*;
+import no.java.moosehead.repository.WorkshopData;
+import org.jsonbuddy.JsonFactory;
+import org.junit.Test;
+
+import java.io.*;
+import java.time.Instant;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BinaryEventCodecTest {
+    private final BinaryEventCodec binaryCodec = new BinaryEventCodec();
+    private final TextEventCodec textCodec = new TextEventCodec();
+
+    private List<AbstractEvent> sampleEvents() {
+        WorkshopData workshopData = new WorkshopData("one", "Title æøå", "Description", Instant.ofEpochMilli(1000), Instant.ofEpochMilli(2000),
+                Optional.of(Instant.ofEpochMilli(500)), WorkshopTypeEnum.KIDSAKODER_WORKSHOP);
+        WorkshopReservation reservation = WorkshopReservation.builder()
+                .setSystemTimeInMillis(10L)
+                .setRevisionId(3L)
+                .setEmail("darth@a.com")
+                .setFullname("Darth Vader")
+                .setWorkshopId("one")
+                .setGoogleUserEmail(Optional.of("darth@gmail.com"))
+                .setAdditionalInfo(JsonFactory.jsonObject().put("age", 12))
+                .setNumberOfSeatsReserved(2)
+                .create();
+        return Arrays.asList(
+                new WorkshopAddedBySystem(1L, 1L, "one", 30),
+                new WorkshopAddedByAdmin(2L, 2L, "one", 30, Instant.ofEpochMilli(100), null, workshopData),
+                new ReservationAddedByUser(reservation),
+                new ReservationAddedByAdmin(reservation.copy().setGoogleUserEmail(Optional.empty()).create()),
+                new EmailConfirmedByUser("darth@a.com", 11L, 4L)
+        );
+    }
+
+    @Test
+    public void shouldRoundTripEvents() throws Exception {
+        for (AbstractEvent event : sampleEvents()) {
+            AbstractEvent decoded = binaryCodec.decode(binaryCodec.encode(event));
+            assertThat(decoded).isInstanceOf(event.getClass());
+            assertThat(new String(textCodec.encode(decoded), "UTF-8")).isEqualTo(new String(textCodec.encode(event), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void shouldHashTheFieldsInNameOrder() throws Exception {
+        byte[] encoded = binaryCodec.encode(new WorkshopAddedBySystem(1L, 1L, "one", 30));
+
+        String layout = "endTime:java.time.Instant;numberOfSeats:int;revisionId:long;startTime:java.time.Instant;" +
+                "systemTimeInMillis:long;workshopId:java.lang.String;";
+        assertThat(ByteBuffer.wrap(encoded, 4, 4).getInt()).isEqualTo(layout.hashCode());
+    }
+
+    @Test
+    public void shouldReadRecordsWithFieldsInDeclarationOrder() throws Exception {
+        String layout = "workshopId:java.lang.String;numberOfSeats:int;startTime:java.time.Instant;endTime:java.time.Instant;" +
+                "systemTimeInMillis:long;revisionId:long;";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeByte(15);
+        out.writeShort(1);
+        out.writeInt(layout.hashCode());
+        for (Object value : Arrays.asList("one", 30, Instant.ofEpochMilli(1000), null, 5L, 7L)) {
+            binaryCodec.writeValue(out, value);
+        }
+
+        WorkshopAddedBySystem decoded = (WorkshopAddedBySystem) binaryCodec.decode(bytes.toByteArray());
+
+        assertThat(decoded.getWorkshopId()).isEqualTo("one");
+        assertThat(decoded.getNumberOfSeats()).isEqualTo(30);
+        assertThat(decoded.getStartTime()).isEqualTo(Instant.ofEpochMilli(1000));
+        assertThat(decoded.getSystemTimeInMillis()).isEqualTo(5L);
+        assertThat(decoded.getRevisionId()).isEqualTo(7L);
+    }
+
+    @Test
+    public void shouldBeSmallerThanText() throws Exception {
+        for (AbstractEvent event : sampleEvents()) {
+            assertThat(binaryCodec.encode(event).length).isLessThan(textCodec.encode(event).length);
+        }
+    }
+
+    @Test
+    public void shouldReloadBinaryLogAndTruncateTornTail() throws Exception {
+        File f = File.createTempFile("binlog", null);
+        f.deleteOnExit();
+        FileHandler writer = new FileHandler(f.getCanonicalPath(), false, EventLogFormat.BINARY);
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(writer);
+        for (AbstractEvent event : sampleEvents()) {
+            eventstore.addEvent(event);
+        }
+        writer.closeOutputFile();
+        long completeLength = f.length();
+
+        try (RandomAccessFile file = new RandomAccessFile(f, "rw")) {
+            file.seek(completeLength);
+            file.writeInt(100);
+            file.write(new byte[]{1, 2, 3});
+        }
+
+        FileHandler fileHandler = new FileHandler(f.getCanonicalPath());
+        assertThat(fileHandler.detectFormat()).isEqualTo(EventLogFormat.BINARY);
+        FilehandlerEventstore reloaded = new FilehandlerEventstore(fileHandler);
+        assertThat(reloaded.numberOfEvents()).isEqualTo(sampleEvents().size());
+        assertThat(f.length()).isEqualTo(completeLength);
+        fileHandler.closeOutputFile();
+    }
+
+    @Test
+    public void shouldConvertTextLogToBinary() throws Exception {
+        File text = File.createTempFile("textlog", null);
+        File binary = File.createTempFile("binlog", null);
+        binary.delete();
+        text.deleteOnExit();
+        binary.deleteOnExit();
+        FileHandler writer = new FileHandler(text.getCanonicalPath());
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(writer);
+        for (AbstractEvent event : sampleEvents()) {
+            eventstore.addEvent(event);
+        }
+        writer.closeOutputFile();
+
+        int converted = EventLogConverter.convertFile(text.getCanonicalPath(), binary.getCanonicalPath(), EventLogFormat.BINARY);
+
+        assertThat(converted).isEqualTo(sampleEvents().size());
+        FileHandler reader = new FileHandler(binary.getCanonicalPath());
+        FilehandlerEventstore reloaded = new FilehandlerEventstore(reader);
+        assertThat(reader.format()).isEqualTo(EventLogFormat.BINARY);
+        assertThat(reloaded.getEventstorageCopy()).hasSize(sampleEvents().size());
+        reader.closeOutputFile();
+    }
+}
@@ -0,0 +1,293 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.DbEventStore;
+import no.java.moosehead.eventstore.core.StreamVersionConflictException;
+import no.java.moosehead.eventstore.system.SystemBootstrapDone;
+import no.java.moosehead.eventstore.utils.DbRevisionBlocks;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.TokenGenerator;
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.MigrationVersion;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DbEventStoreTest {
+    private static int databaseNumber = 0;
+    private Supplier<Connection> connections;
+
+    @Before
+    public void setUp() throws Exception {
+        SystemSetup systemSetup = mock(SystemSetup.class);
+        when(systemSetup.revisionGenerator()).thenReturn(new TokenGenerator());
+        SystemSetup.setSetup(systemSetup);
+
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:eventstore" + (databaseNumber++) + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        Flyway flyway = new Flyway();
+        flyway.setDataSource(dataSource);
+        flyway.migrate();
+        connections = () -> {
+            try {
+                return dataSource.getConnection();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    private void writeEvents(EventLogFormat format, int from, int to) {
+        DbEventStore eventstore = new DbEventStore(connections, format, 100);
+        for (int revision = from; revision <= to; revision++) {
+            eventstore.addEvent(new WorkshopAddedBySystem(revision, revision, "W" + revision, revision % 30));
+        }
+    }
+
+    @Test
+    public void shouldStreamEventsInOrderToSubscribers() throws Exception {
+        writeEvents(EventLogFormat.TEXT, 1, 1500);
+        writeEvents(EventLogFormat.BINARY, 1501, 3000);
+
+        DbEventStore eventstore = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        List<AbstractEvent> received = new ArrayList<>();
+        eventstore.addEventSubscriber(received::add);
+        eventstore.playbackEventsToSubscribers();
+
+        assertThat(received).hasSize(3001);
+        for (int i = 0; i < 3000; i++) {
+            assertThat(received.get(i).getRevisionId()).isEqualTo(i + 1L);
+        }
+        assertThat(received.get(3000)).isInstanceOf(SystemBootstrapDone.class);
+        assertThat(eventstore.getEventstorageCopy()).hasSize(3001);
+        assertThat(eventstore.numberOfWorkshops()).isEqualTo(3000);
+    }
+
+    @Test
+    public void shouldOnlyPlayBackEventsAfterSnapshot() throws Exception {
+        writeEvents(EventLogFormat.BINARY, 1, 1000);
+
+        DbEventStore eventstore = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        assertThat(eventstore.revisionIdOfEvent(899)).isEqualTo(Optional.of(900L));
+        assertThat(eventstore.revisionIdOfEvent(1000)).isEmpty();
+        List<AbstractEvent> received = new ArrayList<>();
+        eventstore.addEventSubscriber(received::add);
+        eventstore.playbackEventsToSubscribers(900);
+
+        assertThat(received).hasSize(101);
+        assertThat(received.get(0).getRevisionId()).isEqualTo(901L);
+        assertThat(eventstore.getEventstorageCopy()).hasSize(1001);
+    }
+
+    @Test
+    public void shouldInsertInBatchesWithWriteBehind() throws Exception {
+        DbEventStore eventstore = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        eventstore.startWriteBehind(100, 20);
+        List<AbstractEvent> added = new ArrayList<>();
+        for (int revision = 1; revision <= 1000; revision++) {
+            WorkshopAddedBySystem event = new WorkshopAddedBySystem(revision, revision, "W" + revision, 10);
+            eventstore.addEvent(event);
+            added.add(event);
+        }
+        for (AbstractEvent event : added) {
+            eventstore.awaitPersisted(event);
+        }
+
+        assertThat(eventstore.writeBehind().get().getCommittedCount()).isEqualTo(1000);
+        assertThat(eventstore.writeBehind().get().getBatchCount()).isLessThan(1000);
+        assertThat(eventstore.writeBehind().get().getMaxBatchSize()).isLessThanOrEqualTo(100);
+        eventstore.stopWriteBehind();
+
+        DbEventStore reloaded = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        reloaded.playbackEventsToSubscribers();
+        assertThat(reloaded.getEventstorageCopy()).hasSize(1001);
+    }
+
+    @Test
+    public void shouldReadEventsBackFromTheDatabaseInTheOrderTheyWereAdded() throws Exception {
+        writeEvents(EventLogFormat.TEXT, 1, 3);
+        writeEvents(EventLogFormat.BINARY, 5, 7);
+        DbEventStore eventstore = new DbEventStore(connections, EventLogFormat.BINARY, 2);
+        eventstore.playbackEventsToSubscribers();
+        // Added after a higher revision, as events from other instances can be
+        eventstore.addEvent(new WorkshopAddedBySystem(4, 4, "W4", 10));
+
+        assertThat(eventstore.eventsFrom(2).collect(Collectors.toList())).extracting(AbstractEvent::getRevisionId).containsExactly(3L, 5L, 6L, 7L, 0L, 4L);
+        assertThat(eventstore.eventsFrom(6).findFirst().get()).isInstanceOf(SystemBootstrapDone.class);
+        assertThat(eventstore.revisionIdOfEvent(7)).contains(4L);
+        assertThat(eventstore.numberOfEvents()).isEqualTo(8);
+        assertThat(eventstore.lastRevisionId()).isEqualTo(7);
+    }
+
+    @Test
+    public void shouldOnlyFailTheCallersOfAFailedBatch() throws Exception {
+        writeEvents(EventLogFormat.BINARY, 1, 1);
+        DbEventStore eventstore = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        List<AbstractEvent> seen = new ArrayList<>();
+        eventstore.addEventSubscriber(seen::add);
+        eventstore.startWriteBehind(100, 50);
+        WorkshopAddedBySystem duplicate = new WorkshopAddedBySystem(1, 1, "W1", 10);
+        eventstore.addEvent(duplicate);
+
+        assertThatThrownBy(() -> eventstore.awaitPersisted(duplicate)).hasMessageContaining("Writing to eventstore failed");
+        WorkshopAddedBySystem next = new WorkshopAddedBySystem(3, 3, "W3", 10);
+        eventstore.addEvent(next);
+        eventstore.awaitPersisted(next);
+        eventstore.stopWriteBehind();
+
+        // The failed event is never handed to the subscribers
+        assertThat(seen).containsExactly(next);
+        assertThat(eventstore.getEventstorageCopy()).extracting(AbstractEvent::getRevisionId).containsExactly(3L);
+        DbEventStore reloaded = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        reloaded.playbackEventsToSubscribers();
+        assertThat(reloaded.numberOfWorkshops()).isEqualTo(2);
+        assertThat(reloaded.lastRevisionId()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldRejectEventsForStreamChangedByAnotherInstance() throws Exception {
+        writeEvents(EventLogFormat.BINARY, 1, 1);
+        DbEventStore first = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        first.playbackEventsToSubscribers();
+        DbEventStore second = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        List<AbstractEvent> received = new ArrayList<>();
+        second.addEventSubscriber(received::add);
+        second.playbackEventsToSubscribers();
+        String stream = EventStreams.forWorkshop("W1");
+        assertThat(second.streamVersion(stream)).isEqualTo(1L);
+
+        first.addEvent(reservation(2, "first@example.com"), 1L);
+        assertThatThrownBy(() -> first.addEvent(reservation(3, "stale@example.com"), 1L)).isInstanceOf(StreamVersionConflictException.class);
+        ReservationAddedByUser fromSecond = reservation(3, "second@example.com");
+        assertThatThrownBy(() -> second.addEvent(fromSecond, 1L)).isInstanceOf(StreamVersionConflictException.class);
+        assertThat(second.streamVersion(stream)).isEqualTo(1L);
+
+        second.catchUp();
+        assertThat(second.streamVersion(stream)).isEqualTo(2L);
+        assertThat(received.get(received.size() - 1).getRevisionId()).isEqualTo(2L);
+        second.addEvent(fromSecond, 2L);
+
+        DbEventStore reloaded = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        reloaded.playbackEventsToSubscribers();
+        assertThat(reloaded.streamVersion(stream)).isEqualTo(3L);
+        assertThat(reloaded.getEventstorageCopy().stream().filter(ev -> ev instanceof ReservationAddedByUser).count()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotReuseRevisionIdsAfterCrash() throws Exception {
+        TokenGenerator beforeCrash = useRevisionBlocks();
+        DbEventStore eventstore = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        eventstore.playbackEventsToSubscribers();
+        List<Long> stored = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            long revision = beforeCrash.nextRevisionId();
+            eventstore.addEvent(new WorkshopAddedBySystem(revision, revision, "W" + i, 10));
+            stored.add(revision);
+        }
+        // Handed out, but the instance died before the event was stored
+        long lost = beforeCrash.nextRevisionId();
+
+        TokenGenerator afterRestart = useRevisionBlocks();
+        DbEventStore restarted = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        restarted.playbackEventsToSubscribers();
+        long revision = afterRestart.nextRevisionId();
+        restarted.addEvent(new WorkshopAddedBySystem(revision, revision, "W3", 10));
+
+        assertThat(stored).containsExactly(1L, 2L, 3L);
+        assertThat(revision).isGreaterThan(lost);
+        assertThat(revision).isEqualTo(DbRevisionBlocks.BLOCK_SIZE + 1L);
+        assertThat(restarted.lastRevisionId()).isEqualTo(revision);
+    }
+
+    @Test
+    public void shouldGiveInstancesSharingTheDatabaseDisjointIds() throws Exception {
+        TokenGenerator first = new TokenGenerator(new DbRevisionBlocks(connections));
+        TokenGenerator second = new TokenGenerator(new DbRevisionBlocks(connections));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            TokenGenerator tokenGenerator = t % 2 == 0 ? first : second;
+            futures.add(executor.submit(() -> {
+                List<Long> ids = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    ids.add(tokenGenerator.nextRevisionId());
+                }
+                return ids;
+            }));
+        }
+        Set<Long> all = new HashSet<>();
+        for (Future<List<Long>> future : futures) {
+            all.addAll(future.get(30, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        assertThat(all).hasSize(4000);
+    }
+
+    @Test
+    public void shouldStartRevisionSequenceAboveExistingEvents() throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:eventstore" + (databaseNumber++) + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        Flyway flyway = new Flyway();
+        flyway.setDataSource(dataSource);
+        flyway.setTarget(MigrationVersion.fromVersion("5"));
+        flyway.migrate();
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("insert into event(id, payload) values (1000, 'x')");
+            statement.execute("insert into event_archive(id, payload) values (2000, 'x')");
+        }
+        flyway.setTarget(MigrationVersion.LATEST);
+        flyway.migrate();
+
+        DbRevisionBlocks blocks = new DbRevisionBlocks(() -> {
+            try {
+                return dataSource.getConnection();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertThat(blocks.reserveBlock()).isEqualTo(2001L);
+        assertThat(blocks.reserveBlock()).isEqualTo(2001L + DbRevisionBlocks.BLOCK_SIZE);
+    }
+
+    private TokenGenerator useRevisionBlocks() {
+        TokenGenerator tokenGenerator = new TokenGenerator(new DbRevisionBlocks(connections));
+        SystemSetup systemSetup = mock(SystemSetup.class);
+        when(systemSetup.revisionGenerator()).thenReturn(tokenGenerator);
+        SystemSetup.setSetup(systemSetup);
+        return tokenGenerator;
+    }
+
+    private static ReservationAddedByUser reservation(long revisionId, String email) {
+        return new ReservationAddedByUser(WorkshopReservation.builder()
+                .setSystemTimeInMillis(revisionId)
+                .setRevisionId(revisionId)
+                .setEmail(email)
+                .setFullname("Name")
+                .setWorkshopId("W1")
+                .setGoogleUserEmail(Optional.empty())
+                .create());
+    }
+}
@@ -0,0 +1,277 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.DbEventStore;
+import no.java.moosehead.eventstore.core.EventNotifications;
+import no.java.moosehead.eventstore.core.EventSubscription;
+import no.java.moosehead.eventstore.core.StreamVersionConflictException;
+import no.java.moosehead.eventstore.utils.DbRevisionBlocks;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.TokenGenerator;
+import org.flywaydb.core.Flyway;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Two eventstores on the same in memory database play two instances. H2 has no LISTEN/NOTIFY,
+ * so notifications go through a channel in memory.
+ */
+public class DbEventTailingTest {
+    private static int databaseNumber = 0;
+    private static final long NO_POLLING = 60000;
+
+    private Supplier<Connection> connections;
+    private TokenGenerator otherInstanceIds;
+    private TokenGenerator tokenGenerator;
+    private final List<DbEventStore> started = new ArrayList<>();
+
+    /**
+     * Wakes every listener when any instance inserts events
+     */
+    private static class NotificationChannel {
+        private final List<Semaphore> listeners = new CopyOnWriteArrayList<>();
+
+        private EventNotifications listen() {
+            Semaphore semaphore = new Semaphore(0);
+            listeners.add(semaphore);
+            return new EventNotifications() {
+                @Override
+                public void eventsInserted(Connection connection) {
+                    listeners.forEach(Semaphore::release);
+                }
+
+                @Override
+                public boolean await(long timeoutMillis) throws InterruptedException {
+                    boolean notified = semaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+                    semaphore.drainPermits();
+                    return notified;
+                }
+
+                @Override
+                public void close() {
+                    listeners.remove(semaphore);
+                }
+            };
+        }
+    }
+
+    private static class RecordingSubscriber implements EventSubscription {
+        private final List<AbstractEvent> own = new CopyOnWriteArrayList<>();
+        private final List<AbstractEvent> fromOthers = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void eventAdded(AbstractEvent event) {
+            own.add(event);
+        }
+
+        @Override
+        public void eventAddedByOtherInstance(AbstractEvent event) {
+            fromOthers.add(event);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:tailing" + (databaseNumber++) + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        Flyway flyway = new Flyway();
+        flyway.setDataSource(dataSource);
+        flyway.migrate();
+        connections = () -> {
+            try {
+                return dataSource.getConnection();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        otherInstanceIds = new TokenGenerator(new DbRevisionBlocks(connections));
+        // The instance under test. The other instance only uses the generator when it catches up
+        tokenGenerator = new TokenGenerator(new DbRevisionBlocks(connections));
+        SystemSetup systemSetup = mock(SystemSetup.class);
+        when(systemSetup.revisionGenerator()).thenReturn(tokenGenerator);
+        SystemSetup.setSetup(systemSetup);
+    }
+
+    @After
+    public void tearDown() {
+        started.forEach(DbEventStore::stopTailing);
+        SystemSetup.setSetup(null);
+    }
+
+    private DbEventStore instance(RecordingSubscriber subscriber) {
+        DbEventStore eventstore = new DbEventStore(connections, EventLogFormat.BINARY, 100);
+        eventstore.addEventSubscriber(subscriber);
+        eventstore.playbackEventsToSubscribers();
+        return eventstore;
+    }
+
+    private void tail(DbEventStore eventstore, EventNotifications notifications, long pollMillis, long settleMillis) {
+        eventstore.startTailing(new Object(), notifications, pollMillis, settleMillis);
+        started.add(eventstore);
+    }
+
+    private static WorkshopAddedBySystem workshop(long revisionId) {
+        return new WorkshopAddedBySystem(System.currentTimeMillis(), revisionId, "W" + revisionId, 10);
+    }
+
+    private static void awaitEvents(List<AbstractEvent> events, int count) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + 10000;
+        while (events.size() < count && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(5);
+        }
+        assertThat(events).hasSize(count);
+    }
+
+    @Test
+    public void shouldApplyEventsFromOtherInstanceWhenNotified() throws Exception {
+        NotificationChannel channel = new NotificationChannel();
+        DbEventStore other = instance(new RecordingSubscriber());
+        tail(other, channel.listen(), NO_POLLING, 5000);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        DbEventStore eventstore = instance(subscriber);
+        tail(eventstore, channel.listen(), NO_POLLING, 5000);
+
+        WorkshopAddedBySystem event = workshop(otherInstanceIds.nextRevisionId());
+        other.addEvent(event);
+
+        awaitEvents(subscriber.fromOthers, 1);
+        assertThat(subscriber.fromOthers.get(0).getRevisionId()).isEqualTo(event.getRevisionId());
+        assertThat(eventstore.numberOfWorkshops()).isEqualTo(1);
+        assertThat(eventstore.lastRevisionId()).isEqualTo(event.getRevisionId());
+    }
+
+    @Test
+    public void shouldPollWithoutNotifications() throws Exception {
+        DbEventStore other = instance(new RecordingSubscriber());
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        DbEventStore eventstore = instance(subscriber);
+        tail(eventstore, EventNotifications.polling(), 20, 5000);
+
+        for (int i = 0; i < 3; i++) {
+            other.addEvent(workshop(otherInstanceIds.nextRevisionId()));
+        }
+
+        awaitEvents(subscriber.fromOthers, 3);
+        assertThat(eventstore.numberOfWorkshops()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldReadEventsCommittedBelowTheNewestRevisionSeen() throws Exception {
+        // The other instance has the first block, and is slow to use it
+        long lowerThanOwn = otherInstanceIds.nextRevisionId();
+        DbEventStore other = instance(new RecordingSubscriber());
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        DbEventStore eventstore = instance(subscriber);
+        tail(eventstore, EventNotifications.polling(), 20, 60000);
+
+        WorkshopAddedBySystem own = workshop(tokenGenerator.nextRevisionId());
+        eventstore.addEvent(own);
+        assertThat(lowerThanOwn).isLessThan(own.getRevisionId());
+        other.addEvent(workshop(lowerThanOwn));
+        awaitEvents(subscriber.fromOthers, 1);
+
+        // Committed after the tailer has seen a higher revision
+        other.addEvent(workshop(otherInstanceIds.nextRevisionId()));
+        awaitEvents(subscriber.fromOthers, 2);
+
+        // The own event is not read back
+        Thread.sleep(100);
+        assertThat(subscriber.own).contains(own).hasSize(2);
+        assertThat(subscriber.fromOthers).hasSize(2);
+        assertThat(eventstore.numberOfWorkshops()).isEqualTo(3);
+        assertThat(eventstore.lastRevisionId()).isEqualTo(own.getRevisionId());
+    }
+
+    @Test
+    public void shouldMoveRevisionGeneratorAboveEventsFromOtherInstance() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        DbEventStore eventstore = instance(subscriber);
+        long own = tokenGenerator.nextRevisionId();
+        DbEventStore other = instance(new RecordingSubscriber());
+        // Another instance that started later reserved the next block
+        TokenGenerator laterInstance = new TokenGenerator(new DbRevisionBlocks(connections));
+        long later = laterInstance.nextRevisionId();
+        assertThat(later).isGreaterThan(own);
+        other.addEvent(workshop(later));
+
+        eventstore.catchUp();
+
+        assertThat(subscriber.fromOthers).hasSize(1);
+        assertThat(tokenGenerator.nextRevisionId()).isGreaterThan(later);
+    }
+
+    @Test
+    public void shouldMoveSafeRevisionOnceSettled() throws Exception {
+        DbEventStore other = instance(new RecordingSubscriber());
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        DbEventStore eventstore = instance(subscriber);
+        tail(eventstore, EventNotifications.polling(), 10, 50);
+
+        WorkshopAddedBySystem event = workshop(otherInstanceIds.nextRevisionId());
+        other.addEvent(event);
+        awaitEvents(subscriber.fromOthers, 1);
+
+        long waitUntil = System.currentTimeMillis() + 10000;
+        while (eventstore.getSafeRevision() < event.getRevisionId() && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertThat(eventstore.getSafeRevision()).isEqualTo(event.getRevisionId());
+        assertThat(subscriber.fromOthers).hasSize(1);
+    }
+
+    @Test
+    public void shouldReadStreamAfterConflictWithEventCommittedLate() throws Exception {
+        long lowerThanOwn = otherInstanceIds.nextRevisionId();
+        DbEventStore other = instance(new RecordingSubscriber());
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        DbEventStore eventstore = instance(subscriber);
+        tail(eventstore, EventNotifications.polling(), 20, 50);
+        WorkshopAddedBySystem own = workshop(tokenGenerator.nextRevisionId());
+        eventstore.addEvent(own);
+        while (eventstore.getSafeRevision() < own.getRevisionId()) {
+            Thread.sleep(10);
+        }
+
+        // Appended to the stream by the other instance, below the safe revision
+        other.catchUp();
+        String workshopId = "W" + own.getRevisionId();
+        other.addEvent(new WorkshopSizeChangedByAdmin(System.currentTimeMillis(), lowerThanOwn, workshopId, 20), own.getRevisionId());
+        String stream = EventStreams.forWorkshop(workshopId);
+        Thread.sleep(100);
+        assertThat(eventstore.streamVersion(stream)).isEqualTo(own.getRevisionId());
+
+        WorkshopSizeChangedByAdmin stale = new WorkshopSizeChangedByAdmin(System.currentTimeMillis(), tokenGenerator.nextRevisionId(), workshopId, 30);
+        assertThatThrownBy(() -> eventstore.addEvent(stale, own.getRevisionId())).isInstanceOf(StreamVersionConflictException.class);
+        eventstore.catchUp();
+
+        assertThat(eventstore.streamVersion(stream)).isEqualTo(lowerThanOwn);
+        assertThat(subscriber.fromOthers).extracting(AbstractEvent::getRevisionId).containsExactly(lowerThanOwn);
+        eventstore.addEvent(new WorkshopSizeChangedByAdmin(System.currentTimeMillis(), tokenGenerator.nextRevisionId(), workshopId, 30), lowerThanOwn);
+    }
+
+    @Test
+    public void shouldNotTailWithWriteBehind() {
+        DbEventStore eventstore = instance(new RecordingSubscriber());
+        eventstore.startWriteBehind(100, 20);
+
+        assertThatThrownBy(() -> tail(eventstore, EventNotifications.polling(), 10, 100)).isInstanceOf(IllegalStateException.class);
+        eventstore.stopWriteBehind();
+    }
+}
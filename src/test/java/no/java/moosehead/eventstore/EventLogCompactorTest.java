@@ -0,0 +1,157 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.commands.WorkshopTypeEnum;
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.DbEventStore;
+import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.utils.*;
+import no.java.moosehead.repository.WorkshopData;
+import org.flywaydb.core.Flyway;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EventLogCompactorTest {
+    private static final Instant ENDED = Instant.parse("2015-10-01T10:00:00Z");
+    private static final Instant ENDS_LATER = Instant.parse("2100-10-01T10:00:00Z");
+
+    private static WorkshopReservation.Builder reservation(long revisionId, String email, String workshopId, int seats) {
+        return WorkshopReservation.builder()
+                .setSystemTimeInMillis(1000L * revisionId)
+                .setRevisionId(revisionId)
+                .setEmail(email)
+                .setFullname("Name " + email)
+                .setWorkshopId(workshopId)
+                .setNumberOfSeatsReserved(seats)
+                .setGoogleUserEmail(Optional.empty());
+    }
+
+    private static WorkshopAddedByAdmin workshop(long revisionId, String id, Instant ends) {
+        WorkshopData data = new WorkshopData(id, id, id, ends.minusSeconds(3600), ends, Optional.empty(), WorkshopTypeEnum.NORMAL_WORKSHOP);
+        return new WorkshopAddedByAdmin(revisionId, revisionId, id, 2, ends.minusSeconds(3600), ends, data);
+    }
+
+    private static List<AbstractEvent> events() {
+        ReservationAddedByUser a = new ReservationAddedByUser(reservation(3, "a@a.com", "old", 1).create());
+        ReservationAddedByUser b = new ReservationAddedByUser(reservation(5, "b@b.com", "old", 1).create());
+        return Arrays.asList(
+                workshop(1, "old", ENDED),
+                workshop(2, "new", ENDS_LATER),
+                a,
+                new EmailConfirmedByUser("a@a.com", 4000L, 4L),
+                b,
+                new EmailConfirmedByUser("b@b.com", 6000L, 6L),
+                new ReservationAddedByUser(reservation(7, "c@c.com", "old", 1).create()),
+                new EmailConfirmedByUser("c@c.com", 8000L, 8L),
+                new ShowUpRegisteredByAdmin(9000L, 9L, true, a.getReservationToken()),
+                new ShowUpRegisteredByAdmin(10000L, 10L, false, a.getReservationToken()),
+                new ShowUpRegisteredByAdmin(11000L, 11L, true, b.getReservationToken()),
+                new ReservationCancelledByUser(12000L, 12L, "a@a.com", "old", 1),
+                new ReservationAddedByUser(reservation(13, "d@d.com", "new", 2).create()),
+                new ReservationCancelledByUser(14000L, 14L, "d@d.com", "new", 2),
+                new ReservationAddedByUser(reservation(15, "e@e.com", "old", 2).create()),
+                new ReservationPartallyCancelled(16000L, 16L, "e@e.com", "old", 1),
+                new ReservationCancelledByUser(17000L, 17L, "e@e.com", "old", 1),
+                new ReservationAddedByUser(reservation(18, "f@f.com", "new", 1).create())
+        );
+    }
+
+    private static List<Long> revisions(List<AbstractEvent> events) {
+        return events.stream().map(AbstractEvent::getRevisionId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void shouldRemoveCancelledReservationsOfClosedWorkshops() throws Exception {
+        EventLogCompactor.Result result = EventLogCompactor.compact(events(), Collections.singleton("old"));
+
+        assertThat(result.getCompactedWorkshops()).containsExactly("old");
+        assertThat(revisions(result.getArchived())).containsExactly(3L, 9L, 10L, 12L, 15L, 16L, 17L);
+        assertThat(revisions(result.getKept())).containsExactly(1L, 2L, 4L, 5L, 6L, 7L, 8L, 11L, 13L, 14L, 18L);
+    }
+
+    @Test
+    public void shouldKeepLastEventSoRevisionIdsAreNotReused() throws Exception {
+        List<AbstractEvent> events = events().subList(0, 17);
+        EventLogCompactor.Result result = EventLogCompactor.compact(events, Collections.singleton("old"));
+
+        assertThat(revisions(result.getArchived())).containsExactly(3L, 9L, 10L, 12L);
+    }
+
+    @Test
+    public void shouldWriteCompactedFileAndArchive() throws Exception {
+        File from = File.createTempFile("events", ".log");
+        File to = new File(from.getPath() + ".compacted");
+        File archive = new File(to.getPath() + ".archive");
+        from.deleteOnExit();
+        to.deleteOnExit();
+        archive.deleteOnExit();
+        FileHandler fileHandler = new FileHandler(from.getPath(), false, EventLogFormat.BINARY);
+        fileHandler.openFileForOutput();
+        EventCodec codec = EventLogFormat.BINARY.createCodec();
+        for (AbstractEvent event : events()) {
+            fileHandler.writeRecord(codec.encode(event));
+        }
+        fileHandler.closeOutputFile();
+
+        EventLogCompactor.compactFile(from.getPath(), to.getPath(), Instant.parse("2020-01-01T00:00:00Z"));
+
+        SystemSetup systemSetup = mock(SystemSetup.class);
+        TokenGenerator tokenGenerator = new TokenGenerator();
+        when(systemSetup.revisionGenerator()).thenReturn(tokenGenerator);
+        SystemSetup.setSetup(systemSetup);
+        FilehandlerEventstore compacted = new FilehandlerEventstore(new FileHandler(to.getPath()));
+        assertThat(compacted.numberOfEvents()).isEqualTo(11);
+        compacted.playbackEventsToSubscribers();
+        assertThat(tokenGenerator.nextRevisionId()).isEqualTo(19L);
+        assertThat(new FilehandlerEventstore(new FileHandler(archive.getPath())).numberOfEvents()).isEqualTo(7);
+    }
+
+    @Test
+    public void shouldMoveCompactedRowsToArchiveTable() throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:compactor;MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        Flyway flyway = new Flyway();
+        flyway.setDataSource(dataSource);
+        flyway.migrate();
+        DbEventStore eventstore = new DbEventStore(() -> {
+            try {
+                return dataSource.getConnection();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }, EventLogFormat.TEXT, 100);
+        events().forEach(eventstore::addEvent);
+
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("insert into snapshot(event_count, revision_id, payload) values (18, 18, X'00')");
+            }
+            EventLogCompactor.compactDb(connection, Instant.parse("2020-01-01T00:00:00Z"));
+
+            assertThat(count(connection, "event")).isEqualTo(11);
+            assertThat(count(connection, "event_archive")).isEqualTo(7);
+            assertThat(count(connection, "snapshot")).isEqualTo(0);
+        }
+    }
+
+    private static int count(Connection connection, String table) throws SQLException {
+        try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery("select count(*) from " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
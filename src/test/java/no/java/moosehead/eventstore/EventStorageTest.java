@@ -0,0 +1,61 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.EventStorage;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EventStorageTest {
+
+    @Test
+    public void shouldReadFromIndexAcrossChunks() throws Exception {
+        EventStorage storage = new EventStorage();
+        for (long revision = 1; revision <= 5000; revision++) {
+            storage.add(new ReservationCancelledByUser(revision, revision, "a@a.com", "one", 1));
+        }
+        storage.add(new WorkshopAddedBySystem(5001L, 5001L, "one", 10));
+
+        assertThat(storage.size()).isEqualTo(5001);
+        assertThat(storage.get(1023).getRevisionId()).isEqualTo(1024L);
+        assertThat(storage.get(1024).getRevisionId()).isEqualTo(1025L);
+        List<Long> revisions = storage.stream(4990).map(AbstractEvent::getRevisionId).collect(Collectors.toList());
+        assertThat(revisions).hasSize(11);
+        assertThat(revisions.get(0)).isEqualTo(4991L);
+        assertThat(storage.stream(6000).count()).isEqualTo(0);
+        assertThat(storage.numberOfWorkshops()).isEqualTo(1);
+    }
+
+    @Test
+    public void readersShouldSeeStablePrefixWhileWriterAppends() throws Exception {
+        EventStorage storage = new EventStorage();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (storage.size() < 50000 && failure.get() == null) {
+                int sizeBefore = storage.size();
+                long expected = 1;
+                for (AbstractEvent event : (Iterable<AbstractEvent>) storage.stream(0)::iterator) {
+                    if (event == null || event.getRevisionId() != expected) {
+                        failure.set("Expected revision " + expected + " got " + event);
+                        return;
+                    }
+                    expected++;
+                }
+                if (expected - 1 < sizeBefore) {
+                    failure.set("Saw " + (expected - 1) + " events, but size was " + sizeBefore);
+                }
+            }
+        });
+        reader.start();
+        for (long revision = 1; revision <= 50000; revision++) {
+            storage.add(new ReservationCancelledByUser(revision, revision, "a@a.com", "one", 1));
+        }
+        reader.join();
+
+        assertThat(failure.get()).isNull();
+    }
+}
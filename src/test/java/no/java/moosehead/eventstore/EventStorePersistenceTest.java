@@ -2,12 +2,15 @@ package no.java.moosehead.eventstore;
 
 import no.java.moosehead.controller.SystemSetup;
 import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
 import no.java.moosehead.eventstore.utils.FileHandler;
 import no.java.moosehead.eventstore.utils.TokenGenerator;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -40,4 +43,26 @@ public class EventStorePersistenceTest {
         assertThat(eventstore.numberOfEvents()).isEqualTo(1);
 
     }
+
+    @Test
+    public void shouldRemoveRecordWithInvalidLength() throws IOException {
+        for (int length : new int[]{-1, Integer.MAX_VALUE, 1000}) {
+            File f = File.createTempFile("tmp", null);
+            f.deleteOnExit();
+            FileHandler fileHandler = new FileHandler(f.getCanonicalPath(), false, EventLogFormat.BINARY);
+            FilehandlerEventstore eventstore = new FilehandlerEventstore(fileHandler);
+            eventstore.addEvent(new WorkshopAddedBySystem(System.currentTimeMillis(), 1L, "W1", 0));
+            eventstore.addEvent(new WorkshopAddedBySystem(System.currentTimeMillis(), 2L, "W2", 0));
+            fileHandler.closeOutputFile();
+            long validLength = f.length();
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(f, true))) {
+                out.writeInt(length);
+                out.write(new byte[10]);
+            }
+
+            FilehandlerEventstore reloaded = new FilehandlerEventstore(new FileHandler(f.getCanonicalPath()));
+            assertThat(reloaded.numberOfEvents()).isEqualTo(2);
+            assertThat(f.length()).isEqualTo(validLength);
+        }
+    }
 }
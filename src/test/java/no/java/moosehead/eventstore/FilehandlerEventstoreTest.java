@@ -1,11 +1,22 @@
 package no.java.moosehead.eventstore;
 
 import no.java.moosehead.aggregate.WorkshopAggregate;
+import no.java.moosehead.eventstore.core.AbstractEvent;
 import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.core.StreamVersionConflictException;
+import no.java.moosehead.eventstore.utils.EventLog;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
 import no.java.moosehead.eventstore.utils.FileHandler;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 
 public class FilehandlerEventstoreTest {
@@ -30,5 +41,84 @@ public class FilehandlerEventstoreTest {
         assertThat(eventstore.numberOfListeners()).isGreaterThan(0);
     }
 
+    @Test
+    public void shouldHandEventsToSubscribersWhenWritten() {
+        PendingEventLog eventLog = new PendingEventLog();
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(eventLog);
+        List<AbstractEvent> seen = new CopyOnWriteArrayList<>();
+        eventstore.addEventSubscriber(seen::add);
+        WorkshopAddedBySystem added = new WorkshopAddedBySystem(System.currentTimeMillis(), 1L, "W1", 10);
+
+        eventstore.addEvent(added);
+
+        assertThat(seen).isEmpty();
+        assertThat(eventstore.numberOfEvents()).isEqualTo(0);
+        assertThat(eventstore.streamVersion(EventStreams.forWorkshop("W1"))).isEqualTo(0);
+        assertThatThrownBy(() -> eventstore.addEvent(new WorkshopSizeChangedByAdmin(System.currentTimeMillis(), 2L, "W1", 20), 0))
+                .isInstanceOf(StreamVersionConflictException.class);
+
+        eventLog.writes.get(0).complete(null);
+        eventstore.awaitPersisted(added);
+        eventstore.awaitStream(EventStreams.forWorkshop("W1"));
+
+        assertThat(seen).containsExactly(added);
+        assertThat(eventstore.streamVersion(EventStreams.forWorkshop("W1"))).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldOnlyFailTheEventsThatWereNotWritten() {
+        PendingEventLog eventLog = new PendingEventLog();
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(eventLog);
+        List<AbstractEvent> seen = new CopyOnWriteArrayList<>();
+        eventstore.addEventSubscriber(seen::add);
+        WorkshopAddedBySystem lost = new WorkshopAddedBySystem(System.currentTimeMillis(), 1L, "W1", 10);
+        WorkshopAddedBySystem written = new WorkshopAddedBySystem(System.currentTimeMillis(), 2L, "W2", 10);
+        eventstore.addEvent(lost);
+        eventstore.addEvent(written);
+
+        eventLog.writes.get(1).complete(null);
+        eventLog.writes.get(0).completeExceptionally(new IOException("disk full"));
 
+        assertThatThrownBy(() -> eventstore.awaitPersisted(lost)).hasMessageContaining("Writing to eventstore failed");
+        eventstore.awaitPersisted(written);
+        assertThat(seen).containsExactly(written);
+
+        WorkshopAddedBySystem retried = new WorkshopAddedBySystem(System.currentTimeMillis(), 3L, "W1", 10);
+        eventstore.addEvent(retried, 0);
+        eventLog.writes.get(2).complete(null);
+        eventstore.awaitPersisted(retried);
+        assertThat(seen).containsExactly(written, retried);
+        assertThat(eventstore.getEventstorageCopy()).containsExactly(written, retried);
+    }
+
+    /**
+     * Completes the writes when the test says so
+     */
+    private static class PendingEventLog implements EventLog {
+        private final List<CompletableFuture<Void>> writes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public EventLogFormat detectFormat() {
+            return EventLogFormat.BINARY;
+        }
+
+        @Override
+        public void readRecords(Consumer<byte[]> recordConsumer) {
+        }
+
+        @Override
+        public CompletableFuture<Void> appendRecord(long revisionId, byte[] record) {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            writes.add(written);
+            return written;
+        }
+
+        @Override
+        public void openFileForOutput() {
+        }
+
+        @Override
+        public void closeOutputFile() {
+        }
+    }
 }
@@ -0,0 +1,97 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.utils.FileHandler;
+import no.java.moosehead.eventstore.utils.GroupCommitter;
+import no.java.moosehead.metrics.Metrics;
+import org.jsonbuddy.JsonObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class GroupCommitterTest {
+
+    @Test
+    public void shouldBatchConcurrentSubmits() throws Exception {
+        List<Integer> written = new CopyOnWriteArrayList<>();
+        GroupCommitter<Integer> committer = new GroupCommitter<>("test", batch -> {
+            Thread.sleep(20);
+            written.addAll(batch);
+        }, 1000, 0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int value = i;
+            futures.add(executor.submit(() -> committer.submit(value).join()));
+        }
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        committer.close();
+
+        assertThat(written).hasSize(100);
+        assertThat(committer.getCommittedCount()).isEqualTo(100);
+        assertThat(committer.getBatchCount()).isLessThan(100);
+        assertThat(committer.getMaxBatchSize()).isGreaterThan(1);
+        assertThat(committer.getAverageCommitLatencyMillis()).isGreaterThan(0);
+    }
+
+    @Test
+    public void shouldFailAllInBatchWhenWriteFails() throws Exception {
+        GroupCommitter<String> committer = new GroupCommitter<>("test", batch -> {
+            throw new RuntimeException("disk full");
+        }, 10, 0);
+        CompletableFuture<Void> result = committer.submit("a");
+        try {
+            result.join();
+            fail("Expected exception");
+        } catch (CompletionException e) {
+            assertThat(e.getCause()).hasMessage("disk full");
+        }
+        committer.close();
+        assertThat(committer.getFailedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldPublishMetrics() throws Exception {
+        GroupCommitter<Integer> committer = new GroupCommitter<>("metrics-test", batch -> {
+        }, 10, 0);
+        for (int i = 0; i < 5; i++) {
+            committer.submit(i).join();
+        }
+        committer.close();
+
+        assertThat(Metrics.histogram("groupCommitter.metrics-test.commitLatency").getCount()).isEqualTo(5);
+        assertThat(Metrics.histogram("groupCommitter.metrics-test.write").getCount()).isEqualTo(committer.getBatchCount());
+        JsonObject gauges = Metrics.toJson().requiredObject("gauges");
+        assertThat(gauges.requiredLong("groupCommitter.metrics-test.committed")).isEqualTo(5);
+        assertThat(gauges.requiredLong("groupCommitter.metrics-test.averageBatchSize")).isEqualTo(Math.round(committer.getAverageBatchSize()));
+    }
+
+    @Test
+    public void shouldPersistEventsWithGroupCommit() throws Exception {
+        File f = File.createTempFile("tmp", null);
+        f.deleteOnExit();
+        FileHandler fileHandler = new FileHandler(f.getCanonicalPath(), true);
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(fileHandler);
+        WorkshopAddedBySystem one = new WorkshopAddedBySystem(System.currentTimeMillis(), 1L, "W1", 10);
+        WorkshopAddedBySystem two = new WorkshopAddedBySystem(System.currentTimeMillis(), 2L, "W2", 10);
+        eventstore.addEvent(one);
+        eventstore.addEvent(two);
+        eventstore.awaitPersisted(one);
+        eventstore.awaitPersisted(two);
+        assertThat(fileHandler.groupCommitter().get().getCommittedCount()).isEqualTo(2);
+        fileHandler.closeOutputFile();
+
+        FilehandlerEventstore reloaded = new FilehandlerEventstore(new FileHandler(f.getCanonicalPath()));
+        assertThat(reloaded.numberOfEvents()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,215 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.aggregate.WorkshopAggregate;
+import no.java.moosehead.commands.WorkshopTypeEnum;
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.core.PartitionedSubscription;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
+import no.java.moosehead.eventstore.snapshot.Snapshottable;
+import no.java.moosehead.eventstore.system.SystemBootstrapDone;
+import no.java.moosehead.eventstore.utils.BinaryEventCodec;
+import no.java.moosehead.eventstore.utils.EventCodec;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.FileHandler;
+import no.java.moosehead.eventstore.utils.TokenGenerator;
+import no.java.moosehead.projections.WorkshopListProjection;
+import no.java.moosehead.repository.WorkshopData;
+import no.java.moosehead.saga.EmailSaga;
+import no.java.moosehead.saga.EmailSender;
+import no.java.moosehead.web.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ParallelReplayTest {
+    private static final int WORKSHOPS = 20;
+    private static final int USERS = 400;
+
+    private File eventLog;
+
+    @Before
+    public void setUp() throws Exception {
+        SystemSetup systemSetup = mock(SystemSetup.class);
+        when(systemSetup.revisionGenerator()).thenReturn(new TokenGenerator());
+        when(systemSetup.emailSender()).thenReturn(mock(EmailSender.class));
+        SystemSetup.setSetup(systemSetup);
+
+        eventLog = File.createTempFile("events", ".log");
+        eventLog.deleteOnExit();
+        FileHandler fileHandler = new FileHandler(eventLog.getPath(), false, EventLogFormat.BINARY);
+        fileHandler.openFileForOutput();
+        EventCodec codec = EventLogFormat.BINARY.createCodec();
+        for (AbstractEvent event : events(new Random(42))) {
+            fileHandler.writeRecord(codec.encode(event));
+        }
+        fileHandler.closeOutputFile();
+    }
+
+    @After
+    public void tearDown() {
+        SystemSetup.setSetup(null);
+        Configuration.initData(null);
+    }
+
+    @Test
+    public void shouldGiveSameStateAsSequentialPlayback() throws Exception {
+        List<byte[]> sequential = playback(1, false);
+        List<byte[]> parallel = playback(4, false);
+        List<byte[]> parallelAsync = playback(4, true);
+
+        for (int i = 0; i < sequential.size(); i++) {
+            assertThat(parallel.get(i)).isEqualTo(sequential.get(i));
+            assertThat(parallelAsync.get(i)).isEqualTo(sequential.get(i));
+        }
+    }
+
+    @Test
+    public void shouldHandleEventsAloneAfterEveryEarlierEvent() throws Exception {
+        Map<String, String> confdata = new HashMap<>();
+        confdata.put("replayThreads", "4");
+        Configuration.initData(confdata);
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(new FileHandler(eventLog.getPath()));
+        List<Long> handled = Collections.synchronizedList(new ArrayList<>());
+        eventstore.addEventSubscriber(new PartitionedSubscription() {
+            @Override
+            public Optional<String> replayPartition(AbstractEvent event) {
+                return event instanceof UserWorkshopEvent ? Optional.of(((UserWorkshopEvent) event).getWorkshopId()) : Optional.empty();
+            }
+
+            @Override
+            public void eventAdded(AbstractEvent event) {
+                if (!(event instanceof SystemBootstrapDone)) {
+                    handled.add(event.getRevisionId());
+                }
+            }
+        });
+
+        eventstore.playbackEventsToSubscribers();
+
+        List<AbstractEvent> events = eventstore.getEventstorageCopy();
+        assertThat(handled).hasSize(events.size() - 1);
+        Map<Long, Integer> positions = new HashMap<>();
+        for (int i = 0; i < handled.size(); i++) {
+            positions.put(handled.get(i), i);
+        }
+        Map<String, Integer> lastInWorkshop = new HashMap<>();
+        int lastAlone = -1;
+        int latestSoFar = -1;
+        for (AbstractEvent event : events.subList(0, events.size() - 1)) {
+            int position = positions.get(event.getRevisionId());
+            // Nothing is handled before an earlier event that is handled alone
+            assertThat(position).isGreaterThan(lastAlone);
+            if (event instanceof UserWorkshopEvent) {
+                Integer last = lastInWorkshop.put(((UserWorkshopEvent) event).getWorkshopId(), position);
+                if (last != null) {
+                    assertThat(position).isGreaterThan(last);
+                }
+            } else {
+                assertThat(position).isGreaterThan(latestSoFar);
+                lastAlone = position;
+            }
+            latestSoFar = Math.max(latestSoFar, position);
+        }
+    }
+
+    private List<byte[]> playback(int replayThreads, boolean async) throws IOException {
+        Map<String, String> confdata = new HashMap<>();
+        confdata.put("replayThreads", Integer.toString(replayThreads));
+        Configuration.initData(confdata);
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(new FileHandler(eventLog.getPath()));
+        WorkshopAggregate workshopAggregate = new WorkshopAggregate();
+        WorkshopListProjection workshopListProjection = new WorkshopListProjection();
+        EmailSaga emailSaga = new EmailSaga();
+        eventstore.addEventSubscriber(workshopAggregate);
+        if (async) {
+            eventstore.addAsyncEventSubscriber(workshopListProjection, 100);
+            eventstore.addAsyncEventSubscriber(emailSaga, 100);
+        } else {
+            eventstore.addEventSubscriber(workshopListProjection);
+            eventstore.addEventSubscriber(emailSaga);
+        }
+
+        eventstore.playbackEventsToSubscribers();
+        eventstore.awaitSubscribers(eventstore.lastRevisionId());
+
+        return Arrays.asList(stateOf(workshopAggregate), stateOf(workshopListProjection), stateOf(emailSaga));
+    }
+
+    private static byte[] stateOf(Snapshottable snapshottable) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SnapshotOutput out = new SnapshotOutput(bytes, new BinaryEventCodec())) {
+            snapshottable.writeSnapshot(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Workshops with reservations, confirmations, cancellations, show ups and size changes, all consistent with each other
+     */
+    private static List<AbstractEvent> events(Random random) {
+        List<AbstractEvent> events = new ArrayList<>();
+        Instant ends = Instant.parse("2100-10-01T10:00:00Z");
+        for (int i = 0; i < WORKSHOPS; i++) {
+            long revisionId = events.size() + 1;
+            String id = "W" + i;
+            WorkshopData data = new WorkshopData(id, id, id, ends.minusSeconds(3600), ends, Optional.empty(), WorkshopTypeEnum.NORMAL_WORKSHOP);
+            events.add(new WorkshopAddedByAdmin(revisionId, revisionId, id, 5, ends.minusSeconds(3600), ends, data));
+        }
+        // Seats and token of each user reservation, by workshop and email
+        Map<String, Map<String, Integer>> seats = new HashMap<>();
+        Map<String, String> tokens = new HashMap<>();
+        Set<String> confirmed = new HashSet<>();
+        while (events.size() < 5000) {
+            long revisionId = events.size() + 1;
+            String email = "user" + random.nextInt(USERS) + "@example.com";
+            String workshopId = "W" + random.nextInt(WORKSHOPS);
+            Map<String, Integer> inWorkshop = seats.computeIfAbsent(workshopId, id -> new HashMap<>());
+            Integer reserved = inWorkshop.get(email);
+            int action = random.nextInt(10);
+            if (reserved == null && action < 5) {
+                int numberOfSeats = 1 + random.nextInt(3);
+                boolean google = random.nextInt(10) == 0;
+                WorkshopReservation reservation = WorkshopReservation.builder()
+                        .setSystemTimeInMillis(1000L * revisionId)
+                        .setRevisionId(revisionId)
+                        .setEmail(email)
+                        .setFullname("Name " + email)
+                        .setWorkshopId(workshopId)
+                        .setNumberOfSeatsReserved(numberOfSeats)
+                        .setReservationToken("token" + revisionId)
+                        .setGoogleUserEmail(google ? Optional.of(email) : Optional.empty())
+                        .create();
+                events.add(new ReservationAddedByUser(reservation));
+                inWorkshop.put(email, numberOfSeats);
+                tokens.put(workshopId + email, reservation.getReservationToken());
+            } else if (reserved == null && action == 5) {
+                events.add(new WorkshopSizeChangedByAdmin(1000L * revisionId, revisionId, workshopId, 3 + random.nextInt(10)));
+            } else if (reserved != null && action < 4 && !confirmed.contains(email)) {
+                events.add(new EmailConfirmedByUser(email, 1000L * revisionId, revisionId));
+                confirmed.add(email);
+            } else if (reserved != null && action < 6) {
+                events.add(new ShowUpRegisteredByAdmin(1000L * revisionId, revisionId, random.nextBoolean(), tokens.get(workshopId + email)));
+            } else if (reserved != null && action < 8 && reserved > 1) {
+                events.add(new ReservationPartallyCancelled(1000L * revisionId, revisionId, email, workshopId, 1));
+                inWorkshop.put(email, reserved - 1);
+            } else if (reserved != null) {
+                events.add(new ReservationCancelledByUser(1000L * revisionId, revisionId, email, workshopId, reserved));
+                inWorkshop.remove(email);
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,202 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.utils.EventLogFormat;
+import no.java.moosehead.eventstore.utils.SegmentedEventLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SegmentedEventLogTest {
+    private static final int SEGMENT_SIZE = 4096;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("segments").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static byte[] payload(long revisionId) {
+        int size = 20 + (int) (revisionId % 50);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.remaining() >= 8) {
+            buffer.putLong(revisionId);
+        }
+        return buffer.array();
+    }
+
+    private static long revisionOf(byte[] payload) {
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    private List<Long> readAll(SegmentedEventLog log) {
+        List<Long> revisions = new ArrayList<>();
+        log.readRecords(record -> {
+            assertThat(record).isEqualTo(payload(revisionOf(record)));
+            revisions.add(revisionOf(record));
+        });
+        return revisions;
+    }
+
+    private SegmentedEventLog writeLog(int numberOfRecords) {
+        SegmentedEventLog log = new SegmentedEventLog(directory, SEGMENT_SIZE, false, EventLogFormat.BINARY);
+        log.openFileForOutput();
+        for (long revision = 1; revision <= numberOfRecords; revision++) {
+            log.appendRecord(revision, payload(revision)).join();
+        }
+        log.closeOutputFile();
+        return log;
+    }
+
+    @Test
+    public void shouldRollSegmentsAndReadEverythingBack() throws Exception {
+        writeLog(500);
+
+        SegmentedEventLog reopened = new SegmentedEventLog(directory, SEGMENT_SIZE, false, EventLogFormat.TEXT);
+        assertThat(reopened.segmentCount()).isGreaterThan(5);
+        assertThat(reopened.detectFormat()).isEqualTo(EventLogFormat.BINARY);
+        List<Long> revisions = readAll(reopened);
+        assertThat(revisions).hasSize(500);
+        for (int i = 0; i < revisions.size(); i++) {
+            assertThat(revisions.get(i)).isEqualTo(i + 1L);
+        }
+    }
+
+    @Test
+    public void shouldSeekToRevision() throws Exception {
+        writeLog(500);
+        SegmentedEventLog reopened = new SegmentedEventLog(directory, SEGMENT_SIZE, false, EventLogFormat.BINARY);
+
+        List<Long> revisions = new ArrayList<>();
+        reopened.readRecordsFrom(321, record -> revisions.add(revisionOf(record)));
+
+        assertThat(revisions).hasSize(180);
+        assertThat(revisions.get(0)).isEqualTo(321L);
+        assertThat(revisions.get(179)).isEqualTo(500L);
+    }
+
+    @Test
+    public void shouldTruncateTornLastRecord() throws Exception {
+        writeLog(10);
+        File segment = directory.listFiles((dir, name) -> name.endsWith(".segment"))[0];
+        // A record where the writer died after writing the payload but before the length
+        int tornPosition = 8;
+        for (long revision = 1; revision <= 10; revision++) {
+            tornPosition += 16 + payload(revision).length;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(tornPosition + 8);
+            file.writeLong(11);
+            file.write(payload(11));
+        }
+
+        SegmentedEventLog reopened = new SegmentedEventLog(directory, SEGMENT_SIZE, false, EventLogFormat.BINARY);
+        assertThat(readAll(reopened)).hasSize(10);
+        reopened.openFileForOutput();
+        reopened.appendRecord(11, new byte[]{1}).join();
+        reopened.appendRecord(12, payload(12)).join();
+        reopened.closeOutputFile();
+
+        List<Long> revisions = new ArrayList<>();
+        new SegmentedEventLog(directory, SEGMENT_SIZE, false, EventLogFormat.BINARY)
+                .readRecordsFrom(12, record -> revisions.add(revisionOf(record)));
+        assertThat(revisions).containsExactly(12L);
+    }
+
+    @Test
+    public void shouldDropRecordWithBadChecksum() throws Exception {
+        writeLog(10);
+        File segment = directory.listFiles((dir, name) -> name.endsWith(".segment"))[0];
+        int lastPosition = 8;
+        for (long revision = 1; revision < 10; revision++) {
+            lastPosition += 16 + payload(revision).length;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(lastPosition + 20);
+            file.write(0x7f);
+        }
+
+        assertThat(readAll(new SegmentedEventLog(directory, SEGMENT_SIZE, false, EventLogFormat.BINARY))).hasSize(9);
+    }
+
+    @Test
+    public void shouldRecoverAfterWriterIsKilled() throws Exception {
+        String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        Process writer = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                SegmentedEventLogTest.class.getName(), directory.getPath())
+                .inheritIO()
+                .start();
+        long waitUntil = System.currentTimeMillis() + 20000;
+        while (segmentFiles() < 4 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        writer.destroyForcibly();
+        assertThat(writer.waitFor(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(segmentFiles()).isGreaterThanOrEqualTo(4);
+
+        SegmentedEventLog reopened = new SegmentedEventLog(directory, SEGMENT_SIZE, false, EventLogFormat.BINARY);
+        List<Long> revisions = readAll(reopened);
+        assertThat(revisions).isNotEmpty();
+        for (int i = 0; i < revisions.size(); i++) {
+            assertThat(revisions.get(i)).isEqualTo(i + 1L);
+        }
+
+        long next = revisions.size() + 1;
+        reopened.openFileForOutput();
+        reopened.appendRecord(next, payload(next)).join();
+        reopened.closeOutputFile();
+        assertThat(readAll(new SegmentedEventLog(directory, SEGMENT_SIZE, false, EventLogFormat.BINARY))).hasSize(revisions.size() + 1);
+    }
+
+    @Test
+    public void shouldWorkAsEventstore() throws Exception {
+        SegmentedEventLog log = new SegmentedEventLog(directory, SEGMENT_SIZE, true, EventLogFormat.BINARY);
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(log);
+        for (long revision = 1; revision <= 100; revision++) {
+            eventstore.addEvent(new WorkshopAddedBySystem(System.currentTimeMillis(), revision, "W" + revision, 10));
+        }
+        log.closeOutputFile();
+
+        SegmentedEventLog reopened = new SegmentedEventLog(directory, SEGMENT_SIZE, false, EventLogFormat.TEXT);
+        FilehandlerEventstore reloaded = new FilehandlerEventstore(reopened);
+        assertThat(reloaded.numberOfEvents()).isEqualTo(100);
+        assertThat(reloaded.getEventstorageCopy().get(99).getRevisionId()).isEqualTo(100L);
+        reopened.closeOutputFile();
+    }
+
+    private int segmentFiles() {
+        return directory.listFiles((dir, name) -> name.endsWith(".segment")).length;
+    }
+
+    /**
+     * Used by shouldRecoverAfterWriterIsKilled. Appends records until the process is killed.
+     */
+    public static void main(String[] args) {
+        SegmentedEventLog log = new SegmentedEventLog(new File(args[0]), SEGMENT_SIZE, false, EventLogFormat.BINARY);
+        log.openFileForOutput();
+        for (long revision = 1; ; revision++) {
+            log.appendRecord(revision, payload(revision));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.aggregate.WorkshopAggregate;
+import no.java.moosehead.commands.WorkshopTypeEnum;
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.core.AbstractEvent;
+import no.java.moosehead.eventstore.core.EventSubscription;
+import no.java.moosehead.eventstore.core.Eventstore;
+import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.snapshot.*;
+import no.java.moosehead.eventstore.system.SystemBootstrapDone;
+import no.java.moosehead.eventstore.utils.FileHandler;
+import no.java.moosehead.projections.WorkshopListProjection;
+import no.java.moosehead.repository.WorkshopData;
+import no.java.moosehead.repository.WorkshopRepository;
+import no.java.moosehead.saga.EmailSaga;
+import no.java.moosehead.saga.EmailSender;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SnapshotterTest {
+    private File snapshotFile;
+
+    @Before
+    public void setUp() throws Exception {
+        SystemSetup systemSetup = mock(SystemSetup.class);
+        when(systemSetup.emailSender()).thenReturn(mock(EmailSender.class));
+        SystemSetup.setSetup(systemSetup);
+        snapshotFile = File.createTempFile("snapshot", null);
+        snapshotFile.delete();
+        snapshotFile.deleteOnExit();
+    }
+
+    private static class Subscribers {
+        private final List<EventSubscription> all;
+        private final Snapshotter snapshotter;
+
+        private Subscribers(SnapshotStore store, int interval) {
+            WorkshopAggregate workshopAggregate = new WorkshopAggregate();
+            WorkshopListProjection workshopListProjection = new WorkshopListProjection();
+            EmailSaga emailSaga = new EmailSaga();
+            WorkshopRepository workshopRepository = new WorkshopRepository();
+            snapshotter = new Snapshotter(store, interval);
+            snapshotter.register(workshopAggregate);
+            snapshotter.register(workshopListProjection);
+            snapshotter.register(emailSaga);
+            snapshotter.register(workshopRepository);
+            all = Arrays.asList(workshopAggregate, workshopListProjection, emailSaga, workshopRepository, snapshotter);
+        }
+
+        private void play(List<AbstractEvent> events) {
+            for (AbstractEvent event : events) {
+                for (EventSubscription subscription : all) {
+                    subscription.eventAdded(event);
+                }
+            }
+        }
+    }
+
+    private static WorkshopReservation.Builder reservation(long revisionId, String email, String workshopId, int seats) {
+        return WorkshopReservation.builder()
+                .setSystemTimeInMillis(1000L * revisionId)
+                .setRevisionId(revisionId)
+                .setEmail(email)
+                .setFullname("Name " + email)
+                .setWorkshopId(workshopId)
+                .setNumberOfSeatsReserved(seats);
+    }
+
+    private static Eventstore eventstoreWith(List<AbstractEvent> events) {
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(new FileHandler());
+        events.forEach(eventstore::addEvent);
+        return eventstore;
+    }
+
+    private List<AbstractEvent> events() {
+        WorkshopData one = new WorkshopData("one", "One", "First", Instant.ofEpochMilli(1000), Instant.ofEpochMilli(2000), Optional.empty(), WorkshopTypeEnum.NORMAL_WORKSHOP);
+        WorkshopData two = new WorkshopData("two", "Two", "Second", Instant.ofEpochMilli(1000), Instant.ofEpochMilli(2000), Optional.empty(), WorkshopTypeEnum.KIDSAKODER_WORKSHOP);
+        ReservationAddedByUser confirmedByGoogle = new ReservationAddedByUser(reservation(4, "a@a.com", "one", 1).setGoogleUserEmail(Optional.of("a@a.com")).create());
+        return new ArrayList<>(Arrays.asList(
+                new WorkshopAddedByAdmin(1L, 1L, "one", 2, Instant.ofEpochMilli(100), null, one),
+                new KidsaKoderWorkshopAddedByAdmin(2L, 2L, "two", 5, Instant.ofEpochMilli(100), null, two),
+                new ReservationAddedByUser(reservation(3, "b@b.com", "one", 1).create()),
+                confirmedByGoogle,
+                new ReservationAddedByAdmin(reservation(5, "c@c.com", "one", 2).create()),
+                new EmailConfirmedByUser("b@b.com", 6000L, 6L),
+                new ReservationAddedByUser(reservation(7, "d@d.com", "two", 3).create()),
+                new ReservationAddedByAdmin(reservation(8, "e@e.com", "two", 3).create()),
+                new ReservationPartallyCancelled(9000L, 9L, "d@d.com", "two", 1),
+                new ShowUpRegisteredByAdmin(10000L, 10L, true, confirmedByGoogle.getReservationToken()),
+                new ReservationCancelledByUser(11000L, 11L, "a@a.com", "one", 1),
+                new WorkshopSizeChangedByAdmin(12000L, 12L, "one", 4),
+                new EmailConfirmedByUser("d@d.com", 13000L, 13L),
+                new ReservationCancelledByAdmin(14000L, 14L, "b@b.com", "one", 1)
+        ));
+    }
+
+    @Test
+    public void restoredStateShouldEqualFullReplay() throws Exception {
+        List<AbstractEvent> events = events();
+        Subscribers fullReplay = new Subscribers(new FileSnapshotStore(snapshotFile), 1000);
+        fullReplay.play(events);
+
+        for (int split = 1; split < events.size(); split++) {
+            FileSnapshotStore store = new FileSnapshotStore(snapshotFile);
+            Subscribers beforeRestart = new Subscribers(store, 1000);
+            beforeRestart.play(events.subList(0, split));
+            beforeRestart.snapshotter.takeSnapshot();
+
+            Subscribers afterRestart = new Subscribers(store, 1000);
+            int playbackFrom = afterRestart.snapshotter.restore(eventstoreWith(events));
+            assertThat(playbackFrom).isEqualTo(split);
+            afterRestart.play(events.subList(playbackFrom, events.size()));
+
+            assertThat(afterRestart.snapshotter.createSnapshot().toBytes())
+                    .as("State after snapshot at " + split)
+                    .isEqualTo(fullReplay.snapshotter.createSnapshot().toBytes());
+        }
+    }
+
+    @Test
+    public void shouldReplayEverythingWhenVersionChanges() throws Exception {
+        List<AbstractEvent> events = events();
+        FileSnapshotStore store = new FileSnapshotStore(snapshotFile);
+        Subscribers beforeRestart = new Subscribers(store, 1000);
+        beforeRestart.play(events.subList(0, 5));
+        beforeRestart.snapshotter.takeSnapshot();
+
+        Snapshotter changed = new Snapshotter(store, 1000);
+        changed.register("WorkshopListProjection", new WorkshopListProjection() {
+            @Override
+            public int snapshotVersion() {
+                return super.snapshotVersion() + 1;
+            }
+        });
+
+        assertThat(changed.restore(eventstoreWith(events))).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReplayEverythingWhenEventsDoNotMatch() throws Exception {
+        List<AbstractEvent> events = events();
+        FileSnapshotStore store = new FileSnapshotStore(snapshotFile);
+        Subscribers beforeRestart = new Subscribers(store, 1000);
+        beforeRestart.play(events.subList(0, 5));
+        beforeRestart.snapshotter.takeSnapshot();
+
+        assertThat(new Subscribers(store, 1000).snapshotter.restore(eventstoreWith(events.subList(0, 4)))).isEqualTo(0);
+        events.set(4, new ReservationAddedByAdmin(reservation(99, "x@x.com", "one", 1).create()));
+        assertThat(new Subscribers(store, 1000).snapshotter.restore(eventstoreWith(events))).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldSnapshotEveryIntervalAfterBootstrap() throws IOException {
+        List<AbstractEvent> events = events();
+        FileSnapshotStore store = new FileSnapshotStore(snapshotFile);
+        Subscribers subscribers = new Subscribers(store, 4);
+        subscribers.play(events.subList(0, 6));
+        assertThat(store.loadLatest()).isEmpty();
+
+        subscribers.play(Arrays.asList(new SystemBootstrapDone(7L)));
+        assertThat(store.loadLatest().get().getEventCount()).isEqualTo(6);
+
+        subscribers.play(events.subList(6, 10));
+        assertThat(store.loadLatest().get().getEventCount()).isEqualTo(10);
+        assertThat(store.loadLatest().get().getLastRevisionId()).isEqualTo(10L);
+    }
+}
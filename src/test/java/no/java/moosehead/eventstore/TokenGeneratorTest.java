@@ -0,0 +1,110 @@
+package no.java.moosehead.eventstore;
+
+import no.java.moosehead.eventstore.utils.TokenGenerator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TokenGeneratorTest {
+
+    /**
+     * Works like a database sequence with INCREMENT BY blockSize
+     */
+    private static class SequenceBlocks implements TokenGenerator.RevisionBlockSource {
+        private final AtomicLong sequence;
+        private final int blockSize;
+        private final AtomicInteger reserved = new AtomicInteger();
+
+        private SequenceBlocks(long start, int blockSize) {
+            this.sequence = new AtomicLong(start);
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public long reserveBlock() {
+            reserved.incrementAndGet();
+            return sequence.getAndAdd(blockSize);
+        }
+
+        @Override
+        public int blockSize() {
+            return blockSize;
+        }
+    }
+
+    @Test
+    public void shouldHandOutUniqueIdsToConcurrentThreads() throws Exception {
+        SequenceBlocks blocks = new SequenceBlocks(1, 16);
+        TokenGenerator tokenGenerator = new TokenGenerator(blocks);
+        int threads = 8;
+        int idsPerThread = 20000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch ready = new CountDownLatch(1);
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                ready.await();
+                List<Long> ids = new ArrayList<>(idsPerThread);
+                for (int i = 0; i < idsPerThread; i++) {
+                    ids.add(tokenGenerator.nextRevisionId());
+                }
+                return ids;
+            }));
+        }
+        ready.countDown();
+        Set<Long> all = new HashSet<>();
+        for (Future<List<Long>> future : futures) {
+            List<Long> ids = future.get(30, TimeUnit.SECONDS);
+            for (int i = 1; i < ids.size(); i++) {
+                assertThat(ids.get(i)).isGreaterThan(ids.get(i - 1));
+            }
+            all.addAll(ids);
+        }
+        executor.shutdown();
+
+        assertThat(all).hasSize(threads * idsPerThread);
+        assertThat(all.stream().mapToLong(Long::longValue).min().getAsLong()).isEqualTo(1L);
+        // One reservation per block, and not one per id
+        assertThat(blocks.reserved.get()).isEqualTo(threads * idsPerThread / 16);
+    }
+
+    @Test
+    public void shouldSkipToANewBlockWhenIdsAreSeenFromElsewhere() throws Exception {
+        SequenceBlocks blocks = new SequenceBlocks(1, 100);
+        TokenGenerator tokenGenerator = new TokenGenerator(blocks);
+        assertThat(tokenGenerator.nextRevisionId()).isEqualTo(1L);
+
+        // Within the block, so it is enough to skip ahead
+        tokenGenerator.ensureAbove(50);
+        assertThat(tokenGenerator.nextRevisionId()).isEqualTo(51L);
+
+        // Another instance reserved the next block and stored 150 from it
+        assertThat(blocks.reserveBlock()).isEqualTo(101L);
+        tokenGenerator.ensureAbove(150);
+        assertThat(tokenGenerator.nextRevisionId()).isEqualTo(201L);
+
+        tokenGenerator.ensureAbove(10);
+        assertThat(tokenGenerator.nextRevisionId()).isEqualTo(202L);
+        assertThatThrownBy(() -> tokenGenerator.resetRevision(1)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void shouldCountFromTheTailWithoutBlockSource() throws Exception {
+        TokenGenerator tokenGenerator = new TokenGenerator();
+        assertThat(tokenGenerator.nextRevisionId()).isEqualTo(0L);
+        tokenGenerator.ensureAbove(41);
+        assertThat(tokenGenerator.nextRevisionId()).isEqualTo(42L);
+        tokenGenerator.ensureAbove(3);
+        assertThat(tokenGenerator.nextRevisionId()).isEqualTo(43L);
+    }
+}
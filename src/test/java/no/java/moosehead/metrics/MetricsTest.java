@@ -0,0 +1,74 @@
+package no.java.moosehead.metrics;
+
+import no.java.moosehead.aggregate.WorkshopAggregate;
+import no.java.moosehead.eventstore.WorkshopAddedByAdmin;
+import no.java.moosehead.eventstore.core.FilehandlerEventstore;
+import no.java.moosehead.eventstore.utils.FileHandler;
+import org.jsonbuddy.JsonObject;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricsTest {
+
+    @Test
+    public void shouldGivePercentilesWithinABucket() {
+        Histogram histogram = new Histogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat(histogram.getMeanMicros()).isEqualTo(500.5);
+        assertThat(histogram.getMaxMicros()).isEqualTo(1000.0);
+        assertThat(histogram.getP50Micros()).isBetween(500.0, 500 * 1.125);
+        assertThat(histogram.getP99Micros()).isBetween(990.0, 1000.0);
+        assertThat(new Histogram().getP99Micros()).isEqualTo(0.0);
+    }
+
+    @Test
+    public void shouldCountEvents() {
+        Counter counter = new Counter();
+        counter.increment();
+        counter.add(4);
+
+        assertThat(counter.getCount()).isEqualTo(5);
+        // The current second is not part of the rate until it is over
+        assertThat(counter.getPerSecond()).isLessThanOrEqualTo(5 / 60.0);
+    }
+
+    @Test
+    public void shouldShowMetricsAsJsonAndThroughJmx() throws Exception {
+        Metrics.histogram("test.timer").record(2000);
+        Metrics.counter("test.counter").add(3);
+        Metrics.gauge("test.gauge", () -> 42);
+
+        JsonObject json = Metrics.toJson();
+        assertThat(json.requiredObject("histograms").requiredObject("test.timer").requiredLong("count")).isEqualTo(1);
+        assertThat(json.requiredObject("counters").requiredObject("test.counter").requiredLong("count")).isEqualTo(3);
+        assertThat(json.requiredObject("gauges").requiredLong("test.gauge")).isEqualTo(42);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertThat(server.getAttribute(new ObjectName("no.java.moosehead:type=Gauge,name=\"test.gauge\""), "Value")).isEqualTo(42L);
+        assertThat(server.getAttribute(new ObjectName("no.java.moosehead:type=Counter,name=\"test.counter\""), "Count")).isEqualTo(3L);
+    }
+
+    @Test
+    public void shouldTimeAppendsAndSubscribers() {
+        long appendsBefore = Metrics.histogram("eventstore.append").getCount();
+        long subscriberCallsBefore = Metrics.histogram("subscriber.WorkshopAggregate.eventAdded").getCount();
+        long eventsBefore = Metrics.counter("eventstore.events").getCount();
+
+        FilehandlerEventstore eventstore = new FilehandlerEventstore(new FileHandler());
+        eventstore.addEventSubscriber(new WorkshopAggregate());
+        eventstore.addEvent(new WorkshopAddedByAdmin(System.currentTimeMillis(), 1L, "W1", 0));
+
+        assertThat(Metrics.histogram("eventstore.append").getCount()).isEqualTo(appendsBefore + 1);
+        assertThat(Metrics.histogram("subscriber.WorkshopAggregate.eventAdded").getCount()).isEqualTo(subscriberCallsBefore + 1);
+        assertThat(Metrics.counter("eventstore.events").getCount()).isEqualTo(eventsBefore + 1);
+    }
+}
@@ -0,0 +1,71 @@
+package no.java.moosehead.projections;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PersistentMapTest {
+
+    @Test
+    public void shouldWorkLikeAHashMap() {
+        Random random = new Random(42);
+        // "Aa" and "BB" have the same hash, and so do the keys made from them
+        List<String> keys = new ArrayList<>();
+        for (String first : Arrays.asList("Aa", "BB")) {
+            for (String second : Arrays.asList("Aa", "BB")) {
+                keys.add(first + second);
+            }
+        }
+        for (int i = 0; i < 2000; i++) {
+            keys.add("key" + i);
+        }
+
+        PersistentMap<String, Integer> map = PersistentMap.empty();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            String key = keys.get(random.nextInt(keys.size()));
+            if (random.nextInt(3) == 0) {
+                map = map.remove(key);
+                expected.remove(key);
+            } else {
+                map = map.put(key, i);
+                expected.put(key, i);
+            }
+            assertThat(map.get(key)).isEqualTo(expected.get(key));
+        }
+
+        assertThat(map.size()).isEqualTo(expected.size());
+        for (String key : keys) {
+            assertThat(map.get(key)).isEqualTo(expected.get(key));
+        }
+    }
+
+    @Test
+    public void shouldLeaveEarlierMapsAlone() {
+        PersistentMap<String, String> before = PersistentMap.<String, String>empty().put("Aa", "one").put("BB", "two").put("c", "three");
+
+        PersistentMap<String, String> after = before.put("Aa", "changed").remove("BB").remove("c").put("d", "four");
+
+        assertThat(before.size()).isEqualTo(3);
+        assertThat(before.get("Aa")).isEqualTo("one");
+        assertThat(before.get("BB")).isEqualTo("two");
+        assertThat(before.get("c")).isEqualTo("three");
+        assertThat(before.get("d")).isNull();
+        assertThat(after.size()).isEqualTo(2);
+        assertThat(after.get("Aa")).isEqualTo("changed");
+        assertThat(after.get("BB")).isNull();
+        assertThat(after.get("d")).isEqualTo("four");
+    }
+
+    @Test
+    public void shouldReturnSameMapWhenNothingChanges() {
+        String value = "value";
+        PersistentMap<String, String> map = PersistentMap.<String, String>empty().put("key", value);
+
+        assertThat(map.put("key", value)).isSameAs(map);
+        assertThat(map.remove("other")).isSameAs(map);
+        assertThat(map.remove("key").size()).isEqualTo(0);
+    }
+}
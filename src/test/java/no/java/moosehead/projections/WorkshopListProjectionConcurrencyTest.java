@@ -0,0 +1,199 @@
+package no.java.moosehead.projections;
+
+import no.java.moosehead.controller.SystemSetup;
+import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.*;
+import no.java.moosehead.repository.WorkshopData;
+import no.java.moosehead.repository.WorkshopRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WorkshopListProjectionConcurrencyTest {
+    private static final int ROUNDS = 3000;
+    private static final int READERS = 4;
+
+    private WorkshopRepository workshopRepository = mock(WorkshopRepository.class);
+    private long revision = 0;
+
+    @Before
+    public void setup() {
+        SystemSetup systemSetup = mock(SystemSetup.class);
+        when(systemSetup.workshopRepository()).thenReturn(workshopRepository);
+        SystemSetup.setSetup(systemSetup);
+        when(workshopRepository.workshopById("one")).thenReturn(Optional.of(new WorkshopData("one", "One", "description")));
+        when(workshopRepository.workshopById("two")).thenReturn(Optional.of(new WorkshopData("two", "Two", "description")));
+    }
+
+    @Test
+    public void readersShouldSeeConsistentWorkshopsWhileEventsAreAdded() throws Exception {
+        WorkshopListProjection projection = new WorkshopListProjection();
+        projection.eventAdded(new WorkshopAddedBySystem(System.currentTimeMillis(), ++revision, "one", 20));
+        projection.eventAdded(new WorkshopAddedBySystem(System.currentTimeMillis(), ++revision, "two", 20));
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger reads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(READERS);
+        List<Future<?>> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            readers.add(executor.submit(() -> {
+                long lastRevision = 0;
+                Random random = new Random();
+                while (writing.get()) {
+                    long seenRevision = projection.getLastRevisionId();
+                    List<Workshop> workshops = projection.getWorkshops();
+                    assertThat(seenRevision).isGreaterThanOrEqualTo(lastRevision);
+                    lastRevision = seenRevision;
+                    checkConsistent(workshops);
+
+                    String email = "user" + random.nextInt(ROUNDS) + "@example.com";
+                    for (Participant participant : projection.findAllReservations(email)) {
+                        assertThat(participant.getWorkshopReservation().getEmail()).isEqualTo(email);
+                        participant.waitingListNumber();
+                    }
+                    projection.findByReservationToken("token-" + random.nextInt(ROUNDS) + "-one")
+                            .ifPresent(participant -> assertThat(participant.getWorkshopId()).isEqualTo("one"));
+                    reads.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                String email = "user" + round + "@example.com";
+                projection.eventAdded(reservation(email, "one", "token-" + round + "-one", 2));
+                projection.eventAdded(reservation(email, "two", "token-" + round + "-two", 1));
+                projection.eventAdded(new EmailConfirmedByUser(email, System.currentTimeMillis(), ++revision));
+                projection.eventAdded(new ReservationPartallyCancelled(System.currentTimeMillis(), ++revision, email, "one", 1));
+                if (round % 10 == 0) {
+                    projection.eventAdded(new WorkshopSizeChangedByAdmin(System.currentTimeMillis(), ++revision, "two", 15 + round % 20));
+                }
+                if (round >= 30) {
+                    String old = "user" + (round - 30) + "@example.com";
+                    projection.eventAdded(new ReservationCancelledByUser(System.currentTimeMillis(), ++revision, old, "one", 1));
+                    projection.eventAdded(new ReservationCancelledByUser(System.currentTimeMillis(), ++revision, old, "two", 1));
+                }
+            }
+        } finally {
+            writing.set(false);
+        }
+        for (Future<?> reader : readers) {
+            reader.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertThat(reads.get()).isGreaterThan(0);
+        assertThat(projection.getLastRevisionId()).isEqualTo(revision);
+        checkConsistent(projection.getWorkshops());
+        assertThat(projection.workshopById("one").get().getParticipants()).hasSize(30);
+    }
+
+    @Test
+    public void publishedWorkshopsCanNotBeChanged() {
+        WorkshopListProjection projection = new WorkshopListProjection();
+        projection.eventAdded(new WorkshopAddedBySystem(System.currentTimeMillis(), ++revision, "one", 20));
+        projection.eventAdded(reservation("a@a.com", "one", "token-a", 1));
+        Workshop published = projection.getWorkshops().get(0);
+
+        try {
+            published.updateSeats(10);
+            throw new AssertionError("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            published.getParticipants().get(0).setHasShownUp(true);
+            throw new AssertionError("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        projection.eventAdded(new EmailConfirmedByUser("a@a.com", System.currentTimeMillis(), ++revision));
+        assertThat(published.getParticipants().get(0).isEmailConfirmed()).isFalse();
+        assertThat(projection.getWorkshops().get(0).getParticipants().get(0).isEmailConfirmed()).isTrue();
+    }
+
+    @Test
+    public void shouldPublishAtTheEndOfABatch() {
+        WorkshopListProjection projection = new WorkshopListProjection();
+        projection.batchStarted();
+        projection.eventAdded(new WorkshopAddedBySystem(System.currentTimeMillis(), ++revision, "one", 20));
+        projection.eventAdded(reservation("a@a.com", "one", "token-a", 1));
+
+        assertThat(projection.getWorkshops()).isEmpty();
+        assertThat(projection.getLastRevisionId()).isEqualTo(0);
+
+        projection.batchEnded();
+        assertThat(projection.getWorkshops().get(0).getParticipants()).hasSize(1);
+        assertThat(projection.findByReservationToken("token-a")).isPresent();
+        assertThat(projection.getLastRevisionId()).isEqualTo(revision);
+    }
+
+    @Test
+    public void unchangedParticipantsShouldBePartOfTheLatestPublishedWorkshop() {
+        WorkshopListProjection projection = new WorkshopListProjection();
+        projection.eventAdded(new WorkshopAddedBySystem(System.currentTimeMillis(), ++revision, "one", 1));
+        projection.eventAdded(reservation("a@a.com", "one", "token-a", 1));
+        projection.eventAdded(new EmailConfirmedByUser("a@a.com", System.currentTimeMillis(), ++revision));
+        projection.eventAdded(reservation("b@b.com", "one", "token-b", 1));
+        projection.eventAdded(new EmailConfirmedByUser("b@b.com", System.currentTimeMillis(), ++revision));
+        Participant waiting = projection.findByReservationToken("token-b").get();
+        assertThat(waiting.waitingListNumber()).isEqualTo(1);
+
+        projection.eventAdded(new ReservationCancelledByUser(System.currentTimeMillis(), ++revision, "a@a.com", "one", 1));
+
+        assertThat(waiting.waitingListNumber()).isEqualTo(1);
+        assertThat(projection.findByReservationToken("token-b").get().waitingListNumber()).isEqualTo(0);
+        assertThat(projection.findAllReservations("B@b.com ").get(0).waitingListNumber()).isEqualTo(0);
+        assertThat(projection.findByReservationToken("token-a")).isEmpty();
+        assertThat(projection.findAllReservations("a@a.com")).isEmpty();
+    }
+
+    /**
+     * Seat totals must match the participants of the same copy, and an email confirmed in one workshop
+     * is confirmed in the other, as both change with the same event
+     */
+    private static void checkConsistent(List<Workshop> workshops) {
+        Map<String, Boolean> confirmedInOne = new HashMap<>();
+        for (Workshop workshop : workshops) {
+            int confirmedSeats = 0;
+            int seated = 0;
+            for (Participant participant : workshop.getParticipants()) {
+                if (participant.isEmailConfirmed()) {
+                    confirmedSeats += participant.getNumberOfSeatsReserved();
+                    if (participant.waitingListNumber() == 0) {
+                        seated += participant.getNumberOfSeatsReserved();
+                    }
+                }
+                String email = participant.getWorkshopReservation().getEmail();
+                if ("one".equals(workshop.getWorkshopData().getId())) {
+                    confirmedInOne.put(email, participant.isEmailConfirmed());
+                } else if (confirmedInOne.containsKey(email)) {
+                    assertThat(participant.isEmailConfirmed()).isEqualTo(confirmedInOne.get(email));
+                }
+            }
+            assertThat(confirmedSeats).isEqualTo(workshop.getConfirmedSeats());
+            assertThat(seated).isLessThanOrEqualTo(workshop.getNumberOfSeats());
+        }
+    }
+
+    private ReservationAddedByUser reservation(String email, String workshopId, String token, int seats) {
+        return new ReservationAddedByUser(WorkshopReservation.builder()
+                .setSystemTimeInMillis(System.currentTimeMillis())
+                .setRevisionId(++revision)
+                .setEmail(email)
+                .setFullname(email)
+                .setWorkshopId(workshopId)
+                .setReservationToken(token)
+                .setGoogleUserEmail(Optional.empty())
+                .setNumberOfSeatsReserved(seats)
+                .create());
+    }
+}
@@ -4,11 +4,16 @@ import no.java.moosehead.commands.WorkshopTypeEnum;
 import no.java.moosehead.controller.SystemSetup;
 import no.java.moosehead.domain.WorkshopReservation;
 import no.java.moosehead.eventstore.*;
+import no.java.moosehead.eventstore.snapshot.SnapshotInput;
+import no.java.moosehead.eventstore.snapshot.SnapshotOutput;
+import no.java.moosehead.eventstore.utils.BinaryEventCodec;
 import no.java.moosehead.repository.WorkshopData;
 import no.java.moosehead.repository.WorkshopRepository;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
@@ -215,4 +220,88 @@ public class WorkshopListProjectionTest {
 
 
     }
+
+    @Test
+    public void shouldFindParticipantsByEmailAndTokenAfterCancelAndSnapshot() throws Exception {
+        WorkshopListProjection workshopListProjection = setupOneWorkshop();
+        when(workshopRepository.workshopById("two")).thenReturn(Optional.of(new WorkshopData("two", "title", "description")));
+        workshopListProjection.eventAdded(new WorkshopAddedBySystem(System.currentTimeMillis(), 2L, "two", 30));
+        ReservationAddedByUser first = reservation(3L, "one");
+        ReservationAddedByUser second = reservation(4L, "two");
+        workshopListProjection.eventAdded(first);
+        workshopListProjection.eventAdded(second);
+        workshopListProjection.eventAdded(new ReservationCancelledByUser(System.currentTimeMillis(), 5L, "a@a.com", "one", 1));
+        ReservationAddedByUser again = reservation(6L, "one");
+        workshopListProjection.eventAdded(again);
+
+        assertThat(workshopListProjection.findByReservationToken(first.getReservationToken())).isEmpty();
+        assertThat(workshopListProjection.findAllReservations("a@a.com")).extracting(Participant::getWorkshopId).containsExactly("two", "one");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SnapshotOutput out = new SnapshotOutput(bytes, new BinaryEventCodec())) {
+            workshopListProjection.writeSnapshot(out);
+        }
+        WorkshopListProjection restored = new WorkshopListProjection();
+        try (SnapshotInput in = new SnapshotInput(new ByteArrayInputStream(bytes.toByteArray()), new BinaryEventCodec())) {
+            restored.readSnapshot(in);
+        }
+        restored.eventAdded(new EmailConfirmedByUser("a@a.com", System.currentTimeMillis(), 7L));
+        restored.eventAdded(new ShowUpRegisteredByAdmin(System.currentTimeMillis(), 8L, true, second.getReservationToken()));
+
+        assertThat(restored.findAllReservations("a@a.com")).hasSize(2);
+        assertThat(restored.findAllReservations("a@a.com").stream().allMatch(Participant::isEmailConfirmed)).isTrue();
+        assertThat(restored.findByReservationToken(again.getReservationToken()).get().getWorkshopId()).isEqualTo("one");
+        assertThat(restored.findByReservationToken(second.getReservationToken()).get().isHasShownUp()).isTrue();
+
+        restored.eventAdded(new ReservationCancelledByUser(System.currentTimeMillis(), 9L, "a@a.com", "two", 1));
+        assertThat(restored.workshopById("two").get().getParticipants()).isEmpty();
+        assertThat(restored.workshopById("one").get().getParticipants()).hasSize(1);
+        assertThat(restored.workshopById("three")).isEmpty();
+        assertThat(restored.findAllReservations("a@a.com")).extracting(Participant::getWorkshopId).containsExactly("one");
+    }
+
+    @Test
+    public void shouldFindReservationsOfAnEmailHoweverItIsTypedWithCurrentWaitingList() throws Exception {
+        when(workshopRepository.workshopById("one")).thenReturn(Optional.of(new WorkshopData("one", "title", "description")));
+        WorkshopListProjection workshopListProjection = new WorkshopListProjection();
+        workshopListProjection.eventAdded(new WorkshopAddedBySystem(System.currentTimeMillis(), 1L, "one", 1));
+        workshopListProjection.eventAdded(confirmedReservation(2L, "b@b.com"));
+        workshopListProjection.eventAdded(confirmedReservation(3L, "A@a.com"));
+
+        List<Participant> reservations = workshopListProjection.findAllReservations(" a@A.com ");
+        assertThat(reservations).hasSize(1);
+        assertThat(reservations.get(0).waitingListNumber()).isEqualTo(1);
+
+        workshopListProjection.eventAdded(new ReservationCancelledByUser(System.currentTimeMillis(), 4L, "b@b.com", "one", 1));
+        assertThat(workshopListProjection.findAllReservations("a@a.com").get(0).waitingListNumber()).isEqualTo(0);
+
+        workshopListProjection.eventAdded(new WorkshopSizeChangedByAdmin(System.currentTimeMillis(), 5L, "one", 0));
+        assertThat(workshopListProjection.findAllReservations("a@a.com").get(0).waitingListNumber()).isEqualTo(1);
+        assertThat(workshopListProjection.findAllReservations("b@b.com")).isEmpty();
+        assertThat(workshopListProjection.findAllReservations(null)).isEmpty();
+    }
+
+    private static ReservationAddedByUser confirmedReservation(long revisionId, String email) {
+        return new ReservationAddedByUser(WorkshopReservation.builder()
+                .setSystemTimeInMillis(System.currentTimeMillis())
+                .setRevisionId(revisionId)
+                .setEmail(email)
+                .setFullname("Darth Vader")
+                .setWorkshopId("one")
+                .setGoogleUserEmail(Optional.of(email))
+                .setNumberOfSeatsReserved(1)
+                .create());
+    }
+
+    private static ReservationAddedByUser reservation(long revisionId, String workshopId) {
+        return new ReservationAddedByUser(WorkshopReservation.builder()
+                .setSystemTimeInMillis(System.currentTimeMillis())
+                .setRevisionId(revisionId)
+                .setEmail("a@a.com")
+                .setFullname("Darth Vader")
+                .setWorkshopId(workshopId)
+                .setGoogleUserEmail(Optional.empty())
+                .setNumberOfSeatsReserved(1)
+                .create());
+    }
 }
@@ -2,7 +2,9 @@ package no.java.moosehead.projections;
 
 import no.java.moosehead.commands.WorkshopTypeEnum;
 import no.java.moosehead.domain.WorkshopReservation;
+import no.java.moosehead.eventstore.EmailConfirmedByUser;
 import no.java.moosehead.eventstore.ReservationAddedByAdmin;
+import no.java.moosehead.eventstore.ReservationAddedByUser;
 import no.java.moosehead.repository.WorkshopData;
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
@@ -10,7 +12,10 @@ import org.junit.Test;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -108,4 +113,73 @@ public class WorkshopTest {
         WorkshopData workshopData = new WorkshopData("xx", "Juggling workshop", "Learn to juggle", start, end, Optional.empty(), WorkshopTypeEnum.NORMAL_WORKSHOP);
         assertThat(workshopData.infoText()).isEqualTo("Juggling workshop (Start time: 20/04-2018 14:00)");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldKeepWaitingListNumbersThroughChanges() throws Exception {
+        Random random = new Random(17);
+        Workshop ws = new Workshop(new WorkshopData("id", "tittel", "beskrivelse"), 20);
+        List<Participant> participants = new ArrayList<>();
+        for (int step = 0; step < 2000; step++) {
+            int action = random.nextInt(10);
+            if (action < 4 || participants.isEmpty()) {
+                String email = "email" + step + "@em.ail";
+                ReservationAddedByUser added = new ReservationAddedByUser(WorkshopReservation.builder()
+                        .setSystemTimeInMillis(step)
+                        .setRevisionId(step)
+                        .setEmail(email)
+                        .setFullname(email)
+                        .setWorkshopId("id")
+                        .setGoogleUserEmail(Optional.empty())
+                        .setNumberOfSeatsReserved(1 + random.nextInt(4))
+                        .create());
+                Participant participant = random.nextBoolean() ? Participant.confirmedParticipant(added, ws) : Participant.unconfirmedParticipant(added, ws);
+                ws.addParticipant(participant);
+                participants.add(participant);
+            } else if (action < 6) {
+                Participant participant = participants.remove(random.nextInt(participants.size()));
+                ws.removeParticipant(participant.getWorkshopReservation().getEmail());
+            } else if (action < 8) {
+                Participant participant = participants.get(random.nextInt(participants.size()));
+                participant.confirmEmail(new EmailConfirmedByUser(participant.getWorkshopReservation().getEmail(), step, step));
+            } else if (action < 9) {
+                Participant participant = participants.get(random.nextInt(participants.size()));
+                if (participant.getNumberOfSeatsReserved() > 1) {
+                    participant.reduceReservedSeats(1);
+                }
+            } else {
+                ws.updateSeats(random.nextInt(60) - 5);
+            }
+
+            assertThat(ws.getParticipants()).hasSize(participants.size());
+            List<Participant> confirmed = new ArrayList<>();
+            for (Participant participant : ws.getParticipants()) {
+                if (participant.isEmailConfirmed()) {
+                    confirmed.add(participant);
+                }
+            }
+            assertThat(ws.getConfirmedSeats()).isEqualTo(confirmed.stream().mapToInt(Participant::getNumberOfSeatsReserved).sum());
+            for (Participant participant : participants) {
+                assertThat(participant.waitingListNumber()).isEqualTo(waitingListByWalking(confirmed, ws.getNumberOfSeats(), participant));
+            }
+        }
+    }
+
+    /**
+     * How waitingListNumber was computed before it was kept up to date on every change
+     */
+    private static int waitingListByWalking(List<Participant> confirmed, int numberOfSeats, Participant participant) {
+        int pos = confirmed.indexOf(participant);
+        if (pos < 0) {
+            return -1;
+        }
+        int seatCounter = 0;
+        int fullIndex = 0;
+        for (; fullIndex < confirmed.size() && seatCounter <= numberOfSeats; fullIndex++) {
+            seatCounter += confirmed.get(fullIndex).getNumberOfSeatsReserved();
+        }
+        if (seatCounter > numberOfSeats) {
+            fullIndex--;
+        }
+        return pos < fullIndex ? 0 : pos + 1 - fullIndex;
+    }
+}
@@ -55,6 +55,26 @@ public class EmailSagaTest {
         verifyNoMoreInteractions(emailSender);
     }
 
+    @Test
+    public void shouldNotSendForEventsFromOtherInstances() throws Exception {
+        emailSaga.eventAdded(new SystemBootstrapDone(1L));
+        final ReservationAddedByUser reservationAddedByUser = new ReservationAddedByUser(WorkshopReservation.builder()
+                        .setSystemTimeInMillis(System.currentTimeMillis())
+                        .setRevisionId(2L)
+                        .setEmail("darth@a.com")
+                        .setFullname("Darth")
+                        .setWorkshopId("one")
+                        .setGoogleUserEmail(Optional.empty())
+                        .setNumberOfSeatsReserved(1)
+                        .create()
+                );
+        emailSaga.eventAddedByOtherInstance(reservationAddedByUser);
+        verifyZeroInteractions(emailSender);
+
+        emailSaga.eventAdded(new ReservationCancelledByUser(System.currentTimeMillis(), 3L, "darth@a.com", "one", 1));
+        verify(emailSender).sendCancellationConfirmation("darth@a.com", "one");
+    }
+
     @Test
     public void shouldNotSendIfBootstrapNotDone() throws Exception {
         emailSaga.eventAdded(new ReservationAddedByUser(WorkshopReservation.builder()
@@ -15,13 +15,17 @@ import org.mockito.ArgumentCaptor;
 
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Optional;
 
@@ -34,12 +38,28 @@ public class DataServletTest {
     private final HttpServletRequest req = mock(HttpServletRequest.class);
     private final HttpServletResponse resp = mock(HttpServletResponse.class);
     private final StringWriter jsonContent = new StringWriter();
+    private final ByteArrayOutputStream streamContent = new ByteArrayOutputStream();
     private final ParticipantApi participantApi = mock(ParticipantApi.class);
     private HttpSession session;
 
     @Before
     public void setUp() throws Exception {
         when(resp.getWriter()).thenReturn(new PrintWriter(jsonContent));
+        when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                streamContent.write(b);
+            }
+        });
         servlet.setParticipantApi(participantApi);
 
         session = mock(HttpSession.class);
@@ -71,7 +91,7 @@ public class DataServletTest {
         verify(resp).setContentType("text/json");
         verify(participantApi).workshops();
 
-        JsonArray jsonArray = (JsonArray) JsonParser.parse(jsonContent.toString());
+        JsonArray jsonArray = (JsonArray) JsonParser.parse(streamContent.toString("UTF-8"));
         assertThat(jsonArray.size()).isEqualTo(2);
 
         JsonObject obone = jsonArray.get(0, JsonObject.class);
@@ -168,6 +188,84 @@ public class DataServletTest {
 
     }
 
+    @Test
+    public void shouldServeCachedWorkshopListUntilRevisionChanges() throws Exception {
+        when(req.getMethod()).thenReturn("GET");
+        when(req.getPathInfo()).thenReturn("/workshopList");
+        WorkshopData wsdOne = mock(WorkshopData.class);
+        when(wsdOne.getId()).thenReturn("1");
+        when(wsdOne.getTitle()).thenReturn("Ws one");
+        when(wsdOne.getDescription()).thenReturn("desc");
+        WorkshopInfo one = new WorkshopInfo(wsdOne, null, WorkshopStatus.FREE_SPOTS, WorkshopTypeEnum.NORMAL_WORKSHOP, 10);
+        when(participantApi.workshops()).thenReturn(Arrays.asList(one));
+        when(participantApi.workshopsRevision()).thenReturn(5L);
+
+        servlet.service(req, resp);
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        verify(resp).setHeader(eq("ETag"), etag.capture());
+        byte[] first = streamContent.toByteArray();
+
+        servlet.service(req, resp);
+        verify(participantApi, times(1)).workshops();
+        assertThat(streamContent.toByteArray()).hasSize(first.length * 2);
+
+        when(req.getHeader("If-None-Match")).thenReturn(etag.getValue());
+        servlet.service(req, resp);
+        verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertThat(streamContent.toByteArray()).hasSize(first.length * 2);
+
+        when(participantApi.workshopsRevision()).thenReturn(6L);
+        when(wsdOne.getTitle()).thenReturn("Ws one, new title");
+        WorkshopInfo renamed = new WorkshopInfo(wsdOne, null, WorkshopStatus.FREE_SPOTS, WorkshopTypeEnum.NORMAL_WORKSHOP, 10);
+        when(participantApi.workshops()).thenReturn(Arrays.asList(renamed));
+        servlet.service(req, resp);
+        verify(participantApi, times(2)).workshops();
+        String lastResponse = streamContent.toString("UTF-8").substring(first.length * 2);
+        assertThat(((JsonArray) JsonParser.parse(lastResponse)).get(0, JsonObject.class).requiredString("title")).isEqualTo("Ws one, new title");
+    }
+
+    @Test
+    public void shouldRenderWorkshopListAgainWhenRegistrationOpens() throws Exception {
+        when(req.getMethod()).thenReturn("GET");
+        when(req.getPathInfo()).thenReturn("/workshopList");
+        WorkshopData wsdOne = mock(WorkshopData.class);
+        when(wsdOne.getId()).thenReturn("1");
+        when(wsdOne.getRegistrationOpens()).thenReturn(Optional.of(Instant.now().plusMillis(200)));
+        WorkshopInfo one = new WorkshopInfo(wsdOne, null, WorkshopStatus.NOT_OPENED, WorkshopTypeEnum.NORMAL_WORKSHOP, 10);
+        when(participantApi.workshops()).thenReturn(Arrays.asList(one));
+
+        servlet.service(req, resp);
+        servlet.service(req, resp);
+        verify(participantApi, times(1)).workshops();
+
+        Thread.sleep(300);
+        servlet.service(req, resp);
+        verify(participantApi, times(2)).workshops();
+    }
+
+    @Test
+    public void shouldPassIdempotencyKeyWithReservation() throws Exception {
+        when(req.getMethod()).thenReturn("POST");
+        when(req.getPathInfo()).thenReturn("/reserve");
+        when(req.getHeader("Idempotency-Key")).thenReturn("4f1c-22");
+
+        JsonObject reservationJson = JsonFactory.jsonObject();
+        reservationJson.put("workshopid", "123");
+        reservationJson.put("email", "darth@a.com");
+        reservationJson.put("fullname", "Darth Vader");
+        reservationJson.put("numReservations", "1");
+        reservationJson.put("captcha", "123");
+
+        when(participantApi.reservation(any(WorkshopReservation.class), any(AuthorEnum.class), anyString())).thenReturn(ParticipantActionResult.ok());
+
+        mockInputStream(reservationJson.toString());
+
+        servlet.service(req, resp);
+
+        verify(participantApi).reservation(any(WorkshopReservation.class), eq(AuthorEnum.USER), eq("4f1c-22"));
+        verify(participantApi, never()).reservation(any(WorkshopReservation.class), any(AuthorEnum.class));
+    }
+
     @Test
     public void shouldMakeReservationWithGoogleMail() throws Exception {
         when(req.getMethod()).thenReturn("POST");